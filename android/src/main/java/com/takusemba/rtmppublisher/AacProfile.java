@@ -0,0 +1,16 @@
+package com.takusemba.rtmppublisher;
+
+/**
+ * The AAC flavour the audio is encoded with.
+ */
+public enum AacProfile {
+  /** AAC-LC, which every player decodes; good from about 64 kbps mono */
+  LC,
+  /**
+   * HE-AAC (AAC-LC at half the sample rate plus spectral band replication) for low bitrate
+   * uplinks, about 32-48 kbps.
+   */
+  HE,
+  /** HE-AAC v2, with parametric stereo on top; stereo only, about 24-32 kbps */
+  HE_V2
+}
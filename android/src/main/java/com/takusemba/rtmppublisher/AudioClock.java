@@ -0,0 +1,75 @@
+package com.takusemba.rtmppublisher;
+
+/**
+ * Presentation times for captured PCM, counted in samples from the first buffer so that they
+ * advance exactly with the audio and don't pick up the jitter of the reads. The microphone's
+ * sample rate is never exactly the nominal one, though, so the count slowly drifts away from
+ * the system clock the video is stamped with; the drift is slewed out by at most 0.1% of
+ * the audio duration, which keeps lip-sync within a few milliseconds over hours.
+ * Times are on the System.nanoTime clock, like the camera's.
+ */
+class AudioClock {
+
+  private static final long NANOS_PER_SECOND = 1000000000L;
+  // read jitter is smoothed over about this many buffers
+  private static final int ERROR_SMOOTHING = 64;
+  // drift below this is left alone
+  private static final long DEAD_BAND_NANOS = 2 * 1000000L;
+  // beyond this, samples were lost or the clock jumped; follow the system clock at once
+  private static final long RESYNC_NANOS = 200 * 1000000L;
+  // at most this fraction of a buffer's duration is corrected at a time
+  private static final int MAX_SLEW_DIVIDER = 1000;
+
+  private final int sampleRate;
+  private boolean started;
+  private long anchorNanos;
+  private long position;
+  private long correctionNanos;
+  private long errorNanos;
+
+  AudioClock(int sampleRate) {
+    this.sampleRate = sampleRate;
+  }
+
+  void reset() {
+    started = false;
+  }
+
+  /**
+   * @param samples samples (per channel) in the buffer just read.
+   * @param readAtNanos System.nanoTime when the read returned.
+   * @return presentation time of the first sample of the buffer (ns).
+   */
+  long next(int samples, long readAtNanos) {
+    final long capturedAt = readAtNanos - durationNanos(samples);
+    if (!started) {
+      started = true;
+      anchorNanos = capturedAt;
+      position = 0;
+      correctionNanos = 0;
+      errorNanos = 0;
+    }
+    long pts = anchorNanos + durationNanos(position) + correctionNanos;
+    final long offset = capturedAt - pts;
+    if (Math.abs(offset) > RESYNC_NANOS) {
+      correctionNanos += offset;
+      pts += offset;
+      errorNanos = 0;
+    } else {
+      errorNanos += (offset - errorNanos) / ERROR_SMOOTHING;
+      if (Math.abs(errorNanos) > DEAD_BAND_NANOS) {
+        final long maxStep = durationNanos(samples) / MAX_SLEW_DIVIDER;
+        final long step = Math.max(-maxStep, Math.min(maxStep, errorNanos));
+        correctionNanos += step;
+        pts += step;
+        errorNanos -= step;
+      }
+    }
+    position += samples;
+    return pts;
+  }
+
+  long durationNanos(long samples) {
+    return samples * NANOS_PER_SECOND / sampleRate;
+  }
+}
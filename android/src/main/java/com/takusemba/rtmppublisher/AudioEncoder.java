@@ -5,73 +5,255 @@ import android.media.AudioRecord;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Process;
 import android.util.Log;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
-class AudioEncoder implements Encoder {
+class AudioEncoder implements Encoder, AudioRecorder.InputBufferSource {
 
   private final int TIMEOUT_USEC = 10000;
+  private static final long STOP_TIMEOUT_MS = 1000;
 
   private static final String AUDIO_MIME_TYPE = "audio/mp4a-latm";
-  private static final int CHANNEL_COUNT = 1;
+  // 16 bit PCM
+  private static final int BYTES_PER_SAMPLE = 2;
+  // PCM the ring holds while the codec is slow, in ms
+  private static final int RING_DURATION_MS = 1000;
+  // the input thread checks the ring at least this often
+  private static final long INPUT_WAIT_NANOS = 10 * 1000000L;
+  // capture that goes quiet for this long while running is an underrun
+  private static final long UNDERRUN_NANOS = 100 * 1000000L;
+  // samples per channel in an AAC-LC frame; twice as many with HE-AAC
+  private static final int SAMPLES_PER_FRAME = 1024;
+  // gaps are filled from this
+  private static final byte[] SILENCE = new byte[4096];
 
   private MediaCodec encoder;
   private AudioEncoderThread encoderThread;
+  // PCM from the capture thread to the input thread, which feeds it to the codec
+  private volatile PcmRingBuffer ring;
+  private volatile InputThread inputThread;
+  // bumped as capture (re)starts; the input thread doesn't count the wait for the first PCM
+  private volatile int captureGeneration;
+  private volatile boolean capturing;
+  private volatile long underruns;
+  // CPU time of the input threads so far
+  private volatile long inputCpuNanos;
+  // recording thread only: the codec buffer handed out for a direct read
+  private int directInputBufferId = -1;
+  private boolean async = true;
+  private boolean useCallback;
+  private HandlerThread callbackThread;
+  private CountDownLatch endOfStream;
+  // input buffers handed to us by the callback, waiting for PCM
+  private final ArrayDeque<Integer> freeInputBuffers = new ArrayDeque<>();
+  private final EncoderStats stats = new EncoderStats();
 
-  private long startedEncodingAt = 0;
-  private boolean isEncoding = false;
+  private AudioClock audioClock;
+  // frames the audio is delayed by on its way from the microphone
+  private volatile int inputLatency;
+  // capture thread only
+  private AudioTimeline timeline;
+  private int sampleRate;
+  // bytes of one sample over all channels
+  private int bytesPerFrame;
+  private int samplesPerFrame;
+  // sent in place of the codec's config
+  private byte[] audioSpecificConfig;
+  // output thread only: AAC frames are stamped at whole frames from this
+  private long frameGridAnchorUs;
+  private long framesOnGrid;
+  private volatile boolean isEncoding = false;
   private AudioHandler.OnAudioEncoderStateListener listener;
 
   void setOnAudioEncoderStateListener(AudioHandler.OnAudioEncoderStateListener listener) {
     this.listener = listener;
   }
 
+  EncoderStats getStats() {
+    return stats;
+  }
+
+  /**
+   * how far the PCM handed over lags the microphone, as by processing; its timestamps are
+   * moved back by that much.
+   */
+  void setInputLatency(int frames) {
+    inputLatency = frames;
+  }
+
+  /**
+   * tell whether PCM is expected; waiting for it only counts as an underrun while capturing.
+   */
+  void setCapturing(boolean capturing) {
+    if (capturing)
+      captureGeneration++;
+    this.capturing = capturing;
+  }
+
+  /**
+   * @return "overruns"/"overrunBytes" (PCM dropped because the codec fell behind),
+   * "underruns" (capture went quiet for over 100 ms), "bufferedBytes", "inputCpuMs" (CPU
+   * time spent moving PCM from the ring into the codec), and "silenceMs"/"cutMs" (audio made up
+   * for gaps in capture, or left out where capture ran behind).
+   */
+  Map<String, Object> getInputReport() {
+    final Map<String, Object> report = new LinkedHashMap<>();
+    final PcmRingBuffer ring = this.ring;
+    report.put("overruns", ring != null ? ring.getOverruns() : 0L);
+    report.put("overrunBytes", ring != null ? ring.getOverrunBytes() : 0L);
+    report.put("underruns", underruns);
+    report.put("bufferedBytes", ring != null ? ring.getBufferedBytes() : 0);
+    report.put("inputCpuMs", inputCpuNanos / 1000000L);
+    final AudioTimeline timeline = this.timeline;
+    report.put("silenceMs", timeline != null ? timeline.getSilenceSamples() * 1000 / sampleRate : 0L);
+    report.put("cutMs", timeline != null ? timeline.getCutSamples() * 1000 / sampleRate : 0L);
+    return report;
+  }
+
+  /**
+   * see {@link VideoEncoder#setAsync}.
+   */
+  void setAsync(boolean async) {
+    this.async = async;
+  }
+
   /**
    * prepare the Encoder. call this before start the encoder.
+   * @param profile falls back to AAC-LC if the codec can't do it.
    */
-  void prepare(int bitrate, int sampleRate, long startStreamingAt) {
-    int bufferSize = AudioRecord.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_IN_MONO,
+  void prepare(int bitrate, int sampleRate, int channelCount, AacProfile profile) {
+    int bufferSize = AudioRecord.getMinBufferSize(sampleRate, AudioRecorder.getChannelMask(channelCount),
       AudioFormat.ENCODING_PCM_16BIT);
-    MediaFormat audioFormat =
-      MediaFormat.createAudioFormat(AUDIO_MIME_TYPE, sampleRate, CHANNEL_COUNT);
-    audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE,
-      MediaCodecInfo.CodecProfileLevel.AACObjectLC);
-    audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
-    audioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, bufferSize);
-    startedEncodingAt = startStreamingAt;
+    this.sampleRate = sampleRate;
+    bytesPerFrame = BYTES_PER_SAMPLE * channelCount;
+    audioClock = new AudioClock(sampleRate);
+    timeline = new AudioTimeline(sampleRate);
+    frameGridAnchorUs = -1;
+    ring = new PcmRingBuffer(sampleRate * bytesPerFrame * RING_DURATION_MS / 1000, sampleRate,
+      bytesPerFrame);
+    underruns = 0;
+    inputCpuNanos = 0;
+    stats.reset();
+    synchronized (freeInputBuffers) {
+      freeInputBuffers.clear();
+    }
     try {
       encoder = MediaCodec.createEncoderByType(AUDIO_MIME_TYPE);
+      if (!isSupported(encoder, profile)) {
+        Log.w("AudioEncoder", encoder.getName() + " doesn't support " + profile + ", using AAC-LC");
+        profile = AacProfile.LC;
+      }
+      samplesPerFrame = profile == AacProfile.LC ? SAMPLES_PER_FRAME : 2 * SAMPLES_PER_FRAME;
+      audioSpecificConfig = AudioSpecificConfig.build(profile, sampleRate, channelCount);
+      MediaFormat audioFormat =
+        MediaFormat.createAudioFormat(AUDIO_MIME_TYPE, sampleRate, channelCount);
+      audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, toObjectType(profile));
+      audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+      audioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, bufferSize);
+      useCallback = async && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+      if (useCallback) {
+        callbackThread = new HandlerThread("AudioEncoderCallback", Process.THREAD_PRIORITY_URGENT_AUDIO);
+        callbackThread.start();
+        endOfStream = new CountDownLatch(1);
+        encoder.setCallback(new EncoderCallback(), new Handler(callbackThread.getLooper()));
+      }
       encoder.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
     } catch (IOException | IllegalStateException e) {
       e.printStackTrace();
     }
   }
 
+  private static int toObjectType(AacProfile profile) {
+    switch (profile) {
+      case HE:
+        return MediaCodecInfo.CodecProfileLevel.AACObjectHE;
+      case HE_V2:
+        return MediaCodecInfo.CodecProfileLevel.AACObjectHE_PS;
+      default:
+        return MediaCodecInfo.CodecProfileLevel.AACObjectLC;
+    }
+  }
+
+  private static boolean isSupported(MediaCodec codec, AacProfile profile) {
+    if (profile == AacProfile.LC)
+      return true;
+    final int objectType = toObjectType(profile);
+    try {
+      for (MediaCodecInfo.CodecProfileLevel level :
+        codec.getCodecInfo().getCapabilitiesForType(AUDIO_MIME_TYPE).profileLevels) {
+        if (level.profile == objectType)
+          return true;
+      }
+    } catch (IllegalArgumentException e) {
+      Log.w("AudioEncoder", "no capabilities for " + AUDIO_MIME_TYPE, e);
+    }
+    return false;
+  }
+
   @Override
   public void start() {
     encoder.start();
     isEncoding = true;
-    encoderThread = new AudioEncoderThread();
-    encoderThread.start();
+    if (!useCallback) {
+      encoderThread = new AudioEncoderThread();
+      encoderThread.start();
+    }
+    inputThread = new InputThread();
+    inputThread.start();
   }
 
   @Override
   public void stop() {
-    if (isEncoding) {
-      int inputBufferId = encoder.dequeueInputBuffer(TIMEOUT_USEC);
-      encoder.queueInputBuffer(inputBufferId, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+    final InputThread inputThread = this.inputThread;
+    if (inputThread != null) {
+      this.inputThread = null;
+      LockSupport.unpark(inputThread);
       try {
-        encoderThread.join();
-        Log.i("AudioRecorder", "Encoder thread terminated.");
+        inputThread.join();
       } catch (InterruptedException e) {
         Log.i("AudioEncoder", e.toString());
       }
     }
+    if (isEncoding) {
+      int inputBufferId = dequeueInputBuffer();
+      if (inputBufferId >= 0)
+        encoder.queueInputBuffer(inputBufferId, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+      if (useCallback) {
+        try {
+          if (!endOfStream.await(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+            Log.w("AudioEncoder", "No end of stream from the encoder; releasing anyway.");
+        } catch (InterruptedException e) {
+          Log.i("AudioEncoder", e.toString());
+        }
+        release();
+      } else {
+        try {
+          encoderThread.join();
+          Log.i("AudioRecorder", "Encoder thread terminated.");
+        } catch (InterruptedException e) {
+          Log.i("AudioEncoder", e.toString());
+        }
+      }
+    }
+    if (callbackThread != null) {
+      callbackThread.quitSafely();
+      callbackThread = null;
+    }
     encoderThread = null;
+    Log.i("AudioEncoder", (useCallback ? "callback" : "polling") + " mode: " + stats);
   }
 
   @Override
@@ -79,57 +261,213 @@ class AudioEncoder implements Encoder {
     return encoder != null && isEncoding;
   }
 
+  /**
+   * hand over PCM just captured; called on the capture thread, which it never holds up.
+   */
   void enqueueData(byte[] data, int offset, int length) {
-    if (encoder == null) return;
-    final long timestamp = System.currentTimeMillis() - startedEncodingAt;
-    while (length > 0) {
-      final int inputBufferId = encoder.dequeueInputBuffer(TIMEOUT_USEC);
-      if (inputBufferId >= 0) {
-        ByteBuffer inputBuf = encoder.getInputBuffer(inputBufferId);
-        inputBuf.clear();
-        final int toWrite = Math.min(inputBuf.remaining(), length);
-        inputBuf.put(data, offset, toWrite);
-        encoder.queueInputBuffer(inputBufferId, 0, toWrite, timestamp * 1000, 0);
-        offset += toWrite;
-        length -= toWrite;
+    final InputThread inputThread = this.inputThread;
+    if (inputThread == null)
+      return;
+    final long gap = timeline.gap(captureTime(length));
+    if (gap > 0) {
+      // what doesn't fit stays a gap, which the next chunk fills
+      long remaining = gap * bytesPerFrame;
+      while (remaining > 0) {
+        final int size = (int) Math.min(remaining, SILENCE.length);
+        if (!ring.write(SILENCE, 0, size, timeline.getNextPtsNanos()))
+          break;
+        timeline.advanceSilence(size / bytesPerFrame);
+        remaining -= size;
       }
+    } else if (gap < 0) {
+      final int cut = (int) Math.min(length, -gap * bytesPerFrame);
+      timeline.cut(cut / bytesPerFrame);
+      offset += cut;
+      length -= cut;
     }
+    // a chunk dropped for want of room leaves the timeline as it is; the next one fills the gap
+    if (ring.write(data, offset, length, timeline.getNextPtsNanos()))
+      timeline.advance(length / bytesPerFrame);
+    LockSupport.unpark(inputThread);
   }
 
-  class AudioEncoderThread extends Thread {
+  /**
+   * @return when the first sample of the {@code length} bytes just handed over was captured.
+   */
+  private long captureTime(int length) {
+    return audioClock.next(length / bytesPerFrame, System.nanoTime())
+      - audioClock.durationNanos(inputLatency);
+  }
+
+  /**
+   * start the timeline over with the next PCM, whose gap from the previous is taken out of the
+   * stream. call while nothing is being captured.
+   */
+  void resetTimeline() {
+    audioClock.reset();
+    timeline.reset();
+  }
+
+  @Override
+  public ByteBuffer acquireInputBuffer() {
+    if (!isEncoding)
+      return null;
+    final int inputBufferId = dequeueInputBuffer();
+    if (inputBufferId < 0)
+      return null;
+    directInputBufferId = inputBufferId;
+    final ByteBuffer inputBuf = encoder.getInputBuffer(inputBufferId);
+    inputBuf.clear();
+    return inputBuf;
+  }
+
+  @Override
+  public void queueInputBuffer(ByteBuffer buffer, int length) {
+    // an empty buffer still has to go back
+    final long gap = length > 0
+      ? timeline.gap(captureTime(length)) : 0;
+    final int cut = gap < 0 ? (int) Math.min(length, -gap * bytesPerFrame) : 0;
+    timeline.cut(cut / bytesPerFrame);
+    final long ptsNanos = timeline.advance((length - cut) / bytesPerFrame);
+    encoder.queueInputBuffer(directInputBufferId, cut, length - cut, ptsNanos / 1000, 0);
+    directInputBufferId = -1;
+    // the samples are in the buffer already, so the silence for a gap goes after them
+    long remaining = gap > 0 ? gap * bytesPerFrame : 0;
+    while (remaining > 0) {
+      final ByteBuffer silence = acquireInputBuffer();
+      if (silence == null)
+        break;
+      final int size = (int) Math.min(remaining, Math.min(silence.remaining(), SILENCE.length))
+        / bytesPerFrame * bytesPerFrame;
+      silence.put(SILENCE, 0, size);
+      encoder.queueInputBuffer(directInputBufferId, 0, size,
+        timeline.advanceSilence(size / bytesPerFrame) / 1000, 0);
+      directInputBufferId = -1;
+      remaining -= size;
+    }
+  }
+
+  /**
+   * feeds the codec from the ring as its input buffers come free.
+   */
+  class InputThread extends Thread {
+    InputThread() {
+      super("AudioEncoderInput");
+    }
+
+    @Override
     public void run() {
+      Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+      final PcmRingBuffer ring = AudioEncoder.this.ring;
+      final long cpuBase = inputCpuNanos;
+      int generation = captureGeneration;
+      long waitingSince = 0;
+      // an input buffer nothing could be read into, kept for the next chunk
+      int inputBufferId = -1;
       try {
-        byte[] buffer = null;
-        final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-        while (isEncoding) {
-          int outputBufferId = encoder.dequeueOutputBuffer(bufferInfo, TIMEOUT_USEC);
-          if (outputBufferId >= 0) {
-            ByteBuffer encodedData = encoder.getOutputBuffer(outputBufferId);
-            if (encodedData == null) {
-              continue;
+        while (inputThread == this && isEncoding) {
+          if (ring.isEmpty()) {
+            // the wait for the first PCM after (re)starting capture doesn't count
+            if (!capturing || generation != captureGeneration) {
+              generation = captureGeneration;
+              waitingSince = -1;
+            } else if (waitingSince == 0) {
+              waitingSince = System.nanoTime();
             }
+            LockSupport.parkNanos(this, INPUT_WAIT_NANOS);
+            continue;
+          }
+          if (waitingSince > 0 && System.nanoTime() - waitingSince > UNDERRUN_NANOS)
+            underruns++;
+          waitingSince = 0;
+          if (inputBufferId < 0)
+            inputBufferId = dequeueInputBuffer();
+          if (inputBufferId < 0)
+            continue;
+          final ByteBuffer inputBuf = encoder.getInputBuffer(inputBufferId);
+          inputBuf.clear();
+          final long ptsNanos = ring.read(inputBuf);
+          if (ptsNanos < 0) {
+            // not even a frame fit; an empty buffer would only waste a codec round trip
+            LockSupport.parkNanos(this, INPUT_WAIT_NANOS);
+            continue;
+          }
+          encoder.queueInputBuffer(inputBufferId, 0, inputBuf.position(), ptsNanos / 1000, 0);
+          inputBufferId = -1;
+          inputCpuNanos = cpuBase + Debug.threadCpuTimeNanos();
+        }
+      } catch (IllegalStateException e) {
+        if (isEncoding)
+          onError(e);
+      }
+    }
+  }
 
-            encodedData.position(bufferInfo.offset);
-            encodedData.limit(bufferInfo.offset + bufferInfo.size);
+  /**
+   * @return index of an empty input buffer, or -1 if none became available in time.
+   */
+  private int dequeueInputBuffer() {
+    if (!useCallback)
+      return encoder.dequeueInputBuffer(TIMEOUT_USEC);
+    synchronized (freeInputBuffers) {
+      if (freeInputBuffers.isEmpty()) {
+        try {
+          freeInputBuffers.wait(TIMEOUT_USEC / 1000);
+        } catch (InterruptedException e) {
+          return -1;
+        }
+      }
+      final Integer index = freeInputBuffers.pollFirst();
+      return index != null ? index : -1;
+    }
+  }
 
-            final int length = encodedData.remaining();
-            if (buffer == null || buffer.length < length) {
-              buffer = new byte[length];
-            }
-            //encodedData.get(buffer);
-            encodedData.get(buffer, 0, bufferInfo.size);
-            encodedData.position(bufferInfo.offset);
+  class EncoderCallback extends MediaCodec.Callback {
+    @Override
+    public void onInputBufferAvailable(MediaCodec codec, int index) {
+      synchronized (freeInputBuffers) {
+        freeInputBuffers.addLast(index);
+        freeInputBuffers.notify();
+      }
+    }
 
-            listener.onAudioDataEncoded(buffer, 0, length, (int) (System.currentTimeMillis() - startedEncodingAt));
+    @Override
+    public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+      stats.onWakeup();
+      try {
+        if (onOutputBuffer(codec, index, info))
+          endOfStream.countDown();
+      } catch (IllegalStateException e) {
+        // stopped under us
+        endOfStream.countDown();
+      }
+    }
+
+    @Override
+    public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+      AudioEncoder.this.onError(e);
+      endOfStream.countDown();
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+      // format should not be changed
+    }
+  }
 
-            encoder.releaseOutputBuffer(outputBufferId, false);
+  class AudioEncoderThread extends Thread {
+    public void run() {
+      try {
+        final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        while (isEncoding) {
+          int outputBufferId = encoder.dequeueOutputBuffer(bufferInfo, TIMEOUT_USEC);
+          stats.onWakeup();
+          if (outputBufferId >= 0) {
+            if (onOutputBuffer(encoder, outputBufferId, bufferInfo))
+              break;
           } else if (outputBufferId == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
             // format should not be changed
           }
-          if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-            //end of stream
-            break;
-          }
         }
       } catch (Exception e) {
         onError(e);
@@ -139,6 +477,44 @@ class AudioEncoder implements Encoder {
     }
   }
 
+  /**
+   * hand the buffer to the listener and give it back to the codec.
+   * @return true at the end of the stream.
+   */
+  private boolean onOutputBuffer(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+    final ByteBuffer encodedData = codec.getOutputBuffer(index);
+    if (encodedData != null && info.size != 0) {
+      encodedData.position(info.offset);
+      encodedData.limit(info.offset + info.size);
+
+      final boolean config = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+      final long ptsUs = config ? info.presentationTimeUs : toFrameGrid(info.presentationTimeUs);
+      if (!config)
+        stats.onFrame(System.nanoTime() / 1000 - ptsUs);
+      listener.onAudioDataEncoded(config ? ByteBuffer.wrap(audioSpecificConfig) : encodedData,
+        ptsUs * 1000, config);
+    }
+    codec.releaseOutputBuffer(index, false);
+    return (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+  }
+
+  /**
+   * the codec works out the time of each frame from the input buffer it started in, rounded
+   * to microseconds; put it on the exact grid of 1024 (2048 with HE-AAC) samples instead. a time off the grid by
+   * over half a frame starts a new one, as after a pause.
+   */
+  private long toFrameGrid(long ptsUs) {
+    long gridUs = frameGridAnchorUs + framesOnGrid * samplesPerFrame * 1000000L / sampleRate;
+    if (frameGridAnchorUs < 0
+      || Math.abs(ptsUs - gridUs) > samplesPerFrame * 1000000L / sampleRate / 2) {
+      frameGridAnchorUs = ptsUs;
+      framesOnGrid = 0;
+      gridUs = ptsUs;
+    }
+    framesOnGrid++;
+    return gridUs;
+  }
+
   private void release() {
     if (encoder != null) {
       isEncoding = false;
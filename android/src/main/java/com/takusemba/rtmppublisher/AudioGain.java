@@ -0,0 +1,35 @@
+package com.takusemba.rtmppublisher;
+
+/**
+ * A fixed gain, for microphones that are too quiet or too hot.
+ */
+public class AudioGain implements AudioProcessor {
+
+  private final float gain;
+  private int channelCount = 1;
+
+  public AudioGain(float gainDb) {
+    this.gain = (float) Math.pow(10, gainDb / 20);
+  }
+
+  @Override
+  public void prepare(int sampleRate, int channelCount) {
+    this.channelCount = channelCount;
+  }
+
+  @Override
+  public void process(float[] samples, int offset, int frames) {
+    final int end = offset + frames * channelCount;
+    for (int i = offset; i < end; i++)
+      samples[i] *= gain;
+  }
+
+  @Override
+  public int getLatency() {
+    return 0;
+  }
+
+  @Override
+  public void reset() {
+  }
+}
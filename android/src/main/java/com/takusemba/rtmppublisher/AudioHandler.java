@@ -2,16 +2,48 @@ package com.takusemba.rtmppublisher;
 
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Process;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
 
 class AudioHandler implements AudioRecorder.OnAudioRecorderStateChangedListener {
 
-  private static final int SAMPLE_RATE = 44100;
+  private static final int DEFAULT_SAMPLE_RATE = 44100;
+  // 16 bit
+  private static final int BYTES_PER_SAMPLE = 2;
+  // how often silence is fed while paused
+  private static final int SILENCE_INTERVAL_MS = 20;
 
   private AudioEncoder audioEncoder;
   private AudioRecorder audioRecorder;
+  private HandlerThread silenceThread;
+  private boolean directCapture;
+  private int sampleRate = DEFAULT_SAMPLE_RATE;
+  private int channelCount = 1;
+  private AacProfile profile = AacProfile.LC;
+  private final AudioProcessingChain processingChain = new AudioProcessingChain();
+  // direct reads go through the processing chain on their way to the codec
+  private final AudioRecorder.InputBufferSource directSource = new AudioRecorder.InputBufferSource() {
+    @Override
+    public ByteBuffer acquireInputBuffer() {
+      return audioEncoder.acquireInputBuffer();
+    }
+
+    @Override
+    public void queueInputBuffer(ByteBuffer buffer, int length) {
+      processingChain.process(buffer, length);
+      audioEncoder.setInputLatency(processingChain.getLatency());
+      audioEncoder.queueInputBuffer(buffer, length);
+    }
+  };
 
   interface OnAudioEncoderStateListener {
-    void onAudioDataEncoded(byte[] data, int offset, int size, int timestamp);
+    /**
+     * @param data the codec's output buffer, valid only during the call.
+     * @param ptsNanos presentation time on the System.nanoTime clock.
+     */
+    void onAudioDataEncoded(ByteBuffer data, long ptsNanos, boolean config);
     void onAudioError(Exception e);
   }
 
@@ -29,17 +61,133 @@ class AudioHandler implements AudioRecorder.OnAudioRecorderStateChangedListener
 
   AudioHandler() {
     audioEncoder = new AudioEncoder();
-    audioRecorder = new AudioRecorder(SAMPLE_RATE);
+    audioRecorder = new AudioRecorder(sampleRate, channelCount);
     audioRecorder.setOnAudioRecorderStateChangedListener(this);
   }
 
-  void start(final int bitrate, final long startStreamingAt) {
-    audioEncoder.prepare(bitrate, SAMPLE_RATE, startStreamingAt);
+  void setAsyncEncoding(boolean async) {
+    audioEncoder.setAsync(async);
+  }
+
+  /**
+   * takes effect with the next start.
+   */
+  void setFormat(int sampleRate, int channelCount, AacProfile profile) {
+    this.sampleRate = sampleRate;
+    this.channelCount = channelCount;
+    this.profile = profile;
+    audioRecorder.setFormat(sampleRate, channelCount);
+  }
+
+  /**
+   * the audio timestamps allow for the stages' latency from the block they are swapped in
+   * with. the capture times then move by the change; the timeline leaves a change under an
+   * AAC frame alone, and fills in or cuts a larger one, which is what the old stages held back
+   * or the new ones add in front.
+   * @see AudioProcessingChain#setProcessors(int, AudioProcessor[])
+   */
+  void setProcessors(int maxLatency, AudioProcessor[] processors) {
+    processingChain.setProcessors(maxLatency, processors);
+  }
+
+  /**
+   * read the microphone straight into the codec's input buffers, rather than into a byte
+   * array that is then copied through the ring. it saves both copies, but capture waits for
+   * the codec again and overruns happen in AudioRecord, unseen. silence while paused still
+   * goes through the ring. takes effect with the next start.
+   */
+  void setDirectCapture(boolean direct) {
+    directCapture = direct;
+    audioRecorder.setInputBufferSource(direct ? directSource : null);
+  }
+
+  /**
+   * @see AudioEncoder#getInputReport()
+   * @return with "captureCpuMs", the CPU time of the recording thread.
+   */
+  Map<String, Object> getReport() {
+    final Map<String, Object> report = audioEncoder.getInputReport();
+    report.put("captureCpuMs", audioRecorder.getCpuNanos() / 1000000L);
+    return report;
+  }
+
+  void start(final int bitrate) {
+    audioEncoder.prepare(bitrate, sampleRate, channelCount, profile);
+    processingChain.prepare(sampleRate, channelCount);
+    audioEncoder.setInputLatency(processingChain.getLatency());
     audioEncoder.start();
+    // direct capture bypasses the ring, which then has nothing to wait for
+    audioEncoder.setCapturing(!directCapture);
+    audioRecorder.resetCpuNanos();
     audioRecorder.start();
   }
 
+  /**
+   * stop reading the microphone; the encoder sits idle. with {@code feedSilence}, it is fed
+   * silence in real time instead, so that the audio track goes on.
+   */
+  void pause(boolean feedSilence) {
+    if (audioRecorder.isRecording())
+      audioRecorder.stop();
+    // the pause is taken out of the stream's timestamps, unless silence fills it
+    if (!feedSilence && audioEncoder.isEncoding())
+      audioEncoder.resetTimeline();
+    audioEncoder.setCapturing(feedSilence);
+    if (feedSilence && audioEncoder.isEncoding())
+      startSilence();
+  }
+
+  void resume() {
+    stopSilence();
+    audioEncoder.setCapturing(!directCapture);
+    if (audioEncoder.isEncoding() && !audioRecorder.isRecording()) {
+      // what the stages hold from before the pause doesn't belong after it
+      processingChain.reset();
+      audioRecorder.start();
+    }
+  }
+
+  private void startSilence() {
+    silenceThread = new HandlerThread("AudioSilence", Process.THREAD_PRIORITY_AUDIO);
+    silenceThread.start();
+    final Handler handler = new Handler(silenceThread.getLooper());
+    final long startedAt = System.nanoTime();
+    final int sampleRate = this.sampleRate;
+    final int bytesPerFrame = BYTES_PER_SAMPLE * channelCount;
+    handler.post(new Runnable() {
+      // a few intervals' worth, for when a tick comes late
+      private final byte[] silence = new byte[sampleRate * SILENCE_INTERVAL_MS / 1000 * 4 * bytesPerFrame];
+      private long samplesFed;
+
+      @Override
+      public void run() {
+        // as many samples as the microphone would have delivered by now
+        final long due = (System.nanoTime() - startedAt) * sampleRate / 1000000000L;
+        final int samples = (int) Math.min(due - samplesFed, silence.length / bytesPerFrame);
+        if (samples > 0) {
+          audioEncoder.enqueueData(silence, 0, samples * bytesPerFrame);
+          samplesFed = due; // what can't be caught up with is skipped
+        }
+        handler.postDelayed(this, SILENCE_INTERVAL_MS);
+      }
+    });
+  }
+
+  private void stopSilence() {
+    if (silenceThread == null)
+      return;
+    silenceThread.quitSafely();
+    try {
+      silenceThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    silenceThread = null;
+  }
+
   void stop() {
+    audioEncoder.setCapturing(false);
+    stopSilence();
     if (audioRecorder.isRecording()) {
       audioRecorder.stop();
     }
@@ -50,6 +198,8 @@ class AudioHandler implements AudioRecorder.OnAudioRecorderStateChangedListener
 
   @Override
   public void onAudioRecorded(final byte[] data, final int offset, final int length) {
+    processingChain.process(data, offset, length);
+    audioEncoder.setInputLatency(processingChain.getLatency());
     audioEncoder.enqueueData(data, offset, length);
   }
 }
@@ -0,0 +1,150 @@
+package com.takusemba.rtmppublisher;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the {@link AudioProcessor}s over the 16 bit PCM read from the microphone, in place:
+ * each block is turned into floats in a buffer kept from block to block, goes through the
+ * stages in order, and is turned back with clipping. The stages can be replaced while
+ * capturing: the new ones are handed to the capture thread, which gets them ready and swaps
+ * them in before its next block, so a stage is only ever touched by one thread at a time.
+ */
+class AudioProcessingChain {
+
+  private static final float SHORT_SCALE = 32768f;
+
+  private volatile AudioProcessor[] processors = new AudioProcessor[0];
+  // of the stages in use
+  private volatile int latency;
+  // set by setProcessors, taken up by prepare or the capture thread
+  private final AtomicReference<AudioProcessor[]> pending = new AtomicReference<>();
+  private int sampleRate;
+  private int channelCount;
+  // capture thread only
+  private float[] samples = new float[0];
+
+  /**
+   * takes effect with the next block captured, or the next prepare if nothing is. any thread.
+   * @param maxLatency frames the stages may add together.
+   * @throws IllegalArgumentException if they would add more.
+   */
+  void setProcessors(int maxLatency, AudioProcessor[] processors) {
+    final int latency = latencyOf(processors);
+    if (latency > maxLatency)
+      throw new IllegalArgumentException("latency " + latency + " is over " + maxLatency);
+    pending.set(processors.clone());
+  }
+
+  /**
+   * get the stages ready for a format, starting them over; call while nothing is captured.
+   */
+  void prepare(int sampleRate, int channelCount) {
+    this.sampleRate = sampleRate;
+    this.channelCount = channelCount;
+    final AudioProcessor[] next = pending.getAndSet(null);
+    if (next != null)
+      processors = next;
+    for (AudioProcessor processor : processors)
+      processor.prepare(sampleRate, channelCount);
+    latency = latencyOf(processors);
+  }
+
+  /**
+   * call while nothing is captured.
+   */
+  void reset() {
+    for (AudioProcessor processor : processors)
+      processor.reset();
+  }
+
+  /**
+   * @return frames the stages in use delay the audio by; on the capture thread, that of the
+   * stages the last block went through.
+   */
+  int getLatency() {
+    return latency;
+  }
+
+  /**
+   * @param data little endian samples, as AudioRecord reads them.
+   */
+  void process(byte[] data, int offset, int length) {
+    final AudioProcessor[] processors = current();
+    if (processors.length == 0)
+      return;
+    final int count = length / 2;
+    final float[] samples = samplesFor(count);
+    for (int i = 0; i < count; i++) {
+      final int p = offset + 2 * i;
+      samples[i] = (short) ((data[p + 1] << 8) | (data[p] & 0xff)) / SHORT_SCALE;
+    }
+    run(processors, samples, count);
+    for (int i = 0; i < count; i++) {
+      final int p = offset + 2 * i;
+      final int value = toShort(samples[i]);
+      data[p] = (byte) value;
+      data[p + 1] = (byte) (value >> 8);
+    }
+  }
+
+  /**
+   * @param data {@code length} bytes of little endian samples from the start; its position and
+   * limit are left alone.
+   */
+  void process(ByteBuffer data, int length) {
+    final AudioProcessor[] processors = current();
+    if (processors.length == 0)
+      return;
+    final int count = length / 2;
+    final float[] samples = samplesFor(count);
+    for (int i = 0; i < count; i++)
+      samples[i] = (short) ((data.get(2 * i + 1) << 8) | (data.get(2 * i) & 0xff)) / SHORT_SCALE;
+    run(processors, samples, count);
+    for (int i = 0; i < count; i++) {
+      final int value = toShort(samples[i]);
+      data.put(2 * i, (byte) value);
+      data.put(2 * i + 1, (byte) (value >> 8));
+    }
+  }
+
+  /**
+   * capture thread: swap in the stages set since the last block, ready for the format.
+   */
+  private AudioProcessor[] current() {
+    final AudioProcessor[] next = pending.getAndSet(null);
+    if (next == null)
+      return processors;
+    for (AudioProcessor processor : next)
+      processor.prepare(sampleRate, channelCount);
+    processors = next;
+    latency = latencyOf(next);
+    return next;
+  }
+
+  private static int latencyOf(AudioProcessor[] processors) {
+    int latency = 0;
+    for (AudioProcessor processor : processors)
+      latency += processor.getLatency();
+    return latency;
+  }
+
+  private void run(AudioProcessor[] processors, float[] samples, int count) {
+    final int frames = count / channelCount;
+    for (AudioProcessor processor : processors)
+      processor.process(samples, 0, frames);
+  }
+
+  /**
+   * the reads are all about the same size, so this only allocates on the first block.
+   */
+  private float[] samplesFor(int count) {
+    if (samples.length < count)
+      samples = new float[count];
+    return samples;
+  }
+
+  private static int toShort(float sample) {
+    return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(sample * SHORT_SCALE)));
+  }
+}
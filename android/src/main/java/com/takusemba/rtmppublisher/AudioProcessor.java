@@ -0,0 +1,29 @@
+package com.takusemba.rtmppublisher;
+
+/**
+ * A stage of the chain that cleans up the microphone audio before it is encoded, see
+ * {@link RtmpPublisher#setAudioProcessors}. It runs on the capture thread for every block
+ * read, each some 10-40 ms long, so it must neither allocate nor block in {@link #process}.
+ */
+public interface AudioProcessor {
+
+  /**
+   * called before the first block, and again when the format may have changed; allocate here.
+   */
+  void prepare(int sampleRate, int channelCount);
+
+  /**
+   * process {@code frames} frames of interleaved samples in [-1, 1], in place.
+   */
+  void process(float[] samples, int offset, int frames);
+
+  /**
+   * @return frames by which the output lags the input; 0 for most stages.
+   */
+  int getLatency();
+
+  /**
+   * forget the signal so far, as when capture starts over after a pause.
+   */
+  void reset();
+}
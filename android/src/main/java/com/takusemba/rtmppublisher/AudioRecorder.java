@@ -3,54 +3,138 @@ package com.takusemba.rtmppublisher;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaRecorder;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+
 class AudioRecorder {
 
+  // 16 bit
+  private static final int BYTES_PER_SAMPLE = 2;
+
   private AudioRecord audioRecord;
-  private final int sampleRate;
+  private int sampleRate;
+  private int channelCount;
   private OnAudioRecorderStateChangedListener listener;
+  private InputBufferSource inputBufferSource;
   private RecordingThread recordingThread;
+  // CPU time of the recording threads so far
+  private volatile long cpuNanos;
 
   interface OnAudioRecorderStateChangedListener {
     void onAudioRecorded(byte[] data, int offset, int length);
     void onAudioError(Exception e);
   }
 
+  /**
+   * buffers to read PCM straight into, saving the copies through a byte array.
+   */
+  interface InputBufferSource {
+    /**
+     * @return a cleared direct buffer; null if none came free in time.
+     */
+    ByteBuffer acquireInputBuffer();
+
+    /**
+     * hand back the buffer from {@link #acquireInputBuffer()} with {@code length} bytes read
+     * into it from the start; 0 if the read failed.
+     */
+    void queueInputBuffer(ByteBuffer buffer, int length);
+  }
+
   void setOnAudioRecorderStateChangedListener(OnAudioRecorderStateChangedListener listener) {
     this.listener = listener;
   }
 
-  AudioRecorder(int sampleRate) {
+  /**
+   * read into the buffers of {@code source} instead of calling
+   * {@link OnAudioRecorderStateChangedListener#onAudioRecorded}; null to go back. the
+   * recording thread then waits for each buffer. takes effect with the next start.
+   */
+  void setInputBufferSource(InputBufferSource source) {
+    this.inputBufferSource = source;
+  }
+
+  /**
+   * @return CPU time of the recording threads since {@link #resetCpuNanos()}.
+   */
+  long getCpuNanos() {
+    return cpuNanos;
+  }
+
+  void resetCpuNanos() {
+    cpuNanos = 0;
+  }
+
+  AudioRecorder(int sampleRate, int channelCount) {
+    setFormat(sampleRate, channelCount);
+  }
+
+  /**
+   * takes effect with the next start.
+   */
+  void setFormat(int sampleRate, int channelCount) {
     this.sampleRate = sampleRate;
+    this.channelCount = channelCount;
+  }
+
+  static int getChannelMask(int channelCount) {
+    return channelCount == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
   }
 
   public void start() {
-    final int bufferSize = AudioRecord.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
-    audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+    final int channelMask = getChannelMask(channelCount);
+    final int bufferSize = AudioRecord.getMinBufferSize(sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+    audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
     audioRecord.startRecording();
-    recordingThread = new RecordingThread(bufferSize);
+    recordingThread = new RecordingThread(bufferSize, BYTES_PER_SAMPLE * channelCount, inputBufferSource);
     recordingThread.start();
   }
 
   class RecordingThread extends Thread {
-    public RecordingThread(int bufferSize) {
+    public RecordingThread(int bufferSize, int bytesPerFrame, InputBufferSource source) {
       this.bufferSize = bufferSize;
+      this.bytesPerFrame = bytesPerFrame;
+      this.source = source;
     }
     private int bufferSize;
+    private final int bytesPerFrame;
+    private final InputBufferSource source;
     public void run() {
+      final long cpuBase = cpuNanos;
       try {
+        if (source != null) {
+          readDirect(cpuBase);
+          return;
+        }
         int bufferReadResult;
         byte[] data = new byte[bufferSize];
         while (isRecording() && (bufferReadResult = audioRecord.read(data, 0, bufferSize)) > 0) {
           listener.onAudioRecorded(data, 0, bufferReadResult);
+          cpuNanos = cpuBase + Debug.threadCpuTimeNanos();
         }
       } catch (Exception e) {
         onError(e);
       }
     }
+
+    private void readDirect(long cpuBase) {
+      while (isRecording()) {
+        final ByteBuffer buffer = source.acquireInputBuffer();
+        if (buffer == null)
+          continue;
+        // whole frames only, so that no sample is split between two buffers
+        final int size = Math.min(buffer.remaining(), bufferSize) / bytesPerFrame * bytesPerFrame;
+        final int read = audioRecord.read(buffer, size);
+        source.queueInputBuffer(buffer, Math.max(read, 0));
+        cpuNanos = cpuBase + Debug.threadCpuTimeNanos();
+        if (read <= 0)
+          break;
+      }
+    }
   }
 
   void stop() {
@@ -0,0 +1,62 @@
+package com.takusemba.rtmppublisher;
+
+/**
+ * Builds the AudioSpecificConfig (ISO/IEC 14496-3) that goes out as the AAC sequence header,
+ * rather than passing on the codec's. Encoders differ in how they signal HE-AAC, and many
+ * leave it implicit: the config then claims plain AAC-LC at half the sample rate, which some
+ * players play at that rate. HE-AAC is signalled explicitly here, hierarchically, so that
+ * decoders know the output rate and channels up front.
+ */
+class AudioSpecificConfig {
+
+  private static final int OBJECT_TYPE_LC = 2;
+  private static final int OBJECT_TYPE_SBR = 5;
+  private static final int OBJECT_TYPE_PS = 29;
+  private static final int[] SAMPLE_RATES = {
+    96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+  };
+
+  private AudioSpecificConfig() {
+  }
+
+  /**
+   * @return whether the sample rate, and for HE-AAC the core's half of it, has an index of its
+   * own, which is all that is built here.
+   */
+  static boolean isSupported(AacProfile profile, int sampleRate) {
+    return indexOf(sampleRate) >= 0 && (profile == AacProfile.LC || indexOf(sampleRate / 2) >= 0);
+  }
+
+  /**
+   * @param sampleRate the output rate; the core of HE-AAC runs at half of it.
+   * @param channelCount input channels; HE-AAC v2 encodes stereo as a mono core.
+   */
+  static byte[] build(AacProfile profile, int sampleRate, int channelCount) {
+    final int index = indexOf(sampleRate);
+    if (!isSupported(profile, sampleRate))
+      throw new IllegalArgumentException("unsupported sample rate: " + sampleRate);
+    if (profile == AacProfile.LC) {
+      // object type, sample rate index, channels, and GASpecificConfig with nothing set
+      return new byte[] {
+        (byte) (OBJECT_TYPE_LC << 3 | index >> 1),
+        (byte) ((index & 1) << 7 | channelCount << 3)
+      };
+    }
+    final int objectType = profile == AacProfile.HE_V2 ? OBJECT_TYPE_PS : OBJECT_TYPE_SBR;
+    final int coreIndex = indexOf(sampleRate / 2);
+    final int coreChannels = profile == AacProfile.HE_V2 ? 1 : channelCount;
+    // 5 bits object type, 4 core rate index, 4 channels, 4 output rate index, 5 core object
+    // type (LC), 3 GASpecificConfig; 25 bits
+    final int bits = objectType << 20 | coreIndex << 16 | coreChannels << 12 | index << 8
+      | OBJECT_TYPE_LC << 3;
+    return new byte[] {(byte) (bits >> 17), (byte) (bits >> 9), (byte) (bits >> 1), (byte) (bits << 7)};
+  }
+
+  private static int indexOf(int sampleRate) {
+    for (int i = 0; i < SAMPLE_RATES.length; i++) {
+      if (SAMPLE_RATES[i] == sampleRate)
+        return i;
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,94 @@
+package com.takusemba.rtmppublisher;
+
+/**
+ * Stamps the PCM going into the audio encoder by counting samples from the first one, so that
+ * the codec sees one gapless run of audio and its AAC frames come out exactly 1024 samples
+ * apart. The capture times from {@link AudioClock} only tell when the count and the microphone
+ * part ways: samples lost in capture or dropped on the way to the codec, or the microphone's
+ * clock running off its nominal rate. Up to a couple of seconds of that is made up with
+ * silence, or by leaving samples out when capture is behind the count; past that, the clock
+ * jumped and the count starts over from the capture time.
+ * Not thread safe; used by whichever thread produces the PCM.
+ */
+class AudioTimeline {
+
+  private static final long NANOS_PER_SECOND = 1000000000L;
+  // differences within one AAC frame are left alone
+  private static final int TOLERANCE_SAMPLES = 1024;
+  // beyond this, the clock jumped rather than samples going missing
+  private static final long MAX_GAP_NANOS = 2 * NANOS_PER_SECOND;
+
+  private final int sampleRate;
+  private boolean started;
+  private long anchorNanos;
+  private long position;
+  // read from any thread
+  private volatile long silenceSamples;
+  private volatile long cutSamples;
+
+  AudioTimeline(int sampleRate) {
+    this.sampleRate = sampleRate;
+  }
+
+  /**
+   * start over with the next chunk, as after a pause whose gap is taken out of the stream.
+   */
+  void reset() {
+    started = false;
+  }
+
+  /**
+   * @param ptsNanos capture time of the first sample of the next chunk.
+   * @return samples between the end of the timeline and the chunk: silence to fill in first if
+   * positive, samples of the chunk to leave out if negative. 0 within tolerance.
+   */
+  long gap(long ptsNanos) {
+    if (!started || Math.abs(ptsNanos - getNextPtsNanos()) > MAX_GAP_NANOS) {
+      started = true;
+      anchorNanos = ptsNanos;
+      position = 0;
+      return 0;
+    }
+    final long samples = (ptsNanos - getNextPtsNanos()) * sampleRate / NANOS_PER_SECOND;
+    return Math.abs(samples) < TOLERANCE_SAMPLES ? 0 : samples;
+  }
+
+  /**
+   * @return presentation time of the next sample.
+   */
+  long getNextPtsNanos() {
+    return anchorNanos + position * NANOS_PER_SECOND / sampleRate;
+  }
+
+  /**
+   * @return presentation time of the first of the samples added.
+   */
+  long advance(long samples) {
+    final long ptsNanos = getNextPtsNanos();
+    position += samples;
+    return ptsNanos;
+  }
+
+  /**
+   * add samples of silence made up for a gap.
+   */
+  long advanceSilence(long samples) {
+    silenceSamples += samples;
+    return advance(samples);
+  }
+
+  /**
+   * count samples left out of a chunk.
+   */
+  void cut(long samples) {
+    cutSamples += samples;
+  }
+
+  long getSilenceSamples() {
+    return silenceSamples;
+  }
+
+  long getCutSamples() {
+    return cutSamples;
+  }
+}
@@ -0,0 +1,128 @@
+package com.takusemba.rtmppublisher;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.takusemba.rtmppublisher.rtmp.RtmpClient;
+
+import java.io.IOException;
+
+/**
+ * Uploads what a {@link SpillStore} holds to a stream of its own, next to the live one,
+ * and stops when the store runs dry. The frames are sent with the timestamps they were
+ * spilled with. An upload that fails leaves the rest in the store for the next one.
+ */
+class BackfillUploader {
+
+  // frames sent before the thread looks at its queue again
+  private static final int BATCH_FRAMES = 64;
+
+  private final SpillStore store;
+  private final String url;
+  private final int width;
+  private final int height;
+  private final RtmpClient rtmpClient = new RtmpClient();
+  private final FrameBufferPool framePool = new FrameBufferPool();
+  private HandlerThread thread;
+  private volatile Handler handler;
+  private volatile boolean running;
+  private final Runnable uploadRunnable = new Runnable() {
+    @Override
+    public void run() {
+      upload();
+    }
+  };
+
+  BackfillUploader(SpillStore store, String url, int width, int height) {
+    this.store = store;
+    this.url = url;
+    this.width = width;
+    this.height = height;
+  }
+
+  void start() {
+    running = true;
+    thread = new HandlerThread("Backfill", Process.THREAD_PRIORITY_BACKGROUND);
+    thread.start();
+    final Handler handler = new Handler(thread.getLooper());
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          rtmpClient.connect(url, width, height);
+          Log.i("BackfillUploader", "uploading to " + url);
+          store.resendConfig();
+          upload();
+        } catch (IOException e) {
+          Log.e("BackfillUploader", "Failed to connect: " + url, e);
+          finish();
+        }
+      }
+    });
+    this.handler = handler;
+  }
+
+  void stop() {
+    final Handler handler = this.handler;
+    if (handler == null)
+      return;
+    this.handler = null;
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        finish();
+      }
+    });
+    thread.quitSafely();
+  }
+
+  boolean isRunning() {
+    return running;
+  }
+
+  long getBytesSent() {
+    return rtmpClient.getBytesWritten();
+  }
+
+  private void upload() {
+    if (!running)
+      return;
+    for (int i = 0; i < BATCH_FRAMES; i++) {
+      final EncodedFrame frame = store.peek(framePool);
+      if (frame == null) {
+        Log.i("BackfillUploader", "backfill done: " + url);
+        finish();
+        return;
+      }
+      try {
+        if (frame.isVideo())
+          rtmpClient.writeVideo(frame.data, frame.timestamp);
+        else
+          rtmpClient.writeAudio(frame.data, frame.timestamp, frame.config);
+        store.markSent();
+      } catch (IOException e) {
+        // the frame stays in the store for the next upload
+        Log.e("BackfillUploader", "Write failed", e);
+        finish();
+        return;
+      } finally {
+        frame.release();
+      }
+    }
+    final Handler handler = this.handler;
+    if (handler != null)
+      handler.post(uploadRunnable);
+  }
+
+  private void finish() {
+    running = false;
+    rtmpClient.close();
+    final Handler handler = this.handler;
+    if (handler != null) {
+      this.handler = null;
+      thread.quitSafely();
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package com.takusemba.rtmppublisher;
+
+/**
+ * Decides the video bitrate from what the send path observed during the last interval.
+ * Backs off quickly when the queue builds up or writes block, probes upwards slowly once
+ * the uplink has been clear for a while. No Android dependencies, so traces can be replayed
+ * on a plain JVM.
+ */
+class BitrateController {
+
+  // queue/blocking levels that count as congestion or as a clear link
+  private static final int CONGESTED_QUEUE_MS = 400;
+  private static final int CLEAR_QUEUE_MS = 100;
+  private static final double CONGESTED_BLOCKED_RATIO = 0.5;
+  private static final double CLEAR_BLOCKED_RATIO = 0.1;
+
+  // on congestion, never go above this share of the measured throughput
+  private static final double THROUGHPUT_MARGIN = 0.85;
+  private static final double DECREASE_FACTOR = 0.75;
+
+  private final int minBitrate;
+  private final int maxBitrate;
+  private int step;
+  private int upIntervals = 5;
+  private int downIntervals = 2;
+
+  private int bitrate;
+  private int clearCount = 0;
+  private int congestedCount = 0;
+
+  BitrateController(int minBitrate, int maxBitrate, int initialBitrate) {
+    if (minBitrate <= 0 || maxBitrate < minBitrate)
+      throw new IllegalArgumentException("invalid bitrate range: " + minBitrate + "-" + maxBitrate);
+    this.minBitrate = minBitrate;
+    this.maxBitrate = maxBitrate;
+    this.step = Math.max((maxBitrate - minBitrate) / 10, 1);
+    this.bitrate = clamp(initialBitrate);
+  }
+
+  /**
+   * @param step bitrate added on each upward probe (bps).
+   */
+  void setStep(int step) {
+    this.step = Math.max(step, 1);
+  }
+
+  /**
+   * @param upIntervals consecutive clear intervals before stepping up.
+   * @param downIntervals consecutive congested intervals before backing off.
+   */
+  void setHysteresis(int upIntervals, int downIntervals) {
+    this.upIntervals = Math.max(upIntervals, 1);
+    this.downIntervals = Math.max(downIntervals, 1);
+  }
+
+  int getBitrate() {
+    return bitrate;
+  }
+
+  /**
+   * feed the observations of one interval.
+   * @param intervalMs length of the interval.
+   * @param queueDurationMs media duration waiting in the send queue at the end of the interval.
+   * @param bytesSent bytes written to the socket during the interval.
+   * @param writeBlockedNanos time the writer spent waiting for the socket during the interval.
+   * @return the bitrate to use from now on.
+   */
+  int update(long intervalMs, int queueDurationMs, long bytesSent, long writeBlockedNanos) {
+    if (intervalMs <= 0)
+      return bitrate;
+    final double blockedRatio = writeBlockedNanos / (intervalMs * 1000000.0);
+    final long throughput = bytesSent * 8 * 1000 / intervalMs;
+
+    if (queueDurationMs > CONGESTED_QUEUE_MS || blockedRatio > CONGESTED_BLOCKED_RATIO) {
+      clearCount = 0;
+      if (++congestedCount >= downIntervals) {
+        congestedCount = 0;
+        final long target = Math.min((long) (bitrate * DECREASE_FACTOR),
+          (long) (throughput * THROUGHPUT_MARGIN));
+        bitrate = clamp(target);
+      }
+    } else if (queueDurationMs < CLEAR_QUEUE_MS && blockedRatio < CLEAR_BLOCKED_RATIO) {
+      congestedCount = 0;
+      if (++clearCount >= upIntervals) {
+        clearCount = 0;
+        bitrate = clamp((long) bitrate + step);
+      }
+    } else {
+      clearCount = 0;
+      congestedCount = 0;
+    }
+    return bitrate;
+  }
+
+  private int clamp(long value) {
+    return (int) Math.max(minBitrate, Math.min(maxBitrate, value));
+  }
+}
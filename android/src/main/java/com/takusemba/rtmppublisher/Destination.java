@@ -0,0 +1,136 @@
+package com.takusemba.rtmppublisher;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.Map;
+
+/**
+ * An additional server the stream is published to. It has a muxer of its own, and with it
+ * its own send queue, drop policy, GOP cache, stats and thread, so a slow server only drops
+ * its own frames. It reconnects on its own, backing off up to half a minute.
+ * Called on the main thread, except {@link #send}.
+ */
+class Destination implements Muxer.StatusListener {
+
+  private static final long MIN_RECONNECT_DELAY_MS = 1000;
+  private static final long MAX_RECONNECT_DELAY_MS = 30000;
+
+  private final String url;
+  private final int rendition;
+  private final Muxer muxer = new Muxer();
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private int width;
+  private int height;
+  private boolean active;
+  // between open and its outcome; disconnects reported meanwhile are stale
+  private boolean connecting;
+  private boolean connected;
+  private boolean reconnectScheduled;
+  private long reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+  private final Runnable reconnectRunnable = new Runnable() {
+    @Override
+    public void run() {
+      reconnectScheduled = false;
+      if (active)
+        open();
+    }
+  };
+
+  /**
+   * @param rendition which video rendition it gets; see {@link VideoHandler#addRendition}.
+   */
+  Destination(String url, int rendition, Muxer.KeyFrameRequestListener keyFrameRequestListener) {
+    this.url = url;
+    this.rendition = rendition;
+    muxer.setOnMuxerStateListener(this);
+    muxer.setKeyFrameRequestListener(keyFrameRequestListener);
+  }
+
+  String getUrl() {
+    return url;
+  }
+
+  int getRendition() {
+    return rendition;
+  }
+
+  void start(int width, int height) {
+    this.width = width;
+    this.height = height;
+    active = true;
+    reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+    open();
+  }
+
+  void stop() {
+    active = false;
+    reconnectScheduled = false;
+    handler.removeCallbacks(reconnectRunnable);
+    muxer.close();
+  }
+
+  boolean isActive() {
+    return active;
+  }
+
+  /**
+   * queue a frame shared with the other destinations; called on the encoder threads.
+   */
+  void send(EncodedFrame frame) {
+    if (frame.isVideo() && !frame.config)
+      muxer.getStats().onVideoEncoded();
+    muxer.sendFrame(frame);
+  }
+
+  /**
+   * @return {@link Muxer#getStatsReport()} and "connected".
+   */
+  Map<String, Object> getStatsReport() {
+    final Map<String, Object> report = muxer.getStatsReport();
+    report.put("connected", connected);
+    return report;
+  }
+
+  private void open() {
+    connecting = true;
+    muxer.open(url, width, height);
+  }
+
+  private void scheduleReconnect() {
+    if (!active || connecting || reconnectScheduled)
+      return;
+    reconnectScheduled = true;
+    Log.i("Destination", String.format("%s: reconnecting in %d ms", url, reconnectDelayMs));
+    muxer.getStats().onReconnect();
+    handler.postDelayed(reconnectRunnable, reconnectDelayMs);
+    reconnectDelayMs = Math.min(reconnectDelayMs * 2, MAX_RECONNECT_DELAY_MS);
+  }
+
+  @Override
+  public void onConnected() {
+    Log.i("Destination", url + ": connected");
+    connecting = false;
+    connected = true;
+    reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+  }
+
+  @Override
+  public void onFailedToConnect() {
+    connecting = false;
+    connected = false;
+    scheduleReconnect();
+  }
+
+  @Override
+  public void onDisconnected() {
+    connected = false;
+    scheduleReconnect();
+  }
+
+  @Override
+  public void onFramesDropped(DropReason reason, int frames, int bytes) {
+    Log.i("Destination", String.format("%s: %s, %d frames, %d bytes dropped", url, reason, frames, bytes));
+  }
+}
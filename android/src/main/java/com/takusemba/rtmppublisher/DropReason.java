@@ -0,0 +1,13 @@
+package com.takusemba.rtmppublisher;
+
+/**
+ * Why encoded frames were thrown away before reaching the server.
+ */
+public enum DropReason {
+  /** non-reference video frames dropped to stay within the send queue budget */
+  NON_REFERENCE,
+  /** video frames dropped up to the next key frame */
+  GOP,
+  /** audio frames dropped as the last resort */
+  AUDIO
+}
@@ -0,0 +1,126 @@
+package com.takusemba.rtmppublisher;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded access unit on its way to the server, held in a direct buffer so that it
+ * can be handed to the socket without another copy.
+ * Frames are reference counted: a frame taken from a {@link FrameBufferPool} starts with
+ * one reference, every {@link #retain()} adds one, and the buffer goes back to the pool when
+ * the last holder calls {@link #release()}. The content must not change while shared.
+ */
+class EncodedFrame {
+
+  static final int VIDEO = 0;
+  static final int AUDIO = 1;
+
+  private static final int NAL_SLICE = 1;
+  private static final int NAL_IDR = 5;
+  private static final int NAL_SPS = 7;
+  private static final int NAL_PPS = 8;
+
+  /** the frame is between position and limit; both stay put until the frame is released */
+  final ByteBuffer data;
+  private final FrameBufferPool pool;
+  private final AtomicInteger refCount = new AtomicInteger();
+
+  int type;
+  int length;
+  int timestamp;
+  /** camera timestamp (System.nanoTime) of a video frame, for latency tracking; 0 if unknown */
+  long captureNanos;
+  /** H.264 IDR frame */
+  boolean keyFrame;
+  /** SPS/PPS or AudioSpecificConfig; never dropped */
+  boolean config;
+  /** non-reference video frame; nothing else depends on it */
+  boolean disposable;
+
+  EncodedFrame(ByteBuffer data, FrameBufferPool pool) {
+    this.data = data;
+    this.pool = pool;
+  }
+
+  boolean isVideo() {
+    return type == VIDEO;
+  }
+
+  /**
+   * copy {@code src} (position to limit) into the frame buffer; {@code src} is consumed.
+   */
+  void fill(ByteBuffer src) {
+    data.clear();
+    data.put(src);
+    data.flip();
+    length = data.remaining();
+  }
+
+  /**
+   * describe the Annex-B access unit held in {@link #data}.
+   */
+  void setVideo(int timestamp, boolean config, long captureNanos) {
+    this.type = VIDEO;
+    this.timestamp = timestamp;
+    this.captureNanos = captureNanos;
+    this.config = config;
+    this.keyFrame = false;
+    this.disposable = false;
+    if (!config)
+      classifyVideo();
+  }
+
+  void setAudio(int timestamp, boolean config) {
+    this.type = AUDIO;
+    this.timestamp = timestamp;
+    this.captureNanos = 0;
+    this.config = config;
+    this.keyFrame = false;
+    this.disposable = false;
+  }
+
+  /**
+   * called by the pool when handing out the frame.
+   */
+  void acquired() {
+    refCount.set(1);
+  }
+
+  EncodedFrame retain() {
+    refCount.incrementAndGet();
+    return this;
+  }
+
+  /**
+   * drop a reference; the last one gives the buffer back to its pool.
+   */
+  void release() {
+    if (refCount.decrementAndGet() == 0 && pool != null)
+      pool.release(this);
+  }
+
+  /**
+   * look at the NAL units up to the first slice; SPS/PPS without a slice is config.
+   */
+  private void classifyVideo() {
+    final int end = data.limit();
+    for (int i = data.position(); i + 3 < end; i++) {
+      if (data.get(i) != 0 || data.get(i + 1) != 0 || data.get(i + 2) != 1)
+        continue;
+      final int header = data.get(i + 3) & 0xff;
+      final int nalType = header & 0x1f;
+      if (nalType == NAL_SPS || nalType == NAL_PPS) {
+        config = true;
+      } else if (nalType == NAL_IDR) {
+        config = false;
+        keyFrame = true;
+        return;
+      } else if (nalType >= NAL_SLICE && nalType < NAL_IDR) {
+        config = false;
+        disposable = (header >> 5) == 0; // nal_ref_idc == 0
+        return;
+      }
+      i += 3;
+    }
+  }
+}
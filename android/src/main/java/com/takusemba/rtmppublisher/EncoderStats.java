@@ -0,0 +1,64 @@
+package com.takusemba.rtmppublisher;
+
+import java.util.Locale;
+
+/**
+ * Counters for the output side of one encoder: how often it woke up and how long a frame
+ * took from capture until it left the codec.
+ */
+class EncoderStats {
+
+  // anything beyond this is a clock mismatch rather than latency
+  private static final long MAX_PLAUSIBLE_LATENCY_US = 10 * 1000000L;
+
+  private long wakeups;
+  private long frames;
+  private long totalLatencyUs;
+  private long maxLatencyUs;
+
+  synchronized void reset() {
+    wakeups = 0;
+    frames = 0;
+    totalLatencyUs = 0;
+    maxLatencyUs = 0;
+  }
+
+  /**
+   * the output thread woke up, whether or not there was a buffer for it.
+   */
+  synchronized void onWakeup() {
+    wakeups++;
+  }
+
+  synchronized void onFrame(long latencyUs) {
+    frames++;
+    if (latencyUs < 0 || latencyUs > MAX_PLAUSIBLE_LATENCY_US)
+      return;
+    totalLatencyUs += latencyUs;
+    if (latencyUs > maxLatencyUs)
+      maxLatencyUs = latencyUs;
+  }
+
+  synchronized long getWakeups() {
+    return wakeups;
+  }
+
+  synchronized long getFrames() {
+    return frames;
+  }
+
+  synchronized long getAverageLatencyUs() {
+    return frames == 0 ? 0 : totalLatencyUs / frames;
+  }
+
+  synchronized long getMaxLatencyUs() {
+    return maxLatencyUs;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(Locale.US, "%d frames, %d wakeups (%.2f per frame), latency avg %.1f ms, max %.1f ms",
+      frames, wakeups, frames == 0 ? 0.0 : (double) wakeups / frames,
+      getAverageLatencyUs() / 1000.0, maxLatencyUs / 1000.0);
+  }
+}
@@ -0,0 +1,65 @@
+package com.takusemba.rtmppublisher;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+/**
+ * Looks for video encoders that stopped producing output without an error, which some
+ * devices do: the stream stays connected but frozen. Twice a second it compares, for each
+ * rendition, how long frames have kept going in with when output last came out. It runs on a
+ * thread of its own because the renderer thread itself may be stuck, in a draw waiting for
+ * the stalled codec to take its input.
+ */
+class EncoderWatchdog {
+
+  interface OnEncoderStallListener {
+    /**
+     * called on the watchdog thread; the rendition is not checked again until it encodes.
+     */
+    void onEncoderStalled(Rendition rendition, long stalledNanos);
+  }
+
+  private static final long CHECK_INTERVAL_MS = 500;
+
+  private final long timeoutNanos;
+  private final OnEncoderStallListener listener;
+  private HandlerThread thread;
+
+  /**
+   * @param timeoutMs how long input may go unanswered; well above the encoder's latency.
+   */
+  EncoderWatchdog(long timeoutMs, OnEncoderStallListener listener) {
+    this.timeoutNanos = timeoutMs * 1000000L;
+    this.listener = listener;
+  }
+
+  void start(final Rendition[] renditions) {
+    thread = new HandlerThread("EncoderWatchdog", Process.THREAD_PRIORITY_BACKGROUND);
+    thread.start();
+    final Handler handler = new Handler(thread.getLooper());
+    handler.postDelayed(new Runnable() {
+      @Override
+      public void run() {
+        check(renditions);
+        handler.postDelayed(this, CHECK_INTERVAL_MS);
+      }
+    }, CHECK_INTERVAL_MS);
+  }
+
+  void stop() {
+    if (thread == null)
+      return;
+    thread.quitSafely();
+    thread = null;
+  }
+
+  private void check(Rendition[] renditions) {
+    final long now = System.nanoTime();
+    for (Rendition rendition : renditions) {
+      final long stalled = rendition.getStallNanos(now);
+      if (stalled > timeoutNanos)
+        listener.onEncoderStalled(rendition, stalled);
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package com.takusemba.rtmppublisher;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recycles {@link EncodedFrame} buffers by power-of-two size class so that steady-state
+ * streaming does not allocate per frame.
+ */
+class FrameBufferPool {
+
+  private static final int MIN_CLASS_SHIFT = 10; // 1 KiB
+  private static final int MAX_CLASS_SHIFT = 23; // 8 MiB
+  // each class keeps at most this many bytes (and at least 2 buffers) around
+  private static final int MAX_POOLED_BYTES_PER_CLASS = 4 * 1024 * 1024;
+  private static final int MAX_POOLED_BUFFERS_PER_CLASS = 32;
+
+  private final EncodedFrame[][] free = new EncodedFrame[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1][];
+  private final int[] freeCount = new int[free.length];
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicInteger outstanding = new AtomicInteger();
+
+  FrameBufferPool() {
+    for (int i = 0; i < free.length; i++) {
+      final int classSize = 1 << (i + MIN_CLASS_SHIFT);
+      final int count = Math.max(2, Math.min(MAX_POOLED_BUFFERS_PER_CLASS, MAX_POOLED_BYTES_PER_CLASS / classSize));
+      free[i] = new EncodedFrame[count];
+    }
+  }
+
+  /**
+   * @return a frame whose buffer holds at least {@code size} bytes, with one reference.
+   * call {@link EncodedFrame#release()} once it is no longer needed.
+   */
+  EncodedFrame acquire(int size) {
+    final int index = classIndex(size);
+    outstanding.incrementAndGet();
+    if (index < free.length) {
+      synchronized (free[index]) {
+        if (freeCount[index] > 0) {
+          final EncodedFrame frame = free[index][--freeCount[index]];
+          free[index][freeCount[index]] = null;
+          hits.incrementAndGet();
+          frame.acquired();
+          return frame;
+        }
+      }
+    }
+    misses.incrementAndGet();
+    // oversized buffers are allocated exactly and never pooled
+    final int capacity = index < free.length ? 1 << (index + MIN_CLASS_SHIFT) : size;
+    final EncodedFrame frame = new EncodedFrame(ByteBuffer.allocateDirect(capacity), this);
+    frame.acquired();
+    return frame;
+  }
+
+  void release(EncodedFrame frame) {
+    outstanding.decrementAndGet();
+    final int capacity = frame.data.capacity();
+    final int index = classIndex(capacity);
+    if (index >= free.length || capacity != 1 << (index + MIN_CLASS_SHIFT))
+      return;
+    synchronized (free[index]) {
+      if (freeCount[index] < free[index].length)
+        free[index][freeCount[index]++] = frame;
+    }
+  }
+
+  long getHits() {
+    return hits.get();
+  }
+
+  long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return number of buffers acquired but not released yet.
+   */
+  int getOutstanding() {
+    return outstanding.get();
+  }
+
+  private static int classIndex(int size) {
+    if (size <= 1 << MIN_CLASS_SHIFT)
+      return 0;
+    return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CLASS_SHIFT;
+  }
+}
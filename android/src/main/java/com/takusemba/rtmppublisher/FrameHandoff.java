@@ -0,0 +1,51 @@
+package com.takusemba.rtmppublisher;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free "latest frame" slot between the preview GL thread and the encoder render thread.
+ * A triple buffer: the producer and the consumer each own one frame and swap it with the
+ * shared middle one, so neither ever waits and nothing is allocated per frame. A frame the
+ * consumer didn't get to in time is overwritten by the next one.
+ */
+class FrameHandoff {
+
+  static class Frame {
+    int textureId;
+    final float[] transform = new float[16];
+    long timestamp;
+  }
+
+  private static final int INDEX_MASK = 0x3;
+  // set while the middle frame hasn't been taken yet
+  private static final int DIRTY = 0x4;
+
+  private final Frame[] frames = {new Frame(), new Frame(), new Frame()};
+  private final AtomicInteger middle = new AtomicInteger(1);
+  // owned by the producer
+  private int back = 0;
+  // owned by the consumer
+  private int front = 2;
+
+  /**
+   * called on the producer thread.
+   */
+  void publish(int textureId, float[] transform, long timestamp) {
+    final Frame frame = frames[back];
+    frame.textureId = textureId;
+    System.arraycopy(transform, 0, frame.transform, 0, frame.transform.length);
+    frame.timestamp = timestamp;
+    back = middle.getAndSet(back | DIRTY) & INDEX_MASK;
+  }
+
+  /**
+   * called on the consumer thread.
+   * @return the latest frame, valid until the next call; null if nothing new was published.
+   */
+  Frame take() {
+    if ((middle.get() & DIRTY) == 0)
+      return null;
+    front = middle.getAndSet(front) & INDEX_MASK;
+    return frames[front];
+  }
+}
@@ -0,0 +1,54 @@
+package com.takusemba.rtmppublisher;
+
+/**
+ * Picks the camera frames that go to the encoder so that the output runs at the target frame
+ * rate, whatever rate the camera delivers. Works on the frames' presentation timestamps only:
+ * the time between input frames is accumulated, and every output frame spends exactly one
+ * output interval of it, so the long-run rate is exact and doesn't drift. A frame is taken as
+ * soon as it is nearer to the due time than the next frame is expected to be.
+ */
+class FramePacer {
+
+  private static final long NANOS_PER_SECOND = 1000000000L;
+  // a timestamp going back further than this means a new timeline (e.g. another camera)
+  private static final long MAX_BACKWARD_NANOS = NANOS_PER_SECOND;
+
+  private final long outputInterval;
+  // time accumulated towards the next output frame; may be slightly negative after a frame
+  // taken early
+  private long credit;
+  private long lastTimestamp;
+  // smoothed interval between input frames
+  private long inputInterval;
+  private boolean started;
+
+  FramePacer(int fps) {
+    this.outputInterval = NANOS_PER_SECOND / fps;
+  }
+
+  /**
+   * @param timestampNanos presentation time of the next input frame.
+   * @return true if the frame should be encoded.
+   */
+  boolean accept(long timestampNanos) {
+    if (!started || timestampNanos < lastTimestamp - MAX_BACKWARD_NANOS) {
+      started = true;
+      lastTimestamp = timestampNanos;
+      inputInterval = outputInterval;
+      credit = 0;
+      return true;
+    }
+    if (timestampNanos <= lastTimestamp)
+      return false;
+    final long delta = timestampNanos - lastTimestamp;
+    lastTimestamp = timestampNanos;
+    inputInterval += (delta - inputInterval) / 8;
+    credit += delta;
+
+    if (credit < outputInterval - inputInterval / 2)
+      return false;
+    // a slow camera or a stall leaves no debt to catch up on with a burst later
+    credit = Math.min(credit - outputInterval, outputInterval / 2);
+    return true;
+  }
+}
@@ -0,0 +1,102 @@
+package com.takusemba.rtmppublisher;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps what a new connection needs to show a picture right away: the sequence headers and
+ * the frames (video and audio) since the last key frame. Frames are shared with the send
+ * queue by reference count. The muxer clears it on close, so there is only something to
+ * replay when the muxer stays open across the reconnect, as it does while the encoders are
+ * kept running on disconnect.
+ */
+class GopCache {
+
+  private final ArrayList<EncodedFrame> gop = new ArrayList<>();
+  private EncodedFrame videoConfig;
+  private EncodedFrame audioConfig;
+  private int gopBytes;
+  // frames are only worth keeping once they start with a key frame
+  private boolean hasKeyFrame;
+  private int maxBytes;
+
+  GopCache(int maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * a GOP larger than this is not kept; 0 keeps the sequence headers only.
+   */
+  synchronized void setMaxBytes(int maxBytes) {
+    this.maxBytes = maxBytes;
+    if (gopBytes > maxBytes)
+      clearGop();
+  }
+
+  /**
+   * remember the frame if a new connection would need it; takes its own reference.
+   */
+  synchronized void add(EncodedFrame frame) {
+    if (frame.config) {
+      if (frame.isVideo()) {
+        // frames encoded with other parameter sets are of no use any more
+        if (videoConfig != null && !videoConfig.data.equals(frame.data))
+          clearGop();
+        videoConfig = replace(videoConfig, frame);
+      } else {
+        audioConfig = replace(audioConfig, frame);
+      }
+      return;
+    }
+    if (frame.isVideo() && frame.keyFrame) {
+      clearGop();
+      hasKeyFrame = true;
+    } else if (!hasKeyFrame) {
+      return;
+    }
+    if (gopBytes + frame.length > maxBytes) {
+      clearGop();
+      return;
+    }
+    gop.add(frame.retain());
+    gopBytes += frame.length;
+  }
+
+  /**
+   * collect the frames to send first on a new connection; each one is retained for the caller.
+   * @param maxAgeMs the GOP is left out if it spans more than this, since replaying it
+   * would put the stream that far behind.
+   * @return true if the frames include a key frame.
+   */
+  synchronized boolean snapshot(List<EncodedFrame> out, int maxAgeMs) {
+    if (videoConfig != null)
+      out.add(videoConfig.retain());
+    if (audioConfig != null)
+      out.add(audioConfig.retain());
+    if (gop.isEmpty() || gop.get(gop.size() - 1).timestamp - gop.get(0).timestamp > maxAgeMs)
+      return false;
+    for (EncodedFrame frame : gop)
+      out.add(frame.retain());
+    return true;
+  }
+
+  synchronized void clear() {
+    clearGop();
+    videoConfig = replace(videoConfig, null);
+    audioConfig = replace(audioConfig, null);
+  }
+
+  private void clearGop() {
+    for (EncodedFrame frame : gop)
+      frame.release();
+    gop.clear();
+    gopBytes = 0;
+    hasKeyFrame = false;
+  }
+
+  private static EncodedFrame replace(EncodedFrame old, EncodedFrame frame) {
+    if (old != null)
+      old.release();
+    return frame != null ? frame.retain() : null;
+  }
+}
@@ -0,0 +1,77 @@
+package com.takusemba.rtmppublisher;
+
+/**
+ * Second order Butterworth high-pass, for rumble, handling noise and wind below the voice.
+ * A biquad per channel, computed in double: at the low cutoffs this is for, its poles sit so
+ * close to 1 that float coefficients would be too coarse.
+ */
+public class HighPassFilter implements AudioProcessor {
+
+  private final float cutoffHz;
+  private int channelCount;
+  private double b0, b1, b2, a1, a2;
+  // per channel: the last two inputs and outputs
+  private double[] x1, x2, y1, y2;
+
+  /**
+   * @param cutoffHz where the response is down 3 dB; 80-120 Hz for voice.
+   */
+  public HighPassFilter(float cutoffHz) {
+    this.cutoffHz = cutoffHz;
+  }
+
+  @Override
+  public void prepare(int sampleRate, int channelCount) {
+    this.channelCount = channelCount;
+    // Audio EQ Cookbook, with Q = 1/sqrt(2)
+    final double w0 = 2 * Math.PI * Math.min(cutoffHz, sampleRate * 0.45) / sampleRate;
+    final double cos = Math.cos(w0);
+    final double alpha = Math.sin(w0) / Math.sqrt(2);
+    final double a0 = 1 + alpha;
+    b0 = (1 + cos) / 2 / a0;
+    b1 = -(1 + cos) / a0;
+    b2 = b0;
+    a1 = -2 * cos / a0;
+    a2 = (1 - alpha) / a0;
+    x1 = new double[channelCount];
+    x2 = new double[channelCount];
+    y1 = new double[channelCount];
+    y2 = new double[channelCount];
+  }
+
+  @Override
+  public void process(float[] samples, int offset, int frames) {
+    for (int c = 0; c < channelCount; c++) {
+      double xm1 = x1[c], xm2 = x2[c], ym1 = y1[c], ym2 = y2[c];
+      final int end = offset + frames * channelCount;
+      for (int i = offset + c; i < end; i += channelCount) {
+        final double x = samples[i];
+        final double y = b0 * x + b1 * xm1 + b2 * xm2 - a1 * ym1 - a2 * ym2;
+        xm2 = xm1;
+        xm1 = x;
+        ym2 = ym1;
+        ym1 = y;
+        samples[i] = (float) y;
+      }
+      x1[c] = xm1;
+      x2[c] = xm2;
+      y1[c] = ym1;
+      y2[c] = ym2;
+    }
+  }
+
+  @Override
+  public int getLatency() {
+    return 0;
+  }
+
+  @Override
+  public void reset() {
+    for (int c = 0; c < channelCount; c++) {
+      x1[c] = 0;
+      x2[c] = 0;
+      y1[c] = 0;
+      y2[c] = 0;
+    }
+  }
+}
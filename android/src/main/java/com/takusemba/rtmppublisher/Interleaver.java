@@ -0,0 +1,181 @@
+package com.takusemba.rtmppublisher;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges the audio and video frames, which arrive from two encoder threads, into one stream
+ * ordered by timestamp. A frame is held until the other track has caught up with it, but no
+ * longer than the maximum hold time; after that it goes out anyway. Frames arriving older
+ * than what already went out are let through at once; frames are never modified, since
+ * they may be shared with other muxers, so the {@link LatePacketPolicy} is up to the writer.
+ * Not thread safe; the muxer calls it under its send lock.
+ */
+class Interleaver {
+
+  private final ArrayDeque<EncodedFrame> video = new ArrayDeque<>();
+  private final ArrayDeque<EncodedFrame> audio = new ArrayDeque<>();
+  // when each held frame arrived, beside its queue; kept here, as the frames are shared
+  private final ArrivalTimes videoArrivals = new ArrivalTimes();
+  private final ArrivalTimes audioArrivals = new ArrivalTimes();
+  private long maxHoldNanos;
+  private int lastTimestamp;
+  private boolean started;
+
+  // read from any thread
+  private final LatencyHistogram holdTimes = new LatencyHistogram();
+  private final AtomicLong lateFrames = new AtomicLong();
+
+  Interleaver(int maxHoldMs) {
+    setMaxHold(maxHoldMs);
+  }
+
+  /**
+   * 0 passes frames through in arrival order.
+   */
+  void setMaxHold(int maxHoldMs) {
+    maxHoldNanos = maxHoldMs * 1000000L;
+  }
+
+  /**
+   * take the frame and move the frames that are ready to {@code out}, in timestamp order.
+   */
+  void add(EncodedFrame frame, long nowNanos, List<EncodedFrame> out) {
+    if (maxHoldNanos == 0) {
+      emit(frame, nowNanos, nowNanos, out);
+      return;
+    }
+    if (started && frame.timestamp < lastTimestamp) {
+      lateFrames.incrementAndGet();
+      emit(frame, nowNanos, nowNanos, out);
+      return;
+    }
+    if (frame.isVideo()) {
+      video.addLast(frame);
+      videoArrivals.addLast(nowNanos);
+    } else {
+      audio.addLast(frame);
+      audioArrivals.addLast(nowNanos);
+    }
+    while (!video.isEmpty() && !audio.isEmpty())
+      emitOldest(nowNanos, out);
+    flushExpired(nowNanos, out);
+  }
+
+  /**
+   * move the frames held for the maximum hold time to {@code out}.
+   */
+  void flushExpired(long nowNanos, List<EncodedFrame> out) {
+    EncodedFrame frame;
+    while ((frame = peekOldest()) != null
+      && nowNanos - arrivalsOf(frame).peekFirst() >= maxHoldNanos)
+      emitOldest(nowNanos, out);
+  }
+
+  /**
+   * @return how long until a held frame has to go out (ns); -1 if nothing is held.
+   */
+  long getNextDeadline(long nowNanos) {
+    if (video.isEmpty() && audio.isEmpty())
+      return -1;
+    final long arrivedAt = video.isEmpty() ? audioArrivals.peekFirst()
+      : audio.isEmpty() ? videoArrivals.peekFirst()
+      : Math.min(videoArrivals.peekFirst(), audioArrivals.peekFirst());
+    return Math.max(0, arrivedAt + maxHoldNanos - nowNanos);
+  }
+
+  /**
+   * release everything held.
+   */
+  void clear() {
+    for (EncodedFrame frame : video)
+      frame.release();
+    for (EncodedFrame frame : audio)
+      frame.release();
+    video.clear();
+    audio.clear();
+    videoArrivals.clear();
+    audioArrivals.clear();
+    started = false;
+  }
+
+  /**
+   * @return "count", "p50"/"p95"/"p99" of the time frames were held (ms) and "late", the
+   * number of late frames. safe to call from any thread.
+   */
+  Map<String, Object> getReport() {
+    final Map<String, Object> report = new LinkedHashMap<>();
+    report.put("count", holdTimes.getCount());
+    report.put("p50", holdTimes.getValueAtPercentile(50) / 1000.0);
+    report.put("p95", holdTimes.getValueAtPercentile(95) / 1000.0);
+    report.put("p99", holdTimes.getValueAtPercentile(99) / 1000.0);
+    report.put("late", lateFrames.get());
+    return report;
+  }
+
+  private EncodedFrame peekOldest() {
+    final EncodedFrame v = video.peekFirst();
+    final EncodedFrame a = audio.peekFirst();
+    if (v == null || a == null)
+      return v != null ? v : a;
+    return v.timestamp <= a.timestamp ? v : a;
+  }
+
+  private ArrivalTimes arrivalsOf(EncodedFrame frame) {
+    return frame.isVideo() ? videoArrivals : audioArrivals;
+  }
+
+  private void emitOldest(long nowNanos, List<EncodedFrame> out) {
+    final EncodedFrame frame = peekOldest();
+    final long arrivedAt = arrivalsOf(frame).pollFirst();
+    emit(frame.isVideo() ? video.pollFirst() : audio.pollFirst(), arrivedAt, nowNanos, out);
+  }
+
+  private void emit(EncodedFrame frame, long arrivedAtNanos, long nowNanos, List<EncodedFrame> out) {
+    holdTimes.record((nowNanos - arrivedAtNanos) / 1000);
+    if (!started || frame.timestamp > lastTimestamp)
+      lastTimestamp = frame.timestamp;
+    started = true;
+    out.add(frame);
+  }
+
+  /**
+   * a queue of longs, which grows as needed and then stays that size.
+   */
+  private static final class ArrivalTimes {
+    private long[] times = new long[16];
+    private int head;
+    private int size;
+
+    void addLast(long time) {
+      if (size == times.length) {
+        final long[] grown = new long[times.length * 2];
+        for (int i = 0; i < size; i++)
+          grown[i] = times[(head + i) % times.length];
+        times = grown;
+        head = 0;
+      }
+      times[(head + size) % times.length] = time;
+      size++;
+    }
+
+    long peekFirst() {
+      return times[head];
+    }
+
+    long pollFirst() {
+      final long time = times[head];
+      head = (head + 1) % times.length;
+      size--;
+      return time;
+    }
+
+    void clear() {
+      head = 0;
+      size = 0;
+    }
+  }
+}
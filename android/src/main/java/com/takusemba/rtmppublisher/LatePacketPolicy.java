@@ -0,0 +1,11 @@
+package com.takusemba.rtmppublisher;
+
+/**
+ * What the muxer does with a frame older than what it has already written.
+ */
+public enum LatePacketPolicy {
+  /** send it right away with its own timestamp */
+  SEND,
+  /** send it right away, with its timestamp raised to the last one sent */
+  RETIME
+}
@@ -0,0 +1,75 @@
+package com.takusemba.rtmppublisher;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size log-linear histogram in the style of HdrHistogram: every power of two is split
+ * into {@value #SUB_BUCKETS} linear buckets, which keeps the relative error under ~6%.
+ * Recording is lock free and allocates nothing, so it can run on any thread of the pipeline.
+ */
+class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // values up to 2^MAX_MAGNITUDE - 1 are told apart; larger ones land in the last bucket
+  private static final int MAX_MAGNITUDE = 36;
+  private static final int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  void record(long value) {
+    counts.incrementAndGet(bucketOf(value));
+  }
+
+  /**
+   * forget everything recorded so far. samples recorded concurrently may or may not survive.
+   */
+  void reset() {
+    for (int i = 0; i < BUCKETS; i++)
+      counts.set(i, 0);
+  }
+
+  long getCount() {
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++)
+      count += counts.get(i);
+    return count;
+  }
+
+  /**
+   * @param percentile 0 to 100.
+   * @return the highest value of the bucket the percentile falls in; 0 if nothing is recorded.
+   */
+  long getValueAtPercentile(double percentile) {
+    final long count = getCount();
+    if (count == 0)
+      return 0;
+    final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank)
+        return highestValueOf(i);
+    }
+    return highestValueOf(BUCKETS - 1);
+  }
+
+  private static int bucketOf(long value) {
+    if (value < SUB_BUCKETS)
+      return value < 0 ? 0 : (int) value;
+    final int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    if (magnitude >= MAX_MAGNITUDE)
+      return BUCKETS - 1;
+    final int shift = magnitude - SUB_BUCKET_BITS;
+    final int top = (int) (value >>> shift); // SUB_BUCKETS .. 2 * SUB_BUCKETS - 1
+    return (shift + 1) * SUB_BUCKETS + top - SUB_BUCKETS;
+  }
+
+  private static long highestValueOf(int bucket) {
+    if (bucket < SUB_BUCKETS)
+      return bucket;
+    final int shift = bucket / SUB_BUCKETS - 1;
+    final long top = bucket % SUB_BUCKETS + SUB_BUCKETS;
+    return ((top + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,76 @@
+package com.takusemba.rtmppublisher;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * How old a video frame is when it passes each stage of the pipeline, measured from its
+ * camera timestamp ({@link android.graphics.SurfaceTexture#getTimestamp()}, System.nanoTime
+ * based). Comparing the stages shows where the glass-to-glass latency goes.
+ */
+class LatencyTracker {
+
+  /** drawn to the preview (CameraSurfaceRenderer.onDrawFrame) */
+  static final int STAGE_PREVIEW = 0;
+  /** drawn to the encoder's input surface (VideoRenderer.draw) */
+  static final int STAGE_RENDER = 1;
+  /** came out of the encoder */
+  static final int STAGE_ENCODED = 2;
+  /** queued for sending */
+  static final int STAGE_QUEUED = 3;
+  /** taken off the queue by the muxer thread */
+  static final int STAGE_DEQUEUED = 4;
+  /** written to the socket */
+  static final int STAGE_SENT = 5;
+
+  private static final String[] STAGE_NAMES =
+    {"preview", "render", "encoded", "queued", "dequeued", "sent"};
+  private static final double[] PERCENTILES = {50, 95, 99};
+  private static final String[] PERCENTILE_NAMES = {"p50", "p95", "p99"};
+
+  // beyond this the timestamps can't be on the same clock
+  private static final long MAX_LATENCY_US = 60 * 1000000L;
+
+  private final LatencyHistogram[] histograms = new LatencyHistogram[STAGE_NAMES.length];
+
+  LatencyTracker() {
+    for (int i = 0; i < histograms.length; i++)
+      histograms[i] = new LatencyHistogram();
+  }
+
+  /**
+   * @param captureNanos the frame's camera timestamp; 0 if unknown.
+   */
+  void record(int stage, long captureNanos) {
+    if (captureNanos == 0)
+      return;
+    final long latencyUs = (System.nanoTime() - captureNanos) / 1000;
+    if (latencyUs < 0 || latencyUs > MAX_LATENCY_US)
+      return;
+    histograms[stage].record(latencyUs);
+  }
+
+  void reset() {
+    for (LatencyHistogram histogram : histograms)
+      histogram.reset();
+  }
+
+  /**
+   * @return for each stage that saw frames: "count" and "p50"/"p95"/"p99" in milliseconds.
+   */
+  Map<String, Map<String, Object>> getReport() {
+    final Map<String, Map<String, Object>> report = new LinkedHashMap<>();
+    for (int stage = 0; stage < histograms.length; stage++) {
+      final LatencyHistogram histogram = histograms[stage];
+      final long count = histogram.getCount();
+      if (count == 0)
+        continue;
+      final Map<String, Object> values = new LinkedHashMap<>();
+      values.put("count", count);
+      for (int i = 0; i < PERCENTILES.length; i++)
+        values.put(PERCENTILE_NAMES[i], histogram.getValueAtPercentile(PERCENTILES[i]) / 1000.0);
+      report.put(STAGE_NAMES[stage], values);
+    }
+    return report;
+  }
+}
@@ -0,0 +1,112 @@
+package com.takusemba.rtmppublisher;
+
+import java.util.Arrays;
+
+/**
+ * Keeps peaks under a ceiling without the distortion of clipping them. The signal is delayed
+ * by the look-ahead, so the gain can come down smoothly before a peak gets out: it heads for
+ * the lowest gain any frame in the delay line needs, gets most of the way there within the
+ * look-ahead, and recovers with the release. With no look-ahead the gain drops at once, on
+ * the peak itself. What the smoothing leaves over the ceiling is clipped.
+ */
+public class LookAheadLimiter implements AudioProcessor {
+
+  private static final float DEFAULT_RELEASE_MS = 50;
+
+  private final float ceiling;
+  private final int lookAhead;
+  private final float releaseMs;
+  private int channelCount;
+  private float attack;
+  private float release;
+  // the last lookAhead frames, interleaved
+  private float[] delay;
+  private int delayPosition;
+  // rising queue of the gains the frames in the delay line need, and the frame each leaves at
+  private float[] neededGains;
+  private long[] leavesAt;
+  private int queueHead;
+  private int queueSize;
+  private long frame;
+  private float gain;
+
+  /**
+   * @param ceilingDb peak level (dBFS) the output stays under; -1 leaves room for the encoder.
+   * @param lookAheadFrames the latency it adds; 1-5 ms worth.
+   */
+  public LookAheadLimiter(float ceilingDb, int lookAheadFrames) {
+    this(ceilingDb, lookAheadFrames, DEFAULT_RELEASE_MS);
+  }
+
+  public LookAheadLimiter(float ceilingDb, int lookAheadFrames, float releaseMs) {
+    this.ceiling = (float) Math.pow(10, ceilingDb / 20);
+    this.lookAhead = Math.max(0, lookAheadFrames);
+    this.releaseMs = releaseMs;
+  }
+
+  @Override
+  public void prepare(int sampleRate, int channelCount) {
+    this.channelCount = channelCount;
+    // within 1% of the target by the end of the look-ahead
+    attack = lookAhead > 0 ? (float) (1 - Math.exp(-5.0 / lookAhead)) : 1;
+    release = NoiseGate.coefficient(releaseMs, sampleRate);
+    delay = new float[lookAhead * channelCount];
+    neededGains = new float[lookAhead + 1];
+    leavesAt = new long[lookAhead + 1];
+    reset();
+  }
+
+  @Override
+  public void process(float[] samples, int offset, int frames) {
+    final int capacity = neededGains.length;
+    for (int f = 0; f < frames; f++) {
+      final int start = offset + f * channelCount;
+      float peak = 0;
+      for (int i = start; i < start + channelCount; i++)
+        peak = Math.max(peak, Math.abs(samples[i]));
+      final float needed = peak > ceiling ? ceiling / peak : 1;
+      // the frame going out now is the last one the head may be for
+      if (queueSize > 0 && leavesAt[queueHead] < frame) {
+        queueHead = (queueHead + 1) % capacity;
+        queueSize--;
+      }
+      // gains no lower than this one's can't be the lowest again before it leaves
+      while (queueSize > 0 && neededGains[(queueHead + queueSize - 1) % capacity] >= needed)
+        queueSize--;
+      final int tail = (queueHead + queueSize) % capacity;
+      neededGains[tail] = needed;
+      leavesAt[tail] = frame + lookAhead;
+      queueSize++;
+      final float target = neededGains[queueHead];
+      gain += (target - gain) * (target < gain ? attack : release);
+      for (int c = 0; c < channelCount; c++) {
+        float out = samples[start + c];
+        if (lookAhead > 0) {
+          final float in = out;
+          out = delay[delayPosition + c];
+          delay[delayPosition + c] = in;
+        }
+        out *= gain;
+        samples[start + c] = Math.max(-ceiling, Math.min(ceiling, out));
+      }
+      if (lookAhead > 0)
+        delayPosition = (delayPosition + channelCount) % delay.length;
+      frame++;
+    }
+  }
+
+  @Override
+  public int getLatency() {
+    return lookAhead;
+  }
+
+  @Override
+  public void reset() {
+    Arrays.fill(delay, 0);
+    delayPosition = 0;
+    queueHead = 0;
+    queueSize = 0;
+    frame = 0;
+    gain = 1;
+  }
+}
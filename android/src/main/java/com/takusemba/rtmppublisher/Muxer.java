@@ -4,29 +4,202 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Process;
+import android.util.Log;
 
-import net.butterflytv.rtmp_client.RTMPMuxer;
+import com.takusemba.rtmppublisher.rtmp.RtmpClient;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
-public class Muxer {
+public class Muxer implements SendQueue.OnFramesDroppedListener {
+
+  // the send queue never holds more than this; see SendQueue for the drop order
+  private static final int DEFAULT_QUEUE_MAX_BYTES = 2 * 1024 * 1024;
+  private static final int DEFAULT_QUEUE_MAX_DURATION_MS = 2000;
+  // a GOP is kept for replay on reconnect unless it grows beyond this
+  private static final int DEFAULT_GOP_CACHE_MAX_BYTES = 4 * 1024 * 1024;
+  // an older GOP is not replayed; we ask the encoder for a key frame instead
+  private static final int GOP_REPLAY_MAX_AGE_MS = 1000;
+  // how long a frame may wait for the other track to catch up
+  private static final int DEFAULT_INTERLEAVE_MAX_HOLD_MS = 50;
+  // drops are reported to the listener at most this often, added up by reason
+  private static final int DROP_REPORT_INTERVAL_MS = 1000;
 
   private final Handler uiHandler = new Handler(Looper.getMainLooper());
-  private RTMPMuxer rtmpMuxer = new RTMPMuxer();
+  private RtmpClient rtmpClient = new RtmpClient();
+  private final FrameBufferPool framePool = new FrameBufferPool();
   private StatusListener listener;
+  private final SendQueue sendQueue =
+    new SendQueue(DEFAULT_QUEUE_MAX_BYTES, DEFAULT_QUEUE_MAX_DURATION_MS);
+  private final GopCache gopCache = new GopCache(DEFAULT_GOP_CACHE_MAX_BYTES);
+  // keeps the GOP cache and the send queue consistent with each other
+  private final Object sendLock = new Object();
+  private final Interleaver interleaver = new Interleaver(DEFAULT_INTERLEAVE_MAX_HOLD_MS);
+  // frames the interleaver let through, guarded by sendLock
+  private final ArrayList<EncodedFrame> interleaved = new ArrayList<>();
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+  private final Runnable flushRunnable = new Runnable() {
+    @Override
+    public void run() {
+      flushScheduled.set(false);
+      flushInterleaver();
+    }
+  };
+  private volatile LatePacketPolicy latePolicy = LatePacketPolicy.SEND;
+  // frames the uplink can't take go to disk instead, if set; guarded by sendLock
+  private SpillStore spill;
+  private SpillMode spillMode;
+  private String backfillUrl;
+  // new frames go to the spill rather than the send queue, which is empty meanwhile
+  private boolean spilling;
+  private final ArrayList<EncodedFrame> spillSeed = new ArrayList<>();
+  private BackfillUploader backfill;
+  private int width;
+  private int height;
+  // muxer thread only
+  private int lastWrittenTimestamp;
+  // the frame being sent was peeked from the spill, and is marked sent once written
+  private boolean sendingSpilled;
+  private LatencyTracker latencyTracker = new LatencyTracker();
+  private final StreamStats stats = new StreamStats();
+  private final ArrayList<EncodedFrame> replayFrames = new ArrayList<>();
+  private KeyFrameRequestListener keyFrameRequestListener;
+  private final AtomicBoolean drainScheduled = new AtomicBoolean();
+  private final Runnable drainRunnable = new Runnable() {
+    @Override
+    public void run() {
+      drainScheduled.set(false);
+      drain();
+    }
+  };
+  private boolean audioConfigSent = false;
+  // dropped frames not yet reported to the listener, by reason
+  private final AtomicIntegerArray droppedFrames = new AtomicIntegerArray(DropReason.values().length);
+  private final AtomicIntegerArray droppedBytes = new AtomicIntegerArray(DropReason.values().length);
+  private final AtomicBoolean dropReportScheduled = new AtomicBoolean();
+  private final Runnable dropReportRunnable = new Runnable() {
+    @Override
+    public void run() {
+      dropReportScheduled.set(false);
+      reportDropped();
+    }
+  };
 
   private HandlerThread muxerThread;
+  // set and cleared under sendLock
   private Handler muxerThreadHandler;
 
   private boolean disconnected = false;
-  private AtomicBoolean paused = new AtomicBoolean();
 
   public void setOnMuxerStateListener(StatusListener listener) {
     this.listener = listener;
   }
 
   public Muxer() {
+    sendQueue.setOnFramesDroppedListener(this);
+  }
+
+  void setKeyFrameRequestListener(KeyFrameRequestListener listener) {
+    this.keyFrameRequestListener = listener;
+  }
+
+  /**
+   * limit the GOP kept for replay on reconnect; 0 keeps the sequence headers only.
+   */
+  public void setGopCacheBudget(int maxBytes) {
+    gopCache.setMaxBytes(maxBytes);
+  }
+
+  /**
+   * limit the amount of encoded data waiting to be sent.
+   */
+  public void setSendQueueBudget(int maxBytes, int maxDurationMs) {
+    sendQueue.setBudget(maxBytes, maxDurationMs);
+  }
+
+  /**
+   * how long audio and video frames may be held to send them in timestamp order;
+   * 0 sends them in arrival order.
+   */
+  public void setInterleaveMaxHold(int maxHoldMs) {
+    synchronized (sendLock) {
+      interleaver.setMaxHold(maxHoldMs);
+    }
+    flushInterleaver();
+  }
+
+  public void setLatePacketPolicy(LatePacketPolicy policy) {
+    latePolicy = policy;
+  }
+
+  /**
+   * keep the frames the uplink can't take in a {@link SpillStore} in {@code directory}
+   * instead of dropping them; see {@link SpillMode} for when they are sent. a store left by
+   * a previous run is recovered, and in BACKFILL mode uploaded on the next connect.
+   * @param directory null turns spilling off; the files of the previous store stay.
+   * @param maxBytes disk space the store may use.
+   * @param backfillUrl where BACKFILL uploads go.
+   */
+  public void setSpill(File directory, int maxBytes, SpillMode mode, String backfillUrl) throws IOException {
+    final SpillStore previous;
+    synchronized (sendLock) {
+      stopSpilling();
+      previous = spill;
+      spill = null;
+    }
+    // done with the directory before a new store recovers it
+    if (previous != null) {
+      try {
+        previous.close();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    final SpillStore store = directory == null ? null : new SpillStore(directory, maxBytes);
+    // frames from an earlier stream can't go ahead of this one's
+    if (store != null && mode == SpillMode.CATCH_UP)
+      store.clear();
+    synchronized (sendLock) {
+      spill = store;
+      spillMode = mode;
+      this.backfillUrl = backfillUrl;
+    }
+  }
+
+
+  /**
+   * where to record how long frames take through the muxer; call before {@link #open}.
+   */
+  void setLatencyTracker(LatencyTracker latencyTracker) {
+    this.latencyTracker = latencyTracker;
+  }
+
+  /**
+   * @return total bytes written to the server.
+   */
+  public long getBytesSent() {
+    return rtmpClient.getBytesWritten();
+  }
+
+  /**
+   * @return total time the writer was blocked by a full socket buffer (ns).
+   */
+  public long getWriteBlockedNanos() {
+    return rtmpClient.getWriteBlockedNanos();
+  }
+
+  public int getQueuedBytes() {
+    return sendQueue.getBytes();
+  }
+
+  public int getQueuedDurationMs() {
+    return sendQueue.getDurationMs();
   }
 
   private boolean ensureConnected() {
@@ -50,16 +223,28 @@ public class Muxer {
   }
 
   public void open(final String url, final int width, final int height) {
+    this.width = width;
+    this.height = height;
     closeInternal();
+    sendQueue.clear();
+    audioConfigSent = false;
     if (muxerThread == null) {
       muxerThread = new HandlerThread("Muxer", Process.THREAD_PRIORITY_VIDEO);
       muxerThread.start();
-      muxerThreadHandler = new Handler(muxerThread.getLooper());
+      synchronized (sendLock) {
+        muxerThreadHandler = new Handler(muxerThread.getLooper());
+      }
     }
     muxerThreadHandler.post(new Runnable() {
       @Override
       public void run() {
-        rtmpMuxer.open(url, width, height);
+        try {
+          rtmpClient.connect(url, width, height);
+          replayGop();
+        } catch (IOException e) {
+          Log.e("Muxer", "Failed to connect: " + url, e);
+          rtmpClient.close();
+        }
         if (listener != null) {
           uiHandler.post(new Runnable() {
             @Override
@@ -78,27 +263,322 @@ public class Muxer {
   }
 
   public void sendVideo(final byte[] data, final int offset, final int length, final int timestamp) {
+    sendVideo(ByteBuffer.wrap(data, offset, length), timestamp, false);
+  }
+
+  public void sendAudio(final byte[] data, final int offset, final int length, final int timestamp) {
+    // the first audio buffer of a session is the AudioSpecificConfig
+    final boolean config = !audioConfigSent;
+    audioConfigSent = true;
+    sendAudio(ByteBuffer.wrap(data, offset, length), timestamp, config);
+  }
+
+  /**
+   * queue an H.264 access unit. the bytes between position and limit are copied once into a
+   * pooled direct buffer, which then goes to the socket as is; {@code data} is consumed and
+   * can be handed back to the codec as soon as this returns.
+   */
+  public void sendVideo(ByteBuffer data, int timestamp, boolean config) {
     if (muxerThreadHandler == null)
       return;
-    muxerThreadHandler.post(new Runnable() {
-      @Override
-      public void run() {
-        if (ensureConnected() && !paused.get())
-          rtmpMuxer.writeVideo(data, offset, length, timestamp);
-      }
-    });
+    final EncodedFrame frame = framePool.acquire(data.remaining());
+    frame.fill(data);
+    frame.setVideo(timestamp, config, 0);
+    send(frame);
   }
 
-  public void sendAudio(final byte[] data, final int offset, final int length, final int timestamp) {
+  /**
+   * queue an AAC frame; see {@link #sendVideo(ByteBuffer, int, boolean)}.
+   */
+  public void sendAudio(ByteBuffer data, int timestamp, boolean config) {
     if (muxerThreadHandler == null)
       return;
-    muxerThreadHandler.post(new Runnable() {
-      @Override
-      public void run() {
-        if (ensureConnected() && !paused.get())
-          rtmpMuxer.writeAudio(data, offset, length, timestamp);
+    final EncodedFrame frame = framePool.acquire(data.remaining());
+    frame.fill(data);
+    frame.setAudio(timestamp, config);
+    send(frame);
+  }
+
+  /**
+   * queue a frame that may be shared with other muxers; the muxer takes its own reference.
+   */
+  void sendFrame(EncodedFrame frame) {
+    send(frame.retain());
+  }
+
+  StreamStats getStats() {
+    return stats;
+  }
+
+  /**
+   * @return the counters of {@link StreamStats#getReport()} along with "queuedBytes",
+   * "queuedDurationMs", "bytesWritten", "windowAckSize", "bytesAcknowledged" and
+   * "interleaver" (see {@link Interleaver#getReport()}).
+   */
+  Map<String, Object> getStatsReport() {
+    final Map<String, Object> report = stats.getReport();
+    report.put("queuedBytes", sendQueue.getBytes());
+    report.put("queuedDurationMs", sendQueue.getDurationMs());
+    report.put("bytesWritten", rtmpClient.getBytesWritten());
+    report.put("windowAckSize", rtmpClient.getWindowAckSize());
+    report.put("bytesAcknowledged", rtmpClient.getBytesAcknowledged());
+    report.put("interleaver", interleaver.getReport());
+    synchronized (sendLock) {
+      if (spill != null) {
+        final Map<String, Object> spillReport = spill.getReport();
+        spillReport.put("spilling", spilling);
+        spillReport.put("backfilling", backfill != null && backfill.isRunning());
+        spillReport.put("backfillBytesSent", backfill == null ? 0 : backfill.getBytesSent());
+        report.put("spill", spillReport);
       }
-    });
+    }
+    return report;
+  }
+
+  /**
+   * queue the frame; the muxer releases it once written or dropped.
+   */
+  private void send(EncodedFrame frame) {
+    final long deadline;
+    synchronized (sendLock) {
+      // checked under the lock, as close empties the interleaver once and for all
+      if (muxerThreadHandler == null) {
+        frame.release();
+        return;
+      }
+      // the queue may drop the frame right away
+      latencyTracker.record(LatencyTracker.STAGE_QUEUED, frame.captureNanos);
+      final long now = System.nanoTime();
+      interleaver.add(frame, now, interleaved);
+      enqueueInterleaved();
+      deadline = interleaver.getNextDeadline(now);
+    }
+    scheduleDrain();
+    if (deadline >= 0)
+      scheduleFlush(deadline);
+  }
+
+  /**
+   * called with sendLock held.
+   */
+  private void enqueueInterleaved() {
+    for (int i = 0; i < interleaved.size(); i++) {
+      final EncodedFrame frame = interleaved.get(i);
+      if (!spilling && spill != null && !sendQueue.hasRoomFor(frame)
+        && (spillMode == SpillMode.CATCH_UP || !isConnectedNoHandler())) {
+        startSpilling();
+      }
+      gopCache.add(frame);
+      if (spilling) {
+        appendToSpill(frame);
+        frame.release();
+      } else {
+        sendQueue.offer(frame);
+      }
+    }
+    interleaved.clear();
+  }
+
+  /**
+   * send new frames to the spill from now on. on a live connection the queued frames go
+   * first, to be sent in order; after the connection is lost, a new one has to start with
+   * a key frame, so the spill starts with the current GOP. called with sendLock held.
+   */
+  private void startSpilling() {
+    spilling = true;
+    if (isConnectedNoHandler()) {
+      EncodedFrame frame;
+      while ((frame = sendQueue.poll()) != null) {
+        appendToSpill(frame);
+        frame.release();
+      }
+    } else {
+      sendQueue.clear();
+      gopCache.snapshot(spillSeed, Integer.MAX_VALUE);
+      for (EncodedFrame frame : spillSeed) {
+        appendToSpill(frame);
+        frame.release();
+      }
+      spillSeed.clear();
+    }
+    Log.i("Muxer", "spilling to disk");
+  }
+
+  /**
+   * called with sendLock held.
+   */
+  private void stopSpilling() {
+    if (spilling)
+      Log.i("Muxer", "spilling stopped");
+    spilling = false;
+  }
+
+  private void appendToSpill(EncodedFrame frame) {
+    try {
+      spill.append(frame);
+    } catch (IOException e) {
+      Log.e("Muxer", "Spill failed", e);
+      onFramesDropped(frame.isVideo() ? DropReason.GOP : DropReason.AUDIO, 1, frame.length);
+    }
+  }
+
+  /**
+   * @return the next frame to send: queued, or in CATCH_UP mode spilled.
+   */
+  private EncodedFrame nextFrame() {
+    sendingSpilled = false;
+    final EncodedFrame frame = sendQueue.poll();
+    if (frame != null)
+      return frame;
+    synchronized (sendLock) {
+      if (!spilling || spillMode != SpillMode.CATCH_UP)
+        return null;
+      final EncodedFrame spilled = spill.peek(framePool);
+      if (spilled == null)
+        stopSpilling(); // caught up
+      sendingSpilled = spilled != null;
+      return spilled;
+    }
+  }
+
+  private void markSpillSent() {
+    synchronized (sendLock) {
+      if (spill != null)
+        spill.markSent();
+    }
+  }
+
+  /**
+   * called on the muxer thread when the connection is gone; keeps what is queued for later
+   * if spilling is on, and drops it otherwise.
+   */
+  private void discardQueued() {
+    synchronized (sendLock) {
+      if (spill != null) {
+        if (!spilling)
+          startSpilling();
+        return;
+      }
+    }
+    sendQueue.clear();
+  }
+
+  private void startBackfill() {
+    if (backfill != null && backfill.isRunning())
+      return;
+    if (backfillUrl == null) {
+      Log.w("Muxer", "No backfill url; the spill is kept");
+      return;
+    }
+    backfill = new BackfillUploader(spill, backfillUrl, width, height);
+    backfill.start();
+  }
+
+  /**
+   * let the frames out that have waited long enough for the other track.
+   */
+  private void flushInterleaver() {
+    final long deadline;
+    synchronized (sendLock) {
+      final long now = System.nanoTime();
+      interleaver.flushExpired(now, interleaved);
+      enqueueInterleaved();
+      deadline = interleaver.getNextDeadline(now);
+    }
+    scheduleDrain();
+    if (deadline >= 0)
+      scheduleFlush(deadline);
+  }
+
+  private void scheduleFlush(long delayNanos) {
+    final Handler handler = muxerThreadHandler;
+    if (handler != null && flushScheduled.compareAndSet(false, true))
+      handler.postDelayed(flushRunnable, (delayNanos + 999999) / 1000000);
+  }
+
+  /**
+   * start a new connection with the sequence headers and, if it is recent enough, the
+   * current GOP so that players can show a picture without waiting for the next key frame.
+   */
+  private void replayGop() throws IOException {
+    lastWrittenTimestamp = 0;
+    final boolean hasKeyFrame;
+    synchronized (sendLock) {
+      if (spill != null) {
+        if (spillMode == SpillMode.CATCH_UP && spilling) {
+          // the spill starts with a key frame; the sequence headers go ahead of it
+          spill.resendConfig();
+          scheduleDrain();
+          return;
+        }
+        stopSpilling();
+        if (spillMode == SpillMode.BACKFILL && !spill.isEmpty())
+          startBackfill();
+      }
+      // whatever is still queued is either in the cache or undecodable without it
+      sendQueue.clear();
+      hasKeyFrame = gopCache.snapshot(replayFrames, GOP_REPLAY_MAX_AGE_MS);
+    }
+    if (!hasKeyFrame && keyFrameRequestListener != null)
+      keyFrameRequestListener.onKeyFrameRequested();
+    try {
+      for (EncodedFrame frame : replayFrames)
+        write(frame);
+    } finally {
+      for (EncodedFrame frame : replayFrames)
+        frame.release();
+      replayFrames.clear();
+    }
+  }
+
+  private void scheduleDrain() {
+    final Handler handler = muxerThreadHandler;
+    if (handler != null && drainScheduled.compareAndSet(false, true))
+      handler.post(drainRunnable);
+  }
+
+  private void drain() {
+    EncodedFrame frame;
+    while ((frame = nextFrame()) != null) {
+      latencyTracker.record(LatencyTracker.STAGE_DEQUEUED, frame.captureNanos);
+      if (!ensureConnected()) {
+        frame.release();
+        discardQueued();
+        return;
+      }
+      try {
+        write(frame);
+        latencyTracker.record(LatencyTracker.STAGE_SENT, frame.captureNanos);
+        if (sendingSpilled)
+          markSpillSent();
+      } catch (IOException e) {
+        onWriteError(e);
+        discardQueued();
+        return;
+      } finally {
+        frame.release();
+      }
+    }
+  }
+
+  private void write(EncodedFrame frame) throws IOException {
+    int timestamp = frame.timestamp;
+    if (timestamp < lastWrittenTimestamp && latePolicy == LatePacketPolicy.RETIME)
+      timestamp = lastWrittenTimestamp;
+    lastWrittenTimestamp = timestamp;
+    if (frame.isVideo()) {
+      rtmpClient.writeVideo(frame.data, timestamp);
+      stats.onVideoSent(frame.length);
+    } else {
+      rtmpClient.writeAudio(frame.data, timestamp, frame.config);
+      stats.onAudioSent(frame.length);
+    }
+  }
+
+  private void onWriteError(IOException e) {
+    Log.e("Muxer", "Write failed", e);
+    rtmpClient.close();
+    postDisconnected();
   }
 
   private void closeInternal() {
@@ -107,14 +587,32 @@ public class Muxer {
     muxerThreadHandler.post(new Runnable() {
       @Override
       public void run() {
-        rtmpMuxer.close();
+        rtmpClient.close();
       }
     });
   }
 
+  /**
+   * end the stream: the GOP cache goes with it, so a later open has nothing to replay. to
+   * reconnect with the GOP, open again without closing.
+   */
   public void close() {
     closeInternal();
-    muxerThreadHandler = null;
+    synchronized (sendLock) {
+      // nothing gets into the interleaver after this
+      muxerThreadHandler = null;
+      interleaver.clear();
+      gopCache.clear();
+      stopSpilling();
+      // a CATCH_UP spill belongs to this stream; a BACKFILL one waits for the next connect
+      if (spill != null && spillMode == SpillMode.CATCH_UP)
+        spill.clear();
+      if (backfill != null) {
+        backfill.stop();
+        backfill = null;
+      }
+    }
+    flushScheduled.set(false);
     if (muxerThread != null) {
       muxerThread.quitSafely();
       muxerThread = null;
@@ -122,29 +620,26 @@ public class Muxer {
     postDisconnected();
   }
 
-  public void pause() {
-    if (paused.getAndSet(true) == false) {
-      if (listener != null) {
-        uiHandler.post(new Runnable() {
-          @Override
-          public void run() {
-            listener.onPaused();
-          }
-        });
-      }
-    }
+  @Override
+  public void onFramesDropped(DropReason reason, int frames, int bytes) {
+    stats.onFramesDropped(reason, frames, bytes);
+    if (listener == null)
+      return;
+    droppedFrames.addAndGet(reason.ordinal(), frames);
+    droppedBytes.addAndGet(reason.ordinal(), bytes);
+    if (dropReportScheduled.compareAndSet(false, true))
+      uiHandler.postDelayed(dropReportRunnable, DROP_REPORT_INTERVAL_MS);
   }
 
-  public void resume() {
-    if (paused.getAndSet(false) == true) {
-      if (listener != null) {
-        uiHandler.post(new Runnable() {
-          @Override
-          public void run() {
-            listener.onResumed();
-          }
-        });
-      }
+  /**
+   * UI thread: one call per reason with what was dropped since the last report.
+   */
+  private void reportDropped() {
+    for (DropReason reason : DropReason.values()) {
+      final int frames = droppedFrames.getAndSet(reason.ordinal(), 0);
+      final int bytes = droppedBytes.getAndSet(reason.ordinal(), 0);
+      if (frames > 0 && listener != null)
+        listener.onFramesDropped(reason, frames, bytes);
     }
   }
 
@@ -169,14 +664,23 @@ public class Muxer {
   }
 
   private boolean isConnectedNoHandler() {
-    return rtmpMuxer.isConnected() != 0;
+    return rtmpClient.isConnected();
+  }
+
+  interface KeyFrameRequestListener {
+    /**
+     * called on the muxer thread when a new connection needs a key frame soon.
+     */
+    void onKeyFrameRequested();
   }
 
   public interface StatusListener {
     void onConnected();
     void onFailedToConnect();
-    void onPaused();
-    void onResumed();
     void onDisconnected();
+    /**
+     * the frames dropped for one reason over the last second or so.
+     */
+    void onFramesDropped(DropReason reason, int frames, int bytes);
   }
 }
@@ -0,0 +1,92 @@
+package com.takusemba.rtmppublisher;
+
+/**
+ * Mutes the background between phrases. It opens as soon as the level reaches the threshold,
+ * stays open for a while after it falls below it, so that word endings and short pauses are
+ * kept, and then fades down to its floor rather than cutting off.
+ */
+public class NoiseGate implements AudioProcessor {
+
+  private static final float ATTACK_MS = 1;
+  private static final float HOLD_MS = 100;
+  private static final float RELEASE_MS = 150;
+  // how fast the level detector falls
+  private static final float DETECTOR_RELEASE_MS = 10;
+  private static final float FLOOR_DB = -40;
+
+  private final float threshold;
+  private final float floor = (float) Math.pow(10, FLOOR_DB / 20);
+  private int channelCount;
+  private float attack;
+  private float release;
+  private float detectorRelease;
+  private int holdFrames;
+  private float level;
+  private float gain;
+  private int holdLeft;
+
+  /**
+   * @param thresholdDb level (dBFS) that opens the gate; -50 to -40 suits a quiet room.
+   */
+  public NoiseGate(float thresholdDb) {
+    this.threshold = (float) Math.pow(10, thresholdDb / 20);
+  }
+
+  @Override
+  public void prepare(int sampleRate, int channelCount) {
+    this.channelCount = channelCount;
+    attack = coefficient(ATTACK_MS, sampleRate);
+    release = coefficient(RELEASE_MS, sampleRate);
+    detectorRelease = 1 - coefficient(DETECTOR_RELEASE_MS, sampleRate);
+    holdFrames = (int) (HOLD_MS * sampleRate / 1000);
+    reset();
+  }
+
+  /**
+   * @return the per sample step of a one pole smoother with the given time constant.
+   */
+  static float coefficient(float ms, int sampleRate) {
+    return (float) (1 - Math.exp(-1000.0 / (ms * sampleRate)));
+  }
+
+  @Override
+  public void process(float[] samples, int offset, int frames) {
+    float level = this.level, gain = this.gain;
+    int holdLeft = this.holdLeft;
+    for (int f = 0; f < frames; f++) {
+      final int start = offset + f * channelCount;
+      float peak = 0;
+      for (int i = start; i < start + channelCount; i++)
+        peak = Math.max(peak, Math.abs(samples[i]));
+      level = peak > level ? peak : level * detectorRelease;
+      final float target;
+      if (level >= threshold) {
+        holdLeft = holdFrames;
+        target = 1;
+      } else if (holdLeft > 0) {
+        holdLeft--;
+        target = 1;
+      } else {
+        target = floor;
+      }
+      gain += (target - gain) * (target > gain ? attack : release);
+      for (int i = start; i < start + channelCount; i++)
+        samples[i] *= gain;
+    }
+    this.level = level;
+    this.gain = gain;
+    this.holdLeft = holdLeft;
+  }
+
+  @Override
+  public int getLatency() {
+    return 0;
+  }
+
+  @Override
+  public void reset() {
+    level = 0;
+    gain = floor;
+    holdLeft = 0;
+  }
+}
@@ -0,0 +1,132 @@
+package com.takusemba.rtmppublisher;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free ring of PCM chunks between one producer, the capture thread, and one consumer,
+ * the encoder's input thread. Each chunk carries the presentation time of its first sample.
+ * The producer never waits: a chunk that doesn't fit is dropped and counted as an overrun,
+ * which leaves a gap in the presentation times rather than holding up the next read.
+ */
+class PcmRingBuffer {
+
+  // per chunk: length, presentation time
+  private static final int HEADER_SIZE = 12;
+
+  private final byte[] buffer;
+  private final int mask;
+  private final int sampleRate;
+  private final int bytesPerFrame;
+  // positions only grow; each is advanced by its own side and read by the other
+  private final AtomicLong writePosition = new AtomicLong();
+  private final AtomicLong readPosition = new AtomicLong();
+  // producer only, read from any thread
+  private volatile long overruns;
+  private volatile long overrunBytes;
+  // consumer only: the chunk being read
+  private int chunkRemaining;
+  private long chunkPtsNanos;
+
+  /**
+   * @param capacity bytes, rounded up to a power of two.
+   * @param bytesPerFrame bytes of one sample over all channels.
+   */
+  PcmRingBuffer(int capacity, int sampleRate, int bytesPerFrame) {
+    final int size = Integer.highestOneBit(Math.max(capacity, HEADER_SIZE) - 1) << 1;
+    this.buffer = new byte[size];
+    this.mask = size - 1;
+    this.sampleRate = sampleRate;
+    this.bytesPerFrame = bytesPerFrame;
+  }
+
+  /**
+   * called by the producer.
+   * @return false if there was no room; the chunk is dropped then.
+   */
+  boolean write(byte[] data, int offset, int length, long ptsNanos) {
+    if (length == 0)
+      return true;
+    final long position = writePosition.get();
+    if (HEADER_SIZE + length > buffer.length - (position - readPosition.get())) {
+      overruns++;
+      overrunBytes += length;
+      return false;
+    }
+    long p = position;
+    for (int shift = 24; shift >= 0; shift -= 8)
+      buffer[(int) (p++ & mask)] = (byte) (length >>> shift);
+    for (int shift = 56; shift >= 0; shift -= 8)
+      buffer[(int) (p++ & mask)] = (byte) (ptsNanos >>> shift);
+    final int start = (int) (p & mask);
+    final int first = Math.min(length, buffer.length - start);
+    System.arraycopy(data, offset, buffer, start, first);
+    System.arraycopy(data, offset + first, buffer, 0, length - first);
+    // publishes the chunk to the consumer
+    writePosition.lazySet(p + length);
+    return true;
+  }
+
+  /**
+   * called by the consumer.
+   */
+  boolean isEmpty() {
+    return chunkRemaining == 0 && readPosition.get() == writePosition.get();
+  }
+
+  /**
+   * called by the consumer: copy the current chunk, or as many whole frames of it as
+   * {@code dst} has room for, moving on to the next chunk when it is used up.
+   * @return the presentation time of the first byte copied; -1 if the ring is empty or
+   * {@code dst} has no room for a frame, and nothing was copied.
+   */
+  long read(ByteBuffer dst) {
+    long position = readPosition.get();
+    if (chunkRemaining == 0) {
+      if (position == writePosition.get())
+        return -1;
+      int length = 0;
+      for (int i = 0; i < 4; i++)
+        length = (length << 8) | (buffer[(int) (position++ & mask)] & 0xff);
+      long pts = 0;
+      for (int i = 0; i < 8; i++)
+        pts = (pts << 8) | (buffer[(int) (position++ & mask)] & 0xff);
+      chunkRemaining = length;
+      chunkPtsNanos = pts;
+    }
+    final long ptsNanos = chunkPtsNanos;
+    final int count = chunkRemaining <= dst.remaining()
+      ? chunkRemaining : dst.remaining() / bytesPerFrame * bytesPerFrame;
+    if (count == 0) {
+      readPosition.lazySet(position);
+      return -1;
+    }
+    final int start = (int) (position & mask);
+    final int first = Math.min(count, buffer.length - start);
+    dst.put(buffer, start, first);
+    dst.put(buffer, 0, count - first);
+    chunkRemaining -= count;
+    chunkPtsNanos += (long) (count / bytesPerFrame) * 1000000000L / sampleRate;
+    // frees the space for the producer
+    readPosition.lazySet(position + count);
+    return ptsNanos;
+  }
+
+  /**
+   * @return bytes written and not read yet, chunk headers included.
+   */
+  int getBufferedBytes() {
+    return (int) (writePosition.get() - readPosition.get());
+  }
+
+  /**
+   * @return chunks dropped because the consumer fell behind.
+   */
+  long getOverruns() {
+    return overruns;
+  }
+
+  long getOverrunBytes() {
+    return overrunBytes;
+  }
+}
@@ -0,0 +1,215 @@
+package com.takusemba.rtmppublisher;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.takusemba.rtmppublisher.rtmp.FlvWriter;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps a local FLV copy of the stream. It gets the same frames as the muxers, shared by
+ * reference, and writes them on a thread of its own through a buffered {@link FileChannel},
+ * which is forced to storage every couple of seconds. The encoders never wait for the disk:
+ * when it falls behind, frames pile up in a bounded backlog that drops them the same way
+ * the send queue does, and the drops show in the report.
+ */
+class Recorder implements SendQueue.OnFramesDroppedListener {
+
+  interface OnRecorderErrorListener {
+    void onRecorderError(IOException e);
+  }
+
+  private static final int DEFAULT_BACKLOG_MAX_BYTES = 8 * 1024 * 1024;
+  private static final int DEFAULT_BACKLOG_MAX_DURATION_MS = 5000;
+  // how much the file may lose on power loss
+  private static final long FORCE_INTERVAL_NANOS = 2000 * 1000000L;
+
+  private final String path;
+  private final OnRecorderErrorListener errorListener;
+  private final SendQueue backlog =
+    new SendQueue(DEFAULT_BACKLOG_MAX_BYTES, DEFAULT_BACKLOG_MAX_DURATION_MS);
+  private final StreamStats stats = new StreamStats();
+  private HandlerThread thread;
+  private volatile Handler handler;
+  private final AtomicBoolean drainScheduled = new AtomicBoolean();
+  private final Runnable drainRunnable = new Runnable() {
+    @Override
+    public void run() {
+      drainScheduled.set(false);
+      drain();
+    }
+  };
+
+  // recorder thread only
+  private FileChannel channel;
+  private FlvWriter writer;
+  private long lastForcedAt;
+  // read from any thread
+  private volatile long bytesWritten;
+  private volatile boolean failed;
+
+  Recorder(String path, OnRecorderErrorListener errorListener) {
+    this.path = path;
+    this.errorListener = errorListener;
+    backlog.setOnFramesDroppedListener(this);
+  }
+
+  String getPath() {
+    return path;
+  }
+
+  void start() {
+    thread = new HandlerThread("Recorder", Process.THREAD_PRIORITY_BACKGROUND);
+    thread.start();
+    final Handler handler = new Handler(thread.getLooper());
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        open();
+      }
+    });
+    this.handler = handler;
+  }
+
+  /**
+   * write out the backlog and close the file.
+   */
+  void stop() {
+    final Handler handler = this.handler;
+    if (handler == null)
+      return;
+    this.handler = null;
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+        close();
+      }
+    });
+    thread.quitSafely();
+    thread = null;
+  }
+
+  /**
+   * queue a frame shared with the muxers; called on the encoder threads.
+   */
+  void send(EncodedFrame frame) {
+    final Handler handler = this.handler;
+    if (handler == null || failed)
+      return;
+    if (frame.isVideo() && !frame.config)
+      stats.onVideoEncoded();
+    backlog.offer(frame.retain());
+    if (drainScheduled.compareAndSet(false, true))
+      handler.post(drainRunnable);
+  }
+
+  /**
+   * @return {@link StreamStats#getReport()} of what went to the file (the bitrates are write
+   * rates) with "path", "backlogBytes", "backlogDurationMs", "bytesWritten" and "failed".
+   */
+  Map<String, Object> getStatsReport() {
+    final Map<String, Object> report = stats.getReport();
+    report.put("path", path);
+    report.put("backlogBytes", backlog.getBytes());
+    report.put("backlogDurationMs", backlog.getDurationMs());
+    report.put("bytesWritten", bytesWritten);
+    report.put("failed", failed);
+    return report;
+  }
+
+  @Override
+  public void onFramesDropped(DropReason reason, int frames, int bytes) {
+    stats.onFramesDropped(reason, frames, bytes);
+  }
+
+  private void open() {
+    try {
+      final RandomAccessFile file = new RandomAccessFile(path, "rw");
+      file.setLength(0);
+      channel = file.getChannel();
+      final FlvWriter writer = new FlvWriter(channel);
+      writer.writeHeader();
+      this.writer = writer;
+      lastForcedAt = System.nanoTime();
+      Log.i("Recorder", "recording to " + path);
+    } catch (IOException e) {
+      onError(e);
+    }
+  }
+
+  private void drain() {
+    EncodedFrame frame;
+    while ((frame = backlog.poll()) != null) {
+      try {
+        if (writer != null)
+          write(frame);
+      } catch (IOException e) {
+        onError(e);
+      } finally {
+        frame.release();
+      }
+    }
+    final long now = System.nanoTime();
+    if (writer != null && now - lastForcedAt >= FORCE_INTERVAL_NANOS) {
+      lastForcedAt = now;
+      try {
+        writer.flush();
+        channel.force(false);
+      } catch (IOException e) {
+        onError(e);
+      }
+    }
+    if (writer != null)
+      bytesWritten = writer.getBytesWritten();
+  }
+
+  private void write(EncodedFrame frame) throws IOException {
+    if (frame.isVideo()) {
+      writer.writeVideo(frame.data, frame.timestamp);
+      stats.onVideoSent(frame.length);
+    } else {
+      writer.writeAudio(frame.data, frame.timestamp, frame.config);
+      stats.onAudioSent(frame.length);
+    }
+  }
+
+  private void close() {
+    if (channel == null)
+      return;
+    try {
+      if (writer != null) {
+        writer.flush();
+        channel.force(true);
+        bytesWritten = writer.getBytesWritten();
+      }
+    } catch (IOException e) {
+      onError(e);
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      Log.w("Recorder", "close failed", e);
+    }
+    channel = null;
+    Log.i("Recorder", "recording closed: " + path);
+  }
+
+  /**
+   * the file is given up on the first error; the live stream is not affected.
+   */
+  private void onError(IOException e) {
+    Log.e("Recorder", "recording to " + path + " failed", e);
+    failed = true;
+    writer = null;
+    backlog.clear();
+    errorListener.onRecorderError(e);
+  }
+}
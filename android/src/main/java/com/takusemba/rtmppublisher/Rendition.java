@@ -0,0 +1,169 @@
+package com.takusemba.rtmppublisher;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One encoding of the camera picture at its own size, frame rate and bitrate. Each has an
+ * encoder, and so an input surface, of its own and its own pacer, so a 15 fps rendition
+ * doesn't depend on which frames a 30 fps one takes. Its cost is measured on both sides of
+ * the encoder: the time the renderer thread spends scaling a frame into the input surface
+ * (which includes waiting for the encoder to free one) and how long the encoder takes to
+ * deliver it.
+ * <p>
+ * Progress on both sides is also what {@link EncoderWatchdog} checks, and a stalled codec is
+ * replaced by {@link #restart()} with the rendition otherwise left as it is.
+ */
+class Rendition {
+
+  // a restart that brings no output counts; past this many in a row the rendition is given up
+  private static final int MAX_RESTARTS_WITHOUT_OUTPUT = 3;
+  // input that resumes after this long starts afresh, whatever the encoder still holds
+  private static final long INPUT_GAP_NANOS = 1000 * 1000000L;
+
+  // what VideoHandler#addRendition returned; 0 for the main one
+  final int index;
+  final int width;
+  final int height;
+  final int fps;
+  private volatile int bitRate;
+  private final VideoEncoder encoder;
+  // set by start, then used on the renderer thread only
+  private FramePacer framePacer;
+  // read from any thread
+  private final LatencyHistogram renderTimes = new LatencyHistogram();
+  private volatile int restarts;
+  // input progress, written on the renderer thread; 0 while not drawing
+  private volatile long drawStartedAt;
+  private volatile long lastDrawnAt;
+  // the first draw since the encoder's last output; cleared by the watchdog on output
+  private volatile long pendingSince;
+  // watchdog thread only
+  private long lastOutputFrames;
+  private int restartsWithoutOutput;
+
+  Rendition(int index, VideoEncoder encoder, int width, int height, int fps, int bitRate) {
+    this.index = index;
+    this.encoder = encoder;
+    this.width = width;
+    this.height = height;
+    this.fps = fps;
+    this.bitRate = bitRate;
+  }
+
+  VideoEncoder getEncoder() {
+    return encoder;
+  }
+
+  void start() throws IOException {
+    framePacer = new FramePacer(fps);
+    renderTimes.reset();
+    restarts = 0;
+    restartsWithoutOutput = 0;
+    lastOutputFrames = 0;
+    startEncoder();
+  }
+
+  /**
+   * replace the codec, which {@link VideoEncoder#abort()} has given up on, with a new one; the
+   * caller draws into its new input surface. called on the renderer thread.
+   */
+  void restart() throws IOException {
+    restarts++;
+    startEncoder();
+  }
+
+  private void startEncoder() throws IOException {
+    drawStartedAt = 0;
+    lastDrawnAt = 0;
+    pendingSince = 0;
+    encoder.prepare(width, height, bitRate, fps);
+    encoder.start();
+  }
+
+  /**
+   * called by the watchdog as it finds the encoder stalled.
+   * @return false if restarting has not helped the last few times.
+   */
+  boolean shouldRestart() {
+    // the new codec counts its frames from 0
+    lastOutputFrames = 0;
+    return ++restartsWithoutOutput <= MAX_RESTARTS_WITHOUT_OUTPUT;
+  }
+
+  void setBitRate(int bitRate) {
+    this.bitRate = bitRate;
+    encoder.setBitRate(bitRate);
+  }
+
+  /**
+   * called on the renderer thread for each camera frame.
+   * @return true if the frame should be drawn for this rendition.
+   */
+  boolean accept(long timestampNanos) {
+    return encoder.isEncoding() && framePacer.accept(timestampNanos);
+  }
+
+  void onDrawStarted(long nowNanos) {
+    if (pendingSince == 0 || nowNanos - lastDrawnAt > INPUT_GAP_NANOS)
+      pendingSince = nowNanos;
+    drawStartedAt = nowNanos;
+  }
+
+  /**
+   * @param elapsedNanos how long drawing the frame into the encoder's surface took.
+   */
+  void onRendered(long elapsedNanos) {
+    renderTimes.record(elapsedNanos / 1000);
+    lastDrawnAt = drawStartedAt + elapsedNanos;
+    drawStartedAt = 0;
+  }
+
+  /**
+   * called on the watchdog thread.
+   * @return how long frames have kept going into the encoder with nothing coming out. input
+   * that stops, e.g. while paused, doesn't count on: an encoder may hold back its last few
+   * frames until more come.
+   */
+  long getStallNanos(long nowNanos) {
+    if (!encoder.isEncoding())
+      return 0;
+    final long frames = encoder.getStats().getFrames();
+    if (frames != lastOutputFrames) {
+      lastOutputFrames = frames;
+      restartsWithoutOutput = 0;
+      pendingSince = 0;
+      return 0;
+    }
+    final long since = pendingSince;
+    // a draw blocked on the encoder's input surface is input up to now
+    final long lastInputAt = drawStartedAt != 0 ? nowNanos : lastDrawnAt;
+    return since == 0 ? 0 : Math.max(0, lastInputAt - since);
+  }
+
+  /**
+   * @return "width", "height", "fps", "bitrate", "renderTime" ("count", "p50"/"p95"/"p99"
+   * in ms), "encoded" (frames) and "encodeLatencyAvg"/"encodeLatencyMax" (ms from capture
+   * until out of the encoder) and "restarts" (stalled codecs replaced).
+   */
+  Map<String, Object> getReport() {
+    final Map<String, Object> report = new LinkedHashMap<>();
+    report.put("width", width);
+    report.put("height", height);
+    report.put("fps", fps);
+    report.put("bitrate", bitRate);
+    final Map<String, Object> renderTime = new LinkedHashMap<>();
+    renderTime.put("count", renderTimes.getCount());
+    renderTime.put("p50", renderTimes.getValueAtPercentile(50) / 1000.0);
+    renderTime.put("p95", renderTimes.getValueAtPercentile(95) / 1000.0);
+    renderTime.put("p99", renderTimes.getValueAtPercentile(99) / 1000.0);
+    report.put("renderTime", renderTime);
+    final EncoderStats stats = encoder.getStats();
+    report.put("encoded", stats.getFrames());
+    report.put("encodeLatencyAvg", stats.getAverageLatencyUs() / 1000.0);
+    report.put("encodeLatencyMax", stats.getMaxLatencyUs() / 1000.0);
+    report.put("restarts", restarts);
+    return report;
+  }
+}
@@ -11,6 +11,10 @@ import android.view.WindowManager;
 import android.widget.FrameLayout;
 import android.widget.LinearLayout;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
 import io.flutter.plugin.common.PluginRegistry;
 
 public class RtmpPublisher implements SurfaceTexture.OnFrameAvailableListener, Muxer.StatusListener,
@@ -94,6 +98,7 @@ public class RtmpPublisher implements SurfaceTexture.OnFrameAvailableListener, M
   private String rtmpUrl;
 
   private boolean activelyDisconnecting = false;
+  private boolean reconnecting = false;
   private long lastDisconnectTimestamp;
 
   public void setCaptureConfig(int width, int height, int fps, CameraMode cameraMode, int audioBitRate, int videoBitRate) {
@@ -112,6 +117,102 @@ public class RtmpPublisher implements SurfaceTexture.OnFrameAvailableListener, M
       connect(rtmpUrl);
   }
 
+  /**
+   * let the video bitrate adapt to the uplink; takes effect on the next connection.
+   * @param minVideoBitRate lower bound (bps); 0 disables adaptation.
+   * @param maxVideoBitRate upper bound (bps).
+   */
+  public void setAdaptiveBitrate(int minVideoBitRate, int maxVideoBitRate) {
+    streamer.setAdaptiveBitrate(minVideoBitRate, maxVideoBitRate);
+  }
+
+  /**
+   * deliver encoder output through MediaCodec callbacks (default) or by polling the codecs;
+   * takes effect on the next connection. callbacks need Android M, older devices always poll.
+   */
+  public void setAsyncEncoding(boolean async) {
+    streamer.setAsyncEncoding(async);
+  }
+
+  /**
+   * the audio format (default 44100 Hz mono AAC-LC); takes effect on the next connection. the
+   * AAC sequence header is built to match. HE-AAC needs the codec's support and falls back to
+   * AAC-LC without it; the bitrate is set with {@link #setCaptureConfig}.
+   * @param sampleRate 44100 and 48000 work on most devices; HE-AAC needs a rate whose half
+   * is a standard one, too.
+   * @param channelCount 1 or 2; HE-AAC v2 is stereo only.
+   */
+  public void setAudioFormat(int sampleRate, int channelCount, AacProfile profile) {
+    if (channelCount != 1 && channelCount != 2)
+      throw new IllegalArgumentException("unsupported channel count: " + channelCount);
+    if (profile == AacProfile.HE_V2 && channelCount != 2)
+      throw new IllegalArgumentException("HE-AAC v2 needs stereo");
+    if (!AudioSpecificConfig.isSupported(profile, sampleRate))
+      throw new IllegalArgumentException("unsupported sample rate for " + profile + ": " + sampleRate);
+    streamer.setAudioFormat(sampleRate, channelCount, profile);
+  }
+
+  /**
+   * clean up the microphone audio before it is encoded, with {@link AudioGain},
+   * {@link NoiseGate}, {@link HighPassFilter}, {@link LookAheadLimiter} or stages of your own,
+   * run in the order given; none to turn it off. can be called while streaming: the stages
+   * are got ready and swapped in on the capture thread, between two blocks, and run there on
+   * 16 bit PCM turned into floats in place. a stage may be given again, but not to two
+   * publishers.
+   * @param maxLatencyFrames how many frames the stages may delay the audio by together; the
+   * audio timestamps are moved back by their latency from the first block they process.
+   * @throws IllegalArgumentException if they would delay it by more.
+   */
+  public void setAudioProcessors(int maxLatencyFrames, AudioProcessor... processors) {
+    streamer.setAudioProcessors(maxLatencyFrames, processors);
+  }
+
+  /**
+   * read the microphone straight into the audio encoder's input buffers, saving two copies
+   * of every sample, instead of through a buffer that lets capture run ahead of a slow
+   * encoder (default). takes effect on the next connection. compare "captureCpuMs" and
+   * "inputCpuMs" under "audio" in {@link #getStats()}.
+   */
+  public void setDirectAudioCapture(boolean direct) {
+    streamer.setDirectAudioCapture(direct);
+  }
+
+  /**
+   * keep the encoders and the camera-to-encoder path running while reconnecting after a
+   * dropped connection (default), instead of rebuilding them.
+   */
+  public void setKeepEncodersOnReconnect(boolean keep) {
+    streamer.setKeepEncodersOnDisconnect(keep);
+  }
+
+  /**
+   * how long audio and video frames may be held to send them in timestamp order (default
+   * 50 ms); 0 sends them as they come out of the encoders.
+   */
+  public void setInterleaveMaxHold(int maxHoldMs) {
+    streamer.setInterleaveMaxHold(maxHoldMs);
+  }
+
+  /**
+   * what to do with frames that come out of an encoder later than the maximum hold time.
+   */
+  public void setLatePacketPolicy(LatePacketPolicy policy) {
+    streamer.setLatePacketPolicy(policy);
+  }
+
+  /**
+   * keep what the uplink can't take in memory-mapped files in {@code directory} rather than
+   * dropping it, e.g. through an outage: in CATCH_UP mode it is sent after the reconnect ahead
+   * of the live frames, in BACKFILL mode uploaded to {@code backfillUrl} next to the live
+   * stream; there, files left by a crash are recovered and uploaded too. call before
+   * connecting.
+   * @param directory null turns it off.
+   * @param maxBytes disk space it may take; the oldest GOPs go beyond that.
+   */
+  public void setSpill(String directory, int maxBytes, SpillMode mode, String backfillUrl) throws IOException {
+    streamer.setSpill(directory == null ? null : new File(directory), maxBytes, mode, backfillUrl);
+  }
+
   public void connect(String url) {
     activelyDisconnecting = false;
     rtmpUrl = url;
@@ -119,9 +220,54 @@ public class RtmpPublisher implements SurfaceTexture.OnFrameAvailableListener, M
     streamer.open(url, width, height);
   }
 
+  /**
+   * publish the same encode to one more server. it connects and reconnects on its own and
+   * never holds up the others; it stops with {@link #disconnect()}.
+   */
+  public void addDestination(String url) {
+    streamer.addDestination(url, 0);
+  }
+
+  /**
+   * like {@link #addDestination(String)}, but with the video of an additional rendition.
+   * @param rendition what {@link #addRendition} returned.
+   */
+  public void addDestination(String url, int rendition) {
+    streamer.addDestination(url, rendition);
+  }
+
+  /**
+   * also encode the camera picture at another size, frame rate and bitrate, e.g. a 540p
+   * fallback next to a 1080p stream. the one camera texture is scaled into each encoder
+   * on the GPU. takes effect when streaming starts next; its video goes to the destinations
+   * added with the returned index.
+   */
+  public int addRendition(int width, int height, int fps, int videoBitrate) {
+    return streamer.addRendition(width, height, fps, videoBitrate);
+  }
+
+  public void removeDestination(String url) {
+    streamer.removeDestination(url);
+  }
+
+  /**
+   * keep a local copy of the broadcast in an FLV file at {@code path}, written on a thread of
+   * its own; it never holds up the live stream, and drops frames instead when storage can't
+   * keep up. recording ends with {@link #stopRecording()} or {@link #disconnect()}; errors
+   * are reported to the listener as component "recorder".
+   */
+  public void startRecording(String path) {
+    streamer.startRecording(path);
+  }
+
+  public void stopRecording() {
+    streamer.stopRecording();
+  }
+
   public void disconnect() {
     activelyDisconnecting = true;
-    if (streamer.isStreaming()) {
+    reconnecting = false;
+    if (streamer.isStreaming() || streamer.isEncoding()) {
       streamer.stopStreaming();
     }
   }
@@ -132,9 +278,70 @@ public class RtmpPublisher implements SurfaceTexture.OnFrameAvailableListener, M
 
   public boolean isPaused() { return streamer.isPaused(); }
 
+  /**
+   * a snapshot of the stream: "videoBitrate" and "audioBitrate" (bps sent), "fps" (encoder
+   * output), "droppedFrames" and "droppedBytes" (maps by reason), "queuedBytes",
+   * "queuedDurationMs", "bytesWritten", "windowAckSize", "bytesAcknowledged" (the server's last
+   * acknowledgement), "reconnects" and "interleaver" (how long frames were held to interleave
+   * them: "count", "p50"/"p95"/"p99" in ms, and the number of "late" frames). Along with them:
+   * <ul>
+   * <li>"destinations", with additional destinations: each url mapped to the same stats of its
+   * own connection plus "connected".</li>
+   * <li>"renditions", the main one first: each rendition's "width", "height", "fps",
+   * "bitrate", "renderTime" (scaling into the encoder: "count", "p50"/"p95"/"p99" in ms),
+   * "encoded" (frames), "encodeLatencyAvg"/"encodeLatencyMax" (ms from capture) and
+   * "restarts" (stalled encoders replaced).</li>
+   * <li>"recording", while recording: the counters of what went to the file (the bitrates are
+   * write rates) with "path", "backlogBytes", "backlogDurationMs", "bytesWritten" and
+   * "failed" (whether writing stopped on an error).</li>
+   * <li>"spill", with a spill directory set: the "bytes", "frames" and "segments" on disk,
+   * "evictedFrames"/"evictedBytes" given up to the cap, "spilling", "backfilling" and
+   * "backfillBytesSent".</li>
+   * <li>"audio": the microphone input the encoder couldn't keep up with ("overruns" and
+   * "overrunBytes", dropped) or went without for over 100 ms ("underruns"), the
+   * "bufferedBytes" waiting for it, and the CPU time of capture and of feeding the encoder
+   * ("captureCpuMs", "inputCpuMs"). The audio timestamps count samples; "silenceMs" was made
+   * up for gaps in capture and "cutMs" left out where capture ran behind the count.</li>
+   * </ul>
+   * Cheap enough to call a few times a second; rates are averaged since the previous call,
+   * but over at least half a second.
+   */
+  public Map<String, Object> getStats() {
+    final Map<String, Object> report = streamer.getStatsReport();
+    final Map<String, Object> destinations = streamer.getDestinationStats();
+    if (!destinations.isEmpty())
+      report.put("destinations", destinations);
+    report.put("renditions", streamer.getRenditionStats());
+    report.put("audio", streamer.getAudioStats());
+    final Map<String, Object> recording = streamer.getRecordingStats();
+    if (recording != null)
+      report.put("recording", recording);
+    return report;
+  }
+
+  /**
+   * how long video frames took from the camera to each stage of the pipeline (preview,
+   * render, encoded, queued, dequeued, sent): stage name -> "count" and "p50"/"p95"/"p99"
+   * in milliseconds. stages without frames are left out.
+   * @param reset start over, so that the next report covers only the frames after this call.
+   */
+  public Map<String, Map<String, Object>> getLatencyReport(boolean reset) {
+    return streamer.getLatencyReport(reset);
+  }
+
   public void pause() {
+    pause(false);
+  }
+
+  /**
+   * stop encoding while keeping the connection; only the preview keeps running. the stream
+   * picks up after {@link #resume()} from where it stopped, with a key frame.
+   * @param slate keep the stream going meanwhile with the last picture and silence, for
+   * servers that drop a publisher that goes quiet.
+   */
+  public void pause(boolean slate) {
     if (!streamer.isPaused()) {
-      streamer.pause();
+      streamer.pause(slate);
       if (listener != null) {
         listener.onPaused();
       }
@@ -246,7 +453,7 @@ public class RtmpPublisher implements SurfaceTexture.OnFrameAvailableListener, M
           renderer.pause();
         }
       });
-      if (streamer.isStreaming()) {
+      if (streamer.isStreaming() || streamer.isEncoding()) {
         streamer.stopStreaming();
       }
       isCameraOperating = false;
@@ -258,6 +465,7 @@ public class RtmpPublisher implements SurfaceTexture.OnFrameAvailableListener, M
   //
   @Override
   public void onConnected() {
+    reconnecting = false;
     glView.queueEvent(new Runnable() {
       @Override
       public void run() {
@@ -279,21 +487,14 @@ public class RtmpPublisher implements SurfaceTexture.OnFrameAvailableListener, M
   public void onFailedToConnect() {
     if (listener != null)
       listener.onFailedToConnect();
-  }
-  @Override
-  public void onPaused() {
-    if (listener != null)
-      listener.onPaused();
-  }
-  @Override
-  public void onResumed() {
-    if (listener != null)
-      listener.onResumed();
+    if (reconnecting) {
+      // still offline; count it as another short disconnection
+      reconnectOrGiveUp();
+    }
   }
   @Override
   public void onDisconnected() {
     final boolean _activelyDisconnecting = activelyDisconnecting;
-    disconnect();
     if (listener != null)
       listener.onDisconnected();
 
@@ -307,6 +508,10 @@ public class RtmpPublisher implements SurfaceTexture.OnFrameAvailableListener, M
     }
 
     // OK, this is not intentional disconnection; we should reconnect to the server
+    reconnectOrGiveUp();
+  }
+
+  private void reconnectOrGiveUp() {
     final long _lastDisconnectTimestamp = lastDisconnectTimestamp;
     final long now = lastDisconnectTimestamp = System.currentTimeMillis();
     final long prevDuration = now - _lastDisconnectTimestamp;
@@ -322,19 +527,31 @@ public class RtmpPublisher implements SurfaceTexture.OnFrameAvailableListener, M
     if (shortDisconnectionCount > 3) {
       // connection may be so unstable, we don't try to reconnect again
       Log.i("RtmpPublisher", "Give up reconnecting!");
+      reconnecting = false;
+      streamer.stopStreaming(); // the encoders may have been kept for the reconnect
       return;
     }
 
     // OK, we'll try to reconnect again
     Log.i("RtmpPublisher", String.format("Attempting to reconnect (#%d)...", shortDisconnectionCount + 1));
+    reconnecting = true;
+    streamer.onReconnect();
     handler.post(new Runnable() {
       @Override
       public void run() {
-        connect(rtmpUrl);
+        if (reconnecting)
+          connect(rtmpUrl);
       }
     });
   }
 
+  @Override
+  public void onFramesDropped(DropReason reason, int frames, int bytes) {
+    Log.i("RtmpPublisher", String.format("onFramesDropped: %s, %d frames, %d bytes", reason, frames, bytes));
+    if (listener != null)
+      listener.onFramesDropped(reason, frames, bytes);
+  }
+
   //
   // CameraSurfaceRenderer.OnRendererStateChangedListener
   //
@@ -369,6 +586,20 @@ public class RtmpPublisher implements SurfaceTexture.OnFrameAvailableListener, M
     }
   }
 
+  @Override
+  public void onEncoderStalled(int rendition, long stalledMs) {
+    if (listener != null) {
+      listener.onEncoderStalled(rendition, stalledMs);
+    }
+  }
+
+  @Override
+  public void onEncoderRestarted(int rendition, long restartMs) {
+    if (listener != null) {
+      listener.onEncoderRestarted(rendition, restartMs);
+    }
+  }
+
   public interface RtmpPublisherListener {
     void onConnected();
     void onFailedToConnect();
@@ -376,5 +607,19 @@ public class RtmpPublisher implements SurfaceTexture.OnFrameAvailableListener, M
     void onPaused();
     void onResumed();
     void onError(String component, Exception e);
+    /**
+     * what was dropped for one reason, added up over about a second rather than per frame.
+     */
+    void onFramesDropped(DropReason reason, int frames, int bytes);
+    /**
+     * a video encoder stopped producing output; it is replaced without leaving the connection.
+     * @param rendition 0 for the main one, or what {@link #addRendition} returned.
+     */
+    void onEncoderStalled(int rendition, long stalledMs);
+    /**
+     * the stalled encoder was replaced and video goes on. if it can't be, or keeps stalling,
+     * {@link #onError} tells with the "video" component instead.
+     */
+    void onEncoderRestarted(int rendition, long restartMs);
   }
 }
@@ -0,0 +1,236 @@
+package com.takusemba.rtmppublisher;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Bounded queue between the encoders and the socket writer.
+ * When the byte or duration budget is exceeded, frames are dropped in this order:
+ * non-reference video, video up to the next key frame, and finally audio. The drops are
+ * added up under the queue's lock and reported once it is let go, one call per reason.
+ */
+class SendQueue {
+
+  interface OnFramesDroppedListener {
+    /**
+     * called on the thread that offered the frame or set the budget, without the queue locked.
+     */
+    void onFramesDropped(DropReason reason, int frames, int bytes);
+  }
+
+  private final ArrayDeque<EncodedFrame> frames = new ArrayDeque<>();
+  private int maxBytes;
+  private int maxDurationMs;
+  private int bytes = 0;
+  // once a reference video frame is dropped, nothing can be decoded until the next key frame
+  private boolean waitingKeyFrame = false;
+  private OnFramesDroppedListener listener;
+  // dropped but not reported yet, by reason
+  private final int[] droppedFrames = new int[DropReason.values().length];
+  private final int[] droppedBytes = new int[DropReason.values().length];
+
+  SendQueue(int maxBytes, int maxDurationMs) {
+    this.maxBytes = maxBytes;
+    this.maxDurationMs = maxDurationMs;
+  }
+
+  void setOnFramesDroppedListener(OnFramesDroppedListener listener) {
+    this.listener = listener;
+  }
+
+  void setBudget(int maxBytes, int maxDurationMs) {
+    synchronized (this) {
+      this.maxBytes = maxBytes;
+      this.maxDurationMs = maxDurationMs;
+      enforceBudget();
+    }
+    reportDropped();
+  }
+
+  /**
+   * queue the frame and drop whatever the budget requires.
+   */
+  void offer(EncodedFrame frame) {
+    synchronized (this) {
+      enqueue(frame);
+    }
+    reportDropped();
+  }
+
+  private void enqueue(EncodedFrame frame) {
+    if (frame.isVideo() && waitingKeyFrame && !frame.config) {
+      if (!frame.keyFrame) {
+        final int length = frame.length;
+        frame.release();
+        addDropped(DropReason.GOP, 1, length);
+        return;
+      }
+      waitingKeyFrame = false;
+    }
+    frames.addLast(frame);
+    bytes += frame.length;
+    enforceBudget();
+  }
+
+  /**
+   * @return true if the frame can be queued without dropping anything.
+   */
+  synchronized boolean hasRoomFor(EncodedFrame frame) {
+    if (bytes + frame.length > maxBytes)
+      return false;
+    if (frame.config)
+      return true;
+    for (EncodedFrame oldest : frames) {
+      if (!oldest.config)
+        return frame.timestamp - oldest.timestamp <= maxDurationMs;
+    }
+    return true;
+  }
+
+  synchronized EncodedFrame poll() {
+    final EncodedFrame frame = frames.pollFirst();
+    if (frame != null)
+      bytes -= frame.length;
+    return frame;
+  }
+
+  synchronized void clear() {
+    EncodedFrame frame;
+    while ((frame = frames.pollFirst()) != null)
+      frame.release();
+    bytes = 0;
+    waitingKeyFrame = false;
+  }
+
+  synchronized int getBytes() {
+    return bytes;
+  }
+
+  synchronized int getDurationMs() {
+    // config frames carry no meaningful timestamp
+    for (EncodedFrame oldest : frames) {
+      if (!oldest.config)
+        return frames.peekLast().timestamp - oldest.timestamp;
+    }
+    return 0;
+  }
+
+  synchronized int size() {
+    return frames.size();
+  }
+
+  private boolean isOverBudget() {
+    return bytes > maxBytes || getDurationMs() > maxDurationMs;
+  }
+
+  private void enforceBudget() {
+    if (!isOverBudget())
+      return;
+    dropNonReferenceFrames();
+    while (isOverBudget() && dropGop()) {
+      // keep dropping GOPs
+    }
+    if (isOverBudget())
+      dropAudio();
+  }
+
+  private void dropNonReferenceFrames() {
+    int count = 0;
+    int size = 0;
+    final Iterator<EncodedFrame> it = frames.iterator();
+    while (it.hasNext() && isOverBudget()) {
+      final EncodedFrame frame = it.next();
+      if (frame.disposable) {
+        it.remove();
+        bytes -= frame.length;
+        count++;
+        size += frame.length;
+        frame.release();
+      }
+    }
+    if (count > 0)
+      addDropped(DropReason.NON_REFERENCE, count, size);
+  }
+
+  /**
+   * drop the oldest video frames up to (not including) the next queued key frame.
+   * @return false if there was no video frame to drop.
+   */
+  private boolean dropGop() {
+    int count = 0;
+    int size = 0;
+    boolean first = true;
+    final Iterator<EncodedFrame> it = frames.iterator();
+    while (it.hasNext()) {
+      final EncodedFrame frame = it.next();
+      if (!frame.isVideo() || frame.config)
+        continue;
+      if (frame.keyFrame && !first)
+        break;
+      first = false;
+      it.remove();
+      bytes -= frame.length;
+      count++;
+      size += frame.length;
+      frame.release();
+    }
+    if (count == 0)
+      return false;
+    // if no key frame follows, the frames still to come are undecodable too
+    waitingKeyFrame = !hasQueuedKeyFrame();
+    addDropped(DropReason.GOP, count, size);
+    return true;
+  }
+
+  private boolean hasQueuedKeyFrame() {
+    for (EncodedFrame frame : frames) {
+      if (frame.keyFrame)
+        return true;
+    }
+    return false;
+  }
+
+  private void dropAudio() {
+    int count = 0;
+    int size = 0;
+    final Iterator<EncodedFrame> it = frames.iterator();
+    while (it.hasNext() && isOverBudget()) {
+      final EncodedFrame frame = it.next();
+      if (!frame.isVideo() && !frame.config) {
+        it.remove();
+        bytes -= frame.length;
+        count++;
+        size += frame.length;
+        frame.release();
+      }
+    }
+    if (count > 0)
+      addDropped(DropReason.AUDIO, count, size);
+  }
+
+  /**
+   * called with the queue locked.
+   */
+  private void addDropped(DropReason reason, int count, int size) {
+    droppedFrames[reason.ordinal()] += count;
+    droppedBytes[reason.ordinal()] += size;
+  }
+
+  /**
+   * hand the drops added up so far to the listener; called with the queue unlocked.
+   */
+  private void reportDropped() {
+    for (DropReason reason : DropReason.values()) {
+      final int count;
+      final int size;
+      synchronized (this) {
+        count = droppedFrames[reason.ordinal()];
+        size = droppedBytes[reason.ordinal()];
+        droppedFrames[reason.ordinal()] = 0;
+        droppedBytes[reason.ordinal()] = 0;
+      }
+      if (count > 0 && listener != null)
+        listener.onFramesDropped(reason, count, size);
+    }
+  }
+}
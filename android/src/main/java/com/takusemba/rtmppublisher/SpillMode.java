@@ -0,0 +1,18 @@
+package com.takusemba.rtmppublisher;
+
+/**
+ * What becomes of the frames spilled to disk while the uplink couldn't take them.
+ */
+public enum SpillMode {
+  /**
+   * sent on the live connection ahead of newer frames, as fast as the link allows, so the
+   * stream falls behind live and then catches up (DVR style). spills when the send queue
+   * overflows, too.
+   */
+  CATCH_UP,
+  /**
+   * uploaded to a backfill url on a connection of its own, while the live stream picks up
+   * at once. only outages are spilled; an overloaded link still drops frames.
+   */
+  BACKFILL
+}
@@ -0,0 +1,560 @@
+package com.takusemba.rtmppublisher;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only store of encoded frames on disk, for what the uplink can't take right now.
+ * Frames go into memory-mapped segment files, so appending is a memory copy and the kernel
+ * writes the pages out in the background; a segment is deleted once it has been read.
+ * <p>
+ * Each record carries a CRC and records are marked once sent, so after a crash the store is
+ * recovered by scanning each segment up to its first torn record. Key frames are indexed per
+ * segment: when the size cap is reached the oldest segment goes, and reading resumes at the
+ * next key frame instead of walking through undecodable frames. The latest sequence headers
+ * are kept in memory and read again before the first frame after such a jump; each segment
+ * starts with a copy of them, so they survive a restart along with the frames.
+ * <p>
+ * Creating a segment means allocating and mapping 8 MiB, which is too slow for the thread
+ * that appends; the next segment is made ready on a thread of its own meanwhile.
+ * Thread safe.
+ */
+class SpillStore {
+
+  private static final String SEGMENT_PREFIX = "spill-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final int SEGMENT_SIZE = 8 * 1024 * 1024;
+  private static final int MIN_SEGMENTS = 2;
+
+  // record: magic, length, timestamp, type, flags, 2 reserved bytes, CRC, then the frame
+  private static final int MAGIC_RECORD = 0x53504c31; // "SPL1"
+  private static final int MAGIC_READ = 0x53504c30; // "SPL0", already read
+  private static final int HEADER_SIZE = 20;
+  private static final int OFFSET_LENGTH = 4;
+  private static final int OFFSET_TIMESTAMP = 8;
+  private static final int OFFSET_TYPE = 12;
+  private static final int OFFSET_FLAGS = 13;
+  private static final int OFFSET_CRC = 16;
+  private static final int FLAG_CONFIG = 1;
+  private static final int FLAG_KEY = 2;
+  // a copy of the sequence header at the start of a segment; not read as a frame
+  private static final int FLAG_COPY = 4;
+
+  private static class Segment {
+    final long sequence;
+    final File file;
+    final MappedByteBuffer buffer;
+    int readOffset;
+    int writeOffset;
+    // no more appends; recovered segments are sealed too
+    boolean sealed;
+    // offsets of the key frame records
+    int[] keyFrames = new int[16];
+    int keyFrameCount;
+
+    Segment(long sequence, File file, MappedByteBuffer buffer) {
+      this.sequence = sequence;
+      this.file = file;
+      this.buffer = buffer;
+    }
+
+    void addKeyFrame(int offset) {
+      if (keyFrameCount == keyFrames.length)
+        keyFrames = Arrays.copyOf(keyFrames, keyFrameCount * 2);
+      keyFrames[keyFrameCount++] = offset;
+    }
+
+    /**
+     * @return the first key frame at or after {@code offset}; -1 if there is none.
+     */
+    int nextKeyFrame(int offset) {
+      for (int i = 0; i < keyFrameCount; i++) {
+        if (keyFrames[i] >= offset)
+          return keyFrames[i];
+      }
+      return -1;
+    }
+  }
+
+  private final File directory;
+  private final int maxSegments;
+  // oldest first; appends go to the last one unless it is sealed
+  private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+  private long nextSequence;
+  // the next segment, empty, or being made so; guarded by this
+  private Segment spare;
+  private boolean preparingSpare;
+  private boolean closed;
+  private final CRC32 crc = new CRC32();
+  // header and frame of the record being written or checked
+  private byte[] scratch = new byte[64 * 1024];
+
+  // the latest sequence headers, and whether they are to be read before the next frame
+  private byte[] videoConfig;
+  private byte[] audioConfig;
+  private boolean videoConfigPending;
+  private boolean audioConfigPending;
+  // reading skipped to a point without a key frame ahead; video waits for the next one
+  private boolean waitingKeyFrame;
+  // the record the last peek returned, marked read once it has been sent
+  private Segment peekedSegment;
+  private int peekedOffset;
+
+  private long bytes;
+  private int frames;
+  private long evictedFrames;
+  private long evictedBytes;
+
+  /**
+   * open the store in {@code directory}, recovering what a previous run left there.
+   * @param maxBytes the cap, rounded down to whole segments of 8 MiB (at least two); one
+   * more empty segment is kept ready on disk.
+   */
+  SpillStore(File directory, int maxBytes) throws IOException {
+    this.directory = directory;
+    this.maxSegments = Math.max(MIN_SEGMENTS, maxBytes / SEGMENT_SIZE);
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("cannot create " + directory);
+    recover();
+    prepareSpare();
+  }
+
+  /**
+   * copy the frame to the end of the store; the oldest segment is dropped if the store is full.
+   */
+  synchronized void append(EncodedFrame frame) throws IOException {
+    final int size = HEADER_SIZE + frame.length;
+    if (size > SEGMENT_SIZE - configCopySize()) {
+      evict(1, frame.length);
+      return;
+    }
+    Segment segment = segments.peekLast();
+    if (segment == null || segment.sealed || segment.writeOffset + size > SEGMENT_SIZE) {
+      if (segment != null)
+        segment.sealed = true;
+      while (segments.size() >= maxSegments)
+        evictOldest();
+      segment = createSegment();
+      if (videoConfig != null)
+        write(segment, ByteBuffer.wrap(videoConfig), EncodedFrame.VIDEO, 0, FLAG_CONFIG | FLAG_COPY);
+      if (audioConfig != null)
+        write(segment, ByteBuffer.wrap(audioConfig), EncodedFrame.AUDIO, 0, FLAG_CONFIG | FLAG_COPY);
+    }
+    final int flags = (frame.config ? FLAG_CONFIG : 0) | (frame.keyFrame ? FLAG_KEY : 0);
+    write(segment, frame.data.duplicate(), frame.type, frame.timestamp, flags);
+  }
+
+  /**
+   * @return the oldest frame not sent yet, in a frame from {@code pool}; null if there is none.
+   * The frame stays in the store, and is returned again, until {@link #markSent()} is called.
+   */
+  synchronized EncodedFrame peek(FrameBufferPool pool) {
+    peekedSegment = null;
+    if (videoConfigPending) {
+      videoConfigPending = false;
+      if (videoConfig != null)
+        return toFrame(pool, ByteBuffer.wrap(videoConfig), EncodedFrame.VIDEO, 0, true);
+    }
+    if (audioConfigPending) {
+      audioConfigPending = false;
+      if (audioConfig != null)
+        return toFrame(pool, ByteBuffer.wrap(audioConfig), EncodedFrame.AUDIO, 0, true);
+    }
+    while (true) {
+      final Segment segment = nextReadable();
+      if (segment == null)
+        return null;
+      final int offset = segment.readOffset;
+      final MappedByteBuffer buffer = segment.buffer;
+      final int length = buffer.getInt(offset + OFFSET_LENGTH);
+      final int type = buffer.get(offset + OFFSET_TYPE);
+      final int flags = buffer.get(offset + OFFSET_FLAGS);
+      final int timestamp = buffer.getInt(offset + OFFSET_TIMESTAMP);
+      if ((flags & FLAG_COPY) != 0) {
+        markRead(segment, length, flags);
+        continue;
+      }
+      final boolean config = (flags & FLAG_CONFIG) != 0;
+      if (waitingKeyFrame && type == EncodedFrame.VIDEO && !config) {
+        if ((flags & FLAG_KEY) == 0) {
+          markRead(segment, length, flags);
+          evict(1, length);
+          continue;
+        }
+        waitingKeyFrame = false;
+      }
+      peekedSegment = segment;
+      peekedOffset = offset;
+      final ByteBuffer data = buffer.duplicate();
+      data.limit(offset + HEADER_SIZE + length);
+      data.position(offset + HEADER_SIZE);
+      return toFrame(pool, data, type, timestamp, config);
+    }
+  }
+
+  /**
+   * mark the frame the last {@link #peek(FrameBufferPool)} returned as sent; a frame that
+   * could not be sent is left for the next peek. Nothing happens if it was evicted meanwhile.
+   */
+  synchronized void markSent() {
+    final Segment segment = peekedSegment;
+    peekedSegment = null;
+    if (segment == null || segment != segments.peekFirst() || segment.readOffset != peekedOffset)
+      return;
+    final MappedByteBuffer buffer = segment.buffer;
+    markRead(segment, buffer.getInt(peekedOffset + OFFSET_LENGTH), buffer.get(peekedOffset + OFFSET_FLAGS));
+  }
+
+  /**
+   * read the sequence headers again before the next frame, e.g. for a new connection.
+   */
+  synchronized void resendConfig() {
+    videoConfigPending = true;
+    audioConfigPending = true;
+  }
+
+  synchronized boolean isEmpty() {
+    return frames == 0;
+  }
+
+  /**
+   * drop everything, on disk too.
+   */
+  synchronized void clear() {
+    for (Segment segment : segments)
+      delete(segment);
+    segments.clear();
+    bytes = 0;
+    frames = 0;
+    videoConfig = null;
+    audioConfig = null;
+    videoConfigPending = false;
+    audioConfigPending = false;
+    waitingKeyFrame = false;
+    peekedSegment = null;
+  }
+
+  /**
+   * stop preparing segments and delete the spare one; what is stored stays on disk for the
+   * next store in the directory. appends still work, only slower.
+   */
+  synchronized void close() throws InterruptedException {
+    closed = true;
+    while (preparingSpare)
+      wait();
+    if (spare != null)
+      delete(spare);
+    spare = null;
+  }
+
+  /**
+   * @return "bytes" and "frames" stored, "segments", and "evictedFrames"/"evictedBytes",
+   * the frames given up to stay within the cap.
+   */
+  synchronized Map<String, Object> getReport() {
+    final Map<String, Object> report = new LinkedHashMap<>();
+    report.put("bytes", bytes);
+    report.put("frames", frames);
+    report.put("segments", segments.size());
+    report.put("evictedFrames", evictedFrames);
+    report.put("evictedBytes", evictedBytes);
+    return report;
+  }
+
+  private int checksum(byte[] record, int length) {
+    crc.reset();
+    crc.update(record, OFFSET_LENGTH, OFFSET_CRC - OFFSET_LENGTH);
+    crc.update(record, HEADER_SIZE, length);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * the record goes to the segment's end, which must have room for it.
+   */
+  private void write(Segment segment, ByteBuffer data, int type, int timestamp, int flags) {
+    final int length = data.remaining();
+    final int size = HEADER_SIZE + length;
+    if (scratch.length < size)
+      scratch = new byte[Math.max(size, scratch.length * 2)];
+    final ByteBuffer record = ByteBuffer.wrap(scratch, 0, size);
+    record.putInt(OFFSET_LENGTH, length);
+    record.putInt(OFFSET_TIMESTAMP, timestamp);
+    record.put(OFFSET_TYPE, (byte) type);
+    record.put(OFFSET_FLAGS, (byte) flags);
+    record.putShort(OFFSET_FLAGS + 1, (short) 0);
+    data.get(scratch, HEADER_SIZE, length);
+    record.putInt(OFFSET_CRC, checksum(scratch, length));
+
+    // the magic goes in last, so a record cut short by a crash is never taken as whole
+    final int offset = segment.writeOffset;
+    final MappedByteBuffer buffer = segment.buffer;
+    buffer.position(offset + OFFSET_LENGTH);
+    buffer.put(scratch, OFFSET_LENGTH, size - OFFSET_LENGTH);
+    buffer.putInt(offset, MAGIC_RECORD);
+    segment.writeOffset += size;
+    onAppended(segment, offset, type, flags, scratch, length);
+  }
+
+  private void onAppended(Segment segment, int offset, int type, int flags, byte[] record, int length) {
+    if ((flags & FLAG_CONFIG) != 0)
+      keepConfig(type, record, length);
+    if ((flags & FLAG_COPY) != 0)
+      return;
+    if ((flags & FLAG_KEY) != 0)
+      segment.addKeyFrame(offset);
+    bytes += length;
+    frames++;
+  }
+
+  private int configCopySize() {
+    return (videoConfig != null ? HEADER_SIZE + videoConfig.length : 0)
+      + (audioConfig != null ? HEADER_SIZE + audioConfig.length : 0);
+  }
+
+  private void keepConfig(int type, byte[] record, int length) {
+    final byte[] payload = Arrays.copyOfRange(record, HEADER_SIZE, HEADER_SIZE + length);
+    if (type == EncodedFrame.VIDEO)
+      videoConfig = payload;
+    else
+      audioConfig = payload;
+  }
+
+  private static EncodedFrame toFrame(FrameBufferPool pool, ByteBuffer data, int type,
+                                      int timestamp, boolean config) {
+    final EncodedFrame frame = pool.acquire(data.remaining());
+    frame.fill(data);
+    if (type == EncodedFrame.VIDEO)
+      frame.setVideo(timestamp, config, 0);
+    else
+      frame.setAudio(timestamp, config);
+    return frame;
+  }
+
+  /**
+   * @return the segment to read from, after deleting the ones read up; null if all is read.
+   */
+  private Segment nextReadable() {
+    Segment segment;
+    while ((segment = segments.peekFirst()) != null && segment.readOffset >= segment.writeOffset) {
+      if (!segment.sealed)
+        return null; // caught up with the writer
+      segments.removeFirst();
+      delete(segment);
+    }
+    return segment;
+  }
+
+  private void markRead(Segment segment, int length, int flags) {
+    segment.buffer.putInt(segment.readOffset, MAGIC_READ);
+    segment.readOffset += HEADER_SIZE + length;
+    if ((flags & FLAG_COPY) != 0)
+      return;
+    bytes -= length;
+    frames--;
+  }
+
+  /**
+   * drop the oldest segment; if the reader was in it, move it to the next key frame.
+   */
+  private void evictOldest() {
+    final Segment oldest = segments.pollFirst();
+    final boolean readerInside = oldest.readOffset < oldest.writeOffset;
+    skipTo(oldest, oldest.writeOffset);
+    delete(oldest);
+    if (!readerInside)
+      return;
+    for (Segment segment : segments) {
+      final int keyFrame = segment.nextKeyFrame(segment.readOffset);
+      if (keyFrame >= 0) {
+        skipTo(segment, keyFrame);
+        resendConfig();
+        return;
+      }
+      skipTo(segment, segment.writeOffset);
+    }
+    // no key frame stored at all; video waits for the next one to come in
+    waitingKeyFrame = true;
+    resendConfig();
+  }
+
+  /**
+   * give up the records of the segment up to {@code offset}.
+   */
+  private void skipTo(Segment segment, int offset) {
+    int count = 0;
+    int size = 0;
+    while (segment.readOffset < offset) {
+      final int length = segment.buffer.getInt(segment.readOffset + OFFSET_LENGTH);
+      final int flags = segment.buffer.get(segment.readOffset + OFFSET_FLAGS);
+      markRead(segment, length, flags);
+      if ((flags & FLAG_COPY) != 0)
+        continue;
+      count++;
+      size += length;
+    }
+    evict(count, size);
+  }
+
+  private void evict(int count, int size) {
+    evictedFrames += count;
+    evictedBytes += size;
+  }
+
+  /**
+   * @return a new segment at the end of the store, the spare one if it is ready.
+   */
+  private Segment createSegment() throws IOException {
+    // a segment made here meanwhile would come before the spare in sequence
+    while (preparingSpare) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted waiting for a segment");
+      }
+    }
+    Segment segment = spare;
+    spare = null;
+    if (segment == null)
+      segment = newSegment(directory, nextSequence++);
+    segments.addLast(segment);
+    prepareSpare();
+    return segment;
+  }
+
+  /**
+   * start making the next segment in the background, unless there is one already.
+   */
+  private void prepareSpare() {
+    if (spare != null || preparingSpare || closed)
+      return;
+    preparingSpare = true;
+    final long sequence = nextSequence++;
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        Segment segment = null;
+        try {
+          segment = newSegment(directory, sequence);
+        } catch (IOException e) {
+          // the next append tries again and reports it
+          Log.w("SpillStore", "cannot prepare a segment", e);
+        }
+        synchronized (SpillStore.this) {
+          spare = segment;
+          preparingSpare = false;
+          SpillStore.this.notifyAll();
+        }
+      }
+    }, "SpillSegment").start();
+  }
+
+  private static Segment newSegment(File directory, long sequence) throws IOException {
+    // running out of space under a mapping would kill the process, not throw
+    if (directory.getUsableSpace() < 2L * SEGMENT_SIZE)
+      throw new IOException("not enough space in " + directory);
+    final File file = new File(directory, String.format(Locale.US, "%s%016d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+    return new Segment(sequence, file, map(file, true));
+  }
+
+  private static MappedByteBuffer map(File file, boolean create) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      if (create)
+        raf.setLength(SEGMENT_SIZE);
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+    } finally {
+      raf.close(); // the mapping stays valid
+    }
+  }
+
+  private static void delete(Segment segment) {
+    if (!segment.file.delete())
+      Log.w("SpillStore", "cannot delete " + segment.file);
+  }
+
+  /**
+   * load the segments in the directory; each one ends at its first record that isn't whole.
+   */
+  private void recover() throws IOException {
+    final File[] files = directory.listFiles();
+    if (files == null)
+      throw new IOException("cannot list " + directory);
+    Arrays.sort(files);
+    for (File file : files) {
+      final String name = file.getName();
+      if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX))
+        continue;
+      final long sequence;
+      try {
+        sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      nextSequence = Math.max(nextSequence, sequence + 1);
+      if (file.length() != SEGMENT_SIZE) {
+        file.delete();
+        continue;
+      }
+      final Segment segment = new Segment(sequence, file, map(file, false));
+      segment.sealed = true;
+      scan(segment);
+      if (segment.readOffset < segment.writeOffset)
+        segments.addLast(segment);
+      else
+        delete(segment);
+    }
+    if (frames > 0) {
+      Log.i("SpillStore", String.format("recovered %d frames (%d bytes) in %d segments",
+        frames, bytes, segments.size()));
+      // a previous run may have stopped anywhere in a GOP
+      waitingKeyFrame = true;
+      resendConfig();
+    }
+  }
+
+  private void scan(Segment segment) {
+    final MappedByteBuffer buffer = segment.buffer;
+    int offset = 0;
+    boolean unreadSeen = false;
+    while (offset + HEADER_SIZE <= SEGMENT_SIZE) {
+      final int magic = buffer.getInt(offset);
+      if (magic != MAGIC_RECORD && magic != MAGIC_READ)
+        break;
+      final int length = buffer.getInt(offset + OFFSET_LENGTH);
+      if (length < 0 || length > SEGMENT_SIZE - offset - HEADER_SIZE)
+        break;
+      final int size = HEADER_SIZE + length;
+      if (scratch.length < size)
+        scratch = new byte[size];
+      buffer.position(offset);
+      buffer.get(scratch, 0, size);
+      if (checksum(scratch, length) != buffer.getInt(offset + OFFSET_CRC))
+        break;
+      final int flags = scratch[OFFSET_FLAGS];
+      if (magic == MAGIC_READ && !unreadSeen) {
+        segment.readOffset = offset + size;
+        // still the latest sequence header for what follows
+        if ((flags & FLAG_CONFIG) != 0)
+          keepConfig(scratch[OFFSET_TYPE], scratch, length);
+      } else {
+        unreadSeen = true;
+        onAppended(segment, offset, scratch[OFFSET_TYPE], flags, scratch, length);
+      }
+      offset += size;
+    }
+    segment.writeOffset = offset;
+  }
+}
@@ -0,0 +1,104 @@
+package com.takusemba.rtmppublisher;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Running counters of a stream. The encoder and muxer threads only bump atomic counters;
+ * rates are worked out when a report is taken.
+ */
+class StreamStats {
+
+  // rates over shorter intervals are too noisy; a report within this reuses the last rates
+  private static final long MIN_RATE_INTERVAL_MS = 500;
+
+  private final AtomicLong videoBytesSent = new AtomicLong();
+  private final AtomicLong audioBytesSent = new AtomicLong();
+  private final AtomicLong videoFramesEncoded = new AtomicLong();
+  private final AtomicLongArray droppedFrames = new AtomicLongArray(DropReason.values().length);
+  private final AtomicLongArray droppedBytes = new AtomicLongArray(DropReason.values().length);
+  private final AtomicInteger reconnects = new AtomicInteger();
+
+  // guarded by this; touched by getReport only
+  private long sampledAt;
+  private long sampledVideoBytes;
+  private long sampledAudioBytes;
+  private long sampledVideoFrames;
+  private int videoBitrate;
+  private int audioBitrate;
+  private double fps;
+
+  void onVideoEncoded() {
+    videoFramesEncoded.incrementAndGet();
+  }
+
+  void onVideoSent(int bytes) {
+    videoBytesSent.addAndGet(bytes);
+  }
+
+  void onAudioSent(int bytes) {
+    audioBytesSent.addAndGet(bytes);
+  }
+
+  void onFramesDropped(DropReason reason, int frames, int bytes) {
+    droppedFrames.addAndGet(reason.ordinal(), frames);
+    droppedBytes.addAndGet(reason.ordinal(), bytes);
+  }
+
+  void onReconnect() {
+    reconnects.incrementAndGet();
+  }
+
+  /**
+   * @return "videoBitrate", "audioBitrate" (bps sent), "fps" (encoder output),
+   * "droppedFrames" and "droppedBytes" (by reason: "nonReference", "gop", "audio") and
+   * "reconnects".
+   */
+  synchronized Map<String, Object> getReport() {
+    final long now = System.currentTimeMillis();
+    final long videoBytes = videoBytesSent.get();
+    final long audioBytes = audioBytesSent.get();
+    final long videoFrames = videoFramesEncoded.get();
+    final long elapsed = now - sampledAt;
+    if (elapsed >= MIN_RATE_INTERVAL_MS) {
+      if (sampledAt != 0) {
+        videoBitrate = (int) ((videoBytes - sampledVideoBytes) * 8000 / elapsed);
+        audioBitrate = (int) ((audioBytes - sampledAudioBytes) * 8000 / elapsed);
+        fps = (videoFrames - sampledVideoFrames) * 1000.0 / elapsed;
+      }
+      sampledAt = now;
+      sampledVideoBytes = videoBytes;
+      sampledAudioBytes = audioBytes;
+      sampledVideoFrames = videoFrames;
+    }
+
+    final Map<String, Object> report = new LinkedHashMap<>();
+    report.put("videoBitrate", videoBitrate);
+    report.put("audioBitrate", audioBitrate);
+    report.put("fps", fps);
+    final Map<String, Object> frames = new LinkedHashMap<>();
+    final Map<String, Object> bytes = new LinkedHashMap<>();
+    for (DropReason reason : DropReason.values()) {
+      frames.put(nameOf(reason), droppedFrames.get(reason.ordinal()));
+      bytes.put(nameOf(reason), droppedBytes.get(reason.ordinal()));
+    }
+    report.put("droppedFrames", frames);
+    report.put("droppedBytes", bytes);
+    report.put("reconnects", reconnects.get());
+    return report;
+  }
+
+  private static String nameOf(DropReason reason) {
+    switch (reason) {
+      case NON_REFERENCE:
+        return "nonReference";
+      case GOP:
+        return "gop";
+      default:
+        return "audio";
+    }
+  }
+}
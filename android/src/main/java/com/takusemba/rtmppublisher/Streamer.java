@@ -4,79 +4,579 @@ import android.opengl.EGLContext;
 import android.os.Handler;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 class Streamer
-  implements Muxer.StatusListener, VideoHandler.OnVideoEncoderStateListener, AudioHandler.OnAudioEncoderStateListener {
+  implements Muxer.StatusListener, Muxer.KeyFrameRequestListener,
+  VideoHandler.OnVideoEncoderStateListener, AudioHandler.OnAudioEncoderStateListener,
+  Recorder.OnRecorderErrorListener, VideoHandler.OnEncoderStallListener {
 
   public interface StreamerListener {
     void onError(String component, Exception e);
+    void onEncoderStalled(int rendition, long stalledMs);
+    void onEncoderRestarted(int rendition, long restartMs);
   }
 
+  // how often the adaptive bitrate controller looks at the send path
+  private static final int BITRATE_UPDATE_INTERVAL_MS = 1000;
+  // how often the slate is sent while paused with one
+  private static final int SLATE_INTERVAL_MS = 1000;
+
   private Handler handler;
   private StreamerListener listener;
   private Muxer.StatusListener muxerListener;
   private VideoHandler videoHandler;
   private AudioHandler audioHandler;
   private Muxer muxer;
-  private boolean paused = false;
+  // one encode feeds the muxer and every destination; frames are shared, not copied
+  private final FrameBufferPool framePool = new FrameBufferPool();
+  private final LatencyTracker latencyTracker = new LatencyTracker();
+  // replaced, never modified, so the encoder threads can iterate without a lock
+  private volatile Destination[] destinations = new Destination[0];
+  // the additional renditions, by index - 1
+  private final List<RenditionOutput> renditionOutputs = new ArrayList<>();
+  private volatile Recorder recorder;
+  // the latest sequence headers, so that a recording can start mid-stream
+  private final Object configLock = new Object();
+  private EncodedFrame videoConfig;
+  private EncodedFrame audioConfig;
+  // the latest key frame of the main rendition, which is the slate
+  private EncodedFrame lastKeyFrame;
+  private int width;
+  private int height;
+  private final TimestampNormalizer timestampNormalizer = new TimestampNormalizer();
+  private volatile boolean paused = false;
+  private volatile boolean pausedWithSlate = false;
+  private boolean keepEncodersOnDisconnect = true;
+  private boolean encoding = false;
+  private int videoBitrate;
+
+  private int minVideoBitrate = 0;
+  private int maxVideoBitrate = 0;
+  private BitrateController bitrateController;
+  private long lastBytesSent;
+  private long lastWriteBlockedNanos;
+  private long lastBitrateUpdateAt;
+  private final Runnable bitrateUpdater = new Runnable() {
+    @Override
+    public void run() {
+      updateBitrate();
+    }
+  };
+  private final Runnable slateSender = new Runnable() {
+    @Override
+    public void run() {
+      sendSlate();
+      handler.postDelayed(this, SLATE_INTERVAL_MS);
+    }
+  };
 
   Streamer() {
     muxer = new Muxer();
     muxer.setOnMuxerStateListener(this);
-    this.videoHandler = new VideoHandler();
+    muxer.setKeyFrameRequestListener(this);
+    muxer.setLatencyTracker(latencyTracker);
+    this.videoHandler = new VideoHandler(latencyTracker);
+    videoHandler.setOnEncoderStallListener(this);
     this.audioHandler = new AudioHandler();
   }
 
   void open(String url, int width, int height) {
     Log.i("Streamer", String.format("open: %d x %d", width, height));
     handler = new Handler();
+    this.width = width;
+    this.height = height;
     muxer.open(url, width, height);
   }
 
+  /**
+   * let the video bitrate follow the uplink between the given bounds; 0 disables it.
+   */
+  void setAdaptiveBitrate(int minVideoBitrate, int maxVideoBitrate) {
+    this.minVideoBitrate = minVideoBitrate;
+    this.maxVideoBitrate = maxVideoBitrate;
+  }
+
+  /**
+   * use MediaCodec callbacks (Android M and later) instead of polling the encoders;
+   * takes effect on the next startStreaming.
+   */
+  void setAsyncEncoding(boolean async) {
+    videoHandler.setAsyncEncoding(async);
+    audioHandler.setAsyncEncoding(async);
+  }
+
+  /**
+   * @see AudioHandler#setFormat(int, int, AacProfile)
+   */
+  void setAudioFormat(int sampleRate, int channelCount, AacProfile profile) {
+    audioHandler.setFormat(sampleRate, channelCount, profile);
+  }
+
+  /**
+   * @see AudioHandler#setProcessors(int, AudioProcessor[])
+   */
+  void setAudioProcessors(int maxLatency, AudioProcessor[] processors) {
+    audioHandler.setProcessors(maxLatency, processors);
+  }
+
+  /**
+   * @see AudioHandler#setDirectCapture(boolean)
+   */
+  void setDirectAudioCapture(boolean direct) {
+    audioHandler.setDirectCapture(direct);
+  }
+
+  /**
+   * keep the encoders, the encoder's GL surface and audio capture running when the connection
+   * drops, so that a reconnect only swaps the transport. frames encoded in the meantime are
+   * kept in the muxer's GOP cache as far as its budget allows and dropped otherwise.
+   */
+  void setKeepEncodersOnDisconnect(boolean keep) {
+    keepEncodersOnDisconnect = keep;
+  }
+
+  void setInterleaveMaxHold(int maxHoldMs) {
+    muxer.setInterleaveMaxHold(maxHoldMs);
+  }
+
+  /**
+   * @see Muxer#setSpill(File, int, SpillMode, String)
+   */
+  void setSpill(File directory, int maxBytes, SpillMode mode, String backfillUrl) throws IOException {
+    muxer.setSpill(directory, maxBytes, mode, backfillUrl);
+  }
+
+  void setLatePacketPolicy(LatePacketPolicy policy) {
+    muxer.setLatePacketPolicy(policy);
+  }
+
   void startStreaming(EGLContext context, int width, int height, int fps, int audioBitrate,
                       int videoBitrate) {
     Log.i("Streamer", String.format("startStreaming: %d x %d", width, height));
-    paused = false;
-    if (muxer.isConnected()) {
-      long startStreamingAt = System.currentTimeMillis();
+    resume();
+    if (muxer.isConnected() && encoding) {
+      Log.i("Streamer", "startStreaming: encoders kept running");
+      startBitrateControl(this.videoBitrate);
+    } else if (muxer.isConnected()) {
+      encoding = true;
+      this.videoBitrate = videoBitrate;
+      timestampNormalizer.reset();
       videoHandler.setOnVideoEncoderStateListener(this);
       audioHandler.setOnAudioEncoderStateListener(this);
-      videoHandler.start(width, height, fps, videoBitrate, context, startStreamingAt);
-      audioHandler.start(audioBitrate, startStreamingAt);
+      latencyTracker.reset();
+      for (RenditionOutput output : renditionOutputs)
+        output.reset();
+      for (Destination destination : destinations)
+        destination.start(width, height);
+      videoHandler.start(width, height, fps, videoBitrate, context);
+      audioHandler.start(audioBitrate);
+      startBitrateControl(videoBitrate);
     }
   }
 
+  private void startBitrateControl(int videoBitrate) {
+    stopBitrateControl();
+    if (minVideoBitrate <= 0 || maxVideoBitrate < minVideoBitrate)
+      return;
+    bitrateController = new BitrateController(minVideoBitrate, maxVideoBitrate, videoBitrate);
+    if (bitrateController.getBitrate() != videoBitrate) {
+      this.videoBitrate = bitrateController.getBitrate();
+      videoHandler.setBitRate(this.videoBitrate);
+    }
+    lastBytesSent = muxer.getBytesSent();
+    lastWriteBlockedNanos = muxer.getWriteBlockedNanos();
+    lastBitrateUpdateAt = System.currentTimeMillis();
+    handler.postDelayed(bitrateUpdater, BITRATE_UPDATE_INTERVAL_MS);
+  }
+
+  private void stopBitrateControl() {
+    if (handler != null)
+      handler.removeCallbacks(bitrateUpdater);
+    bitrateController = null;
+  }
+
+  private void updateBitrate() {
+    if (bitrateController == null)
+      return;
+    final long now = System.currentTimeMillis();
+    final long bytesSent = muxer.getBytesSent();
+    final long writeBlockedNanos = muxer.getWriteBlockedNanos();
+    final int current = bitrateController.getBitrate();
+    final int bitrate = bitrateController.update(now - lastBitrateUpdateAt,
+      muxer.getQueuedDurationMs(), bytesSent - lastBytesSent, writeBlockedNanos - lastWriteBlockedNanos);
+    lastBitrateUpdateAt = now;
+    lastBytesSent = bytesSent;
+    lastWriteBlockedNanos = writeBlockedNanos;
+    if (bitrate != current) {
+      Log.i("Streamer", String.format("video bitrate: %d -> %d", current, bitrate));
+      videoHandler.setBitRate(bitrate);
+      videoBitrate = bitrate;
+    }
+    handler.postDelayed(bitrateUpdater, BITRATE_UPDATE_INTERVAL_MS);
+  }
+
   void stopStreaming() {
+    encoding = false;
+    if (handler != null)
+      handler.removeCallbacks(slateSender);
+    paused = false;
+    videoHandler.setPaused(false);
+    stopBitrateControl();
     videoHandler.stop();
     audioHandler.stop();
     muxer.close();
+    for (Destination destination : destinations)
+      destination.stop();
+    stopRecording();
+    synchronized (configLock) {
+      if (videoConfig != null)
+        videoConfig.release();
+      if (audioConfig != null)
+        audioConfig.release();
+      if (lastKeyFrame != null)
+        lastKeyFrame.release();
+      videoConfig = null;
+      audioConfig = null;
+      lastKeyFrame = null;
+    }
+    Log.i("Streamer", String.format("frame pool: %d hits, %d misses, %d outstanding",
+      framePool.getHits(), framePool.getMisses(), framePool.getOutstanding()));
   }
 
   boolean isStreaming() {
     return muxer.isConnected();
   }
 
+  /**
+   * @return true while the encoders run, which may outlive the connection.
+   */
+  boolean isEncoding() {
+    return encoding;
+  }
+
+  /**
+   * @see Muxer#getStatsReport()
+   */
+  Map<String, Object> getStatsReport() {
+    return muxer.getStatsReport();
+  }
+
+  /**
+   * also publish the stream to {@code url}, which gets a connection, send queue and
+   * reconnect loop of its own. starts right away if the encoders are running, otherwise
+   * with the next startStreaming.
+   * @param rendition the video it gets: 0 for the main one, or what {@link #addRendition}
+   * returned.
+   */
+  void addDestination(String url, int rendition) {
+    for (Destination destination : destinations) {
+      if (destination.getUrl().equals(url))
+        return;
+    }
+    final Destination destination = new Destination(url, rendition,
+      rendition == 0 ? this : renditionOutputs.get(rendition - 1));
+    final Destination[] current = destinations;
+    final Destination[] next = new Destination[current.length + 1];
+    System.arraycopy(current, 0, next, 0, current.length);
+    next[current.length] = destination;
+    destinations = next;
+    if (encoding)
+      destination.start(width, height);
+  }
+
+  void removeDestination(String url) {
+    final Destination[] current = destinations;
+    for (int i = 0; i < current.length; i++) {
+      if (current[i].getUrl().equals(url)) {
+        final Destination[] next = new Destination[current.length - 1];
+        System.arraycopy(current, 0, next, 0, i);
+        System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+        destinations = next;
+        current[i].stop();
+        return;
+      }
+    }
+  }
+
+  /**
+   * also encode the camera picture at another size, frame rate and bitrate, for the
+   * destinations that ask for it. takes effect on the next startStreaming.
+   * @return the rendition's index for {@link #addDestination}.
+   */
+  int addRendition(int width, int height, int fps, int bitRate) {
+    final RenditionOutput output = new RenditionOutput(renditionOutputs.size() + 1);
+    renditionOutputs.add(output);
+    return videoHandler.addRendition(width, height, fps, bitRate, output);
+  }
+
+  /**
+   * @see VideoHandler#getRenditionReport()
+   */
+  List<Map<String, Object>> getRenditionStats() {
+    return videoHandler.getRenditionReport();
+  }
+
+  /**
+   * @return {@link Destination#getStatsReport()} by url.
+   */
+  Map<String, Object> getDestinationStats() {
+    final Map<String, Object> report = new LinkedHashMap<>();
+    for (Destination destination : destinations)
+      report.put(destination.getUrl(), destination.getStatsReport());
+    return report;
+  }
+
+  /**
+   * write the main stream to a local FLV file as well, until stopRecording or stopStreaming.
+   * a recording started mid-stream begins with the next key frame, which is asked for.
+   */
+  void startRecording(String path) {
+    stopRecording();
+    final Recorder recorder = new Recorder(path, this);
+    recorder.start();
+    synchronized (configLock) {
+      // ahead of any frame, which may only come once the recorder is visible
+      if (videoConfig != null)
+        recorder.send(videoConfig);
+      if (audioConfig != null)
+        recorder.send(audioConfig);
+      this.recorder = recorder;
+    }
+    if (encoding)
+      videoHandler.requestKeyFrame();
+  }
+
+  void stopRecording() {
+    final Recorder recorder = this.recorder;
+    if (recorder == null)
+      return;
+    this.recorder = null;
+    recorder.stop();
+  }
+
+  /**
+   * @see AudioHandler#getReport()
+   */
+  Map<String, Object> getAudioStats() {
+    return audioHandler.getReport();
+  }
+
+  /**
+   * @see Recorder#getStatsReport()
+   * @return null if not recording.
+   */
+  Map<String, Object> getRecordingStats() {
+    final Recorder recorder = this.recorder;
+    return recorder == null ? null : recorder.getStatsReport();
+  }
+
+  void onReconnect() {
+    muxer.getStats().onReconnect();
+  }
+
+  /**
+   * @see LatencyTracker#getReport()
+   */
+  Map<String, Map<String, Object>> getLatencyReport(boolean reset) {
+    final Map<String, Map<String, Object>> report = latencyTracker.getReport();
+    if (reset)
+      latencyTracker.reset();
+    return report;
+  }
+
   boolean isPaused() { return paused && isStreaming(); }
 
+  /**
+   * stop the encoding work but keep the connection: nothing is drawn into the video encoders
+   * and the microphone isn't read, so only the preview costs anything. the time paused is
+   * left out of the stream's timestamps.
+   * @param slate keep the stream going in real time instead, with the last key frame repeated
+   * and silence; for servers that drop a publisher that goes quiet. the audio encoder is fed
+   * the silence, and nothing else is encoded.
+   */
+  void pause(boolean slate) {
+    if (paused || !isStreaming())
+      return;
+    pausedWithSlate = slate;
+    paused = true;
+    videoHandler.setPaused(true);
+    audioHandler.pause(slate);
+    if (slate)
+      handler.postDelayed(slateSender, SLATE_INTERVAL_MS);
+    else
+      timestampNormalizer.pause();
+  }
+
   void resume() {
+    if (!paused)
+      return;
+    handler.removeCallbacks(slateSender);
+    timestampNormalizer.resume();
     paused = false;
+    audioHandler.resume();
+    // before the first frame is drawn, so that it is the key frame
+    videoHandler.requestKeyFrames();
+    videoHandler.setPaused(false);
   }
 
-  void pause() {
-    paused = true;
+  /**
+   * send a copy of the latest key frame, stamped now; called on the handler's thread while
+   * the video encoders are idle.
+   */
+  private void sendSlate() {
+    final EncodedFrame keyFrame;
+    synchronized (configLock) {
+      keyFrame = lastKeyFrame != null ? lastKeyFrame.retain() : null;
+    }
+    if (keyFrame == null)
+      return;
+    final long now = System.nanoTime();
+    final EncodedFrame frame = framePool.acquire(keyFrame.length);
+    frame.fill(keyFrame.data.duplicate());
+    keyFrame.release();
+    frame.setVideo(timestampNormalizer.toVideoTimestamp(now), false, now);
+    sendVideo(frame, 0);
   }
 
   @Override
-  public void onVideoDataEncoded(byte[] data, int offset, int size, int timestamp) {
+  public void onVideoDataEncoded(ByteBuffer data, long ptsNanos, boolean config) {
+    // frames the encoders still had when pausing
     if (paused)
       return;
-    muxer.sendVideo(data, offset, size, timestamp);
+    final int timestamp;
+    if (config) {
+      timestamp = timestampNormalizer.getVideoTimestamp();
+    } else {
+      timestamp = timestampNormalizer.toVideoTimestamp(ptsNanos);
+      muxer.getStats().onVideoEncoded();
+    }
+    final EncodedFrame frame = framePool.acquire(data.remaining());
+    frame.fill(data);
+    frame.setVideo(timestamp, config, ptsNanos);
+    sendVideo(frame, 0);
   }
 
   @Override
-  public void onAudioDataEncoded(byte[] data, int offset, int size, int timestamp) {
-    if (paused)
+  public void onAudioDataEncoded(ByteBuffer data, long ptsNanos, boolean config) {
+    // with a slate, the encoder is fed silence while paused
+    if (paused && !pausedWithSlate)
       return;
-    muxer.sendAudio(data, offset, size, timestamp);
+    final int timestamp = config
+      ? timestampNormalizer.getAudioTimestamp() : timestampNormalizer.toAudioTimestamp(ptsNanos);
+    final EncodedFrame frame = framePool.acquire(data.remaining());
+    frame.fill(data);
+    frame.setAudio(timestamp, config);
+    record(frame);
+    muxer.sendFrame(frame);
+    for (Destination destination : destinations)
+      destination.send(frame);
+    frame.release();
+  }
+
+  /**
+   * hand a frame of the main stream to the recorder, and keep its sequence headers.
+   */
+  private void record(EncodedFrame frame) {
+    if (frame.isVideo() && frame.keyFrame) {
+      synchronized (configLock) {
+        if (lastKeyFrame != null)
+          lastKeyFrame.release();
+        lastKeyFrame = frame.retain();
+      }
+    }
+    if (frame.config) {
+      synchronized (configLock) {
+        if (frame.isVideo()) {
+          if (videoConfig != null)
+            videoConfig.release();
+          videoConfig = frame.retain();
+        } else {
+          if (audioConfig != null)
+            audioConfig.release();
+          audioConfig = frame.retain();
+        }
+      }
+    }
+    final Recorder recorder = this.recorder;
+    if (recorder != null)
+      recorder.send(frame);
+  }
+
+  /**
+   * hand a video frame to whoever takes its rendition; they share it.
+   */
+  private void sendVideo(EncodedFrame frame, int rendition) {
+    if (rendition == 0) {
+      record(frame);
+      muxer.sendFrame(frame);
+    }
+    for (Destination destination : destinations) {
+      if (destination.getRendition() == rendition)
+        destination.send(frame);
+    }
+    frame.release();
+  }
+
+  /**
+   * the output of an additional rendition. its timestamps come from the same clock as the
+   * main one's, so its destinations can share the audio.
+   */
+  private class RenditionOutput
+    implements VideoHandler.OnVideoEncoderStateListener, Muxer.KeyFrameRequestListener {
+
+    private final int index;
+    // the rendition's encoder output thread only
+    private int lastTimestamp = -1;
+
+    RenditionOutput(int index) {
+      this.index = index;
+    }
+
+    /**
+     * call before the encoders start.
+     */
+    void reset() {
+      lastTimestamp = -1;
+    }
+
+    @Override
+    public void onVideoDataEncoded(ByteBuffer data, long ptsNanos, boolean config) {
+      if (paused)
+        return;
+      final int timestamp;
+      if (config) {
+        timestamp = Math.max(lastTimestamp, 0);
+      } else {
+        lastTimestamp = timestampNormalizer.next(lastTimestamp, ptsNanos);
+        timestamp = lastTimestamp;
+      }
+      final EncodedFrame frame = framePool.acquire(data.remaining());
+      frame.fill(data);
+      frame.setVideo(timestamp, config, ptsNanos);
+      sendVideo(frame, index);
+    }
+
+    @Override
+    public void onVideoError(Exception e) {
+      notifyError("video", e);
+    }
+
+    @Override
+    public void onKeyFrameRequested() {
+      videoHandler.requestKeyFrame(index);
+    }
+  }
+
+  @Override
+  public void onKeyFrameRequested() {
+    videoHandler.requestKeyFrame();
   }
 
   @Override
@@ -89,7 +589,45 @@ class Streamer
     notifyError("audio", e);
   }
 
+  @Override
+  public void onRecorderError(IOException e) {
+    notifyError("recorder", e);
+  }
+
+  @Override
+  public void onEncoderStalled(final int rendition, final long stalledMs) {
+    if (handler == null)
+      return;
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        if (listener != null)
+          listener.onEncoderStalled(rendition, stalledMs);
+      }
+    });
+  }
+
+  @Override
+  public void onEncoderRestarted(final int rendition, final long restartMs) {
+    if (handler == null)
+      return;
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        if (listener != null)
+          listener.onEncoderRestarted(rendition, restartMs);
+      }
+    });
+  }
+
+  @Override
+  public void onEncoderRestartFailed(int rendition, Exception e) {
+    notifyError("video", e);
+  }
+
   private void notifyError(final String component, final Exception e) {
+    if (handler == null)
+      return; // never opened; nobody is listening yet
     handler.post(new Runnable() {
       @Override
       public void run() {
@@ -118,19 +656,18 @@ class Streamer
     if (muxerListener != null)
       muxerListener.onFailedToConnect();
   }
-  public void onPaused() {
-    if (muxerListener != null)
-      muxerListener.onPaused();
-  }
-  public void onResumed() {
-    if (muxerListener != null)
-      muxerListener.onResumed();
-  }
   public void onDisconnected() {
 
-    stopStreaming();
+    if (keepEncodersOnDisconnect && encoding)
+      stopBitrateControl(); // the transport is gone; it's up to our listener to reconnect or stop
+    else
+      stopStreaming();
 
     if (muxerListener != null)
       muxerListener.onDisconnected();
   }
+  public void onFramesDropped(DropReason reason, int frames, int bytes) {
+    if (muxerListener != null)
+      muxerListener.onFramesDropped(reason, frames, bytes);
+  }
 }
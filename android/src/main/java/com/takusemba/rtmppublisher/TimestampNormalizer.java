@@ -0,0 +1,93 @@
+package com.takusemba.rtmppublisher;
+
+import android.os.SystemClock;
+
+/**
+ * Turns the encoders' presentation times (System.nanoTime clock) into the millisecond
+ * timestamps of the stream. The stream starts at {@link #reset()} on the
+ * {@link SystemClock#elapsedRealtimeNanos()} clock, which wall-clock adjustments don't touch,
+ * and each track's timestamps strictly increase, as FLV wants. Time spent paused can be left
+ * out, so that the stream goes on after a pause from where it stopped.
+ * Each track must be normalized on one thread at a time; the two tracks may use different
+ * ones.
+ */
+class TimestampNormalizer {
+
+  private volatile long originNanos;
+  // elapsedRealtimeNanos - nanoTime; differs only by the time spent in deep sleep
+  private volatile long clockOffsetNanos;
+  // elapsedRealtimeNanos at pause; 0 if not paused
+  private long pausedAt;
+  // the encoder output threads, or whoever stands in for them while paused
+  private volatile int lastVideo;
+  private volatile int lastAudio;
+
+  /**
+   * start a new stream at time 0; call before the encoders start.
+   */
+  void reset() {
+    final long now = elapsedRealtimeNanos();
+    clockOffsetNanos = now - nanoTime();
+    originNanos = now;
+    pausedAt = 0;
+    lastVideo = -1;
+    lastAudio = -1;
+  }
+
+  /**
+   * the time from here until {@link #resume()} is left out of the stream.
+   */
+  void pause() {
+    pausedAt = elapsedRealtimeNanos();
+  }
+
+  void resume() {
+    if (pausedAt == 0)
+      return;
+    originNanos += elapsedRealtimeNanos() - pausedAt;
+    pausedAt = 0;
+  }
+
+  int toVideoTimestamp(long ptsNanos) {
+    lastVideo = next(lastVideo, ptsNanos);
+    return lastVideo;
+  }
+
+  int toAudioTimestamp(long ptsNanos) {
+    lastAudio = next(lastAudio, ptsNanos);
+    return lastAudio;
+  }
+
+  /**
+   * @return the timestamp for a sequence header, which goes with the frames after it.
+   */
+  int getVideoTimestamp() {
+    return Math.max(lastVideo, 0);
+  }
+
+  int getAudioTimestamp() {
+    return Math.max(lastAudio, 0);
+  }
+
+  /**
+   * the clock the stream is timed on; tests stand in their own.
+   */
+  long elapsedRealtimeNanos() {
+    return SystemClock.elapsedRealtimeNanos();
+  }
+
+  /**
+   * the clock the presentation times are on.
+   */
+  long nanoTime() {
+    return System.nanoTime();
+  }
+
+  /**
+   * for further video tracks, whose last timestamp the caller keeps (-1 before the first).
+   */
+  int next(int last, long ptsNanos) {
+    final long ms = (ptsNanos + clockOffsetNanos - originNanos) / 1000000;
+    return ms > last ? (int) ms : last + 1;
+  }
+}
@@ -3,13 +3,18 @@ package com.takusemba.rtmppublisher;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Process;
 import android.util.Log;
 import android.view.Surface;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 class VideoEncoder implements Encoder {
 
@@ -18,35 +23,51 @@ class VideoEncoder implements Encoder {
   // 5 seconds between I-frames
   private static final int IFRAME_INTERVAL = 5;
 
-  private boolean isEncoding = false;
+  private volatile boolean isEncoding = false;
   private static final int TIMEOUT_USEC = 10000;
+  private static final long STOP_TIMEOUT_MS = 1000;
 
   private Surface inputSurface;
   private EncoderThread encoderThread;
-  private MediaCodec encoder;
+  private boolean async = true;
+  private boolean useCallback;
+  private HandlerThread callbackThread;
+  private CountDownLatch endOfStream;
+  private final EncoderStats stats = new EncoderStats();
+  private final LatencyTracker latencyTracker;
+  private volatile MediaCodec encoder;
   private MediaCodec.BufferInfo bufferInfo;
   private VideoHandler.OnVideoEncoderStateListener listener;
-  private long lastFrameEncodedAt = 0;
-  private long startStreamingAt = 0;
 
-  void setOnVideoEncoderStateListener(VideoHandler.OnVideoEncoderStateListener listener) {
-    this.listener = listener;
+  VideoEncoder(LatencyTracker latencyTracker) {
+    this.latencyTracker = latencyTracker;
   }
 
-  long getLastFrameEncodedAt() {
-    return lastFrameEncodedAt;
+  void setOnVideoEncoderStateListener(VideoHandler.OnVideoEncoderStateListener listener) {
+    this.listener = listener;
   }
 
   Surface getInputSurface() {
     return inputSurface;
   }
 
+  EncoderStats getStats() {
+    return stats;
+  }
+
+  /**
+   * deliver output through {@link MediaCodec.Callback} instead of polling. takes effect on
+   * the next {@link #prepare}; ignored below Android M, where the callback can't be given
+   * its own handler.
+   */
+  void setAsync(boolean async) {
+    this.async = async;
+  }
+
   /**
    * prepare the Encoder. call this before start the encoder.
    */
-  void prepare(int width, int height, int bitRate, int frameRate, long startStreamingAt)
-    throws IOException {
-    this.startStreamingAt = startStreamingAt;
+  void prepare(int width, int height, int bitRate, int frameRate) throws IOException {
     this.bufferInfo = new MediaCodec.BufferInfo();
     MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
     format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
@@ -55,32 +76,115 @@ class VideoEncoder implements Encoder {
     format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
     format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
 
+    stats.reset();
     encoder = MediaCodec.createEncoderByType(MIME_TYPE);
+    useCallback = async && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    if (useCallback) {
+      callbackThread = new HandlerThread("VideoEncoderCallback", Process.THREAD_PRIORITY_VIDEO);
+      callbackThread.start();
+      endOfStream = new CountDownLatch(1);
+      encoder.setCallback(new EncoderCallback(), new Handler(callbackThread.getLooper()));
+    }
     encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
     inputSurface = encoder.createInputSurface();
   }
 
+  /**
+   * change the target bitrate of the running encoder.
+   */
+  void setBitRate(int bitRate) {
+    final MediaCodec codec = encoder;
+    if (codec == null || !isEncoding)
+      return;
+    final Bundle params = new Bundle();
+    params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+    try {
+      codec.setParameters(params);
+    } catch (IllegalStateException e) {
+      // the codec is being released
+    }
+  }
+
+  /**
+   * ask the running encoder for a key frame as soon as possible.
+   */
+  void requestSyncFrame() {
+    final MediaCodec codec = encoder;
+    if (codec == null || !isEncoding)
+      return;
+    final Bundle params = new Bundle();
+    params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+    try {
+      codec.setParameters(params);
+    } catch (IllegalStateException e) {
+      // the codec is being released
+    }
+  }
+
   @Override
   public void start() {
     encoder.start();
     isEncoding = true;
-    encoderThread = new EncoderThread();
-    encoderThread.start();
+    if (!useCallback) {
+      encoderThread = new EncoderThread();
+      encoderThread.start();
+    }
   }
 
   @Override
   public void stop() {
     if (isEncoding()) {
       encoder.signalEndOfInputStream();
+      if (useCallback) {
+        try {
+          if (!endOfStream.await(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+            Log.w("VideoEncoder", "No end of stream from the encoder; releasing anyway.");
+        } catch (InterruptedException e) {
+          Log.i("VideoEncoder", e.toString());
+        }
+        release();
+      } else {
+        try {
+          Log.i("VideoEncoder", "Terminating encoder thread...");
+          encoderThread.join();
+          Log.i("VideoEncoder", "Encoder thread terminated.");
+        } catch (InterruptedException e) {
+          Log.i("VideoEncoder", e.toString());
+        }
+      }
+    }
+    if (callbackThread != null) {
+      callbackThread.quitSafely();
+      callbackThread = null;
+    }
+    encoderThread = null;
+    Log.i("VideoEncoder", (useCallback ? "callback" : "polling") + " mode: " + stats);
+  }
+
+  /**
+   * give up on a codec that stopped producing output: release it where it stands, without
+   * waiting for the end of the stream. this also fails a draw that is blocked on its input
+   * surface. {@link #prepare} and {@link #start} make a new one.
+   */
+  void abort() {
+    if (encoder == null)
+      return;
+    Log.w("VideoEncoder", "aborting encoder: " + stats);
+    isEncoding = false;
+    release();
+    final EncoderThread thread = encoderThread;
+    if (thread != null) {
       try {
-        Log.i("VideoEncoder", "Terminating encoder thread...");
-        encoderThread.join();
-        Log.i("VideoEncoder", "Encoder thread terminated.");
+        thread.join(STOP_TIMEOUT_MS);
       } catch (InterruptedException e) {
-        Log.i("VideoEncoder", e.toString());
+        Thread.currentThread().interrupt();
       }
+      encoderThread = null;
+    }
+    if (callbackThread != null) {
+      callbackThread.quitSafely();
+      callbackThread = null;
     }
-    encoderThread = null;
   }
 
   @Override
@@ -89,68 +193,104 @@ class VideoEncoder implements Encoder {
   }
 
   class EncoderThread extends Thread {
+    // after an abort, a new codec may be running by the time this thread ends
+    private final MediaCodec codec = encoder;
+    private final MediaCodec.BufferInfo info = bufferInfo;
+
     public void run() {
       try {
-        while (isEncoding) {
-          if (encoder == null) return;
-          int inputBufferId = encoder.dequeueOutputBuffer(bufferInfo, TIMEOUT_USEC);
-          if (inputBufferId == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-
-            final MediaFormat newFormat = encoder.getOutputFormat();
-            final ByteBuffer sps = newFormat.getByteBuffer("csd-0");
-            final ByteBuffer pps = newFormat.getByteBuffer("csd-1");
-            final byte[] config = new byte[sps.limit() + pps.limit()];
-            sps.get(config, 0, sps.limit());
-            pps.get(config, sps.limit(), pps.limit());
-
-            listener.onVideoDataEncoded(config, 0, config.length, 0);
-          } else {
-            if (inputBufferId > 0) {
-              final ByteBuffer encodedData = encoder.getOutputBuffer(inputBufferId);
-              if (encodedData == null) {
-                continue;
-              }
-
-              if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                bufferInfo.size = 0;
-              }
-
-              if (bufferInfo.size != 0) {
-
-                encodedData.position(bufferInfo.offset);
-                encodedData.limit(bufferInfo.offset + bufferInfo.size);
-
-                final long currentTime = System.currentTimeMillis();
-                final int timestamp = (int) (currentTime - startStreamingAt);
-                final byte[] data = new byte[bufferInfo.size];
-                encodedData.get(data, 0, bufferInfo.size);
-                encodedData.position(bufferInfo.offset);
-
-                listener.onVideoDataEncoded(data, 0, bufferInfo.size, timestamp);
-                lastFrameEncodedAt = currentTime;
-              }
-              encoder.releaseOutputBuffer(inputBufferId, false);
-            } else if (inputBufferId == MediaCodec.INFO_TRY_AGAIN_LATER) {
-              continue;
-            }
-
-            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+        while (isEncoding && encoder == codec) {
+          int outputBufferId = codec.dequeueOutputBuffer(info, TIMEOUT_USEC);
+          stats.onWakeup();
+          if (outputBufferId == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            onFormatChanged(codec.getOutputFormat());
+          } else if (outputBufferId >= 0) {
+            if (onOutputBuffer(codec, outputBufferId, info))
               break;
-            }
           }
         }
       } catch (Exception e) {
-        onError(e);
+        if (encoder == codec && isEncoding)
+          onError(e); // not when aborted under us
       } finally {
-        release();
+        synchronized (VideoEncoder.this) {
+          if (encoder == codec)
+            release();
+        }
       }
     }
   }
 
-  private void release() {
+  class EncoderCallback extends MediaCodec.Callback {
+    @Override
+    public void onInputBufferAvailable(MediaCodec codec, int index) {
+      // input comes from the surface
+    }
+
+    @Override
+    public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+      stats.onWakeup();
+      try {
+        if (onOutputBuffer(codec, index, info))
+          endOfStream.countDown();
+      } catch (IllegalStateException e) {
+        // stopped under us
+        endOfStream.countDown();
+      }
+    }
+
+    @Override
+    public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+      if (codec == encoder)
+        VideoEncoder.this.onError(e);
+      endOfStream.countDown();
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+      stats.onWakeup();
+      onFormatChanged(format);
+    }
+  }
+
+  private void onFormatChanged(MediaFormat newFormat) {
+    final ByteBuffer sps = newFormat.getByteBuffer("csd-0");
+    final ByteBuffer pps = newFormat.getByteBuffer("csd-1");
+    final ByteBuffer config = ByteBuffer.allocate(sps.limit() + pps.limit());
+    config.put(sps);
+    config.put(pps);
+    config.flip();
+
+    listener.onVideoDataEncoded(config, 0, true);
+  }
+
+  /**
+   * hand the buffer to the listener and give it back to the codec.
+   * @return true at the end of the stream.
+   */
+  private boolean onOutputBuffer(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+    final ByteBuffer encodedData = codec.getOutputBuffer(index);
+    if (encodedData != null && info.size != 0
+      && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+      encodedData.position(info.offset);
+      encodedData.limit(info.offset + info.size);
+
+      // presentation times are the camera's SurfaceTexture timestamps (System.nanoTime)
+      final long captureNanos = info.presentationTimeUs * 1000;
+      stats.onFrame(System.nanoTime() / 1000 - info.presentationTimeUs);
+      latencyTracker.record(LatencyTracker.STAGE_ENCODED, captureNanos);
+      listener.onVideoDataEncoded(encodedData, captureNanos, false);
+    }
+    codec.releaseOutputBuffer(index, false);
+    return (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+  }
+
+  private synchronized void release() {
     if (encoder != null) {
+      final boolean aborted = !isEncoding;
       isEncoding = false;
-      try { encoder.stop(); } catch (Exception e) { onError(e); }
+      // a stalled codec may well fail to stop; that is no news then
+      try { encoder.stop(); } catch (Exception e) { if (!aborted) onError(e); }
       try { encoder.release(); } catch (Exception e) { onError(e); }
       encoder = null;
     }
@@ -4,76 +4,327 @@ import android.graphics.SurfaceTexture;
 import android.opengl.EGLContext;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+import android.view.Surface;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-class VideoHandler implements CameraSurfaceRenderer.OnRendererStateChangedListener {
+class VideoHandler implements CameraSurfaceRenderer.OnRendererStateChangedListener,
+  EncoderWatchdog.OnEncoderStallListener {
+
+  // an encoder delivers within a few frames; this long without output is a stall
+  private static final long STALL_TIMEOUT_MS = 2000;
 
-  private long frameInterval;
   private VideoEncoder videoEncoder;
+  // additional renditions, set up on the main thread between streams
+  private final List<Rendition> extraRenditions = new ArrayList<>();
+  // the running renditions, the main one first; replaced by start
+  private volatile Rendition[] renditions = new Rendition[0];
+  // used on the renderer thread only
   private VideoRenderer videoRenderer;
-  private Handler rendererHandler;
+  // the encoder's EGL context and input surface live on this thread, off the UI thread
+  private HandlerThread rendererThread;
+  private volatile Handler rendererHandler;
+  private final LatencyTracker latencyTracker;
+  private final EncoderWatchdog watchdog = new EncoderWatchdog(STALL_TIMEOUT_MS, this);
+  private OnEncoderStallListener stallListener;
+  private boolean async = true;
+  private final FrameHandoff frameHandoff = new FrameHandoff();
+  private final AtomicBoolean drawScheduled = new AtomicBoolean();
+  private volatile boolean paused;
+  private final Runnable drawRunnable = new Runnable() {
+    @Override
+    public void run() {
+      drawScheduled.set(false);
+      drawLatestFrame();
+    }
+  };
 
   interface OnVideoEncoderStateListener {
-    void onVideoDataEncoded(byte[] data, int offset, int size, int timestamp);
+    /**
+     * @param data the codec's output buffer, valid only during the call.
+     * @param ptsNanos presentation time, which is the camera timestamp of the frame
+     * (System.nanoTime clock); 0 for config.
+     */
+    void onVideoDataEncoded(ByteBuffer data, long ptsNanos, boolean config);
     void onVideoError(Exception e);
   }
 
+  interface OnEncoderStallListener {
+    /**
+     * the rendition's encoder stopped producing output and is being replaced; called on the
+     * watchdog thread.
+     */
+    void onEncoderStalled(int rendition, long stalledMs);
+
+    /**
+     * a new encoder took over; called on the renderer thread. its first frame is a key frame.
+     * @param restartMs from the stall being noticed until the new encoder took input.
+     */
+    void onEncoderRestarted(int rendition, long restartMs);
+
+    /**
+     * the rendition is given up: its encoder could not be replaced, or keeps stalling.
+     */
+    void onEncoderRestartFailed(int rendition, Exception e);
+  }
+
+  void setOnEncoderStallListener(OnEncoderStallListener listener) {
+    stallListener = listener;
+  }
+
   void setOnVideoEncoderStateListener(OnVideoEncoderStateListener listener) {
     videoEncoder.setOnVideoEncoderStateListener(listener);
   }
 
-  VideoHandler() {
+  VideoHandler(LatencyTracker latencyTracker) {
+    this.latencyTracker = latencyTracker;
     this.videoRenderer = new VideoRenderer();
-    this.videoEncoder = new VideoEncoder();
+    this.videoEncoder = new VideoEncoder(latencyTracker);
+  }
+
+  /**
+   * also encode the camera picture at another size, frame rate and bitrate; its output goes
+   * to {@code listener}. takes effect on the next start. the size should keep the camera's
+   * aspect ratio, as the picture is scaled to fill it.
+   * @return the rendition's index; the main one is 0.
+   */
+  int addRendition(int width, int height, int fps, int bitRate, OnVideoEncoderStateListener listener) {
+    final VideoEncoder encoder = new VideoEncoder(new LatencyTracker()); // kept apart from the main stages
+    encoder.setAsync(async);
+    encoder.setOnVideoEncoderStateListener(listener);
+    final int index = extraRenditions.size() + 1;
+    extraRenditions.add(new Rendition(index, encoder, width, height, fps, bitRate));
+    return index;
   }
 
-  void start(final int width, final int height, final int fps, final int bitRate, final EGLContext sharedEglContext, final long startStreamingAt) {
+  void start(final int width, final int height, final int fps, final int bitRate, final EGLContext sharedEglContext) {
     try {
-      frameInterval = (1000 + fps - 1) / fps;
-      rendererHandler = new Handler();
-      videoEncoder.prepare(width, height, bitRate, fps, startStreamingAt);
-      videoEncoder.start();
-      videoRenderer.initialize(sharedEglContext, videoEncoder.getInputSurface());
+      awaitRendererStopped();
+      final List<Rendition> running = new ArrayList<>();
+      final Rendition main = new Rendition(0, videoEncoder, width, height, fps, bitRate);
+      main.start();
+      running.add(main);
+      for (Rendition rendition : extraRenditions) {
+        try {
+          rendition.start();
+          running.add(rendition);
+        } catch (IOException | RuntimeException e) {
+          // devices run only so many encoders at once; the main stream goes on without it
+          Log.e("VideoHandler", String.format("rendition %d x %d failed to start",
+            rendition.width, rendition.height), e);
+        }
+      }
+      final Rendition[] started = running.toArray(new Rendition[running.size()]);
+      final Surface[] surfaces = new Surface[started.length];
+      for (int i = 0; i < started.length; i++)
+        surfaces[i] = started[i].getEncoder().getInputSurface();
+      renditions = started;
+      rendererThread = new HandlerThread("VideoRenderer", Process.THREAD_PRIORITY_DISPLAY);
+      rendererThread.start();
+      final Handler handler = new Handler(rendererThread.getLooper());
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          videoRenderer.initialize(sharedEglContext, surfaces);
+        }
+      });
+      drawScheduled.set(false);
+      rendererHandler = handler;
+      watchdog.start(started);
     } catch (IOException ioe) {
       throw new RuntimeException(ioe);
     }
   }
 
+  void setAsyncEncoding(boolean async) {
+    this.async = async;
+    videoEncoder.setAsync(async);
+    for (Rendition rendition : extraRenditions)
+      rendition.getEncoder().setAsync(async);
+  }
+
+  void requestKeyFrame() {
+    videoEncoder.requestSyncFrame();
+  }
+
+  /**
+   * ask every running rendition for a key frame.
+   */
+  void requestKeyFrames() {
+    for (Rendition rendition : renditions)
+      rendition.getEncoder().requestSyncFrame();
+  }
+
+  /**
+   * while paused, nothing is drawn into the encoders, so they sit idle; the preview goes on.
+   */
+  void setPaused(boolean paused) {
+    this.paused = paused;
+  }
+
+  /**
+   * @param rendition the index {@link #addRendition} returned.
+   */
+  void requestKeyFrame(int rendition) {
+    extraRenditions.get(rendition - 1).getEncoder().requestSyncFrame();
+  }
+
+  /**
+   * change the main rendition's bitrate.
+   */
+  void setBitRate(int bitRate) {
+    final Rendition[] running = renditions;
+    if (running.length > 0)
+      running[0].setBitRate(bitRate);
+  }
+
+  /**
+   * @return {@link Rendition#getReport()} of the running renditions, the main one first.
+   * comparing the render time and encode latency of one rendition alone with those of
+   * several shows what the extra ones cost.
+   */
+  List<Map<String, Object>> getRenditionReport() {
+    final List<Map<String, Object>> report = new ArrayList<>();
+    for (Rendition rendition : renditions)
+      report.add(rendition.getReport());
+    return report;
+  }
+
   void stop() {
-    rendererHandler.post(new Runnable() {
+    final Handler handler = rendererHandler;
+    if (handler == null)
+      return;
+    rendererHandler = null;
+    watchdog.stop();
+    final Rendition[] running = renditions;
+    handler.post(new Runnable() {
       @Override
       public void run() {
-        if (videoEncoder.isEncoding()) {
-          videoEncoder.stop();
+        for (Rendition rendition : running) {
+          if (rendition.getEncoder().isEncoding())
+            rendition.getEncoder().stop();
         }
         if (videoRenderer.isInitialized()) {
           videoRenderer.release();
         }
       }
     });
-
+    rendererThread.quitSafely();
   }
 
-  @Override
-  public void onSurfaceCreated(SurfaceTexture surfaceTexture) {
-    // no-op
+  /**
+   * the previous renderer thread may still be stopping the encoder we are about to reuse.
+   */
+  private void awaitRendererStopped() {
+    if (rendererThread == null)
+      return;
+    try {
+      rendererThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    rendererThread = null;
   }
 
   @Override
-  public void onFrameDrawn(final int textureId, final float[] transform, final long timestamp) {
-    if (rendererHandler == null)
+  public void onEncoderStalled(final Rendition rendition, long stalledNanos) {
+    final Handler handler = rendererHandler;
+    if (handler == null)
       return;
-    rendererHandler.post(new Runnable() {
+    final long stalledMs = stalledNanos / 1000000;
+    Log.w("VideoHandler", String.format("rendition %d: no output from the encoder for %d ms",
+      rendition.index, stalledMs));
+    final OnEncoderStallListener listener = stallListener;
+    final boolean restart = rendition.shouldRestart();
+    // releasing the codec here, not on the renderer thread, frees a draw blocked on it
+    rendition.getEncoder().abort();
+    if (listener != null)
+      listener.onEncoderStalled(rendition.index, stalledMs);
+    if (!restart) {
+      if (listener != null)
+        listener.onEncoderRestartFailed(rendition.index, new IllegalStateException("encoder keeps stalling"));
+      return;
+    }
+    final long abortedAt = System.nanoTime();
+    handler.post(new Runnable() {
       @Override
       public void run() {
-        long elapsedTime = System.currentTimeMillis() - videoEncoder.getLastFrameEncodedAt();
-        if (!videoEncoder.isEncoding() || !videoRenderer.isInitialized()
-          || elapsedTime < frameInterval) {
-          return;
-        }
-        videoRenderer.draw(textureId, transform, timestamp);
+        restart(rendition, abortedAt);
       }
     });
   }
+
+  /**
+   * called on the renderer thread; the RTMP connection and the other renditions carry on.
+   */
+  private void restart(Rendition rendition, long abortedAt) {
+    final OnEncoderStallListener listener = stallListener;
+    final Rendition[] running = renditions;
+    final int surface = Arrays.asList(running).indexOf(rendition);
+    if (surface < 0 || !videoRenderer.isInitialized())
+      return; // stopped meanwhile
+    try {
+      rendition.restart();
+      videoRenderer.replaceSurface(surface, rendition.getEncoder().getInputSurface());
+    } catch (IOException | RuntimeException e) {
+      Log.e("VideoHandler", "rendition " + rendition.index + ": encoder restart failed", e);
+      rendition.getEncoder().abort();
+      if (listener != null)
+        listener.onEncoderRestartFailed(rendition.index, e);
+      return;
+    }
+    // a new codec starts with a key frame anyway; this is for those that don't
+    rendition.getEncoder().requestSyncFrame();
+    final long restartMs = (System.nanoTime() - abortedAt) / 1000000;
+    Log.i("VideoHandler", String.format("rendition %d: encoder restarted in %d ms", rendition.index, restartMs));
+    if (listener != null)
+      listener.onEncoderRestarted(rendition.index, restartMs);
+  }
+
+  @Override
+  public void onSurfaceCreated(SurfaceTexture surfaceTexture) {
+    // no-op
+  }
+
+  @Override
+  public void onFrameDrawn(int textureId, float[] transform, long timestamp) {
+    final Handler handler = rendererHandler;
+    if (handler == null || paused)
+      return;
+    // still inside CameraSurfaceRenderer.onDrawFrame, right after the preview was drawn
+    if (videoEncoder.isEncoding())
+      latencyTracker.record(LatencyTracker.STAGE_PREVIEW, timestamp);
+    frameHandoff.publish(textureId, transform, timestamp);
+    if (drawScheduled.compareAndSet(false, true))
+      handler.post(drawRunnable);
+  }
+
+  /**
+   * called on the renderer thread; frames published while it was busy are skipped.
+   */
+  private void drawLatestFrame() {
+    final FrameHandoff.Frame frame = frameHandoff.take();
+    if (frame == null || !videoRenderer.isInitialized())
+      return;
+    final Rendition[] running = renditions;
+    for (int i = 0; i < running.length; i++) {
+      final Rendition rendition = running[i];
+      if (!rendition.accept(frame.timestamp))
+        continue;
+      final long startedAt = System.nanoTime();
+      rendition.onDrawStarted(startedAt);
+      videoRenderer.draw(i, frame.textureId, frame.transform, frame.timestamp);
+      rendition.onRendered(System.nanoTime() - startedAt);
+      if (i == 0)
+        latencyTracker.record(LatencyTracker.STAGE_RENDER, frame.timestamp);
+    }
+  }
 }
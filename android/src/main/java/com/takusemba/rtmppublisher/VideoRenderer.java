@@ -1,6 +1,7 @@
 package com.takusemba.rtmppublisher;
 
 import android.opengl.EGLContext;
+import android.opengl.GLES20;
 import android.view.Surface;
 
 import com.takusemba.rtmppublisher.gles.EglCore;
@@ -8,29 +9,59 @@ import com.takusemba.rtmppublisher.gles.FullFrameRect;
 import com.takusemba.rtmppublisher.gles.Texture2dProgram;
 import com.takusemba.rtmppublisher.gles.WindowSurface;
 
+/**
+ * Draws the camera texture into the encoders' input surfaces, each scaled to its own size.
+ * All surfaces share one EGL context, so the texture and the shader program exist once.
+ */
 class VideoRenderer {
 
-  private WindowSurface inputWindowSurface;
+  private WindowSurface[] inputWindowSurfaces;
+  private int currentSurface;
   private EglCore eglCore;
   private FullFrameRect fullScreen;
 
-  void initialize(EGLContext sharedContext, Surface encoderSurface) {
+  /**
+   * @param encoderSurfaces the encoders' input surfaces; {@link #draw} refers to them by index.
+   */
+  void initialize(EGLContext sharedContext, Surface[] encoderSurfaces) {
     eglCore = new EglCore(sharedContext, EglCore.FLAG_RECORDABLE);
-    inputWindowSurface = new WindowSurface(eglCore, encoderSurface, true);
-    inputWindowSurface.makeCurrent();
+    inputWindowSurfaces = new WindowSurface[encoderSurfaces.length];
+    for (int i = 0; i < encoderSurfaces.length; i++)
+      inputWindowSurfaces[i] = new WindowSurface(eglCore, encoderSurfaces[i], true);
+    inputWindowSurfaces[0].makeCurrent();
+    currentSurface = 0;
     fullScreen = new FullFrameRect(new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
   }
 
-  void draw(final int textureId, final float[] transform, final long timestampNanos) {
+  void draw(final int surface, final int textureId, final float[] transform, final long timestampNanos) {
+    final WindowSurface target = inputWindowSurfaces[surface];
+    if (surface != currentSurface) {
+      // the viewport is context state; it only follows the first surface on its own
+      target.makeCurrent();
+      GLES20.glViewport(0, 0, target.getWidth(), target.getHeight());
+      currentSurface = surface;
+    }
     fullScreen.drawFrame(textureId, transform);
-    inputWindowSurface.setPresentationTime(timestampNanos);
-    inputWindowSurface.swapBuffers();
+    target.setPresentationTime(timestampNanos);
+    target.swapBuffers();
+  }
+
+  /**
+   * put the input surface of a new codec in place of the one at {@code surface}, whose codec
+   * is gone.
+   */
+  void replaceSurface(int surface, Surface encoderSurface) {
+    eglCore.makeNothingCurrent();
+    inputWindowSurfaces[surface].release();
+    inputWindowSurfaces[surface] = new WindowSurface(eglCore, encoderSurface, true);
+    currentSurface = -1; // made current by the next draw
   }
 
   void release() {
-    if (inputWindowSurface != null) {
-      inputWindowSurface.release();
-      inputWindowSurface = null;
+    if (inputWindowSurfaces != null) {
+      for (WindowSurface surface : inputWindowSurfaces)
+        surface.release();
+      inputWindowSurfaces = null;
     }
     if (fullScreen != null) {
       fullScreen.release(false);
@@ -43,6 +74,6 @@ class VideoRenderer {
   }
 
   boolean isInitialized() {
-    return inputWindowSurface != null && fullScreen != null && eglCore != null;
+    return inputWindowSurfaces != null && fullScreen != null && eglCore != null;
   }
 }
@@ -0,0 +1,164 @@
+package com.takusemba.rtmppublisher.rtmp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal AMF0 encoder/decoder; just enough for the NetConnection/NetStream commands.
+ * Values map to Double, Boolean, String, Map (object/ECMA array), List (strict array) and null.
+ */
+final class Amf0 {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final int NUMBER = 0x00;
+  private static final int BOOLEAN = 0x01;
+  private static final int STRING = 0x02;
+  private static final int OBJECT = 0x03;
+  private static final int NULL = 0x05;
+  private static final int UNDEFINED = 0x06;
+  private static final int ECMA_ARRAY = 0x08;
+  private static final int OBJECT_END = 0x09;
+  private static final int STRICT_ARRAY = 0x0a;
+  private static final int DATE = 0x0b;
+  private static final int LONG_STRING = 0x0c;
+
+  private Amf0() {
+  }
+
+  static void writeNumber(ByteBuffer buf, double value) {
+    buf.put((byte) NUMBER);
+    buf.putDouble(value);
+  }
+
+  static void writeBoolean(ByteBuffer buf, boolean value) {
+    buf.put((byte) BOOLEAN);
+    buf.put((byte) (value ? 1 : 0));
+  }
+
+  static void writeString(ByteBuffer buf, String value) {
+    buf.put((byte) STRING);
+    writeUtf8(buf, value);
+  }
+
+  static void writeNull(ByteBuffer buf) {
+    buf.put((byte) NULL);
+  }
+
+  static void writeObject(ByteBuffer buf, Map<String, ?> value) {
+    buf.put((byte) OBJECT);
+    writeProperties(buf, value);
+  }
+
+  static void writeEcmaArray(ByteBuffer buf, Map<String, ?> value) {
+    buf.put((byte) ECMA_ARRAY);
+    buf.putInt(value.size());
+    writeProperties(buf, value);
+  }
+
+  static void write(ByteBuffer buf, Object value) {
+    if (value == null) {
+      writeNull(buf);
+    } else if (value instanceof Number) {
+      writeNumber(buf, ((Number) value).doubleValue());
+    } else if (value instanceof Boolean) {
+      writeBoolean(buf, (Boolean) value);
+    } else if (value instanceof String) {
+      writeString(buf, (String) value);
+    } else if (value instanceof Map) {
+      @SuppressWarnings("unchecked")
+      final Map<String, ?> map = (Map<String, ?>) value;
+      writeObject(buf, map);
+    } else {
+      throw new IllegalArgumentException("unsupported AMF0 value: " + value.getClass());
+    }
+  }
+
+  private static void writeProperties(ByteBuffer buf, Map<String, ?> value) {
+    for (Map.Entry<String, ?> e : value.entrySet()) {
+      writeUtf8(buf, e.getKey());
+      write(buf, e.getValue());
+    }
+    buf.putShort((short) 0);
+    buf.put((byte) OBJECT_END);
+  }
+
+  private static void writeUtf8(ByteBuffer buf, String value) {
+    final byte[] bytes = value.getBytes(UTF8);
+    buf.putShort((short) bytes.length);
+    buf.put(bytes);
+  }
+
+  /**
+   * decode every value remaining in the buffer.
+   */
+  static List<Object> readAll(ByteBuffer buf) throws IOException {
+    final List<Object> values = new ArrayList<>();
+    while (buf.hasRemaining())
+      values.add(read(buf));
+    return values;
+  }
+
+  static Object read(ByteBuffer buf) throws IOException {
+    try {
+      final int type = buf.get() & 0xff;
+      switch (type) {
+        case NUMBER:
+          return buf.getDouble();
+        case BOOLEAN:
+          return buf.get() != 0;
+        case STRING:
+          return readUtf8(buf, buf.getShort() & 0xffff);
+        case LONG_STRING:
+          return readUtf8(buf, buf.getInt());
+        case OBJECT:
+          return readProperties(buf);
+        case ECMA_ARRAY:
+          buf.getInt(); // count is advisory
+          return readProperties(buf);
+        case STRICT_ARRAY: {
+          final int count = buf.getInt();
+          final List<Object> list = new ArrayList<>(count);
+          for (int i = 0; i < count; i++)
+            list.add(read(buf));
+          return list;
+        }
+        case DATE: {
+          final double date = buf.getDouble();
+          buf.getShort(); // time zone
+          return date;
+        }
+        case NULL:
+        case UNDEFINED:
+          return null;
+        default:
+          throw new IOException("unsupported AMF0 type: " + type);
+      }
+    } catch (RuntimeException e) {
+      throw new IOException("malformed AMF0 data", e);
+    }
+  }
+
+  private static Map<String, Object> readProperties(ByteBuffer buf) throws IOException {
+    final Map<String, Object> map = new LinkedHashMap<>();
+    while (true) {
+      final String name = readUtf8(buf, buf.getShort() & 0xffff);
+      if (name.isEmpty() && (buf.get(buf.position()) & 0xff) == OBJECT_END) {
+        buf.get();
+        return map;
+      }
+      map.put(name, read(buf));
+    }
+  }
+
+  private static String readUtf8(ByteBuffer buf, int length) {
+    final byte[] bytes = new byte[length];
+    buf.get(bytes);
+    return new String(bytes, UTF8);
+  }
+}
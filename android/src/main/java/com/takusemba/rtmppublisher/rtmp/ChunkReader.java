@@ -0,0 +1,142 @@
+package com.takusemba.rtmppublisher.rtmp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reassembles incoming chunks into messages. Only whole chunks are consumed from the
+ * input buffer, so the caller can simply append more bytes and call {@link #read} again.
+ */
+final class ChunkReader {
+
+  private static final int DEFAULT_CHUNK_SIZE = 128;
+  private static final int MAX_MESSAGE_LENGTH = 16 * 1024 * 1024;
+
+  private final Map<Integer, ChunkStream> streams = new HashMap<>();
+  private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+  private static final class ChunkStream {
+    int timestamp;
+    int timestampDelta;
+    int length;
+    int typeId;
+    int streamId;
+    boolean extended;
+    byte[] payload;
+    int received;
+  }
+
+  /**
+   * forget the chunk streams of the previous connection, partial messages included.
+   */
+  void reset() {
+    streams.clear();
+    chunkSize = DEFAULT_CHUNK_SIZE;
+  }
+
+  void setChunkSize(int chunkSize) {
+    this.chunkSize = chunkSize;
+  }
+
+  int getChunkSize() {
+    return chunkSize;
+  }
+
+  void abort(int chunkStreamId) {
+    final ChunkStream cs = streams.get(chunkStreamId);
+    if (cs != null) {
+      cs.payload = null;
+      cs.received = 0;
+    }
+  }
+
+  /**
+   * @return the next complete message, or null if more bytes are needed.
+   */
+  RtmpMessage read(ByteBuffer in) throws IOException {
+    while (true) {
+      final int start = in.position();
+      if (in.remaining() < 1)
+        return null;
+      final int b0 = in.get() & 0xff;
+      final int fmt = b0 >>> 6;
+      int csid = b0 & 0x3f;
+      if (csid == 0) {
+        if (in.remaining() < 1) { in.position(start); return null; }
+        csid = 64 + (in.get() & 0xff);
+      } else if (csid == 1) {
+        if (in.remaining() < 2) { in.position(start); return null; }
+        csid = 64 + (in.get() & 0xff) + (in.get() & 0xff) * 256;
+      }
+
+      ChunkStream cs = streams.get(csid);
+      if (cs == null) {
+        if (fmt != 0)
+          throw new IOException("chunk stream " + csid + " started without a type 0 header");
+        cs = new ChunkStream();
+        streams.put(csid, cs);
+      }
+
+      final int headerSize = fmt == 0 ? 11 : fmt == 1 ? 7 : fmt == 2 ? 3 : 0;
+      if (in.remaining() < headerSize) { in.position(start); return null; }
+      int timeField = cs.extended ? 0xffffff : 0;
+      int length = cs.length;
+      int typeId = cs.typeId;
+      int streamId = cs.streamId;
+      if (fmt <= 2)
+        timeField = readUInt24(in);
+      if (fmt <= 1) {
+        length = readUInt24(in);
+        typeId = in.get() & 0xff;
+      }
+      if (fmt == 0)
+        streamId = Integer.reverseBytes(in.getInt());
+      final boolean extended = timeField == 0xffffff;
+      if (extended) {
+        if (in.remaining() < 4) { in.position(start); return null; }
+        timeField = in.getInt();
+      }
+      if (length > MAX_MESSAGE_LENGTH)
+        throw new IOException("message too large: " + length);
+
+      final boolean newMessage = cs.payload == null;
+      final int toRead = Math.min(chunkSize, length - (newMessage ? 0 : cs.received));
+      if (in.remaining() < toRead) { in.position(start); return null; }
+
+      // the chunk is complete; commit the header state
+      cs.extended = extended;
+      cs.length = length;
+      cs.typeId = typeId;
+      cs.streamId = streamId;
+      if (fmt == 0) {
+        cs.timestamp = timeField;
+        cs.timestampDelta = 0;
+      } else if (fmt <= 2) {
+        cs.timestampDelta = timeField;
+        cs.timestamp += timeField;
+      } else if (newMessage) {
+        cs.timestamp += cs.timestampDelta;
+      }
+      if (newMessage) {
+        cs.payload = new byte[length];
+        cs.received = 0;
+      }
+      in.get(cs.payload, cs.received, toRead);
+      cs.received += toRead;
+
+      if (cs.received == cs.length) {
+        final RtmpMessage msg = new RtmpMessage(csid, cs.typeId, cs.streamId, cs.timestamp,
+          ByteBuffer.wrap(cs.payload));
+        cs.payload = null;
+        cs.received = 0;
+        return msg;
+      }
+    }
+  }
+
+  private static int readUInt24(ByteBuffer in) {
+    return ((in.get() & 0xff) << 16) | ((in.get() & 0xff) << 8) | (in.get() & 0xff);
+  }
+}
@@ -0,0 +1,112 @@
+package com.takusemba.rtmppublisher.rtmp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits outgoing messages into chunks. Type 1 headers are used whenever the previous
+ * message on the same chunk stream allows a timestamp delta, type 0 otherwise.
+ */
+final class ChunkWriter {
+
+  static final int DEFAULT_CHUNK_SIZE = 128;
+  static final int MAX_HEADER_SIZE = 1 + 11 + 4;
+  static final int MAX_CONTINUATION_HEADER_SIZE = 1 + 4;
+
+  // we only use chunk stream ids below 64 (single byte basic header)
+  private static final int MAX_CHUNK_STREAMS = 64;
+
+  private final boolean[] started = new boolean[MAX_CHUNK_STREAMS];
+  private final int[] lastTimestamp = new int[MAX_CHUNK_STREAMS];
+  private final int[] lastStreamId = new int[MAX_CHUNK_STREAMS];
+  // timestamp field of the message in progress, needed again by continuation chunks
+  private final boolean[] extended = new boolean[MAX_CHUNK_STREAMS];
+  private final int[] timeField = new int[MAX_CHUNK_STREAMS];
+  private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+  void setChunkSize(int chunkSize) {
+    this.chunkSize = chunkSize;
+  }
+
+  int getChunkSize() {
+    return chunkSize;
+  }
+
+  void reset() {
+    for (int i = 0; i < MAX_CHUNK_STREAMS; i++)
+      started[i] = false;
+    chunkSize = DEFAULT_CHUNK_SIZE;
+  }
+
+  /**
+   * @return upper bound of the encoded size of a message with the given payload length.
+   */
+  int maxEncodedSize(int payloadLength) {
+    return maxHeaderBytes(payloadLength) + payloadLength;
+  }
+
+  /**
+   * @return upper bound of the header bytes of a message with the given payload length.
+   */
+  int maxHeaderBytes(int payloadLength) {
+    final int chunks = Math.max(1, (payloadLength + chunkSize - 1) / chunkSize);
+    return MAX_HEADER_SIZE + (chunks - 1) * MAX_CONTINUATION_HEADER_SIZE;
+  }
+
+  /**
+   * write the header of the first chunk of a message.
+   */
+  void writeHeader(ByteBuffer out, int csid, int typeId, int streamId, int timestamp, int length) {
+    final boolean delta = started[csid] && lastStreamId[csid] == streamId
+      && timestamp - lastTimestamp[csid] >= 0;
+    final int field = delta ? timestamp - lastTimestamp[csid] : timestamp;
+    final boolean ext = (field & 0xffffffffL) >= 0xffffff;
+
+    out.put((byte) ((delta ? 1 << 6 : 0) | csid));
+    putUInt24(out, ext ? 0xffffff : field);
+    putUInt24(out, length);
+    out.put((byte) typeId);
+    if (!delta)
+      out.putInt(Integer.reverseBytes(streamId));
+    if (ext)
+      out.putInt(field);
+
+    started[csid] = true;
+    lastTimestamp[csid] = timestamp;
+    lastStreamId[csid] = streamId;
+    extended[csid] = ext;
+    timeField[csid] = field;
+  }
+
+  /**
+   * write the (type 3) header of a following chunk of the message in progress.
+   */
+  void writeContinuationHeader(ByteBuffer out, int csid) {
+    out.put((byte) ((3 << 6) | csid));
+    if (extended[csid])
+      out.putInt(timeField[csid]);
+  }
+
+  /**
+   * encode the whole message into {@code out}; {@code payload} is consumed.
+   */
+  void write(ByteBuffer out, int csid, int typeId, int streamId, int timestamp, ByteBuffer payload) {
+    writeHeader(out, csid, typeId, streamId, timestamp, payload.remaining());
+    final int limit = payload.limit();
+    boolean first = true;
+    while (first || payload.hasRemaining()) {
+      if (!first)
+        writeContinuationHeader(out, csid);
+      first = false;
+      final int n = Math.min(chunkSize, payload.remaining());
+      payload.limit(payload.position() + n);
+      out.put(payload);
+      payload.limit(limit);
+    }
+  }
+
+  private static void putUInt24(ByteBuffer out, int value) {
+    out.put((byte) (value >>> 16));
+    out.put((byte) (value >>> 8));
+    out.put((byte) value);
+  }
+}
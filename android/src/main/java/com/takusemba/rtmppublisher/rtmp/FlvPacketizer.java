@@ -0,0 +1,224 @@
+package com.takusemba.rtmppublisher.rtmp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Converts encoder output into FLV tag bodies (which are also RTMP audio/video message payloads).
+ * Video comes in as H.264 Annex-B and goes out as AVCC; SPS/PPS are turned into the
+ * AVC sequence header. The media data itself is never copied: {@link #scanVideo} only
+ * records where the NAL units are and the caller sends them along with the tag headers.
+ */
+final class FlvPacketizer {
+
+  static final int VIDEO_TAG_HEADER_SIZE = 5;
+  static final int NAL_LENGTH_SIZE = 4;
+  static final int AUDIO_TAG_HEADER_SIZE = 2;
+
+  private static final int NAL_IDR = 5;
+  private static final int NAL_SPS = 7;
+  private static final int NAL_PPS = 8;
+  private static final int NAL_AUD = 9;
+
+  private static final int CODEC_AVC = 7;
+  private static final int FRAME_KEY = 1;
+  private static final int FRAME_INTER = 2;
+  private static final int AVC_SEQUENCE_HEADER = 0;
+  private static final int AVC_NALU = 1;
+
+  // AAC, 44kHz, 16bit, stereo; these bits are fixed for AAC and the real format is in the ASC
+  private static final int AAC_FLAGS = 0xaf;
+  private static final int AAC_SEQUENCE_HEADER = 0;
+  private static final int AAC_RAW = 1;
+
+  private byte[] sps;
+  private byte[] pps;
+  private boolean videoConfigChanged;
+
+  // result of the last scanVideo; absolute positions in the scanned buffer
+  private int[] nalStarts = new int[8];
+  private int[] nalEnds = new int[8];
+  private int nalCount;
+  private boolean keyFrame;
+  private int frameSize;
+
+  void reset() {
+    sps = null;
+    pps = null;
+    videoConfigChanged = false;
+  }
+
+  /**
+   * split the Annex-B access unit between the buffer's position and limit into NAL units,
+   * picking up SPS/PPS on the way. the buffer is not modified.
+   * @return true if the access unit carries picture data.
+   */
+  boolean scanVideo(ByteBuffer data) {
+    nalCount = 0;
+    keyFrame = false;
+    frameSize = 0;
+
+    final int offset = data.position();
+    final int end = data.limit();
+    int nalStart = -1;
+    int i = offset;
+    while (i + 2 < end) {
+      final int b2 = data.get(i + 2) & 0xff;
+      if (b2 > 1) {
+        i += 3;
+      } else if (b2 == 0) {
+        i++;
+      } else if (data.get(i) == 0 && data.get(i + 1) == 0) {
+        if (nalStart >= 0)
+          addNal(data, nalStart, i);
+        i += 3;
+        nalStart = i;
+      } else {
+        i += 3;
+      }
+    }
+    if (nalStart >= 0)
+      addNal(data, nalStart, end);
+    else if (end > offset)
+      addNal(data, offset, end); // no start code at all; take it as a single NAL unit
+    return frameSize > 0;
+  }
+
+  private void addNal(ByteBuffer data, int start, int end) {
+    // trailing zeros belong to the next 4-byte start code
+    while (end > start && data.get(end - 1) == 0)
+      end--;
+    if (end <= start)
+      return;
+    final int type = data.get(start) & 0x1f;
+    switch (type) {
+      case NAL_SPS:
+        if (sps == null || !rangeEquals(sps, data, start, end)) {
+          sps = copyOfRange(data, start, end);
+          videoConfigChanged = true;
+        }
+        return;
+      case NAL_PPS:
+        if (pps == null || !rangeEquals(pps, data, start, end)) {
+          pps = copyOfRange(data, start, end);
+          videoConfigChanged = true;
+        }
+        return;
+      case NAL_AUD:
+        return;
+      case NAL_IDR:
+        keyFrame = true;
+        break;
+      default:
+        break;
+    }
+    if (nalCount == nalStarts.length) {
+      nalStarts = Arrays.copyOf(nalStarts, nalCount * 2);
+      nalEnds = Arrays.copyOf(nalEnds, nalCount * 2);
+    }
+    nalStarts[nalCount] = start;
+    nalEnds[nalCount] = end;
+    nalCount++;
+    frameSize += NAL_LENGTH_SIZE + end - start;
+  }
+
+  private static boolean rangeEquals(byte[] a, ByteBuffer data, int start, int end) {
+    if (a.length != end - start)
+      return false;
+    for (int i = 0; i < a.length; i++) {
+      if (a[i] != data.get(start + i))
+        return false;
+    }
+    return true;
+  }
+
+  private static byte[] copyOfRange(ByteBuffer data, int start, int end) {
+    final byte[] copy = new byte[end - start];
+    for (int i = 0; i < copy.length; i++)
+      copy[i] = data.get(start + i);
+    return copy;
+  }
+
+  boolean isKeyFrame() {
+    return keyFrame;
+  }
+
+  int getNalCount() {
+    return nalCount;
+  }
+
+  int getNalStart(int index) {
+    return nalStarts[index];
+  }
+
+  int getNalEnd(int index) {
+    return nalEnds[index];
+  }
+
+  boolean hasVideoConfig() {
+    return sps != null && pps != null && sps.length >= 4;
+  }
+
+  /**
+   * @return true once after SPS/PPS changed.
+   */
+  boolean takeVideoConfigChanged() {
+    final boolean changed = videoConfigChanged && hasVideoConfig();
+    if (changed)
+      videoConfigChanged = false;
+    return changed;
+  }
+
+  int videoHeaderSize() {
+    return VIDEO_TAG_HEADER_SIZE + 6 + 2 + sps.length + 1 + 2 + pps.length;
+  }
+
+  void writeVideoHeader(ByteBuffer out) {
+    out.put((byte) ((FRAME_KEY << 4) | CODEC_AVC));
+    out.put((byte) AVC_SEQUENCE_HEADER);
+    putUInt24(out, 0);
+    // AVCDecoderConfigurationRecord
+    out.put((byte) 1);
+    out.put(sps[1]); // profile
+    out.put(sps[2]); // compatibility
+    out.put(sps[3]); // level
+    out.put((byte) 0xff); // 4 bytes NAL unit length
+    out.put((byte) 0xe1); // 1 SPS
+    out.putShort((short) sps.length);
+    out.put(sps);
+    out.put((byte) 1); // 1 PPS
+    out.putShort((short) pps.length);
+    out.put(pps);
+  }
+
+  /**
+   * @return payload size of the access unit last passed to {@link #scanVideo} in AVCC form.
+   */
+  int videoFrameSize() {
+    return VIDEO_TAG_HEADER_SIZE + frameSize;
+  }
+
+  /**
+   * write the tag header of the access unit last passed to {@link #scanVideo}; each NAL unit
+   * then follows as a 4 byte length and its bytes.
+   */
+  void writeVideoTagHeader(ByteBuffer out) {
+    out.put((byte) (((keyFrame ? FRAME_KEY : FRAME_INTER) << 4) | CODEC_AVC));
+    out.put((byte) AVC_NALU);
+    putUInt24(out, 0); // composition time; no B-frames
+  }
+
+  /**
+   * write the tag header of an AAC frame; the frame (or AudioSpecificConfig) follows as is.
+   */
+  static void writeAudioTagHeader(ByteBuffer out, boolean config) {
+    out.put((byte) AAC_FLAGS);
+    out.put((byte) (config ? AAC_SEQUENCE_HEADER : AAC_RAW));
+  }
+
+  private static void putUInt24(ByteBuffer out, int value) {
+    out.put((byte) (value >>> 16));
+    out.put((byte) (value >>> 8));
+    out.put((byte) value);
+  }
+}
@@ -0,0 +1,174 @@
+package com.takusemba.rtmppublisher.rtmp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes H.264/AAC encoder output as an FLV file, with the same tag bodies that
+ * {@link RtmpClient} sends. Output is collected in a buffer and goes to the channel in large
+ * writes. Like a new RTMP session, the file starts with a key frame and the audio config,
+ * and its timestamps start at 0.
+ * Not thread safe.
+ */
+public class FlvWriter {
+
+  private static final int BUFFER_SIZE = 256 * 1024;
+  private static final int TAG_HEADER_SIZE = 11;
+  private static final int PREVIOUS_TAG_SIZE = 4;
+  private static final int TAG_AUDIO = 8;
+  private static final int TAG_VIDEO = 9;
+  private static final int FLAG_AUDIO = 0x04;
+  private static final int FLAG_VIDEO = 0x01;
+
+  private final WritableByteChannel channel;
+  private final FlvPacketizer packetizer = new FlvPacketizer();
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private boolean waitingKeyFrame = true;
+  private boolean waitingAudioConfig = true;
+  // stream timestamp of the first frame in the file; -1 until then
+  private int timestampBase = -1;
+  private long bytesWritten;
+
+  public FlvWriter(WritableByteChannel channel) {
+    this.channel = channel;
+  }
+
+  /**
+   * the FLV header; call once before the first frame.
+   */
+  public void writeHeader() throws IOException {
+    buffer.put((byte) 'F').put((byte) 'L').put((byte) 'V');
+    buffer.put((byte) 1);
+    buffer.put((byte) (FLAG_AUDIO | FLAG_VIDEO));
+    buffer.putInt(9); // header size
+    buffer.putInt(0); // size of the tag before the first one
+  }
+
+  /**
+   * @param data Annex-B access unit (or SPS/PPS) between position and limit; the buffer is
+   * not changed.
+   */
+  public void writeVideo(ByteBuffer data, int timestamp) throws IOException {
+    final boolean hasPicture = packetizer.scanVideo(data);
+    if (packetizer.takeVideoConfigChanged()) {
+      final int size = packetizer.videoHeaderSize();
+      writeTagHeader(TAG_VIDEO, size, toFileTimestamp(timestamp, true));
+      ensureRemaining(size);
+      packetizer.writeVideoHeader(buffer);
+      writePreviousTagSize(size);
+    }
+    if (!hasPicture || !packetizer.hasVideoConfig())
+      return;
+    if (waitingKeyFrame) {
+      if (!packetizer.isKeyFrame())
+        return;
+      waitingKeyFrame = false;
+    }
+    final int size = packetizer.videoFrameSize();
+    writeTagHeader(TAG_VIDEO, size, toFileTimestamp(timestamp, false));
+    ensureRemaining(FlvPacketizer.VIDEO_TAG_HEADER_SIZE);
+    packetizer.writeVideoTagHeader(buffer);
+    final ByteBuffer nal = data.duplicate();
+    for (int i = 0; i < packetizer.getNalCount(); i++) {
+      final int start = packetizer.getNalStart(i);
+      final int end = packetizer.getNalEnd(i);
+      ensureRemaining(FlvPacketizer.NAL_LENGTH_SIZE);
+      buffer.putInt(end - start);
+      nal.limit(end);
+      nal.position(start);
+      put(nal);
+    }
+    writePreviousTagSize(size);
+  }
+
+  /**
+   * @param data raw AAC frame (or AudioSpecificConfig) between position and limit; the
+   * buffer is not changed.
+   */
+  public void writeAudio(ByteBuffer data, int timestamp, boolean config) throws IOException {
+    if (config)
+      waitingAudioConfig = false;
+    else if (waitingAudioConfig)
+      return;
+    final int size = FlvPacketizer.AUDIO_TAG_HEADER_SIZE + data.remaining();
+    writeTagHeader(TAG_AUDIO, size, toFileTimestamp(timestamp, config));
+    ensureRemaining(FlvPacketizer.AUDIO_TAG_HEADER_SIZE);
+    FlvPacketizer.writeAudioTagHeader(buffer, config);
+    put(data.duplicate());
+    writePreviousTagSize(size);
+  }
+
+  /**
+   * write out whatever is buffered.
+   */
+  public void flush() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining())
+      bytesWritten += channel.write(buffer);
+    buffer.clear();
+  }
+
+  /**
+   * @return bytes handed to the channel so far.
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  /**
+   * @return the buffered bytes not yet handed to the channel.
+   */
+  public int getBufferedBytes() {
+    return buffer.position();
+  }
+
+  private int toFileTimestamp(int timestamp, boolean config) {
+    if (timestampBase < 0) {
+      // a sequence header may be older than the first frame; it still belongs at the start
+      if (config)
+        return 0;
+      timestampBase = timestamp;
+    }
+    return Math.max(0, timestamp - timestampBase);
+  }
+
+  private void writeTagHeader(int type, int size, int timestamp) throws IOException {
+    ensureRemaining(TAG_HEADER_SIZE);
+    buffer.put((byte) type);
+    putUInt24(size);
+    putUInt24(timestamp & 0xffffff);
+    buffer.put((byte) (timestamp >>> 24));
+    putUInt24(0); // stream id
+  }
+
+  private void writePreviousTagSize(int size) throws IOException {
+    ensureRemaining(PREVIOUS_TAG_SIZE);
+    buffer.putInt(TAG_HEADER_SIZE + size);
+  }
+
+  /**
+   * copy src into the buffer, flushing as it fills up.
+   */
+  private void put(ByteBuffer src) throws IOException {
+    while (src.hasRemaining()) {
+      if (!buffer.hasRemaining())
+        flush();
+      final int limit = src.limit();
+      src.limit(src.position() + Math.min(src.remaining(), buffer.remaining()));
+      buffer.put(src);
+      src.limit(limit);
+    }
+  }
+
+  private void ensureRemaining(int bytes) throws IOException {
+    if (buffer.remaining() < bytes)
+      flush();
+  }
+
+  private void putUInt24(int value) {
+    buffer.put((byte) (value >>> 16));
+    buffer.put((byte) (value >>> 8));
+    buffer.put((byte) value);
+  }
+}
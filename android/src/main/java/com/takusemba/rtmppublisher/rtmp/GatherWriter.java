@@ -0,0 +1,187 @@
+package com.takusemba.rtmppublisher.rtmp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Builds one media message as a scatter/gather list so that it goes out in a single
+ * gathering write. Headers (chunk, FLV tag, NAL unit lengths) are written into a small
+ * direct arena; the media payload is referenced in place and never copied or modified.
+ * The views on the arena and on the payload buffer are reused, so a message normally
+ * costs no allocation.
+ */
+final class GatherWriter {
+
+  private static final int INITIAL_ARENA_SIZE = 16 * 1024;
+
+  private ByteBuffer arena = ByteBuffer.allocateDirect(INITIAL_ARENA_SIZE);
+  private ByteBuffer[] arenaViews = new ByteBuffer[16];
+  private int arenaViewCount;
+  private ByteBuffer[] dataViews = new ByteBuffer[16];
+  private ByteBuffer[] dataViewSources = new ByteBuffer[16];
+  private int dataViewCount;
+
+  private ByteBuffer data;
+  private int[] segmentFrom = new int[16];
+  private int[] segmentTo = new int[16];
+  private boolean[] segmentInArena = new boolean[16];
+  private int segmentCount;
+  private int payloadLength;
+
+  private ByteBuffer[] iov = new ByteBuffer[64];
+  private int iovCount;
+  private int totalLength;
+
+  /**
+   * start a new message.
+   * @param data buffer the data segments refer to; may be null.
+   * @param arenaPayloadBytes upper bound of the payload bytes that will be put into the arena.
+   * @param maxHeaderBytes upper bound of the chunk header bytes.
+   * @return the arena to put payload bytes into; see {@link #addArenaSegment}.
+   */
+  ByteBuffer begin(ByteBuffer data, int arenaPayloadBytes, int maxHeaderBytes) {
+    final int required = arenaPayloadBytes + maxHeaderBytes;
+    if (arena.capacity() < required) {
+      arena = ByteBuffer.allocateDirect(Integer.highestOneBit(required) << 1);
+      Arrays.fill(arenaViews, null);
+    }
+    arena.clear();
+    this.data = data;
+    segmentCount = 0;
+    payloadLength = 0;
+    return arena;
+  }
+
+  /**
+   * the arena bytes from {@code from} up to the current arena position become payload.
+   */
+  void addArenaSegment(int from) {
+    final int to = arena.position();
+    if (to == from)
+      return;
+    final int last = segmentCount - 1;
+    if (last >= 0 && segmentInArena[last] && segmentTo[last] == from) {
+      segmentTo[last] = to;
+      payloadLength += to - from;
+      return;
+    }
+    addSegment(from, to, true);
+  }
+
+  /**
+   * the bytes [from, to) of the data buffer become payload.
+   */
+  void addDataSegment(int from, int to) {
+    if (to > from)
+      addSegment(from, to, false);
+  }
+
+  int getPayloadLength() {
+    return payloadLength;
+  }
+
+  private void addSegment(int from, int to, boolean inArena) {
+    if (segmentCount == segmentFrom.length) {
+      segmentFrom = Arrays.copyOf(segmentFrom, segmentCount * 2);
+      segmentTo = Arrays.copyOf(segmentTo, segmentCount * 2);
+      segmentInArena = Arrays.copyOf(segmentInArena, segmentCount * 2);
+    }
+    segmentFrom[segmentCount] = from;
+    segmentTo[segmentCount] = to;
+    segmentInArena[segmentCount] = inArena;
+    segmentCount++;
+    payloadLength += to - from;
+  }
+
+  /**
+   * interleave the chunk headers with the payload segments.
+   */
+  void chunk(ChunkWriter chunkWriter, int csid, int typeId, int streamId, int timestamp) {
+    final int chunkSize = chunkWriter.getChunkSize();
+    iovCount = 0;
+    arenaViewCount = 0;
+    dataViewCount = 0;
+    totalLength = 0;
+
+    int headerFrom = arena.position();
+    chunkWriter.writeHeader(arena, csid, typeId, streamId, timestamp, payloadLength);
+    addArenaIov(headerFrom, arena.position());
+
+    int inChunk = 0;
+    for (int i = 0; i < segmentCount; i++) {
+      int from = segmentFrom[i];
+      final int to = segmentTo[i];
+      while (from < to) {
+        if (inChunk == chunkSize) {
+          headerFrom = arena.position();
+          chunkWriter.writeContinuationHeader(arena, csid);
+          addArenaIov(headerFrom, arena.position());
+          inChunk = 0;
+        }
+        final int n = Math.min(to - from, chunkSize - inChunk);
+        if (segmentInArena[i])
+          addArenaIov(from, from + n);
+        else
+          addDataIov(from, from + n);
+        from += n;
+        inChunk += n;
+      }
+    }
+  }
+
+  /**
+   * @return time spent waiting for the socket (ns).
+   */
+  long write(Transport transport, int timeoutMs) throws IOException {
+    return transport.write(iov, 0, iovCount, timeoutMs);
+  }
+
+  /**
+   * @return bytes in the last chunked message, headers included.
+   */
+  int getTotalLength() {
+    return totalLength;
+  }
+
+  private void addArenaIov(int from, int to) {
+    // adjacent arena regions (e.g. chunk header followed by FLV tag header) share one entry
+    if (arenaViewCount > 0 && iov[iovCount - 1] == arenaViews[arenaViewCount - 1]
+      && iov[iovCount - 1].limit() == from) {
+      iov[iovCount - 1].limit(to);
+      totalLength += to - from;
+      return;
+    }
+    if (arenaViewCount == arenaViews.length)
+      arenaViews = Arrays.copyOf(arenaViews, arenaViewCount * 2);
+    ByteBuffer view = arenaViews[arenaViewCount];
+    if (view == null)
+      view = arenaViews[arenaViewCount] = arena.duplicate();
+    arenaViewCount++;
+    addIov(view, from, to);
+  }
+
+  private void addDataIov(int from, int to) {
+    if (dataViewCount == dataViews.length) {
+      dataViews = Arrays.copyOf(dataViews, dataViewCount * 2);
+      dataViewSources = Arrays.copyOf(dataViewSources, dataViewCount * 2);
+    }
+    ByteBuffer view = dataViews[dataViewCount];
+    if (view == null || dataViewSources[dataViewCount] != data) {
+      view = dataViews[dataViewCount] = data.duplicate();
+      dataViewSources[dataViewCount] = data;
+    }
+    dataViewCount++;
+    addIov(view, from, to);
+  }
+
+  private void addIov(ByteBuffer view, int from, int to) {
+    if (iovCount == iov.length)
+      iov = Arrays.copyOf(iov, iovCount * 2);
+    view.clear();
+    view.limit(to);
+    view.position(from);
+    iov[iovCount++] = view;
+    totalLength += to - from;
+  }
+}
@@ -0,0 +1,42 @@
+package com.takusemba.rtmppublisher.rtmp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Plain (unencrypted, non-digest) RTMP handshake: C0+C1, S0+S1+S2, C2.
+ */
+final class Handshake {
+
+  private static final int RTMP_VERSION = 3;
+  private static final int PACKET_SIZE = 1536;
+
+  private Handshake() {
+  }
+
+  static void perform(Transport transport, int timeoutMs) throws IOException {
+    final ByteBuffer c0c1 = ByteBuffer.allocate(1 + PACKET_SIZE);
+    c0c1.put((byte) RTMP_VERSION);
+    c0c1.putInt((int) (System.currentTimeMillis() / 1000));
+    c0c1.putInt(0);
+    final byte[] random = new byte[PACKET_SIZE - 8];
+    new Random().nextBytes(random);
+    c0c1.put(random);
+    c0c1.flip();
+    transport.write(c0c1, timeoutMs);
+
+    final ByteBuffer s0s1 = ByteBuffer.allocate(1 + PACKET_SIZE);
+    transport.readFully(s0s1, timeoutMs);
+    s0s1.flip();
+    final int version = s0s1.get() & 0xff;
+    if (version != RTMP_VERSION)
+      throw new IOException("unsupported RTMP version from server: " + version);
+
+    // C2 echoes S1
+    transport.write(s0s1, timeoutMs);
+
+    final ByteBuffer s2 = ByteBuffer.allocate(PACKET_SIZE);
+    transport.readFully(s2, timeoutMs);
+  }
+}
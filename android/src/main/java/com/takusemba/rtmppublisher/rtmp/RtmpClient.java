@@ -0,0 +1,490 @@
+package com.takusemba.rtmppublisher.rtmp;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pure Java RTMP publisher over NIO.
+ * Not thread safe; every call except {@link #isConnected()} must be made from one thread.
+ */
+public class RtmpClient {
+
+  private static final int DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+  private static final int DEFAULT_IO_TIMEOUT_MS = 10000;
+  private static final int DEFAULT_CHUNK_SIZE = 4096;
+  // how many bytes the server may receive before it acknowledges them
+  private static final int OUT_WINDOW_ACK_SIZE = 2500000;
+  // how often we look for incoming control messages while publishing
+  private static final long POLL_INTERVAL_NANOS = 100 * 1000000L;
+
+  private static final int CSID_CONTROL = 2;
+  private static final int CSID_COMMAND = 3;
+  private static final int CSID_AUDIO = 4;
+  private static final int CSID_DATA = 5;
+  private static final int CSID_VIDEO = 6;
+
+  private static final int USER_CONTROL_PING_REQUEST = 6;
+  private static final int USER_CONTROL_PING_RESPONSE = 7;
+
+  private final ChunkWriter chunkWriter = new ChunkWriter();
+  private final ChunkReader chunkReader = new ChunkReader();
+  private final FlvPacketizer packetizer = new FlvPacketizer();
+  private final GatherWriter gatherWriter = new GatherWriter();
+
+  private int connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+  private int ioTimeoutMs = DEFAULT_IO_TIMEOUT_MS;
+  private int outChunkSize = DEFAULT_CHUNK_SIZE;
+
+  private Transport transport;
+  private volatile boolean connected;
+  private int streamId;
+  private String streamName;
+  private int transactionId;
+
+  // control and command messages only; media goes through the gatherWriter
+  private ByteBuffer outBuffer = ByteBuffer.allocate(16 * 1024);
+  private ByteBuffer inBuffer = ByteBuffer.allocate(16 * 1024);
+  private final ByteBuffer commandBuffer = ByteBuffer.allocate(8 * 1024);
+
+  // written by the publishing thread only; readable from anywhere
+  private volatile long bytesWritten;
+  private volatile long writeBlockedNanos;
+  private volatile long bytesAcknowledged;
+  private volatile int windowAckSize = Integer.MAX_VALUE;
+
+  private long bytesReceived;
+  private long lastAckSent;
+  private long lastPollAt;
+  private boolean waitingKeyFrame;
+  private boolean waitingAudioConfig;
+
+  public void setConnectTimeout(int timeoutMs) {
+    connectTimeoutMs = timeoutMs;
+  }
+
+  public void setIoTimeout(int timeoutMs) {
+    ioTimeoutMs = timeoutMs;
+  }
+
+  /**
+   * outgoing chunk size; takes effect on the next connect.
+   */
+  public void setChunkSize(int chunkSize) {
+    outChunkSize = chunkSize;
+  }
+
+  /**
+   * connect to the server and start publishing. blocks until the server accepts the stream.
+   * @param url rtmp://host[:port]/app/stream
+   */
+  public void connect(String url, int width, int height) throws IOException {
+    close();
+    final RtmpUrl rtmpUrl = RtmpUrl.parse(url);
+    chunkWriter.reset();
+    chunkReader.reset();
+    packetizer.reset();
+    inBuffer.clear();
+    bytesReceived = 0;
+    lastAckSent = 0;
+    windowAckSize = Integer.MAX_VALUE;
+    bytesAcknowledged = 0;
+    transactionId = 0;
+    waitingKeyFrame = true;
+    waitingAudioConfig = true;
+
+    transport = new Transport(rtmpUrl.host, rtmpUrl.port, connectTimeoutMs);
+    try {
+      Handshake.perform(transport, ioTimeoutMs);
+
+      sendSetChunkSize(outChunkSize);
+      sendWindowAckSize(OUT_WINDOW_ACK_SIZE);
+
+      final Map<String, Object> connectParams = new LinkedHashMap<>();
+      connectParams.put("app", rtmpUrl.app);
+      connectParams.put("type", "nonprivate");
+      connectParams.put("flashVer", "FMLE/3.0 (compatible; FMSc/1.0)");
+      connectParams.put("tcUrl", rtmpUrl.tcUrl);
+      call("connect", connectParams);
+
+      sendCommand("releaseStream", ++transactionId, rtmpUrl.streamName);
+      sendCommand("FCPublish", ++transactionId, rtmpUrl.streamName);
+      final List<Object> created = call("createStream", null);
+      if (created.size() < 4 || !(created.get(3) instanceof Double))
+        throw new IOException("unexpected createStream result: " + created);
+      streamId = ((Double) created.get(3)).intValue();
+      streamName = rtmpUrl.streamName;
+
+      publish(rtmpUrl.streamName);
+      sendMetaData(width, height);
+      lastPollAt = System.nanoTime();
+      connected = true;
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  public boolean isConnected() {
+    return connected;
+  }
+
+  /**
+   * @return total bytes written to the socket by this client, across connections.
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  /**
+   * @return total time spent waiting for the socket to accept more data (ns).
+   */
+  public long getWriteBlockedNanos() {
+    return writeBlockedNanos;
+  }
+
+  /**
+   * @return the sequence number of the server's last acknowledgement on this connection:
+   * the bytes it has received, modulo 2^32.
+   */
+  public long getBytesAcknowledged() {
+    return bytesAcknowledged;
+  }
+
+  /**
+   * @return the acknowledgement window the server asked for; 0 if it didn't.
+   */
+  public int getWindowAckSize() {
+    final int size = windowAckSize;
+    return size == Integer.MAX_VALUE ? 0 : size;
+  }
+
+  /**
+   * send an H.264 access unit (or SPS/PPS). the chunk and FLV headers are gathered with the
+   * NAL units of {@code data} into one write, so a direct buffer goes to the socket as is.
+   * @param data Annex-B bytes between position and limit; neither the content nor the
+   * position of the buffer is changed.
+   */
+  public void writeVideo(ByteBuffer data, int timestamp) throws IOException {
+    ensureConnected();
+    final boolean hasPicture = packetizer.scanVideo(data);
+    if (packetizer.takeVideoConfigChanged()) {
+      final int size = packetizer.videoHeaderSize();
+      final ByteBuffer arena = gatherWriter.begin(null, size, chunkWriter.maxHeaderBytes(size));
+      final int from = arena.position();
+      packetizer.writeVideoHeader(arena);
+      gatherWriter.addArenaSegment(from);
+      writeGathered(CSID_VIDEO, RtmpMessage.VIDEO, timestamp);
+    }
+    if (!hasPicture || !packetizer.hasVideoConfig())
+      return;
+    if (waitingKeyFrame) {
+      if (!packetizer.isKeyFrame())
+        return; // not decodable without the preceding key frame
+      waitingKeyFrame = false;
+    }
+    final int nalCount = packetizer.getNalCount();
+    final ByteBuffer arena = gatherWriter.begin(data,
+      FlvPacketizer.VIDEO_TAG_HEADER_SIZE + nalCount * FlvPacketizer.NAL_LENGTH_SIZE,
+      chunkWriter.maxHeaderBytes(packetizer.videoFrameSize()));
+    final int from = arena.position();
+    packetizer.writeVideoTagHeader(arena);
+    gatherWriter.addArenaSegment(from);
+    for (int i = 0; i < nalCount; i++) {
+      final int start = packetizer.getNalStart(i);
+      final int end = packetizer.getNalEnd(i);
+      final int lengthFrom = arena.position();
+      arena.putInt(end - start);
+      gatherWriter.addArenaSegment(lengthFrom);
+      gatherWriter.addDataSegment(start, end);
+    }
+    writeGathered(CSID_VIDEO, RtmpMessage.VIDEO, timestamp);
+  }
+
+  /**
+   * send an AAC frame the same way as {@link #writeVideo}. frames are skipped until the
+   * AudioSpecificConfig of the session has been sent.
+   * @param data raw AAC frame (or AudioSpecificConfig) between position and limit.
+   */
+  public void writeAudio(ByteBuffer data, int timestamp, boolean config) throws IOException {
+    ensureConnected();
+    if (config)
+      waitingAudioConfig = false;
+    else if (waitingAudioConfig)
+      return;
+    final int size = FlvPacketizer.AUDIO_TAG_HEADER_SIZE + data.remaining();
+    final ByteBuffer arena = gatherWriter.begin(data, FlvPacketizer.AUDIO_TAG_HEADER_SIZE,
+      chunkWriter.maxHeaderBytes(size));
+    final int from = arena.position();
+    FlvPacketizer.writeAudioTagHeader(arena, config);
+    gatherWriter.addArenaSegment(from);
+    gatherWriter.addDataSegment(data.position(), data.limit());
+    writeGathered(CSID_AUDIO, RtmpMessage.AUDIO, timestamp);
+  }
+
+  public void close() {
+    if (transport == null)
+      return;
+    if (connected) {
+      connected = false;
+      try {
+        sendCommand("FCUnpublish", ++transactionId, streamName);
+        sendCommand("deleteStream", ++transactionId, (double) streamId);
+      } catch (IOException e) {
+        // we're closing anyway
+      }
+    }
+    transport.close();
+    transport = null;
+  }
+
+  private void ensureConnected() throws IOException {
+    if (!connected)
+      throw new IOException("not connected");
+    final long now = System.nanoTime();
+    if (now - lastPollAt >= POLL_INTERVAL_NANOS) {
+      lastPollAt = now;
+      try {
+        pollIncoming();
+      } catch (IOException e) {
+        close();
+        throw e;
+      }
+    }
+  }
+
+  private void pollIncoming() throws IOException {
+    if (receive() == 0)
+      return;
+    RtmpMessage msg;
+    while ((msg = nextMessage()) != null) {
+      if (!handleControl(msg) && msg.typeId == RtmpMessage.COMMAND_AMF0)
+        checkStatus(Amf0.readAll(msg.payload));
+    }
+  }
+
+  //
+  // commands
+  //
+
+  private List<Object> call(String name, Map<String, Object> params) throws IOException {
+    final int id = ++transactionId;
+    sendCommand(name, id, params, null);
+    final long deadline = System.nanoTime() + ioTimeoutMs * 1000000L;
+    while (true) {
+      final List<Object> values = readCommand(deadline);
+      if (values.size() < 2 || !(values.get(1) instanceof Double)
+        || ((Double) values.get(1)).intValue() != id)
+        continue;
+      if ("_result".equals(values.get(0)))
+        return values;
+      throw new IOException(name + " failed: " + values);
+    }
+  }
+
+  private void publish(String streamName) throws IOException {
+    commandBuffer.clear();
+    Amf0.writeString(commandBuffer, "publish");
+    Amf0.writeNumber(commandBuffer, ++transactionId);
+    Amf0.writeNull(commandBuffer);
+    Amf0.writeString(commandBuffer, streamName);
+    Amf0.writeString(commandBuffer, "live");
+    commandBuffer.flip();
+    writeMessage(CSID_COMMAND, RtmpMessage.COMMAND_AMF0, streamId, 0, commandBuffer);
+
+    final long deadline = System.nanoTime() + ioTimeoutMs * 1000000L;
+    while (true) {
+      final List<Object> values = readCommand(deadline);
+      if (checkStatus(values) && "NetStream.Publish.Start".equals(statusCode(values)))
+        return;
+    }
+  }
+
+  /**
+   * @return true if the command is an onStatus.
+   * @throws IOException if the status level is error.
+   */
+  private boolean checkStatus(List<Object> values) throws IOException {
+    if (values.isEmpty() || !"onStatus".equals(values.get(0)))
+      return false;
+    final Object info = values.size() > 3 ? values.get(3) : null;
+    if (info instanceof Map && "error".equals(((Map<?, ?>) info).get("level")))
+      throw new IOException("server error: " + statusCode(values) + " " + ((Map<?, ?>) info).get("description"));
+    return true;
+  }
+
+  private static Object statusCode(List<Object> values) {
+    final Object info = values.size() > 3 ? values.get(3) : null;
+    return info instanceof Map ? ((Map<?, ?>) info).get("code") : null;
+  }
+
+  private void sendCommand(String name, int id, Object arg) throws IOException {
+    sendCommand(name, id, null, arg);
+  }
+
+  private void sendCommand(String name, int id, Map<String, Object> commandObject, Object arg)
+    throws IOException {
+    commandBuffer.clear();
+    Amf0.writeString(commandBuffer, name);
+    Amf0.writeNumber(commandBuffer, id);
+    if (commandObject != null)
+      Amf0.writeObject(commandBuffer, commandObject);
+    else
+      Amf0.writeNull(commandBuffer);
+    if (arg != null)
+      Amf0.write(commandBuffer, arg);
+    commandBuffer.flip();
+    writeMessage(CSID_COMMAND, RtmpMessage.COMMAND_AMF0, 0, 0, commandBuffer);
+  }
+
+  private void sendMetaData(int width, int height) throws IOException {
+    final Map<String, Object> meta = new LinkedHashMap<>();
+    meta.put("width", (double) width);
+    meta.put("height", (double) height);
+    meta.put("videocodecid", 7.0);
+    meta.put("audiocodecid", 10.0);
+    commandBuffer.clear();
+    Amf0.writeString(commandBuffer, "@setDataFrame");
+    Amf0.writeString(commandBuffer, "onMetaData");
+    Amf0.writeEcmaArray(commandBuffer, meta);
+    commandBuffer.flip();
+    writeMessage(CSID_DATA, RtmpMessage.DATA_AMF0, streamId, 0, commandBuffer);
+  }
+
+  private List<Object> readCommand(long deadline) throws IOException {
+    while (true) {
+      final RtmpMessage msg = readMessage(deadline);
+      if (!handleControl(msg) && msg.typeId == RtmpMessage.COMMAND_AMF0)
+        return Amf0.readAll(msg.payload);
+    }
+  }
+
+  //
+  // protocol control
+  //
+
+  private boolean handleControl(RtmpMessage msg) throws IOException {
+    final ByteBuffer p = msg.payload;
+    switch (msg.typeId) {
+      case RtmpMessage.SET_CHUNK_SIZE: {
+        final int size = p.getInt() & 0x7fffffff;
+        chunkReader.setChunkSize(size);
+        ensureInCapacity(size + 18);
+        return true;
+      }
+      case RtmpMessage.ABORT:
+        chunkReader.abort(p.getInt());
+        return true;
+      case RtmpMessage.ACKNOWLEDGEMENT:
+        bytesAcknowledged = p.getInt() & 0xffffffffL;
+        return true;
+      case RtmpMessage.WINDOW_ACK_SIZE:
+        windowAckSize = p.getInt();
+        return true;
+      case RtmpMessage.SET_PEER_BANDWIDTH:
+        return true;
+      case RtmpMessage.USER_CONTROL:
+        if (p.remaining() >= 6 && p.getShort() == USER_CONTROL_PING_REQUEST) {
+          final ByteBuffer pong = ByteBuffer.allocate(6);
+          pong.putShort((short) USER_CONTROL_PING_RESPONSE);
+          pong.putInt(p.getInt());
+          pong.flip();
+          writeMessage(CSID_CONTROL, RtmpMessage.USER_CONTROL, 0, 0, pong);
+        }
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private void sendSetChunkSize(int chunkSize) throws IOException {
+    final ByteBuffer p = ByteBuffer.allocate(4);
+    p.putInt(chunkSize);
+    p.flip();
+    writeMessage(CSID_CONTROL, RtmpMessage.SET_CHUNK_SIZE, 0, 0, p);
+    chunkWriter.setChunkSize(chunkSize);
+  }
+
+  private void sendWindowAckSize(int size) throws IOException {
+    final ByteBuffer p = ByteBuffer.allocate(4);
+    p.putInt(size);
+    p.flip();
+    writeMessage(CSID_CONTROL, RtmpMessage.WINDOW_ACK_SIZE, 0, 0, p);
+  }
+
+  private void sendAcknowledgementIfNeeded() throws IOException {
+    if (bytesReceived - lastAckSent < windowAckSize)
+      return;
+    lastAckSent = bytesReceived;
+    final ByteBuffer p = ByteBuffer.allocate(4);
+    p.putInt((int) bytesReceived);
+    p.flip();
+    writeMessage(CSID_CONTROL, RtmpMessage.ACKNOWLEDGEMENT, 0, 0, p);
+  }
+
+  //
+  // I/O
+  //
+
+  private void writeGathered(int csid, int typeId, int timestamp) throws IOException {
+    gatherWriter.chunk(chunkWriter, csid, typeId, streamId, timestamp);
+    final int size = gatherWriter.getTotalLength();
+    writeBlockedNanos += gatherWriter.write(transport, ioTimeoutMs);
+    bytesWritten += size;
+  }
+
+  private void writeMessage(int csid, int typeId, int streamId, int timestamp, ByteBuffer payload)
+    throws IOException {
+    final int required = chunkWriter.maxEncodedSize(payload.remaining());
+    if (outBuffer.capacity() < required)
+      outBuffer = ByteBuffer.allocate(Integer.highestOneBit(required) << 1);
+    outBuffer.clear();
+    chunkWriter.write(outBuffer, csid, typeId, streamId, timestamp, payload);
+    outBuffer.flip();
+    final int size = outBuffer.remaining();
+    writeBlockedNanos += transport.write(outBuffer, ioTimeoutMs);
+    bytesWritten += size;
+  }
+
+  private int receive() throws IOException {
+    final int n = transport.readAvailable(inBuffer);
+    bytesReceived += n;
+    if (n > 0)
+      sendAcknowledgementIfNeeded();
+    return n;
+  }
+
+  private RtmpMessage nextMessage() throws IOException {
+    inBuffer.flip();
+    try {
+      return chunkReader.read(inBuffer);
+    } finally {
+      inBuffer.compact();
+    }
+  }
+
+  private RtmpMessage readMessage(long deadline) throws IOException {
+    while (true) {
+      final RtmpMessage msg = nextMessage();
+      if (msg != null)
+        return msg;
+      final long remainingMs = (deadline - System.nanoTime()) / 1000000;
+      if (remainingMs <= 0)
+        throw new SocketTimeoutException("timed out waiting for the server");
+      if (transport.awaitReadable((int) remainingMs))
+        receive();
+    }
+  }
+
+  private void ensureInCapacity(int capacity) {
+    if (inBuffer.capacity() >= capacity)
+      return;
+    final ByteBuffer grown = ByteBuffer.allocate(capacity);
+    inBuffer.flip();
+    grown.put(inBuffer);
+    inBuffer = grown;
+  }
+}
@@ -0,0 +1,34 @@
+package com.takusemba.rtmppublisher.rtmp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reassembled RTMP message received from the server.
+ */
+final class RtmpMessage {
+
+  static final int SET_CHUNK_SIZE = 1;
+  static final int ABORT = 2;
+  static final int ACKNOWLEDGEMENT = 3;
+  static final int USER_CONTROL = 4;
+  static final int WINDOW_ACK_SIZE = 5;
+  static final int SET_PEER_BANDWIDTH = 6;
+  static final int AUDIO = 8;
+  static final int VIDEO = 9;
+  static final int DATA_AMF0 = 18;
+  static final int COMMAND_AMF0 = 20;
+
+  final int chunkStreamId;
+  final int typeId;
+  final int streamId;
+  final int timestamp;
+  final ByteBuffer payload;
+
+  RtmpMessage(int chunkStreamId, int typeId, int streamId, int timestamp, ByteBuffer payload) {
+    this.chunkStreamId = chunkStreamId;
+    this.typeId = typeId;
+    this.streamId = streamId;
+    this.timestamp = timestamp;
+    this.payload = payload;
+  }
+}
@@ -0,0 +1,59 @@
+package com.takusemba.rtmppublisher.rtmp;
+
+import java.net.MalformedURLException;
+
+/**
+ * rtmp://host[:port]/app[/instance]/stream
+ */
+final class RtmpUrl {
+
+  private static final int DEFAULT_PORT = 1935;
+
+  final String host;
+  final int port;
+  final String app;
+  final String streamName;
+  final String tcUrl;
+
+  private RtmpUrl(String host, int port, String app, String streamName, String tcUrl) {
+    this.host = host;
+    this.port = port;
+    this.app = app;
+    this.streamName = streamName;
+    this.tcUrl = tcUrl;
+  }
+
+  static RtmpUrl parse(String url) throws MalformedURLException {
+    final String scheme = "rtmp://";
+    if (url == null || !url.regionMatches(true, 0, scheme, 0, scheme.length()))
+      throw new MalformedURLException("not an rtmp url: " + url);
+    final String rest = url.substring(scheme.length());
+    final int slash = rest.indexOf('/');
+    if (slash < 0)
+      throw new MalformedURLException("no application in url: " + url);
+    final String authority = rest.substring(0, slash);
+    final String path = rest.substring(slash + 1);
+
+    String host = authority;
+    int port = DEFAULT_PORT;
+    final int colon = authority.lastIndexOf(':');
+    if (colon >= 0 && authority.indexOf(']') < colon) {
+      host = authority.substring(0, colon);
+      try {
+        port = Integer.parseInt(authority.substring(colon + 1));
+      } catch (NumberFormatException e) {
+        throw new MalformedURLException("bad port in url: " + url);
+      }
+    }
+    if (host.startsWith("[") && host.endsWith("]"))
+      host = host.substring(1, host.length() - 1);
+
+    final int streamSlash = path.lastIndexOf('/');
+    if (host.isEmpty() || streamSlash <= 0 || streamSlash == path.length() - 1)
+      throw new MalformedURLException("url must contain both application and stream name: " + url);
+    final String app = path.substring(0, streamSlash);
+    final String streamName = path.substring(streamSlash + 1);
+    final String tcUrl = url.substring(0, scheme.length() + slash + 1 + streamSlash);
+    return new RtmpUrl(host, port, app, streamName, tcUrl);
+  }
+}
@@ -0,0 +1,143 @@
+package com.takusemba.rtmppublisher.rtmp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking socket wrapper. Every operation is bounded by a timeout and
+ * runs on the caller's thread; there is no internal thread.
+ */
+class Transport {
+
+  private final SocketChannel channel;
+  private final Selector selector;
+  private final SelectionKey key;
+
+  Transport(String host, int port, int connectTimeoutMs) throws IOException {
+    channel = SocketChannel.open();
+    try {
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      selector = Selector.open();
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    key = channel.register(selector, SelectionKey.OP_CONNECT);
+    try {
+      if (!channel.connect(new InetSocketAddress(host, port))) {
+        if (!await(SelectionKey.OP_CONNECT, deadline(connectTimeoutMs)))
+          throw new SocketTimeoutException("connect timed out: " + host + ":" + port);
+        channel.finishConnect();
+      }
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * write all the remaining bytes of the buffers.
+   * @return time spent waiting for the socket to become writable (ns).
+   */
+  long write(ByteBuffer[] buffers, int offset, int length, int timeoutMs) throws IOException {
+    long deadline = 0;
+    long blockedSince = 0;
+    while (true) {
+      channel.write(buffers, offset, length);
+      while (length > 0 && !buffers[offset].hasRemaining()) {
+        offset++;
+        length--;
+      }
+      if (length == 0)
+        return blockedSince == 0 ? 0 : System.nanoTime() - blockedSince;
+      if (deadline == 0) {
+        blockedSince = System.nanoTime();
+        deadline = blockedSince + timeoutMs * 1000000L;
+      }
+      if (!await(SelectionKey.OP_WRITE, deadline))
+        throw new SocketTimeoutException("write timed out");
+    }
+  }
+
+  /**
+   * @return time spent waiting for the socket to become writable (ns).
+   */
+  long write(ByteBuffer buffer, int timeoutMs) throws IOException {
+    long deadline = 0;
+    long blockedSince = 0;
+    while (true) {
+      channel.write(buffer);
+      if (!buffer.hasRemaining())
+        return blockedSince == 0 ? 0 : System.nanoTime() - blockedSince;
+      if (deadline == 0) {
+        blockedSince = System.nanoTime();
+        deadline = blockedSince + timeoutMs * 1000000L;
+      }
+      if (!await(SelectionKey.OP_WRITE, deadline))
+        throw new SocketTimeoutException("write timed out");
+    }
+  }
+
+  /**
+   * fill the remaining space of the buffer.
+   */
+  void readFully(ByteBuffer buffer, int timeoutMs) throws IOException {
+    final long deadline = deadline(timeoutMs);
+    while (buffer.hasRemaining()) {
+      if (readAvailable(buffer) == 0 && !await(SelectionKey.OP_READ, deadline))
+        throw new SocketTimeoutException("read timed out");
+    }
+  }
+
+  /**
+   * read whatever is available without waiting.
+   * @return number of bytes read.
+   */
+  int readAvailable(ByteBuffer buffer) throws IOException {
+    final int n = channel.read(buffer);
+    if (n < 0)
+      throw new EOFException("connection closed by peer");
+    return n;
+  }
+
+  /**
+   * wait until some data arrives or the timeout expires.
+   * @return true if data is ready to read.
+   */
+  boolean awaitReadable(int timeoutMs) throws IOException {
+    return await(SelectionKey.OP_READ, deadline(timeoutMs));
+  }
+
+  void close() {
+    try { selector.close(); } catch (IOException e) { /* ignore */ }
+    try { channel.close(); } catch (IOException e) { /* ignore */ }
+  }
+
+  private boolean await(int ops, long deadline) throws IOException {
+    key.interestOps(ops);
+    try {
+      while (true) {
+        final long remaining = (deadline - System.nanoTime()) / 1000000;
+        if (remaining <= 0)
+          return false;
+        if (selector.select(remaining) > 0) {
+          selector.selectedKeys().clear();
+          return true;
+        }
+      }
+    } finally {
+      key.interestOps(0);
+    }
+  }
+
+  private static long deadline(int timeoutMs) {
+    return System.nanoTime() + timeoutMs * 1000000L;
+  }
+}
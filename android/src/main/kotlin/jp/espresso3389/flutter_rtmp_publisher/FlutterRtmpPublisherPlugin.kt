@@ -1,11 +1,21 @@
 package jp.espresso3389.flutter_rtmp_publisher
 
 import android.Manifest
+import android.os.Handler
+import android.os.Looper
 import android.util.Log
 import android.util.LongSparseArray
 import android.util.Size
 import com.takusemba.rtmppublisher.CameraMode
+import com.takusemba.rtmppublisher.DropReason
 import com.takusemba.rtmppublisher.RtmpPublisher
+import com.takusemba.rtmppublisher.SpillMode
+import com.takusemba.rtmppublisher.AacProfile
+import com.takusemba.rtmppublisher.AudioGain
+import com.takusemba.rtmppublisher.AudioProcessor
+import com.takusemba.rtmppublisher.HighPassFilter
+import com.takusemba.rtmppublisher.LookAheadLimiter
+import com.takusemba.rtmppublisher.NoiseGate
 import io.flutter.plugin.common.EventChannel
 import io.flutter.plugin.common.MethodCall
 import io.flutter.plugin.common.MethodChannel
@@ -13,6 +23,7 @@ import io.flutter.plugin.common.MethodChannel.MethodCallHandler
 import io.flutter.plugin.common.MethodChannel.Result
 import io.flutter.plugin.common.PluginRegistry.Registrar
 import io.flutter.view.TextureRegistry
+import java.io.IOException
 import java.lang.Exception
 
 class FlutterRtmpPublisherPlugin(
@@ -23,6 +34,9 @@ class FlutterRtmpPublisherPlugin(
 
   private val BITRATE_MAGIC_DIVIDER = 13
   private val AUDIO_BITRATE = 64000
+  private val AUDIO_SAMPLE_RATE = 44100
+  // default lower bound of the adaptive bitrate as a fraction of the upper bound
+  private val MIN_BITRATE_DIVIDER = 8
 
   companion object {
     @JvmStatic
@@ -62,15 +76,26 @@ class FlutterRtmpPublisherPlugin(
           val height = call.argument<Number>("height")!!.toInt()
           val fps = call.argument<Number>("fps")!!.toInt()
           val camera = if (call.argument<String>("camera") == "back") CameraMode.BACK else CameraMode.FRONT
-          val audioBitRate = AUDIO_BITRATE
-          val videoBitRate = width * height * fps / BITRATE_MAGIC_DIVIDER
+          val audioBitRate = call.argument<Number>("audioBitrate")?.toInt() ?: AUDIO_BITRATE
+          val audioProfile = when (call.argument<String>("audioProfile")) {
+            "he" -> AacProfile.HE
+            "heV2" -> AacProfile.HE_V2
+            else -> AacProfile.LC
+          }
+          rtmpPub.setAudioFormat(call.argument<Number>("audioSampleRate")?.toInt() ?: AUDIO_SAMPLE_RATE,
+            call.argument<Number>("audioChannels")?.toInt() ?: 1, audioProfile)
+          val videoBitRate = call.argument<Number>("maxVideoBitrate")?.toInt() ?: width * height * fps / BITRATE_MAGIC_DIVIDER
+          val adaptiveBitrate = call.argument<Boolean>("adaptiveBitrate") ?: true
+          val minVideoBitRate = call.argument<Number>("minVideoBitrate")?.toInt() ?: videoBitRate / MIN_BITRATE_DIVIDER
+          rtmpPub.setAdaptiveBitrate(if (adaptiveBitrate) minVideoBitRate else 0, videoBitRate)
+          call.argument<Number>("interleaveMaxHold")?.let { rtmpPub.setInterleaveMaxHold(it.toInt()) }
           rtmpPub.setCaptureConfig(width, height, fps, camera, audioBitRate, videoBitRate)
           result.success(true)
         }
         call.method == "pause" -> {
           val tex = call.argument<Number>("tex")!!.toLong()
           val rtmpPub = textures[tex]
-          rtmpPub.pause()
+          rtmpPub.pause(call.argument<Boolean>("slate") ?: false)
           result.success(true)
         }
         call.method == "resume" -> {
@@ -93,17 +118,62 @@ class FlutterRtmpPublisherPlugin(
         }
         call.method == "connect" -> {
           val tex = call.argument<Number>("tex")!!.toLong()
-          var rtmpUrl = call.argument<String>("url")
-          val name = call.argument<String>("name")
-
-          if (!rtmpUrl!!.endsWith('/')) {
-            rtmpUrl += "/"
+          val rtmpPub = textures[tex]
+          rtmpPub.connect(streamUrl(call))
+          result.success(true)
+        }
+        call.method == "addDestination" -> {
+          val tex = call.argument<Number>("tex")!!.toLong()
+          val rendition = call.argument<Number>("rendition")?.toInt() ?: 0
+          val rtmpPub = textures[tex]
+          rtmpPub.addDestination(streamUrl(call), rendition)
+          result.success(true)
+        }
+        call.method == "startRecording" -> {
+          val tex = call.argument<Number>("tex")!!.toLong()
+          val rtmpPub = textures[tex]
+          rtmpPub.startRecording(call.argument<String>("path")!!)
+          result.success(true)
+        }
+        call.method == "stopRecording" -> {
+          val tex = call.argument<Number>("tex")!!.toLong()
+          val rtmpPub = textures[tex]
+          rtmpPub.stopRecording()
+          result.success(true)
+        }
+        call.method == "setSpill" -> {
+          val tex = call.argument<Number>("tex")!!.toLong()
+          val rtmpPub = textures[tex]
+          val mode = if (call.argument<String>("mode") == "backfill") SpillMode.BACKFILL else SpillMode.CATCH_UP
+          try {
+            rtmpPub.setSpill(call.argument<String>("directory"), call.argument<Number>("maxBytes")!!.toInt(),
+              mode, call.argument<String>("backfillUrl"))
+            result.success(true)
+          } catch (e: IOException) {
+            result.error("spill", e.message, null)
           }
-          // RTMP Publisher accepts one URL that contains stream name
-          rtmpUrl += name
-
+        }
+        call.method == "setAudioProcessing" -> {
+          val tex = call.argument<Number>("tex")!!.toLong()
+          val rtmpPub = textures[tex]
+          rtmpPub.setAudioProcessing(call.argument<Number>("gainDb")?.toFloat(),
+            call.argument<Number>("highPassHz")?.toFloat(), call.argument<Number>("noiseGateDb")?.toFloat(),
+            call.argument<Number>("limiterDb")?.toFloat(), call.argument<Number>("limiterLookAheadMs")!!.toInt())
+          result.success(true)
+        }
+        call.method == "addRendition" -> {
+          val tex = call.argument<Number>("tex")!!.toLong()
+          val width = call.argument<Number>("width")!!.toInt()
+          val height = call.argument<Number>("height")!!.toInt()
+          val fps = call.argument<Number>("fps")!!.toInt()
+          val bitrate = call.argument<Number>("bitrate")!!.toInt()
+          val rtmpPub = textures[tex]
+          result.success(rtmpPub.addRendition(width, height, fps, bitrate))
+        }
+        call.method == "removeDestination" -> {
+          val tex = call.argument<Number>("tex")!!.toLong()
           val rtmpPub = textures[tex]
-          rtmpPub.connect(rtmpUrl!!)
+          rtmpPub.removeDestination(streamUrl(call))
           result.success(true)
         }
         call.method == "disconnect" -> {
@@ -119,6 +189,17 @@ class FlutterRtmpPublisherPlugin(
           rtmpPub.setCameraMode(camera)
           result.success(true)
         }
+        call.method == "getStats" -> {
+          val tex = call.argument<Number>("tex")!!.toLong()
+          val rtmpPub = textures[tex]
+          result.success(rtmpPub.getStats())
+        }
+        call.method == "setStatsInterval" -> {
+          val tex = call.argument<Number>("tex")!!.toLong()
+          val rtmpPub = textures[tex]
+          rtmpPub.setStatsInterval(call.argument<Number>("interval")!!.toLong())
+          result.success(true)
+        }
         call.method == "initFramework" -> {
           // nothing for framework initialization
           result.success(true)
@@ -130,10 +211,36 @@ class FlutterRtmpPublisherPlugin(
     }
   }
 
+  // RTMP Publisher accepts one URL that contains stream name
+  private fun streamUrl(call: MethodCall): String {
+    val url = call.argument<String>("url")!!
+    val name = call.argument<String>("name")
+    return (if (url.endsWith('/')) url else "$url/") + name
+  }
+
   class RtmpPublisherWrapper(textureId: Long, registrar: Registrar, flutterTexture: TextureRegistry.SurfaceTextureEntry): RtmpPublisher.RtmpPublisherListener {
     private val eventChannel: EventChannel = EventChannel(registrar.messenger(), "jp.espresso3389.flutter_rtmp_publisher.instance-$textureId")
     private var eventSink: EventChannel.EventSink? = null
     private var cameraSize: Size? = null
+    // for the limiter's look-ahead, which is set in frames
+    private var audioSampleRate = 44100
+    // how often the latency percentiles go to Dart
+    private val LATENCY_REPORT_INTERVAL_MS = 2000L
+    private val reportHandler = Handler(Looper.getMainLooper())
+    private val latencyReporter = object: Runnable {
+      override fun run() {
+        notifyLatency()
+        reportHandler.postDelayed(this, LATENCY_REPORT_INTERVAL_MS)
+      }
+    }
+    // 0 means Dart polls with getStats instead
+    private var statsIntervalMs = 0L
+    private val statsReporter = object: Runnable {
+      override fun run() {
+        notifyStats()
+        reportHandler.postDelayed(this, statsIntervalMs)
+      }
+    }
     private val flutterSurface: TextureRegistry.SurfaceTextureEntry = flutterTexture
     private val glSurfaceView: FlutterGLSurfaceView = FlutterGLSurfaceView(registrar, flutterTexture.surfaceTexture())
     private val pub: RtmpPublisher = RtmpPublisher(registrar, glSurfaceView, CameraMode.BACK, this, object: RtmpPublisher.CameraCallback() {
@@ -149,8 +256,13 @@ class FlutterRtmpPublisherPlugin(
         override fun onListen(obj: Any?, eventSink: EventChannel.EventSink?) {
           this@RtmpPublisherWrapper.eventSink = eventSink
           notifyCameraSize()
+          reportHandler.removeCallbacks(latencyReporter)
+          reportHandler.postDelayed(latencyReporter, LATENCY_REPORT_INTERVAL_MS)
+          setStatsInterval(statsIntervalMs)
         }
         override fun onCancel(obj: Any?) {
+          reportHandler.removeCallbacks(latencyReporter)
+          reportHandler.removeCallbacks(statsReporter)
           this@RtmpPublisherWrapper.eventSink = null
         }
       })
@@ -161,6 +273,32 @@ class FlutterRtmpPublisherPlugin(
       pub.setCaptureConfig(width, height, fps, cameraMode, audioBitRate, videoBitRate)
     }
 
+    fun setAdaptiveBitrate(minVideoBitRate: Int, maxVideoBitRate: Int) {
+      pub.setAdaptiveBitrate(minVideoBitRate, maxVideoBitRate)
+    }
+
+    fun setAudioFormat(sampleRate: Int, channelCount: Int, profile: AacProfile) {
+      pub.setAudioFormat(sampleRate, channelCount, profile)
+      audioSampleRate = sampleRate
+    }
+
+    /**
+     * the stages in the order they run; null leaves one out.
+     */
+    fun setAudioProcessing(gainDb: Float?, highPassHz: Float?, noiseGateDb: Float?, limiterDb: Float?, limiterLookAheadMs: Int) {
+      val lookAhead = if (limiterDb != null) audioSampleRate * limiterLookAheadMs / 1000 else 0
+      val processors = ArrayList<AudioProcessor>()
+      highPassHz?.let { processors.add(HighPassFilter(it)) }
+      noiseGateDb?.let { processors.add(NoiseGate(it)) }
+      gainDb?.let { processors.add(AudioGain(it)) }
+      limiterDb?.let { processors.add(LookAheadLimiter(it, lookAhead)) }
+      pub.setAudioProcessors(lookAhead, *processors.toTypedArray())
+    }
+
+    fun setInterleaveMaxHold(maxHoldMs: Int) {
+      pub.setInterleaveMaxHold(maxHoldMs)
+    }
+
     fun setCameraMode(mode: CameraMode) {
       pub.cameraMode = mode
       notifyCamera()
@@ -170,12 +308,35 @@ class FlutterRtmpPublisherPlugin(
       pub.connect(rtmpUrl)
     }
 
+    fun addDestination(rtmpUrl: String, rendition: Int) {
+      pub.addDestination(rtmpUrl, rendition)
+    }
+
+    fun startRecording(path: String) {
+      pub.startRecording(path)
+    }
+
+    fun stopRecording() {
+      pub.stopRecording()
+    }
+
+    fun setSpill(directory: String?, maxBytes: Int, mode: SpillMode, backfillUrl: String?) {
+      pub.setSpill(directory, maxBytes, mode, backfillUrl)
+    }
+
+    fun addRendition(width: Int, height: Int, fps: Int, bitrate: Int): Int =
+      pub.addRendition(width, height, fps, bitrate)
+
+    fun removeDestination(rtmpUrl: String) {
+      pub.removeDestination(rtmpUrl)
+    }
+
     fun disconnect() {
       pub.disconnect()
     }
 
-    fun pause() {
-      pub.pause()
+    fun pause(slate: Boolean) {
+      pub.pause(slate)
     }
 
     fun resume() {
@@ -190,7 +351,21 @@ class FlutterRtmpPublisherPlugin(
       pub.onActivityResume()
     }
 
+    fun getStats(): Map<String, Any> = pub.stats
+
+    /**
+     * send a "stats" event every [intervalMs]; 0 stops them.
+     */
+    fun setStatsInterval(intervalMs: Long) {
+      statsIntervalMs = intervalMs
+      reportHandler.removeCallbacks(statsReporter)
+      if (intervalMs > 0)
+        reportHandler.postDelayed(statsReporter, intervalMs)
+    }
+
     fun release() {
+      reportHandler.removeCallbacks(latencyReporter)
+      reportHandler.removeCallbacks(statsReporter)
       pub.release()
       eventSink?.endOfStream()
     }
@@ -205,6 +380,21 @@ class FlutterRtmpPublisherPlugin(
         eventSink!!.success(hashMapOf("name" to "camera", "camera" to if (pub.cameraMode == CameraMode.BACK) "back" else "front"))
     }
 
+    /**
+     * per-stage latency percentiles of the frames sent since the last report
+     */
+    fun notifyLatency() {
+      if (eventSink == null)
+        return
+      val stages = pub.getLatencyReport(true)
+      if (stages.isNotEmpty())
+        eventSink!!.success(hashMapOf("name" to "latency", "stages" to stages))
+    }
+
+    fun notifyStats() {
+      eventSink?.success(hashMapOf("name" to "stats", "stats" to pub.stats))
+    }
+
     override fun onConnected() {
       eventSink?.success("connected")
     }
@@ -232,6 +422,35 @@ class FlutterRtmpPublisherPlugin(
         "error" to e.toString()
       ))
     }
+
+    override fun onFramesDropped(reason: DropReason, frames: Int, bytes: Int) {
+      eventSink?.success(hashMapOf(
+        "name" to "framesDropped",
+        "reason" to when (reason) {
+          DropReason.NON_REFERENCE -> "nonReference"
+          DropReason.GOP -> "gop"
+          DropReason.AUDIO -> "audio"
+        },
+        "frames" to frames,
+        "bytes" to bytes
+      ))
+    }
+
+    override fun onEncoderStalled(rendition: Int, stalledMs: Long) {
+      eventSink?.success(hashMapOf(
+        "name" to "encoderStalled",
+        "rendition" to rendition,
+        "stalledMs" to stalledMs
+      ))
+    }
+
+    override fun onEncoderRestarted(rendition: Int, restartMs: Long) {
+      eventSink?.success(hashMapOf(
+        "name" to "encoderRestarted",
+        "rendition" to rendition,
+        "restartMs" to restartMs
+      ))
+    }
   }
 }
 
@@ -0,0 +1,160 @@
+package com.takusemba.rtmppublisher;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares the two ways PCM gets from the microphone into the codec's input buffers, on the
+ * same synthetic source: read into an array and passed through a {@link PcmRingBuffer} to
+ * the input thread (two copies more), or read straight into the input buffer as
+ * {@link AudioRecorder.InputBufferSource} lets the recording thread do. Both run on one
+ * thread here, so the times are the CPU cost of each path. Run with -Dbenchmarks=true.
+ */
+public class AudioCaptureBenchmarkTest {
+
+  private static final int WARM_UP_BLOCKS = 20000;
+  private static final int BLOCKS = 50000;
+  // what the codec hands out for AAC input
+  private static final int INPUT_BUFFER_SIZE = 8192;
+  private static final long BLOCK_NANOS = 10000000L;
+
+  @Before
+  public void setUp() {
+    assumeTrue("benchmarks are run with -Dbenchmarks=true", Boolean.getBoolean("benchmarks"));
+  }
+
+  @Test
+  public void directCaptureSavesTheRingCopies() {
+    for (int sampleRate : new int[]{44100, 48000}) {
+      for (int channelCount = 1; channelCount <= 2; channelCount++) {
+        final int bytesPerFrame = 2 * channelCount;
+        // AudioRecord reads of 10 ms
+        final int blockSize = sampleRate / 100 * bytesPerFrame;
+        final RingPath ring = new RingPath(sampleRate, bytesPerFrame, blockSize);
+        final DirectPath direct = new DirectPath(sampleRate, bytesPerFrame, blockSize);
+        // the same samples arrive either way
+        assertEquals(ring.run(1000), direct.run(1000));
+
+        ring.run(WARM_UP_BLOCKS);
+        direct.run(WARM_UP_BLOCKS);
+        long start = System.nanoTime();
+        ring.run(BLOCKS);
+        final double ringNanos = (double) (System.nanoTime() - start) / BLOCKS;
+        start = System.nanoTime();
+        direct.run(BLOCKS);
+        final double directNanos = (double) (System.nanoTime() - start) / BLOCKS;
+        System.out.println(String.format(Locale.US, "%d Hz %s, %d byte blocks: ring %.2f us, direct %.2f us",
+          sampleRate, channelCount == 1 ? "mono" : "stereo", blockSize, ringNanos / 1000, directNanos / 1000));
+      }
+    }
+  }
+
+  /**
+   * a microphone that plays a tone over and over; reading copies from its buffer as
+   * AudioRecord copies from the audio HAL's.
+   */
+  private static final class Mic {
+
+    final byte[] samples;
+    int position;
+
+    Mic(int sampleRate, int bytesPerFrame) {
+      // one second, so that reads wrap at different points
+      samples = new byte[sampleRate * bytesPerFrame];
+      for (int i = 0; i < samples.length / 2; i++) {
+        final int value = (int) (16000 * Math.sin(i * 2 * Math.PI * 440 / sampleRate));
+        samples[2 * i] = (byte) value;
+        samples[2 * i + 1] = (byte) (value >> 8);
+      }
+    }
+
+    void read(byte[] data, int size) {
+      final int first = Math.min(size, samples.length - position);
+      System.arraycopy(samples, position, data, 0, first);
+      System.arraycopy(samples, 0, data, first, size - first);
+      position = (position + size) % samples.length;
+    }
+
+    void read(ByteBuffer buffer, int size) {
+      final int first = Math.min(size, samples.length - position);
+      buffer.put(samples, position, first);
+      buffer.put(samples, 0, size - first);
+      position = (position + size) % samples.length;
+    }
+  }
+
+  /**
+   * what the codec gets: each buffer queued is summed up, which also keeps the copies from
+   * being optimized away.
+   */
+  private static long consume(long sum, ByteBuffer input, int length) {
+    for (int i = 0; i < length; i += 64)
+      sum = sum * 31 + input.get(i);
+    return sum + length;
+  }
+
+  private static final class RingPath {
+
+    final Mic mic;
+    final int blockSize;
+    final byte[] data;
+    final PcmRingBuffer ring;
+    final ByteBuffer input = ByteBuffer.allocateDirect(INPUT_BUFFER_SIZE);
+    long ptsNanos;
+
+    RingPath(int sampleRate, int bytesPerFrame, int blockSize) {
+      mic = new Mic(sampleRate, bytesPerFrame);
+      this.blockSize = blockSize;
+      data = new byte[blockSize];
+      // as AudioEncoder sizes it, a second
+      ring = new PcmRingBuffer(sampleRate * bytesPerFrame, sampleRate, bytesPerFrame);
+    }
+
+    long run(int blocks) {
+      long sum = 0;
+      for (int i = 0; i < blocks; i++) {
+        mic.read(data, blockSize);
+        ring.write(data, 0, blockSize, ptsNanos);
+        ptsNanos += BLOCK_NANOS;
+        while (!ring.isEmpty()) {
+          input.clear();
+          ring.read(input);
+          sum = consume(sum, input, input.position());
+        }
+      }
+      return sum;
+    }
+  }
+
+  private static final class DirectPath {
+
+    final Mic mic;
+    final int blockSize;
+    final int bytesPerFrame;
+    final ByteBuffer input = ByteBuffer.allocateDirect(INPUT_BUFFER_SIZE);
+
+    DirectPath(int sampleRate, int bytesPerFrame, int blockSize) {
+      mic = new Mic(sampleRate, bytesPerFrame);
+      this.blockSize = blockSize;
+      this.bytesPerFrame = bytesPerFrame;
+    }
+
+    long run(int blocks) {
+      long sum = 0;
+      for (int i = 0; i < blocks; i++) {
+        input.clear();
+        // whole frames, as AudioRecorder reads them
+        final int size = Math.min(input.remaining(), blockSize) / bytesPerFrame * bytesPerFrame;
+        mic.read(input, size);
+        sum = consume(sum, input, size);
+      }
+      return sum;
+    }
+  }
+}
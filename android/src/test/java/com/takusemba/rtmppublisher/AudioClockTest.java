@@ -0,0 +1,135 @@
+package com.takusemba.rtmppublisher;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Simulates a microphone whose real sample rate is off the nominal one, read in 20 ms
+ * buffers that return a little late, and compares the clock's times with when the samples
+ * were really captured.
+ */
+public class AudioClockTest {
+
+  private static final int SAMPLE_RATE = 48000;
+  private static final int BUFFER = 960;
+  private static final long NANOS_PER_MS = 1000000L;
+  private static final long NANOS_PER_SECOND = 1000000000L;
+  private static final long START_NANOS = 5 * NANOS_PER_SECOND;
+
+  @Test
+  public void driftStaysWithinAFewMsOverThreeHours() {
+    for (int ppm : new int[]{100, -250, 500}) {
+      final Mic mic = new Mic(ppm, 3 * NANOS_PER_MS, 1);
+      long maxError = 0;
+      // three hours of 20 ms buffers
+      for (long i = 0; i < 3 * 3600 * 50; i++) {
+        final long pts = mic.read();
+        // the first minutes go to catching up with the drift that builds up meanwhile
+        if (i > 10 * 60 * 50)
+          maxError = Math.max(maxError, Math.abs(pts - mic.capturedAt));
+      }
+      assertTrue(ppm + " ppm: " + maxError / 1e6 + " ms off", maxError < 10 * NANOS_PER_MS);
+      // uncorrected, the sample count would be this far off by the end
+      final long uncorrected = mic.capturedAt - START_NANOS
+        - mic.samples * NANOS_PER_SECOND / SAMPLE_RATE;
+      assertTrue(ppm + " ppm drift " + uncorrected / 1e6 + " ms",
+        Math.abs(uncorrected) > 1000 * NANOS_PER_MS);
+    }
+  }
+
+  @Test
+  public void correctionIsSlewedAtMostOneThousandth() {
+    final Mic mic = new Mic(500, 3 * NANOS_PER_MS, 2);
+    final long duration = BUFFER * NANOS_PER_SECOND / SAMPLE_RATE;
+    long previous = mic.read();
+    for (int i = 0; i < 20 * 60 * 50; i++) {
+      final long pts = mic.read();
+      final long step = pts - previous - duration;
+      assertTrue("stepped by " + step + " ns", Math.abs(step) <= duration / 1000);
+      previous = pts;
+    }
+  }
+
+  @Test
+  public void smallErrorsAreLeftAlone() {
+    // a nominal rate microphone with under a millisecond of read jitter
+    final Mic mic = new Mic(0, NANOS_PER_MS, 3);
+    final long first = mic.read();
+    for (int i = 1; i < 10 * 60 * 50; i++)
+      assertEquals(first + clock().durationNanos((long) i * BUFFER), mic.read());
+  }
+
+  @Test
+  public void lostSamplesResyncAtOnce() {
+    final Mic mic = new Mic(0, 0, 4);
+    for (int i = 0; i < 500; i++)
+      mic.read();
+    // 300 ms of samples never arrive
+    mic.lose(300 * NANOS_PER_MS);
+    for (int i = 0; i < 2; i++) {
+      final long pts = mic.read();
+      assertEquals(mic.capturedAt, pts);
+    }
+  }
+
+  @Test
+  public void lossUnderTheResyncThresholdIsSlewedIn() {
+    final Mic mic = new Mic(0, 0, 5);
+    final long duration = BUFFER * NANOS_PER_SECOND / SAMPLE_RATE;
+    long previous = 0;
+    for (int i = 0; i < 500; i++)
+      previous = mic.read();
+    mic.lose(150 * NANOS_PER_MS);
+    long pts = 0;
+    for (int i = 0; i < 50 * 50; i++) {
+      pts = mic.read();
+      assertTrue(Math.abs(pts - previous - duration) <= duration / 1000);
+      previous = pts;
+    }
+    // still catching up, a little at a time
+    final long behind = mic.capturedAt - pts;
+    assertTrue(behind / 1e6 + " ms behind", behind > 0 && behind < 150 * NANOS_PER_MS);
+  }
+
+  private static AudioClock clock() {
+    return new AudioClock(SAMPLE_RATE);
+  }
+
+  /**
+   * A microphone running {@code ppm} off the nominal rate, whose reads return up to
+   * {@code jitterNanos} after the buffer is full.
+   */
+  private static final class Mic {
+
+    final AudioClock clock = clock();
+    final double ratePerNano;
+    final long jitterNanos;
+    final Random random;
+    long samples;
+    // capture time of the first sample of the buffer last read
+    long capturedAt;
+    long lostNanos;
+
+    Mic(int ppm, long jitterNanos, long seed) {
+      ratePerNano = SAMPLE_RATE * (1 + ppm / 1e6) / NANOS_PER_SECOND;
+      this.jitterNanos = jitterNanos;
+      random = new Random(seed);
+    }
+
+    long read() {
+      capturedAt = START_NANOS + lostNanos + Math.round(samples / ratePerNano);
+      samples += BUFFER;
+      final long full = START_NANOS + lostNanos + Math.round(samples / ratePerNano);
+      final long jitter = jitterNanos == 0 ? 0 : (long) (random.nextDouble() * jitterNanos);
+      return clock.next(BUFFER, full + jitter);
+    }
+
+    void lose(long nanos) {
+      lostNanos += nanos;
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package com.takusemba.rtmppublisher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class AudioProcessingChainTest {
+
+  @Test
+  public void latencyChangesWithTheBlockTheStagesTakeOverAt() {
+    final AudioProcessingChain chain = new AudioProcessingChain();
+    chain.setProcessors(480, new AudioProcessor[]{new AudioGain(3), new LookAheadLimiter(-1, 240)});
+    chain.prepare(48000, 1);
+    assertEquals(240, chain.getLatency());
+
+    final byte[] block = new byte[960];
+    chain.process(block, 0, block.length);
+    // set while capturing: the stages in use still count until the next block
+    chain.setProcessors(480, new AudioProcessor[]{new LookAheadLimiter(-1, 480)});
+    assertEquals(240, chain.getLatency());
+    chain.process(block, 0, block.length);
+    assertEquals(480, chain.getLatency());
+
+    chain.setProcessors(480, new AudioProcessor[0]);
+    chain.process(block, 0, block.length);
+    assertEquals(0, chain.getLatency());
+  }
+
+  @Test
+  public void stagesOverTheLatencyAreRefused() {
+    final AudioProcessingChain chain = new AudioProcessingChain();
+    chain.setProcessors(240, new AudioProcessor[]{new LookAheadLimiter(-1, 240)});
+    chain.prepare(44100, 2);
+    try {
+      chain.setProcessors(240, new AudioProcessor[]{new LookAheadLimiter(-1, 200), new LookAheadLimiter(-1, 41)});
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    // the stages in use stay
+    chain.process(new byte[400], 0, 400);
+    assertEquals(240, chain.getLatency());
+  }
+}
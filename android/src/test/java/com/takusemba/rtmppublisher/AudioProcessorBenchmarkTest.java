@@ -0,0 +1,109 @@
+package com.takusemba.rtmppublisher;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Times each {@link AudioProcessor} and the whole chain on the 10 ms blocks AudioRecord reads,
+ * mono and stereo, after warming up. The times are printed; the test only fails if a stage
+ * eats a sizeable part of the block it is given, as it then holds up capture. What the stages
+ * do is tested on its own; run this with -Dbenchmarks=true.
+ */
+public class AudioProcessorBenchmarkTest {
+
+  private static final int WARM_UP_BLOCKS = 20000;
+  private static final int BLOCKS = 20000;
+  // of the block's own duration
+  private static final double MAX_SHARE = 0.1;
+
+  @Before
+  public void setUp() {
+    assumeTrue("benchmarks are run with -Dbenchmarks=true", Boolean.getBoolean("benchmarks"));
+  }
+
+  @Test
+  public void stagesKeepUpWithCapture() {
+    for (int sampleRate : new int[]{44100, 48000}) {
+      for (int channelCount = 1; channelCount <= 2; channelCount++) {
+        for (AudioProcessor processor : stages())
+          assertFast(processor.getClass().getSimpleName(), sampleRate, channelCount,
+            timeStage(processor, sampleRate, channelCount));
+        assertFast("chain", sampleRate, channelCount, timeChain(sampleRate, channelCount));
+      }
+    }
+  }
+
+  private static AudioProcessor[] stages() {
+    return new AudioProcessor[]{
+      new AudioGain(6),
+      new HighPassFilter(100),
+      new NoiseGate(-45),
+      new LookAheadLimiter(-1, 240)
+    };
+  }
+
+  /**
+   * @return nanoseconds per block, including copying a fresh block in, as the stages work in
+   * place and would otherwise keep amplifying the same samples.
+   */
+  private static double timeStage(AudioProcessor processor, int sampleRate, int channelCount) {
+    final int frames = sampleRate / 100;
+    final float[] input = new float[frames * channelCount];
+    for (int i = 0; i < input.length; i++)
+      input[i] = (float) (0.5 * Math.sin(i * 0.05));
+    final float[] block = new float[input.length];
+    processor.prepare(sampleRate, channelCount);
+    for (int i = 0; i < WARM_UP_BLOCKS; i++) {
+      System.arraycopy(input, 0, block, 0, block.length);
+      processor.process(block, 0, frames);
+    }
+    final long start = System.nanoTime();
+    for (int i = 0; i < BLOCKS; i++) {
+      System.arraycopy(input, 0, block, 0, block.length);
+      processor.process(block, 0, frames);
+    }
+    final long elapsed = System.nanoTime() - start;
+    for (float sample : block)
+      assertTrue(processor.getClass().getSimpleName() + " gave " + sample, !Float.isNaN(sample) && !Float.isInfinite(sample));
+    return (double) elapsed / BLOCKS;
+  }
+
+  /**
+   * the stages together, with the conversion to and from 16 bit PCM.
+   */
+  private static double timeChain(int sampleRate, int channelCount) {
+    final int frames = sampleRate / 100;
+    final byte[] input = new byte[frames * channelCount * 2];
+    for (int i = 0; i < input.length / 2; i++) {
+      final int value = (int) (16000 * Math.sin(i * 0.05));
+      input[2 * i] = (byte) value;
+      input[2 * i + 1] = (byte) (value >> 8);
+    }
+    final byte[] block = new byte[input.length];
+    final AudioProcessingChain chain = new AudioProcessingChain();
+    chain.setProcessors(240, stages());
+    chain.prepare(sampleRate, channelCount);
+    for (int i = 0; i < WARM_UP_BLOCKS; i++) {
+      System.arraycopy(input, 0, block, 0, block.length);
+      chain.process(block, 0, block.length);
+    }
+    final long start = System.nanoTime();
+    for (int i = 0; i < BLOCKS; i++) {
+      System.arraycopy(input, 0, block, 0, block.length);
+      chain.process(block, 0, block.length);
+    }
+    return (double) (System.nanoTime() - start) / BLOCKS;
+  }
+
+  private static void assertFast(String name, int sampleRate, int channelCount, double nanos) {
+    final int frames = sampleRate / 100;
+    System.out.println(String.format(Locale.US, "%-16s %d frames %s: %.2f us",
+      name, frames, channelCount == 1 ? "mono" : "stereo", nanos / 1000));
+    assertTrue(name + " takes " + nanos + " ns of a 10 ms block", nanos < MAX_SHARE * 10000000L);
+  }
+}
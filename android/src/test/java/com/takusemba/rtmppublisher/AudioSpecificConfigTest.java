@@ -0,0 +1,118 @@
+package com.takusemba.rtmppublisher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AudioSpecificConfigTest {
+
+  private static final int[] SAMPLE_RATES = {
+    96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+  };
+
+  @Test
+  public void lc() {
+    // object type 2, rate index 4 or 3, channels, then three zero bits
+    assertConfig(AacProfile.LC, 44100, 1, 0x12, 0x08);
+    assertConfig(AacProfile.LC, 44100, 2, 0x12, 0x10);
+    assertConfig(AacProfile.LC, 48000, 1, 0x11, 0x88);
+    assertConfig(AacProfile.LC, 48000, 2, 0x11, 0x90);
+  }
+
+  @Test
+  public void heAac() {
+    // object type 5, the core's rate index (22050: 7, 24000: 6), channels, the output rate
+    // index (44100: 4, 48000: 3), core object type 2 and three zero bits
+    assertConfig(AacProfile.HE, 44100, 1, 0x2b, 0x8a, 0x08, 0x00);
+    assertConfig(AacProfile.HE, 44100, 2, 0x2b, 0x92, 0x08, 0x00);
+    assertConfig(AacProfile.HE, 48000, 1, 0x2b, 0x09, 0x88, 0x00);
+    assertConfig(AacProfile.HE, 48000, 2, 0x2b, 0x11, 0x88, 0x00);
+  }
+
+  @Test
+  public void heAacV2() {
+    // object type 29; the core is mono, whatever goes in
+    assertConfig(AacProfile.HE_V2, 44100, 2, 0xeb, 0x8a, 0x08, 0x00);
+    assertConfig(AacProfile.HE_V2, 48000, 2, 0xeb, 0x09, 0x88, 0x00);
+    assertConfig(AacProfile.HE_V2, 44100, 1, 0xeb, 0x8a, 0x08, 0x00);
+    assertConfig(AacProfile.HE_V2, 48000, 1, 0xeb, 0x09, 0x88, 0x00);
+  }
+
+  @Test
+  public void fieldsReadBackAtEverySupportedRate() {
+    for (AacProfile profile : AacProfile.values()) {
+      for (int rate = 0; rate < SAMPLE_RATES.length; rate++) {
+        final int sampleRate = SAMPLE_RATES[rate];
+        if (!AudioSpecificConfig.isSupported(profile, sampleRate))
+          continue;
+        for (int channelCount = 1; channelCount <= 2; channelCount++) {
+          final String name = profile + " " + sampleRate + " " + channelCount;
+          final Bits bits = new Bits(AudioSpecificConfig.build(profile, sampleRate, channelCount));
+          if (profile == AacProfile.LC) {
+            assertEquals(name, 2, bits.read(5));
+            assertEquals(name, rate, bits.read(4));
+            assertEquals(name, channelCount, bits.read(4));
+          } else {
+            assertEquals(name, profile == AacProfile.HE ? 5 : 29, bits.read(5));
+            assertEquals(name, sampleRate / 2, SAMPLE_RATES[bits.read(4)]);
+            assertEquals(name, profile == AacProfile.HE ? channelCount : 1, bits.read(4));
+            assertEquals(name, rate, bits.read(4));
+            assertEquals(name, 2, bits.read(5));
+          }
+          // GASpecificConfig: frame length 1024, no core coder delay, no extension
+          assertEquals(name, 0, bits.read(3));
+          assertTrue(name + " has " + bits.left() + " bits over", bits.left() < 8);
+          assertEquals(name, 0, bits.read(bits.left()));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void heAacNeedsAnIndexForTheCoreRate() {
+    assertTrue(AudioSpecificConfig.isSupported(AacProfile.LC, 8000));
+    assertTrue(AudioSpecificConfig.isSupported(AacProfile.LC, 7350));
+    // 4000 Hz and 3675 Hz have no index
+    assertFalse(AudioSpecificConfig.isSupported(AacProfile.HE, 8000));
+    assertFalse(AudioSpecificConfig.isSupported(AacProfile.HE_V2, 7350));
+    assertFalse(AudioSpecificConfig.isSupported(AacProfile.LC, 44000));
+    try {
+      AudioSpecificConfig.build(AacProfile.HE, 8000, 1);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private static void assertConfig(AacProfile profile, int sampleRate, int channelCount, int... expected) {
+    final byte[] bytes = new byte[expected.length];
+    for (int i = 0; i < expected.length; i++)
+      bytes[i] = (byte) expected[i];
+    assertArrayEquals(profile + " " + sampleRate + " " + channelCount, bytes,
+      AudioSpecificConfig.build(profile, sampleRate, channelCount));
+  }
+
+  private static final class Bits {
+
+    final byte[] data;
+    int position;
+
+    Bits(byte[] data) {
+      this.data = data;
+    }
+
+    int read(int count) {
+      int value = 0;
+      for (int i = 0; i < count; i++, position++)
+        value = value << 1 | (data[position >> 3] >> (7 - (position & 7))) & 1;
+      return value;
+    }
+
+    int left() {
+      return data.length * 8 - position;
+    }
+  }
+}
@@ -0,0 +1,202 @@
+package com.takusemba.rtmppublisher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the timeline synthetic capture times the way AudioEncoder does: silence for a gap,
+ * samples left out of a chunk when capture is behind, then the chunk.
+ */
+public class AudioTimelineTest {
+
+  private static final long NANOS_PER_SECOND = 1000000000L;
+  private static final long NANOS_PER_MS = 1000000L;
+  private static final long START_NANOS = 7 * NANOS_PER_SECOND;
+
+  @Test
+  public void steadyCaptureIsLeftAlone() {
+    final Feeder feeder = new Feeder(48000);
+    // 20 ms reads, up to half a frame of jitter either way
+    for (int i = 0; i < 3000; i++) {
+      final long jitter = (i % 7 - 3) * 3 * NANOS_PER_MS;
+      feeder.feedAt(START_NANOS + feeder.samplesToNanos(i * 960L) + jitter, 960);
+    }
+    assertEquals(0, feeder.timeline.getSilenceSamples());
+    assertEquals(0, feeder.timeline.getCutSamples());
+    feeder.assertOnGrid(1024);
+  }
+
+  @Test
+  public void gapOverAFrameIsFilledWithSilence() {
+    final Feeder feeder = new Feeder(48000);
+    feeder.feedSteadily(100, 960);
+    // 50 ms of capture went missing
+    final long lost = feeder.samplesToNanos(2400);
+    feeder.feedAt(feeder.captureNanos + lost, 960);
+    assertEquals(2400, feeder.timeline.getSilenceSamples());
+    assertEquals(0, feeder.timeline.getCutSamples());
+    // the chunk goes right after the silence, where it was captured
+    assertEquals(feeder.captureNanos - feeder.samplesToNanos(960), feeder.lastChunkPtsNanos);
+
+    // under a frame missing is left as it is
+    feeder.feedAt(feeder.captureNanos + feeder.samplesToNanos(1000), 960);
+    assertEquals(2400, feeder.timeline.getSilenceSamples());
+    feeder.feedSteadily(100, 960);
+    assertEquals(2400, feeder.timeline.getSilenceSamples());
+    feeder.assertOnGrid(1024);
+  }
+
+  @Test
+  public void captureBehindTheCountIsCut() {
+    final Feeder feeder = new Feeder(44100);
+    feeder.feedSteadily(100, 2048);
+    // the next chunk starts 40 ms, 1764 samples, before the end of the timeline
+    final long next = feeder.timeline.getNextPtsNanos();
+    feeder.feedAt(next - 40 * NANOS_PER_MS, 2048);
+    assertEquals(1764, feeder.timeline.getCutSamples());
+    assertEquals(0, feeder.timeline.getSilenceSamples());
+    // what is left of it joins up with the timeline
+    assertEquals(next, feeder.lastChunkPtsNanos);
+    assertEquals(100 * 2048 + 284, feeder.samples);
+
+    // a chunk captured wholly before the end of the timeline is cut out altogether
+    feeder.feedAt(feeder.timeline.getNextPtsNanos() - feeder.samplesToNanos(3000), 1024);
+    assertEquals(1764 + 1024, feeder.timeline.getCutSamples());
+    assertEquals(100 * 2048 + 284, feeder.samples);
+    feeder.assertOnGrid(2048);
+  }
+
+  @Test
+  public void jumpOverTwoSecondsStartsOver() {
+    final Feeder feeder = new Feeder(48000);
+    feeder.feedSteadily(100, 960);
+    final long forward = feeder.captureNanos + 3 * NANOS_PER_SECOND;
+    feeder.feedAt(forward, 960);
+    // no three seconds of silence; the count starts over at the capture time
+    assertEquals(0, feeder.timeline.getSilenceSamples());
+    assertEquals(forward, feeder.lastChunkPtsNanos);
+    feeder.restartGrid(forward, 960);
+    feeder.feedSteadily(100, 960);
+    feeder.assertOnGrid(1024);
+
+    // and the same backwards, rather than cutting seconds of audio
+    final long backward = feeder.captureNanos - 5 * NANOS_PER_SECOND;
+    feeder.feedAt(backward, 960);
+    assertEquals(0, feeder.timeline.getCutSamples());
+    assertEquals(backward, feeder.lastChunkPtsNanos);
+    feeder.restartGrid(backward, 960);
+    feeder.feedSteadily(100, 960);
+    feeder.assertOnGrid(2048);
+  }
+
+  @Test
+  public void gapUpToTwoSecondsIsStillFilled() {
+    final Feeder feeder = new Feeder(44100);
+    feeder.feedSteadily(10, 1024);
+    feeder.feedAt(feeder.captureNanos + 2 * NANOS_PER_SECOND - NANOS_PER_MS, 1024);
+    assertEquals(44100 * 1999 / 1000, feeder.timeline.getSilenceSamples());
+    feeder.assertOnGrid(1024);
+  }
+
+  @Test
+  public void resetStartsTheCountOver() {
+    final Feeder feeder = new Feeder(48000);
+    feeder.feedSteadily(50, 960);
+    feeder.timeline.reset();
+    // a pause of a second, taken out of the stream
+    final long resumed = feeder.captureNanos + NANOS_PER_SECOND;
+    feeder.feedAt(resumed, 960);
+    assertEquals(0, feeder.timeline.getSilenceSamples());
+    assertEquals(resumed, feeder.lastChunkPtsNanos);
+  }
+
+  /**
+   * does what AudioEncoder.enqueueData does with the timeline, and keeps track of the samples
+   * that went to the codec since the count last started.
+   */
+  private static final class Feeder {
+
+    final int sampleRate;
+    final AudioTimeline timeline;
+    // capture time of the end of the last chunk
+    long captureNanos = START_NANOS;
+    long lastChunkPtsNanos;
+    // the grid: samples to the codec since this time, the first chunk's capture time
+    long gridStartNanos = -1;
+    long samples;
+    // since the count started: sample count and presentation time at the start of each run
+    // of samples that went to the codec
+    final ArrayList<long[]> runs = new ArrayList<>();
+
+    Feeder(int sampleRate) {
+      this.sampleRate = sampleRate;
+      timeline = new AudioTimeline(sampleRate);
+    }
+
+    long samplesToNanos(long count) {
+      return count * NANOS_PER_SECOND / sampleRate;
+    }
+
+    void feedSteadily(int chunks, int chunkSamples) {
+      for (int i = 0; i < chunks; i++)
+        feedAt(captureNanos, chunkSamples);
+    }
+
+    void feedAt(long ptsNanos, int chunkSamples) {
+      if (gridStartNanos < 0)
+        gridStartNanos = ptsNanos;
+      final long gap = timeline.gap(ptsNanos);
+      int length = chunkSamples;
+      if (gap > 0) {
+        runs.add(new long[]{samples, timeline.advanceSilence(gap)});
+        samples += gap;
+      } else if (gap < 0) {
+        final int cut = (int) Math.min(length, -gap);
+        timeline.cut(cut);
+        length -= cut;
+      }
+      lastChunkPtsNanos = timeline.advance(length);
+      runs.add(new long[]{samples, lastChunkPtsNanos});
+      samples += length;
+      captureNanos = ptsNanos + samplesToNanos(chunkSamples);
+    }
+
+    /**
+     * the timeline started over at {@code anchorNanos} with a chunk of {@code chunkSamples}.
+     */
+    void restartGrid(long anchorNanos, int chunkSamples) {
+      gridStartNanos = anchorNanos;
+      samples = chunkSamples;
+      runs.clear();
+      runs.add(new long[]{0, anchorNanos});
+    }
+
+    long gridNanos(long count) {
+      return gridStartNanos + count * NANOS_PER_SECOND / sampleRate;
+    }
+
+    /**
+     * every sample made it into the count, so the AAC frames of {@code frameSamples} the codec
+     * cuts the runs into start a whole number of frames from the start of the count.
+     */
+    void assertOnGrid(int frameSamples) {
+      assertEquals(gridNanos(samples), timeline.getNextPtsNanos());
+      int run = 0;
+      long frames = 0;
+      for (long start = 0; start < samples; start += frameSamples) {
+        while (run + 1 < runs.size() && runs.get(run + 1)[0] <= start)
+          run++;
+        // the codec stamps a frame from the run its first sample is in
+        final long[] held = runs.get(run);
+        final long ptsNanos = held[1] + (start - held[0]) * NANOS_PER_SECOND / sampleRate;
+        assertEquals("frame " + frames, gridNanos(start), ptsNanos, 1);
+        frames++;
+      }
+      assertTrue(frames > 1);
+    }
+  }
+}
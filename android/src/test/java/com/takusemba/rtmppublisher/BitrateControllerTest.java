@@ -0,0 +1,173 @@
+package com.takusemba.rtmppublisher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays synthetic uplink traces through the controller: the encoder produces what it was
+ * last told to, a link of the given capacity sends what it can, and the backlog is what the
+ * controller sees as queue duration and blocked writes.
+ */
+public class BitrateControllerTest {
+
+  private static final int MIN = 300000;
+  private static final int MAX = 4000000;
+  private static final int STEP = (MAX - MIN) / 10;
+  private static final long INTERVAL_MS = 1000;
+
+  @Test
+  public void backsOffBelowAReducedUplink() {
+    final Link link = new Link(new BitrateController(MIN, MAX, 3000000));
+    // two probes up on a link with room
+    link.run(4000000, 10);
+    assertEquals(3000000 + 2 * STEP, link.bitrate);
+
+    final int[] trace = link.run(1500000, 60);
+    // two congested intervals per step down, each to at most 85% of what got through
+    int firstUnder = -1;
+    for (int i = 0; i < trace.length; i++) {
+      if (trace[i] <= 1500000) {
+        firstUnder = i;
+        break;
+      }
+    }
+    assertTrue("took " + firstUnder + " intervals", firstUnder >= 0 && firstUnder <= 4);
+    // settles under the link, probing up at most a step over it now and then
+    for (int i = 30; i < trace.length; i++) {
+      assertTrue(trace[i] + " at " + i, trace[i] <= 1500000 + STEP);
+      assertTrue(trace[i] + " at " + i, trace[i] >= 1500000 / 2);
+    }
+    assertTrue("queue " + link.queueMs(), link.queueMs() < 400);
+  }
+
+  @Test
+  public void rampsUpOneStepAtATimeAfterRecovery() {
+    final Link link = new Link(new BitrateController(MIN, MAX, 3000000));
+    link.run(800000, 30);
+    assertTrue(link.bitrate + " over the link", link.bitrate <= 800000);
+    final int low = link.bitrate;
+
+    final int[] trace = link.run(5000000, 80);
+    int previous = low;
+    int lastStep = -5;
+    for (int i = 0; i < trace.length; i++) {
+      final int change = trace[i] - previous;
+      assertTrue("fell by " + -change + " on a clear link", change >= 0);
+      assertTrue("rose by " + change, change <= STEP);
+      if (change > 0) {
+        // five clear intervals between steps
+        assertTrue("stepped at " + i + " after " + lastStep, i - lastStep >= 5);
+        lastStep = i;
+      }
+      previous = trace[i];
+    }
+    assertEquals(MAX, link.bitrate);
+    final int steps = (MAX - low + STEP - 1) / STEP;
+    assertTrue("reached the top at " + firstAt(trace, MAX), firstAt(trace, MAX) <= 5 * steps);
+  }
+
+  @Test
+  public void oscillatingUplinkKeepsTheQueueBounded() {
+    final Link link = new Link(new BitrateController(MIN, MAX, 2000000));
+    int maxQueueMs = 0;
+    long sum = 0;
+    int count = 0;
+    for (int cycle = 0; cycle < 6; cycle++) {
+      final int[] high = link.run(3000000, 10);
+      maxQueueMs = Math.max(maxQueueMs, link.maxQueueMs);
+      final int[] low = link.run(1000000, 10);
+      maxQueueMs = Math.max(maxQueueMs, link.maxQueueMs);
+      if (cycle >= 2) {
+        for (int bitrate : high) {
+          sum += bitrate;
+          count++;
+        }
+        for (int bitrate : low) {
+          sum += bitrate;
+          count++;
+        }
+      }
+      // whatever it probed up to on the fast link, it is back around the slow one in time
+      final int settled = low[low.length - 1];
+      assertTrue(settled + " after a slow phase", settled <= 1000000 + STEP);
+    }
+    // the swings stay within a few seconds of backlog and the average under the mean link
+    assertTrue("queue reached " + maxQueueMs + " ms", maxQueueMs < 5000);
+    assertTrue("average " + sum / count, sum / count < 2000000);
+    assertTrue("average " + sum / count, sum / count > 500000);
+  }
+
+  @Test
+  public void singleCongestedIntervalIsIgnored() {
+    final BitrateController controller = new BitrateController(MIN, MAX, 2000000);
+    final long bytes = 2000000 / 8;
+    assertEquals(2000000, controller.update(INTERVAL_MS, 600, bytes, 0));
+    // a normal interval in between starts the count over
+    assertEquals(2000000, controller.update(INTERVAL_MS, 200, bytes, 0));
+    assertEquals(2000000, controller.update(INTERVAL_MS, 600, bytes, 0));
+    final int backedOff = controller.update(INTERVAL_MS, 600, bytes, 0);
+    assertEquals(1500000, backedOff);
+  }
+
+  @Test
+  public void blockedWritesCountAsCongestion() {
+    final BitrateController controller = new BitrateController(MIN, MAX, 2000000);
+    controller.setHysteresis(5, 1);
+    // the queue looks fine but the socket took only 600 kbps, blocking most of the time
+    final int bitrate = controller.update(INTERVAL_MS, 50, 600000 / 8, 800 * 1000000L);
+    assertEquals((int) (600000 * 0.85), bitrate);
+    // never below the floor
+    assertEquals(MIN, controller.update(INTERVAL_MS, 50, 0, 900 * 1000000L));
+  }
+
+  private static int firstAt(int[] trace, int bitrate) {
+    for (int i = 0; i < trace.length; i++) {
+      if (trace[i] == bitrate)
+        return i;
+    }
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   * A link that sends up to its capacity each interval; what it can't send waits in the queue.
+   */
+  private static final class Link {
+
+    final BitrateController controller;
+    int bitrate;
+    // bits waiting to be sent
+    long queuedBits;
+    int maxQueueMs;
+
+    Link(BitrateController controller) {
+      this.controller = controller;
+      bitrate = controller.getBitrate();
+    }
+
+    /**
+     * @return the bitrate after each interval.
+     */
+    int[] run(int capacity, int intervals) {
+      final int[] trace = new int[intervals];
+      maxQueueMs = 0;
+      for (int i = 0; i < intervals; i++) {
+        final long produced = bitrate * INTERVAL_MS / 1000;
+        final long capacityBits = capacity * INTERVAL_MS / 1000;
+        final long sent = Math.min(queuedBits + produced, capacityBits);
+        queuedBits += produced - sent;
+        // the writer waits on the socket for as long as there is more than it can take
+        final long blockedNanos = queuedBits > 0 ? INTERVAL_MS * 900000L : 0;
+        maxQueueMs = Math.max(maxQueueMs, queueMs());
+        bitrate = controller.update(INTERVAL_MS, queueMs(), sent / 8, blockedNanos);
+        trace[i] = bitrate;
+      }
+      return trace;
+    }
+
+    int queueMs() {
+      return (int) (queuedBits * 1000 / Math.max(bitrate, 1));
+    }
+  }
+}
@@ -0,0 +1,192 @@
+package com.takusemba.rtmppublisher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds camera timestamp traces to the pacer and checks how many frames it takes and how
+ * evenly they are spaced.
+ */
+public class FramePacerTest {
+
+  private static final long NANOS_PER_MS = 1000000L;
+  private static final int SECONDS = 10;
+  // the pacer starts out assuming the camera runs at the target rate and takes a few frames
+  // to learn better, so the spacing is only checked after this
+  private static final long SETTLE_NANOS = 300 * NANOS_PER_MS;
+
+  @Test
+  public void fasterCameraIsThinnedToTheTargetRate() {
+    assertPacing(30, trace(60, 0, 0), 300, 1, 0.1);
+    assertPacing(15, trace(30, 0, 0), 150, 1, 0.1);
+    assertPacing(15, trace(60, 0, 0), 150, 1, 0.1);
+  }
+
+  @Test
+  public void unevenRatioAlternatesBetweenNeighbouringFrames() {
+    // 25 -> 15 takes 3 frames in 5, 40 or 80 ms apart
+    assertPacing(15, trace(25, 0, 0), 150, 1, 26.7);
+    assertPacing(15, trace(24, 0, 0), 150, 1, 25.1);
+    // every other frame, off only by the camera's rate
+    assertPacing(15, trace(29.97, 0, 0), 150, 1, 0.1);
+  }
+
+  @Test
+  public void filmRateTarget() {
+    assertPacing(24, trace(48, 0, 0), 240, 1, 0.1);
+    // 2.5 frames per output frame: 33.3 and 50 ms apart
+    assertPacing(24, trace(60, 0, 0), 240, 1, 8.4);
+    // 5 in 4: mostly 33.3 ms, with a 66.7 ms gap where a frame is skipped
+    assertPacing(24, trace(30, 0, 0), 240, 1, 25.1);
+    assertPacing(24, trace(29.97, 0, 0), 240, 1, 25.1);
+    // one frame in 25 left out, an 80 ms gap
+    assertPacing(24, trace(25, 0, 0), 240, 1, 40.1);
+  }
+
+  @Test
+  public void palRateTarget() {
+    assertPacing(25, trace(50, 0, 0), 250, 1, 0.1);
+    // 2.4 frames per output frame: 33.3 and 50 ms apart
+    assertPacing(25, trace(60, 0, 0), 250, 1, 10.1);
+    assertPacing(25, trace(30, 0, 0), 250, 1, 26.7);
+    assertPacing(25, trace(29.97, 0, 0), 250, 1, 26.8);
+    // the uneven spacing, a frame's shift for a dropped one, and the jitter on top
+    assertPacing(25, trace(60, 3 * NANOS_PER_MS, 5), 250, 2, 10 + 16.7 + 6.1);
+  }
+
+  @Test
+  public void highRateTarget() {
+    assertPacing(60, trace(120, 0, 0), 600, 1, 0.1);
+    // 1.5 frames per output frame: 11.1 and 22.2 ms apart
+    assertPacing(60, trace(90, 0, 0), 600, 1, 5.6);
+    final long[] ntsc = trace(59.94, 0, 0);
+    assertPacing(60, ntsc, ntsc.length, 0, 0.1);
+    final long[] slower = trace(30, 0, 0);
+    assertPacing(60, slower, slower.length, 0, 33.4 - 16.7);
+  }
+
+  @Test
+  public void slowerCameraPassesEveryFrame() {
+    final long[] film = trace(24, 0, 0);
+    assertPacing(30, film, film.length, 0, 41.7 - 33.3 + 0.1);
+    final long[] pal = trace(25, 0, 0);
+    assertPacing(30, pal, pal.length, 0, 40 - 33.3 + 0.1);
+  }
+
+  @Test
+  public void ntscRateKeepsEveryFrameWithoutDrift() {
+    final long[] ntsc = trace(29.97, 0, 0);
+    assertPacing(30, ntsc, ntsc.length, 0, 0.1);
+  }
+
+  @Test
+  public void jitterDoesNotDropFramesAtTheSameRate() {
+    final long[] jittered = trace(30, 4 * NANOS_PER_MS, 0);
+    assertPacing(30, jittered, jittered.length, 0, 8.1);
+  }
+
+  @Test
+  public void jitteredFastCameraKeepsTheTargetRate() {
+    // no worse than the jitter of the two frames at either end
+    assertPacing(30, trace(60, 3 * NANOS_PER_MS, 0), 300, 2, 6.1);
+    assertPacing(15, trace(30, 3 * NANOS_PER_MS, 0), 150, 2, 6.1);
+  }
+
+  @Test
+  public void droppedFramesAreNotMadeUpWithABurst() {
+    // every 7th frame missing
+    final long[] dropped = trace(30, 0, 7);
+    final List<Long> accepted = run(30, dropped);
+    assertEquals(dropped.length, accepted.size());
+    assertTrue(minInterval(accepted) >= 33 * NANOS_PER_MS);
+    // a fast camera that drops frames still gives the target rate, from the frames left; a
+    // missing frame moves the pick to the next one
+    assertPacing(30, trace(60, 0, 5), 300, 2, 16.7 + 0.1);
+    assertPacing(15, trace(60, 2 * NANOS_PER_MS, 4), 150, 2, 16.7 + 4.1);
+  }
+
+  @Test
+  public void stallRestartsTheCadence() {
+    final long[] stall = trace(30, 0, 0);
+    // a second without frames in the middle
+    for (int i = stall.length / 2; i < stall.length; i++)
+      stall[i] += 1000 * NANOS_PER_MS;
+    final List<Long> accepted = run(30, stall);
+    assertEquals(stall.length, accepted.size());
+    assertTrue(minInterval(accepted) >= 33 * NANOS_PER_MS);
+  }
+
+  @Test
+  public void backwardJumpStartsANewTimeline() {
+    final FramePacer pacer = new FramePacer(30);
+    assertTrue(pacer.accept(10000 * NANOS_PER_MS));
+    assertTrue(pacer.accept(10033 * NANOS_PER_MS + NANOS_PER_MS / 3));
+    // a small step back is a reordered frame, dropped
+    assertTrue(!pacer.accept(10020 * NANOS_PER_MS));
+    // a big one is another camera
+    assertTrue(pacer.accept(5000 * NANOS_PER_MS));
+  }
+
+  /**
+   * @param jitterNanos each timestamp is moved by up to this much either way.
+   * @param dropEvery leave out every n-th frame; 0 for none.
+   */
+  private static long[] trace(double fps, long jitterNanos, int dropEvery) {
+    final Random random = new Random(42);
+    final List<Long> timestamps = new ArrayList<>();
+    final int frames = (int) Math.round(fps * SECONDS);
+    for (int i = 0; i < frames; i++) {
+      if (dropEvery > 0 && i % dropEvery == dropEvery - 1)
+        continue;
+      final long jitter = jitterNanos == 0 ? 0 : (long) ((random.nextDouble() * 2 - 1) * jitterNanos);
+      timestamps.add(1000000000L + Math.round(i * 1e9 / fps) + jitter);
+    }
+    final long[] trace = new long[timestamps.size()];
+    for (int i = 0; i < trace.length; i++)
+      trace[i] = timestamps.get(i);
+    return trace;
+  }
+
+  private static List<Long> run(int fps, long[] trace) {
+    final FramePacer pacer = new FramePacer(fps);
+    final List<Long> accepted = new ArrayList<>();
+    for (long timestamp : trace) {
+      if (pacer.accept(timestamp))
+        accepted.add(timestamp);
+    }
+    return accepted;
+  }
+
+  /**
+   * @param maxDeviationMs how far any interval between the frames taken, once settled, may be
+   * from the target's.
+   */
+  private static void assertPacing(int fps, long[] trace, int expected, int tolerance,
+                                   double maxDeviationMs) {
+    final List<Long> accepted = run(fps, trace);
+    assertTrue("accepted " + accepted.size() + ", expected " + expected,
+      Math.abs(accepted.size() - expected) <= tolerance);
+    final long target = 1000000000L / fps;
+    long maxDeviation = 0;
+    for (int i = 1; i < accepted.size(); i++) {
+      if (accepted.get(i - 1) - trace[0] < SETTLE_NANOS)
+        continue;
+      maxDeviation = Math.max(maxDeviation, Math.abs(accepted.get(i) - accepted.get(i - 1) - target));
+    }
+    assertTrue("deviation " + maxDeviation / 1e6 + " ms over " + maxDeviationMs,
+      maxDeviation <= maxDeviationMs * NANOS_PER_MS);
+  }
+
+  private static long minInterval(List<Long> accepted) {
+    long min = Long.MAX_VALUE;
+    for (int i = 1; i < accepted.size(); i++)
+      min = Math.min(min, accepted.get(i) - accepted.get(i - 1));
+    return min;
+  }
+}
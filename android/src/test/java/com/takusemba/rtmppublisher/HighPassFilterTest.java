@@ -0,0 +1,64 @@
+package com.takusemba.rtmppublisher;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HighPassFilterTest {
+
+  @Test
+  public void cutsBelowTheCutoffAndPassesAbove() {
+    for (int sampleRate : new int[]{44100, 48000}) {
+      for (int channelCount = 1; channelCount <= 2; channelCount++) {
+        final String name = sampleRate + " Hz, " + channelCount + " channels";
+        // second order: 12 dB per octave under the cutoff, 3 dB down at it
+        assertTrue(name, gainDb(100, 25, sampleRate, channelCount) < -23);
+        assertTrue(name, gainDb(100, 50, sampleRate, channelCount) < -11);
+        assertEquals(name, -3, gainDb(100, 100, sampleRate, channelCount), 0.3);
+        assertEquals(name, 0, gainDb(100, 400, sampleRate, channelCount), 0.1);
+        assertEquals(name, 0, gainDb(100, 1000, sampleRate, channelCount), 0.05);
+      }
+    }
+  }
+
+  @Test
+  public void removesDcOffset() {
+    final HighPassFilter filter = new HighPassFilter(80);
+    filter.prepare(48000, 1);
+    final float[] samples = new float[48000];
+    Arrays.fill(samples, 0.3f);
+    filter.process(samples, 0, samples.length);
+    assertEquals(0, samples[samples.length - 1], 1e-5f);
+  }
+
+  /**
+   * @return the filter's gain on a tone, once it has settled.
+   */
+  private static double gainDb(float cutoffHz, double toneHz, int sampleRate, int channelCount) {
+    final HighPassFilter filter = new HighPassFilter(cutoffHz);
+    filter.prepare(sampleRate, channelCount);
+    // two seconds in 10 ms blocks; the first is for the filter to settle
+    final int block = sampleRate / 100;
+    final float[] samples = new float[block * channelCount];
+    double in = 0;
+    double out = 0;
+    for (int b = 0; b < 200; b++) {
+      for (int f = 0; f < block; f++) {
+        final double sample = 0.5 * Math.sin(2 * Math.PI * toneHz * (b * block + f) / sampleRate);
+        for (int c = 0; c < channelCount; c++)
+          samples[f * channelCount + c] = (float) sample;
+        if (b >= 100)
+          in += sample * sample * channelCount;
+      }
+      filter.process(samples, 0, block);
+      if (b >= 100) {
+        for (float sample : samples)
+          out += sample * sample;
+      }
+    }
+    return 10 * Math.log10(out / in);
+  }
+}
@@ -0,0 +1,76 @@
+package com.takusemba.rtmppublisher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LookAheadLimiterTest {
+
+  private static final int SAMPLE_RATE = 48000;
+  private static final float CEILING = (float) Math.pow(10, -1 / 20.0);
+
+  @Test
+  public void outputStaysUnderTheCeiling() {
+    for (int lookAhead : new int[]{0, 48, 240}) {
+      for (int channelCount = 1; channelCount <= 2; channelCount++) {
+        final LookAheadLimiter limiter = new LookAheadLimiter(-1, lookAhead);
+        limiter.prepare(SAMPLE_RATE, channelCount);
+        // a tone going up to 4 times full scale, with single sample spikes on top
+        final int frames = SAMPLE_RATE;
+        final float[] samples = new float[frames * channelCount];
+        for (int f = 0; f < frames; f++) {
+          final float level = 4f * f / frames;
+          for (int c = 0; c < channelCount; c++) {
+            float sample = (float) (level * Math.sin(2 * Math.PI * 440 * f / SAMPLE_RATE + c));
+            if (f % 997 == 0)
+              sample = c == 0 ? 8 : -8;
+            samples[f * channelCount + c] = sample;
+          }
+        }
+        for (int offset = 0; offset < frames; offset += 480)
+          limiter.process(samples, offset * channelCount, 480);
+        for (int i = 0; i < samples.length; i++)
+          assertTrue(lookAhead + " frames, " + samples[i] + " at " + i, Math.abs(samples[i]) <= CEILING);
+      }
+    }
+  }
+
+  @Test
+  public void latencyIsTheLookAhead() {
+    for (int lookAhead : new int[]{0, 1, 240, 1000}) {
+      final LookAheadLimiter limiter = new LookAheadLimiter(-1, lookAhead);
+      limiter.prepare(SAMPLE_RATE, 2);
+      assertEquals(lookAhead, limiter.getLatency());
+      // an impulse under the ceiling comes out unchanged, that many frames later
+      final int frames = 4800;
+      final float[] samples = new float[frames * 2];
+      samples[2 * 100] = 0.5f;
+      samples[2 * 100 + 1] = -0.25f;
+      for (int offset = 0; offset < frames; offset += 480)
+        limiter.process(samples, offset * 2, 480);
+      for (int f = 0; f < frames; f++) {
+        final boolean impulse = f == 100 + lookAhead;
+        assertEquals(lookAhead + " at " + f, impulse ? 0.5f : 0, samples[2 * f], 1e-6f);
+        assertEquals(lookAhead + " at " + f, impulse ? -0.25f : 0, samples[2 * f + 1], 1e-6f);
+      }
+    }
+  }
+
+  @Test
+  public void gainComesDownBeforeThePeak() {
+    final int lookAhead = 240;
+    final LookAheadLimiter limiter = new LookAheadLimiter(-1, lookAhead);
+    limiter.prepare(SAMPLE_RATE, 1);
+    // quiet, then a step to twice full scale
+    final float[] samples = new float[4800];
+    for (int i = 0; i < samples.length; i++)
+      samples[i] = i < 2000 ? 0.1f : 2f;
+    limiter.process(samples, 0, samples.length);
+    // by the time the step leaves the delay line the gain is nearly there, so little is clipped
+    final float stepOut = samples[2000 + lookAhead];
+    assertTrue("step came out at " + stepOut, stepOut > CEILING * 0.95f && stepOut <= CEILING);
+    // and the quiet part just before it was turned down too, rather than left alone
+    assertTrue(samples[2000 + lookAhead - 1] < 0.1f * 0.6f);
+  }
+}
@@ -0,0 +1,82 @@
+package com.takusemba.rtmppublisher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NoiseGateTest {
+
+  private static final int SAMPLE_RATE = 48000;
+  private static final float FLOOR = 0.01f; // -40 dB
+  private static final float LOUD = 0.5f;
+  // under the -40 dB threshold
+  private static final float QUIET = 0.002f;
+
+  @Test
+  public void fallsToItsFloorAfterTheHoldTime() {
+    final float[] gains = run(new float[]{LOUD, QUIET}, new int[]{SAMPLE_RATE / 2, 2 * SAMPLE_RATE});
+    final int quietFrom = SAMPLE_RATE / 2;
+    // open while loud
+    assertEquals(1, gains[quietFrom - 1], 1e-3);
+    // the level takes a few ms to fall under the threshold, then it holds for 100 ms
+    for (int f = quietFrom; f < quietFrom + ms(100); f++)
+      assertEquals("at " + f, 1, gains[f], 1e-3);
+    // fading after that, not cut off
+    final int fading = quietFrom + ms(200);
+    assertTrue(gains[fading] + " at 200 ms", gains[fading] < 1 && gains[fading] > FLOOR * 2);
+    // and down at the floor within about eight release time constants
+    for (int f = quietFrom + ms(1500); f < gains.length; f++)
+      assertEquals("at " + f, FLOOR, gains[f], FLOOR * 0.05);
+  }
+
+  @Test
+  public void startsClosedAndOpensAtOnce() {
+    final float[] gains = run(new float[]{QUIET, LOUD}, new int[]{SAMPLE_RATE / 2, SAMPLE_RATE / 2});
+    for (int f = 0; f < SAMPLE_RATE / 2; f++)
+      assertEquals("at " + f, FLOOR, gains[f], 1e-6);
+    // fully open within a few ms of the threshold being crossed
+    assertEquals(1, gains[SAMPLE_RATE / 2 + ms(5)], 1e-2);
+  }
+
+  @Test
+  public void shortPausesAreKept() {
+    // 60 ms gaps between words, shorter than the hold
+    final float[] gains = run(new float[]{LOUD, QUIET, LOUD, QUIET, LOUD},
+      new int[]{ms(300), ms(60), ms(300), ms(60), ms(300)});
+    for (int f = ms(300); f < ms(360); f++)
+      assertEquals("at " + f, 1, gains[f], 1e-3);
+  }
+
+  private static int ms(int ms) {
+    return SAMPLE_RATE * ms / 1000;
+  }
+
+  /**
+   * @return the gain applied to each frame of a stereo tone at the given levels in turn.
+   */
+  private static float[] run(float[] levels, int[] frames) {
+    final NoiseGate gate = new NoiseGate(-40);
+    gate.prepare(SAMPLE_RATE, 2);
+    int total = 0;
+    for (int count : frames)
+      total += count;
+    final float[] input = new float[total * 2];
+    int f = 0;
+    for (int part = 0; part < levels.length; part++) {
+      for (int i = 0; i < frames[part]; i++, f++) {
+        // a square wave, so that every sample has the level
+        final float sample = (f / 24) % 2 == 0 ? levels[part] : -levels[part];
+        input[2 * f] = sample;
+        input[2 * f + 1] = -sample;
+      }
+    }
+    final float[] samples = input.clone();
+    for (int offset = 0; offset < total; offset += 480)
+      gate.process(samples, 2 * offset, Math.min(480, total - offset));
+    final float[] gains = new float[total];
+    for (int i = 0; i < total; i++)
+      gains[i] = samples[2 * i] / input[2 * i];
+    return gains;
+  }
+}
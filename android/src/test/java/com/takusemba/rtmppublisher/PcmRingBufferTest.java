@@ -0,0 +1,170 @@
+package com.takusemba.rtmppublisher;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PcmRingBufferTest {
+
+  private static final int SAMPLE_RATE = 48000;
+  // 16 bit stereo
+  private static final int FRAME = 4;
+  private static final int HEADER_SIZE = 12;
+  private static final long NANOS_PER_SECOND = 1000000000L;
+
+  @Test
+  public void chunksWrapAroundTheEnd() {
+    final PcmRingBuffer ring = new PcmRingBuffer(256, SAMPLE_RATE, FRAME);
+    final ByteBuffer dst = ByteBuffer.allocate(256);
+    // 100 byte chunks, so headers and samples land across the end of the 256 bytes in turn
+    for (int i = 0; i < 50; i++) {
+      final byte[] chunk = pcm(i, 100);
+      assertTrue(ring.write(chunk, 0, chunk.length, i * 1000L));
+      dst.clear();
+      assertEquals(i * 1000L, ring.read(dst));
+      dst.flip();
+      assertArrayEquals(chunk, bytes(dst));
+      assertTrue(ring.isEmpty());
+    }
+    assertEquals(0, ring.getOverruns());
+  }
+
+  @Test
+  public void overrunDropsWholeChunks() {
+    final PcmRingBuffer ring = new PcmRingBuffer(256, SAMPLE_RATE, FRAME);
+    final byte[] chunk = pcm(1, 100);
+    assertTrue(ring.write(chunk, 0, chunk.length, 0));
+    assertTrue(ring.write(chunk, 0, chunk.length, 1));
+    assertEquals(2 * (HEADER_SIZE + 100), ring.getBufferedBytes());
+    // 32 bytes left: room for 20 bytes and a header, once
+    assertFalse(ring.write(chunk, 0, chunk.length, 2));
+    assertTrue(ring.write(chunk, 0, 20, 3));
+    assertFalse(ring.write(chunk, 0, 20, 4));
+    assertEquals(2, ring.getOverruns());
+    assertEquals(120, ring.getOverrunBytes());
+
+    // what got in comes out as it went in, without the dropped chunks
+    final ByteBuffer dst = ByteBuffer.allocate(256);
+    assertEquals(0, ring.read(dst));
+    assertEquals(1, ring.read(dst));
+    assertEquals(3, ring.read(dst));
+    assertEquals(-1, ring.read(dst));
+    assertEquals(220, dst.position());
+    // the room is back once read
+    assertTrue(ring.write(chunk, 0, chunk.length, 5));
+    assertEquals(2, ring.getOverruns());
+  }
+
+  @Test
+  public void partialReadsStopAtWholeFrames() {
+    final PcmRingBuffer ring = new PcmRingBuffer(4096, SAMPLE_RATE, FRAME);
+    final byte[] chunk = pcm(7, 960 * FRAME);
+    final long pts = 5 * NANOS_PER_SECOND;
+    ring.write(chunk, 0, chunk.length, pts);
+
+    // 1001 bytes take 250 frames, and the byte over is left for the next read
+    final ByteBuffer dst = ByteBuffer.allocate(1001);
+    assertEquals(pts, ring.read(dst));
+    assertEquals(1000, dst.position());
+    final ByteBuffer rest = ByteBuffer.allocate(4096);
+    // the rest of the chunk is 250 frames later
+    assertEquals(pts + 250 * NANOS_PER_SECOND / SAMPLE_RATE, ring.read(rest));
+    assertEquals(chunk.length - 1000, rest.position());
+
+    dst.flip();
+    rest.flip();
+    final ByteBuffer all = ByteBuffer.allocate(chunk.length);
+    all.put(dst).put(rest);
+    assertArrayEquals(chunk, all.array());
+    assertTrue(ring.isEmpty());
+  }
+
+  @Test
+  public void noRoomForAFrameCopiesNothing() {
+    final PcmRingBuffer ring = new PcmRingBuffer(4096, SAMPLE_RATE, FRAME);
+    final byte[] chunk = pcm(3, 64);
+    ring.write(chunk, 0, chunk.length, 1000);
+    final ByteBuffer small = ByteBuffer.allocate(FRAME - 1);
+    assertEquals(-1, ring.read(small));
+    assertEquals(0, small.position());
+    assertFalse(ring.isEmpty());
+    // the whole chunk is still there, at its own time
+    final ByteBuffer dst = ByteBuffer.allocate(64);
+    assertEquals(1000, ring.read(dst));
+    assertArrayEquals(chunk, dst.array());
+  }
+
+  @Test
+  public void producerAndConsumerThreadsAgree() throws InterruptedException {
+    final PcmRingBuffer ring = new PcmRingBuffer(8192, SAMPLE_RATE, FRAME);
+    final int chunks = 20000;
+    final int chunkFrames = 240;
+    final long chunkNanos = chunkFrames * NANOS_PER_SECOND / SAMPLE_RATE;
+    final Thread producer = new Thread() {
+      @Override
+      public void run() {
+        final byte[] chunk = new byte[chunkFrames * FRAME];
+        for (int i = 0; i < chunks; i++) {
+          // every frame holds the number of the chunk and its own
+          for (int frame = 0; frame < chunkFrames; frame++) {
+            final int value = i * chunkFrames + frame;
+            for (int b = 0; b < FRAME; b++)
+              chunk[frame * FRAME + b] = (byte) (value >>> (8 * b));
+          }
+          ring.write(chunk, 0, chunk.length, i * chunkNanos);
+          if (i % 64 == 0)
+            Thread.yield();
+        }
+      }
+    };
+    producer.start();
+
+    // odd sized reads, so that chunks are split anywhere on a frame
+    final ByteBuffer dst = ByteBuffer.allocate(1234);
+    long received = 0;
+    int lastValue = -1;
+    while (producer.isAlive() || !ring.isEmpty()) {
+      dst.clear();
+      final long pts = ring.read(dst);
+      if (pts < 0) {
+        Thread.yield();
+        continue;
+      }
+      assertEquals(0, dst.position() % FRAME);
+      for (int offset = 0; offset < dst.position(); offset += FRAME) {
+        int value = 0;
+        for (int b = 0; b < FRAME; b++)
+          value |= (dst.get(offset + b) & 0xff) << (8 * b);
+        // in order; a chunk is dropped whole, never in part
+        assertTrue(value + " after " + lastValue, value > lastValue);
+        if (value != lastValue + 1)
+          assertEquals(0, value % chunkFrames);
+        if (offset == 0)
+          assertEquals((long) value * NANOS_PER_SECOND / SAMPLE_RATE, pts, 2);
+        lastValue = value;
+      }
+      received += dst.position();
+    }
+    producer.join();
+    assertEquals((long) chunks * chunkFrames * FRAME, received + ring.getOverrunBytes());
+    assertEquals(ring.getOverrunBytes(), ring.getOverruns() * chunkFrames * FRAME);
+  }
+
+  private static byte[] pcm(int seed, int length) {
+    final byte[] data = new byte[length];
+    for (int i = 0; i < length; i++)
+      data[i] = (byte) (seed * 31 + i);
+    return data;
+  }
+
+  private static byte[] bytes(ByteBuffer buffer) {
+    final byte[] data = new byte[buffer.remaining()];
+    buffer.get(data);
+    return data;
+  }
+}
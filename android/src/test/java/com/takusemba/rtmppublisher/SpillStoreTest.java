@@ -0,0 +1,286 @@
+package com.takusemba.rtmppublisher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpillStoreTest {
+
+  private static final int SEGMENT_SIZE = 8 * 1024 * 1024;
+  private static final int HEADER_SIZE = 20;
+  private static final int OFFSET_CRC = 16;
+  private static final int MIB = 1024 * 1024;
+  private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, 0, 0x1f, 0, 0, 0, 1, 0x68, (byte) 0xce};
+
+  private final FrameBufferPool pool = new FrameBufferPool();
+  private File directory;
+  private final ArrayList<SpillStore> stores = new ArrayList<>();
+
+  @Before
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("spill").toFile();
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    for (SpillStore store : stores)
+      store.close();
+    final File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files)
+        file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void framesComeBackInOrder() throws IOException {
+    final SpillStore store = open(0);
+    append(store, config());
+    for (int i = 0; i < 5; i++)
+      append(store, video(i * 33, i == 0, 1000));
+    assertEquals(6, store.getReport().get("frames"));
+
+    assertSent(store, 0, true, false);
+    for (int i = 0; i < 5; i++)
+      assertSent(store, i * 33, false, i == 0);
+    assertNull(store.peek(pool));
+    assertTrue(store.isEmpty());
+  }
+
+  @Test
+  public void unsentFrameIsReturnedAgain() throws IOException {
+    final SpillStore store = open(0);
+    append(store, video(0, true, 1000));
+    append(store, video(33, false, 1000));
+
+    EncodedFrame frame = store.peek(pool);
+    assertEquals(0, frame.timestamp);
+    frame.release();
+    // the write failed: nothing is marked, and the same frame comes again
+    frame = store.peek(pool);
+    assertEquals(0, frame.timestamp);
+    frame.release();
+    assertEquals(2, store.getReport().get("frames"));
+
+    store.markSent();
+    assertSent(store, 33, false, false);
+    assertTrue(store.isEmpty());
+  }
+
+  @Test
+  public void unsentFrameSurvivesARestart() throws Exception {
+    final SpillStore store = open(0);
+    append(store, config());
+    append(store, video(0, true, 1000));
+    append(store, video(33, false, 1000));
+    assertSent(store, 0, true, false);
+    // the process dies while the key frame is being written
+    store.peek(pool).release();
+    store.close();
+
+    final SpillStore recovered = open(0);
+    assertEquals(2, recovered.getReport().get("frames"));
+    assertSent(recovered, 0, true, false);
+    assertSent(recovered, 0, false, true);
+    assertSent(recovered, 33, false, false);
+    assertNull(recovered.peek(pool));
+  }
+
+  @Test
+  public void recoveryStopsAtACorruptRecord() throws Exception {
+    final SpillStore store = open(0);
+    final int[] offsets = new int[7];
+    int offset = 0;
+    offsets[0] = offset;
+    offset += append(store, config());
+    // key, two deltas, key, delta, delta
+    for (int i = 0; i < 6; i++) {
+      offsets[i + 1] = offset;
+      offset += append(store, video(i * 33, i % 3 == 0, 1000 + i));
+    }
+    assertSent(store, 0, true, false);
+    assertSent(store, 0, false, true);
+    store.close();
+
+    // flip a byte in the last delta frame and break the CRC of the one before it
+    final File segment = onlySegment();
+    final String name = segment.getName();
+    final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    try {
+      file.seek(offsets[6] + HEADER_SIZE + 10);
+      file.write(0x55);
+      file.seek(offsets[5] + OFFSET_CRC);
+      file.writeInt(file.readInt() ^ 1);
+    } finally {
+      file.close();
+    }
+
+    final SpillStore recovered = open(0);
+    // the two deltas after the first key frame and the second key frame are whole
+    assertEquals(3, recovered.getReport().get("frames"));
+    assertEquals((long) 1000 + 1 + 1000 + 2 + 1000 + 3, recovered.getReport().get("bytes"));
+    // the run may have stopped in the middle of a GOP, so video starts at the next key frame
+    assertSent(recovered, 0, true, false);
+    assertSent(recovered, 99, false, true);
+    assertNull(recovered.peek(pool));
+    assertEquals(2L, recovered.getReport().get("evictedFrames"));
+
+    // the recovered segment is gone once read, and new frames go to a segment after it
+    append(recovered, video(300, true, 1000));
+    recovered.close();
+    final File next = onlySegment();
+    assertTrue(next.getName() + " after " + name, next.getName().compareTo(name) > 0);
+    assertSent(recovered, 300, false, true);
+  }
+
+  @Test
+  public void tornRecordEndsTheSegment() throws Exception {
+    final SpillStore store = open(0);
+    final int second = append(store, video(0, true, 1000));
+    append(store, video(33, false, 1000));
+    append(store, video(66, false, 1000));
+    store.close();
+    // the second record's magic never made it to disk
+    final RandomAccessFile file = new RandomAccessFile(onlySegment(), "rw");
+    try {
+      file.seek(second);
+      file.writeInt(0);
+    } finally {
+      file.close();
+    }
+
+    final SpillStore recovered = open(0);
+    assertEquals(1, recovered.getReport().get("frames"));
+    assertSent(recovered, 0, false, true);
+    assertNull(recovered.peek(pool));
+  }
+
+  @Test
+  public void evictionResumesAtTheNextKeyFrame() throws IOException {
+    // two segments; a 1 MiB frame takes a whole MiB and a record header, so seven fit in one
+    final SpillStore store = open(2 * SEGMENT_SIZE);
+    append(store, config());
+    // GOPs of five frames
+    for (int i = 0; i < 14; i++)
+      append(store, video(i * 33, i % 5 == 0, MIB));
+    assertEquals(2, store.getReport().get("segments"));
+    assertEquals(0L, store.getReport().get("evictedFrames"));
+
+    // a third segment pushes out the first, where the reader still is
+    append(store, video(14 * 33, false, MIB));
+    assertEquals(2, store.getReport().get("segments"));
+    // the config and frames 0 to 6 went with the segment, and 7 to 9 are skipped up to the
+    // key frame at 10
+    assertEquals(11L, store.getReport().get("evictedFrames"));
+    assertSent(store, 0, true, false);
+    for (int i = 10; i < 15; i++)
+      assertSent(store, i * 33, false, i % 5 == 0);
+    assertNull(store.peek(pool));
+  }
+
+  @Test
+  public void evictionWithoutAKeyFrameWaitsForTheNextOne() throws IOException {
+    final SpillStore store = open(2 * SEGMENT_SIZE);
+    append(store, config());
+    append(store, video(0, true, MIB));
+    for (int i = 1; i < 15; i++)
+      append(store, video(i * 33, false, MIB));
+    // nothing left to decode from until a key frame comes in
+    append(store, audio(15 * 33));
+    append(store, video(16 * 33, false, 1000));
+    append(store, video(17 * 33, true, 1000));
+
+    assertSent(store, 0, true, false);
+    final EncodedFrame audio = store.peek(pool);
+    assertFalse(audio.isVideo());
+    assertEquals(15 * 33, audio.timestamp);
+    audio.release();
+    store.markSent();
+    assertSent(store, 17 * 33, false, true);
+    assertNull(store.peek(pool));
+  }
+
+  @Test
+  public void frameEvictedWhilePeekedIsNotMarkedTwice() throws IOException {
+    final SpillStore store = open(2 * SEGMENT_SIZE);
+    for (int i = 0; i < 14; i++)
+      append(store, video(i * 33, i % 7 == 0, MIB));
+    store.peek(pool).release();
+    // the first segment goes while its first frame is being sent
+    append(store, video(14 * 33, true, MIB));
+    store.markSent();
+    assertEquals(8, store.getReport().get("frames"));
+    assertSent(store, 7 * 33, false, true);
+  }
+
+  private SpillStore open(int maxBytes) throws IOException {
+    final SpillStore store = new SpillStore(directory, maxBytes);
+    stores.add(store);
+    return store;
+  }
+
+  /**
+   * @return the size of the record written.
+   */
+  private static int append(SpillStore store, EncodedFrame frame) throws IOException {
+    store.append(frame);
+    frame.release();
+    return HEADER_SIZE + frame.length;
+  }
+
+  private void assertSent(SpillStore store, int timestamp, boolean config, boolean keyFrame) {
+    final EncodedFrame frame = store.peek(pool);
+    assertTrue("nothing at " + timestamp, frame != null);
+    assertTrue(frame.isVideo());
+    assertEquals(timestamp, frame.timestamp);
+    assertEquals(config, frame.config);
+    assertEquals(keyFrame, frame.keyFrame);
+    frame.release();
+    store.markSent();
+  }
+
+  private EncodedFrame config() {
+    final EncodedFrame frame = pool.acquire(SPS.length);
+    frame.fill(ByteBuffer.wrap(SPS));
+    frame.setVideo(0, true, 0);
+    return frame;
+  }
+
+  private EncodedFrame video(int timestamp, boolean keyFrame, int length) {
+    final byte[] data = new byte[length];
+    data[3] = 1;
+    data[4] = (byte) (keyFrame ? 0x65 : 0x41);
+    for (int i = 5; i < length; i++)
+      data[i] = (byte) (timestamp + i);
+    final EncodedFrame frame = pool.acquire(length);
+    frame.fill(ByteBuffer.wrap(data));
+    frame.setVideo(timestamp, false, 0);
+    return frame;
+  }
+
+  private EncodedFrame audio(int timestamp) {
+    final EncodedFrame frame = pool.acquire(64);
+    frame.fill(ByteBuffer.wrap(new byte[64]));
+    frame.setAudio(timestamp, false);
+    return frame;
+  }
+
+  private File onlySegment() {
+    final File[] files = directory.listFiles();
+    assertEquals(1, files.length);
+    return files[0];
+  }
+}
@@ -0,0 +1,99 @@
+package com.takusemba.rtmppublisher;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimestampNormalizerTest {
+
+  private static final long NANOS_PER_MS = 1000000L;
+  // the two clocks differ by the time the device spent in deep sleep before the stream
+  private static final long SLEPT_NANOS = 3600 * 1000 * NANOS_PER_MS;
+
+  private long nanoTime;
+  private TimestampNormalizer normalizer;
+
+  @Before
+  public void setUp() {
+    nanoTime = 1000 * NANOS_PER_MS;
+    normalizer = new TimestampNormalizer() {
+      @Override
+      long elapsedRealtimeNanos() {
+        return nanoTime + SLEPT_NANOS;
+      }
+
+      @Override
+      long nanoTime() {
+        return nanoTime;
+      }
+    };
+    normalizer.reset();
+  }
+
+  @Test
+  public void streamStartsAtReset() {
+    assertEquals(0, normalizer.getVideoTimestamp());
+    assertEquals(0, normalizer.getAudioTimestamp());
+    assertEquals(40, normalizer.toVideoTimestamp(nanoTime + 40 * NANOS_PER_MS));
+    assertEquals(23, normalizer.toAudioTimestamp(nanoTime + 23 * NANOS_PER_MS + 900000));
+    assertEquals(40, normalizer.getVideoTimestamp());
+  }
+
+  @Test
+  public void eachTrackStrictlyIncreases() {
+    final long start = nanoTime;
+    int last = -1;
+    // repeated, sub-millisecond and backward presentation times
+    final long[] ptsMs = {10, 10, 10, 11, 9, 30, 30};
+    for (long ms : ptsMs) {
+      final int timestamp = normalizer.toVideoTimestamp(start + ms * NANOS_PER_MS);
+      assertTrue(timestamp + " after " + last, timestamp > last);
+      last = timestamp;
+    }
+    assertEquals(31, last);
+    // the other track keeps its own count
+    assertEquals(10, normalizer.toAudioTimestamp(start + 10 * NANOS_PER_MS));
+    assertEquals(11, normalizer.toAudioTimestamp(start + 10 * NANOS_PER_MS + 400000));
+  }
+
+  @Test
+  public void pauseIsLeftOutOfTheStream() {
+    final long start = nanoTime;
+    assertEquals(5000, normalizer.toVideoTimestamp(start + 5000 * NANOS_PER_MS));
+    nanoTime = start + 5000 * NANOS_PER_MS;
+    normalizer.pause();
+    nanoTime = start + 12000 * NANOS_PER_MS;
+    normalizer.resume();
+    // seven seconds later, the stream goes on from where it stopped
+    assertEquals(5040, normalizer.toVideoTimestamp(start + 12040 * NANOS_PER_MS));
+    assertEquals(5020, normalizer.toAudioTimestamp(start + 12020 * NANOS_PER_MS));
+    // a resume without a pause changes nothing
+    nanoTime = start + 20000 * NANOS_PER_MS;
+    normalizer.resume();
+    assertEquals(20000 - 7000, normalizer.toVideoTimestamp(start + 20000 * NANOS_PER_MS));
+  }
+
+  @Test
+  public void framesHeldOverAPauseStayInOrder() {
+    final long start = nanoTime;
+    assertEquals(1000, normalizer.toVideoTimestamp(start + 1000 * NANOS_PER_MS));
+    nanoTime = start + 1000 * NANOS_PER_MS;
+    normalizer.pause();
+    nanoTime = start + 4000 * NANOS_PER_MS;
+    normalizer.resume();
+    // a frame from before the pause that comes out of the encoder only now
+    assertEquals(1001, normalizer.toVideoTimestamp(start + 1000 * NANOS_PER_MS));
+    assertEquals(1010, normalizer.toVideoTimestamp(start + 4010 * NANOS_PER_MS));
+  }
+
+  @Test
+  public void resetStartsANewStream() {
+    assertEquals(5000, normalizer.toVideoTimestamp(nanoTime + 5000 * NANOS_PER_MS));
+    nanoTime += 60000 * NANOS_PER_MS;
+    normalizer.reset();
+    assertEquals(0, normalizer.getVideoTimestamp());
+    assertEquals(0, normalizer.toVideoTimestamp(nanoTime));
+  }
+}
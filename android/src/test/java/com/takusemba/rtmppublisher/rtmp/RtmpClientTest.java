@@ -0,0 +1,344 @@
+package com.takusemba.rtmppublisher.rtmp;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Publishes to a stand-in ingest server on the loopback interface, which checks the handshake,
+ * answers the commands the way the common servers do and keeps every message it gets.
+ */
+public class RtmpClientTest {
+
+  private static final int TIMEOUT_MS = 5000;
+  private static final int SERVER_WINDOW_ACK_SIZE = 5000000;
+
+  private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1f, 0x11, 0x22};
+  private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+  private static final byte[] AUDIO_CONFIG = {0x12, 0x10};
+
+  @Test
+  public void publishesOverLoopback() throws Exception {
+    final LoopbackIngest ingest = new LoopbackIngest(false);
+    final RtmpClient client = new RtmpClient();
+    client.setConnectTimeout(TIMEOUT_MS);
+    client.setIoTimeout(TIMEOUT_MS);
+    try {
+      client.connect("rtmp://127.0.0.1:" + ingest.getPort() + "/live/key", 640, 360);
+      assertTrue(client.isConnected());
+      assertEquals(SERVER_WINDOW_ACK_SIZE, client.getWindowAckSize());
+
+      // larger than the 4096 byte chunks, so it arrives in several
+      final byte[] idr = nal(0x65, 10000);
+      final byte[] inter = nal(0x41, 300);
+      client.writeVideo(annexB(SPS, PPS, idr), 0);
+      client.writeAudio(ByteBuffer.wrap(AUDIO_CONFIG), 0, true);
+      client.writeAudio(ByteBuffer.wrap(new byte[]{1, 2, 3}), 23, false);
+      client.writeVideo(annexB(inter), 33);
+      client.close();
+      ingest.await();
+
+      assertArrayEquals("C2 echoes S1", ingest.s1, ingest.c2);
+      assertEquals(3, ingest.c0);
+
+      assertEquals(Arrays.asList("connect", "releaseStream", "FCPublish", "createStream",
+        "publish", "FCUnpublish", "deleteStream"), ingest.commandNames());
+      final Map<?, ?> connect = (Map<?, ?>) ingest.command("connect").get(2);
+      assertEquals("live", connect.get("app"));
+      assertEquals("rtmp://127.0.0.1:" + ingest.getPort() + "/live", connect.get("tcUrl"));
+      final List<Object> publish = ingest.command("publish");
+      assertEquals("key", publish.get(3));
+      assertEquals("live", publish.get(4));
+
+      final List<RtmpMessage> media = ingest.media();
+      assertEquals(RtmpMessage.DATA_AMF0, media.get(0).typeId);
+      assertEquals("@setDataFrame", Amf0.readAll(media.get(0).payload).get(0));
+
+      final ByteBuffer sequenceHeader = media.get(1).payload;
+      assertEquals(RtmpMessage.VIDEO, media.get(1).typeId);
+      assertEquals(0x17, sequenceHeader.get(0) & 0xff);
+      assertEquals(0, sequenceHeader.get(1));
+      assertEquals(SPS[1], sequenceHeader.get(6));
+      assertEquals(SPS.length, sequenceHeader.getShort(11));
+
+      assertTag(media.get(2), RtmpMessage.VIDEO, 0, 0x17, 1, idr);
+      assertTag(media.get(3), RtmpMessage.AUDIO, 0, 0xaf, 0, AUDIO_CONFIG);
+      assertTag(media.get(4), RtmpMessage.AUDIO, 23, 0xaf, 1, new byte[]{1, 2, 3});
+      assertTag(media.get(5), RtmpMessage.VIDEO, 33, 0x27, 1, inter);
+      assertEquals(6, media.size());
+      for (RtmpMessage msg : media)
+        assertEquals(LoopbackIngest.STREAM_ID, msg.streamId);
+    } finally {
+      client.close();
+      ingest.close();
+    }
+  }
+
+  @Test
+  public void rejectedPublishFailsConnect() throws Exception {
+    final LoopbackIngest ingest = new LoopbackIngest(true);
+    final RtmpClient client = new RtmpClient();
+    client.setIoTimeout(TIMEOUT_MS);
+    try {
+      client.connect("rtmp://127.0.0.1:" + ingest.getPort() + "/live/taken", 640, 360);
+      fail("connect succeeded");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("NetStream.Publish.BadName"));
+    } finally {
+      client.close();
+      ingest.close();
+    }
+    assertTrue(!client.isConnected());
+  }
+
+  /**
+   * @param tagType first byte of the FLV tag body.
+   * @param packetType second byte: sequence header or not.
+   * @param data the frame; video is checked as one NAL unit with its length in front.
+   */
+  private static void assertTag(RtmpMessage msg, int typeId, int timestamp, int tagType,
+                                int packetType, byte[] data) {
+    assertEquals(typeId, msg.typeId);
+    assertEquals(timestamp, msg.timestamp);
+    final ByteBuffer payload = msg.payload;
+    assertEquals(tagType, payload.get() & 0xff);
+    assertEquals(packetType, payload.get());
+    if (typeId == RtmpMessage.VIDEO) {
+      payload.position(payload.position() + 3); // composition time
+      assertEquals(data.length, payload.getInt());
+    }
+    final byte[] rest = new byte[payload.remaining()];
+    payload.get(rest);
+    assertArrayEquals(data, rest);
+  }
+
+  private static byte[] nal(int header, int size) {
+    final byte[] nal = new byte[size];
+    new Random(size).nextBytes(nal);
+    nal[0] = (byte) header;
+    // no start codes inside
+    for (int i = 1; i < size; i++) {
+      if (nal[i] == 0)
+        nal[i] = 1;
+    }
+    return nal;
+  }
+
+  private static ByteBuffer annexB(byte[]... nals) {
+    int size = 0;
+    for (byte[] nal : nals)
+      size += 4 + nal.length;
+    final ByteBuffer buffer = ByteBuffer.allocate(size);
+    for (byte[] nal : nals) {
+      buffer.putInt(1);
+      buffer.put(nal);
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Serves one connection on its own thread: a plain handshake, then connect, createStream
+   * and publish, answered in order, until the client hangs up.
+   */
+  private static final class LoopbackIngest implements Runnable {
+
+    static final int STREAM_ID = 1;
+
+    private final ServerSocket serverSocket;
+    private final Thread thread;
+    private final boolean rejectPublish;
+    private final ChunkReader reader = new ChunkReader();
+    private final ChunkWriter writer = new ChunkWriter();
+    private final List<RtmpMessage> messages = new ArrayList<>();
+    private volatile Throwable error;
+    private OutputStream out;
+
+    int c0;
+    final byte[] s1 = new byte[1536];
+    final byte[] c2 = new byte[1536];
+
+    LoopbackIngest(boolean rejectPublish) throws IOException {
+      this.rejectPublish = rejectPublish;
+      serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+      serverSocket.setSoTimeout(TIMEOUT_MS);
+      thread = new Thread(this, "LoopbackIngest");
+      thread.start();
+    }
+
+    int getPort() {
+      return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+      try (Socket socket = serverSocket.accept()) {
+        socket.setSoTimeout(TIMEOUT_MS);
+        final DataInputStream in = new DataInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+        handshake(in);
+        serve(in);
+      } catch (Throwable e) {
+        error = e;
+      }
+    }
+
+    private void handshake(DataInputStream in) throws IOException {
+      c0 = in.readUnsignedByte();
+      final byte[] c1 = new byte[1536];
+      in.readFully(c1);
+      new Random().nextBytes(s1);
+      Arrays.fill(s1, 0, 8, (byte) 0);
+      out.write(3);
+      out.write(s1);
+      out.write(c1); // S2 echoes C1
+      out.flush();
+      in.readFully(c2);
+    }
+
+    private void serve(InputStream in) throws IOException {
+      final ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+      while (true) {
+        final int n = in.read(buffer.array(), buffer.position(), buffer.remaining());
+        if (n < 0)
+          return;
+        buffer.position(buffer.position() + n);
+        buffer.flip();
+        RtmpMessage msg;
+        while ((msg = reader.read(buffer)) != null) {
+          synchronized (messages) {
+            messages.add(msg);
+          }
+          handle(msg);
+        }
+        buffer.compact();
+      }
+    }
+
+    private void handle(RtmpMessage msg) throws IOException {
+      if (msg.typeId == RtmpMessage.SET_CHUNK_SIZE) {
+        reader.setChunkSize(msg.payload.getInt(0));
+        return;
+      }
+      if (msg.typeId != RtmpMessage.COMMAND_AMF0)
+        return;
+      final List<Object> values = Amf0.readAll(msg.payload.duplicate());
+      final String name = (String) values.get(0);
+      final double id = (Double) values.get(1);
+      if ("connect".equals(name)) {
+        final ByteBuffer ack = ByteBuffer.allocate(4);
+        ack.putInt(0, SERVER_WINDOW_ACK_SIZE);
+        send(2, RtmpMessage.WINDOW_ACK_SIZE, 0, ack);
+        send(3, RtmpMessage.COMMAND_AMF0, 0,
+          command("_result", id, status("status", "NetConnection.Connect.Success"), null));
+      } else if ("createStream".equals(name)) {
+        send(3, RtmpMessage.COMMAND_AMF0, 0, command("_result", id, null, (double) STREAM_ID));
+      } else if ("publish".equals(name)) {
+        final Map<String, Object> info = rejectPublish
+          ? status("error", "NetStream.Publish.BadName")
+          : status("status", "NetStream.Publish.Start");
+        send(5, RtmpMessage.COMMAND_AMF0, STREAM_ID, command("onStatus", 0, null, info));
+      }
+    }
+
+    private static Map<String, Object> status(String level, String code) {
+      final Map<String, Object> info = new LinkedHashMap<>();
+      info.put("level", level);
+      info.put("code", code);
+      info.put("description", code);
+      return info;
+    }
+
+    private static ByteBuffer command(String name, double id, Map<String, Object> object,
+                                      Object arg) {
+      final ByteBuffer buffer = ByteBuffer.allocate(1024);
+      Amf0.writeString(buffer, name);
+      Amf0.writeNumber(buffer, id);
+      if (object != null)
+        Amf0.writeObject(buffer, object);
+      else
+        Amf0.writeNull(buffer);
+      Amf0.write(buffer, arg);
+      buffer.flip();
+      return buffer;
+    }
+
+    private void send(int csid, int typeId, int streamId, ByteBuffer payload) throws IOException {
+      final ByteBuffer chunks = ByteBuffer.allocate(writer.maxEncodedSize(payload.remaining()));
+      writer.write(chunks, csid, typeId, streamId, 0, payload);
+      out.write(chunks.array(), 0, chunks.position());
+      out.flush();
+    }
+
+    /**
+     * wait for the client to hang up.
+     */
+    void await() throws InterruptedException {
+      thread.join(TIMEOUT_MS);
+      if (error != null)
+        throw new AssertionError("ingest failed", error);
+      assertTrue("ingest still running", !thread.isAlive());
+    }
+
+    void close() throws IOException {
+      serverSocket.close();
+    }
+
+    List<String> commandNames() throws IOException {
+      final List<String> names = new ArrayList<>();
+      for (RtmpMessage msg : snapshot()) {
+        if (msg.typeId == RtmpMessage.COMMAND_AMF0)
+          names.add((String) Amf0.readAll(msg.payload.duplicate()).get(0));
+      }
+      return names;
+    }
+
+    List<Object> command(String name) throws IOException {
+      for (RtmpMessage msg : snapshot()) {
+        if (msg.typeId != RtmpMessage.COMMAND_AMF0)
+          continue;
+        final List<Object> values = Amf0.readAll(msg.payload.duplicate());
+        if (name.equals(values.get(0)))
+          return values;
+      }
+      throw new AssertionError("no " + name + " command");
+    }
+
+    /**
+     * @return metadata, audio and video, in the order they came.
+     */
+    List<RtmpMessage> media() {
+      final List<RtmpMessage> media = new ArrayList<>();
+      for (RtmpMessage msg : snapshot()) {
+        if (msg.typeId == RtmpMessage.DATA_AMF0 || msg.typeId == RtmpMessage.AUDIO
+          || msg.typeId == RtmpMessage.VIDEO)
+          media.add(msg);
+      }
+      return media;
+    }
+
+    private List<RtmpMessage> snapshot() {
+      synchronized (messages) {
+        return new ArrayList<>(messages);
+      }
+    }
+  }
+}
@@ -7,6 +7,230 @@ enum RtmpLiveViewCameraPosition {
   back
 }
 
+/// Latency percentiles of one pipeline stage, measured from the camera timestamp of each video frame.
+class RtmpStageLatency {
+  /// Number of frames seen at the stage during the report interval.
+  final int count;
+  /// Percentiles in milliseconds.
+  final double p50;
+  final double p95;
+  final double p99;
+
+  RtmpStageLatency._({this.count, this.p50, this.p95, this.p99});
+
+  factory RtmpStageLatency._fromMap(Map data) => RtmpStageLatency._(
+    count: data['count'],
+    p50: data['p50'],
+    p95: data['p95'],
+    p99: data['p99']);
+
+  @override
+  String toString() => 'p50=${p50}ms, p95=${p95}ms, p99=${p99}ms ($count frames)';
+}
+
+/// What one video rendition costs: scaling the camera picture into its encoder, and encoding it.
+class RtmpRenditionStats {
+  final int width;
+  final int height;
+  final int fps;
+  final int bitrate;
+  /// Time the renderer thread took to draw a frame into the encoder's surface.
+  final RtmpStageLatency renderTime;
+  /// Frames out of the encoder.
+  final int encodedFrames;
+  /// Time from capture until out of the encoder, in milliseconds.
+  final double encodeLatencyAvg;
+  final double encodeLatencyMax;
+  /// Times the encoder stopped producing output and was replaced.
+  final int restarts;
+
+  RtmpRenditionStats._({this.width, this.height, this.fps, this.bitrate, this.renderTime, this.encodedFrames,
+    this.encodeLatencyAvg, this.encodeLatencyMax, this.restarts});
+
+  factory RtmpRenditionStats._fromMap(Map data) => RtmpRenditionStats._(
+    width: data['width'],
+    height: data['height'],
+    fps: data['fps'],
+    bitrate: data['bitrate'],
+    renderTime: RtmpStageLatency._fromMap(data['renderTime']),
+    encodedFrames: data['encoded'],
+    encodeLatencyAvg: data['encodeLatencyAvg'],
+    encodeLatencyMax: data['encodeLatencyMax'],
+    restarts: data['restarts']);
+}
+
+/// Counters of the local recording, see [RtmpLiveViewController.startRecording].
+class RtmpRecordingStats {
+  final String path;
+  /// Rates written to the file (bps), averaged since the previous snapshot.
+  final int videoBitrate;
+  final int audioBitrate;
+  /// Frames dropped because storage fell behind, by reason ('nonReference', 'gop', 'audio').
+  final Map<String, int> droppedFrames;
+  final Map<String, int> droppedBytes;
+  /// Frames waiting to be written.
+  final int backlogBytes;
+  final int backlogDurationMs;
+  final int bytesWritten;
+  /// Whether writing failed; the recording stops at the first error.
+  final bool failed;
+
+  RtmpRecordingStats._({this.path, this.videoBitrate, this.audioBitrate, this.droppedFrames, this.droppedBytes, this.backlogBytes,
+    this.backlogDurationMs, this.bytesWritten, this.failed});
+
+  factory RtmpRecordingStats._fromMap(Map data) => RtmpRecordingStats._(
+    path: data['path'],
+    videoBitrate: data['videoBitrate'],
+    audioBitrate: data['audioBitrate'],
+    droppedFrames: Map<String, int>.from(data['droppedFrames']),
+    droppedBytes: Map<String, int>.from(data['droppedBytes']),
+    backlogBytes: data['backlogBytes'],
+    backlogDurationMs: data['backlogDurationMs'],
+    bytesWritten: data['bytesWritten'],
+    failed: data['failed']);
+}
+
+/// The AAC flavour the audio is encoded with, see [RtmpLiveViewController.initialize].
+enum RtmpAacProfile {
+  /// AAC-LC, which every player decodes; good from about 64 kbps mono.
+  lc,
+  /// HE-AAC, for low bitrate uplinks at about 32-48 kbps.
+  he,
+  /// HE-AAC v2, with parametric stereo; stereo only, about 24-32 kbps.
+  heV2,
+}
+
+/// What becomes of the frames spilled to disk, see [RtmpLiveViewController.setSpill].
+enum RtmpSpillMode {
+  /// Sent on the live connection after the reconnect, ahead of newer frames, until the
+  /// stream has caught up with live. Also used when the link is too slow for the bitrate.
+  catchUp,
+  /// Uploaded to a separate backfill URL while the live stream picks up at once.
+  backfill,
+}
+
+/// Counters of the disk spill, see [RtmpLiveViewController.setSpill].
+class RtmpSpillStats {
+  /// Data on disk not sent yet.
+  final int bytes;
+  final int frames;
+  final int segments;
+  /// Frames given up to stay within the size cap.
+  final int evictedFrames;
+  final int evictedBytes;
+  /// Whether frames are going to disk right now.
+  final bool spilling;
+  /// Whether the backfill upload is running, and what it has sent so far.
+  final bool backfilling;
+  final int backfillBytesSent;
+
+  RtmpSpillStats._({this.bytes, this.frames, this.segments, this.evictedFrames, this.evictedBytes, this.spilling,
+    this.backfilling, this.backfillBytesSent});
+
+  factory RtmpSpillStats._fromMap(Map data) => RtmpSpillStats._(
+    bytes: data['bytes'],
+    frames: data['frames'],
+    segments: data['segments'],
+    evictedFrames: data['evictedFrames'],
+    evictedBytes: data['evictedBytes'],
+    spilling: data['spilling'],
+    backfilling: data['backfilling'],
+    backfillBytesSent: data['backfillBytesSent']);
+}
+
+/// Counters of the microphone input to the audio encoder.
+class RtmpAudioStats {
+  /// Microphone data dropped because the encoder fell behind.
+  final int overruns;
+  final int overrunBytes;
+  /// Times the encoder went without microphone data for over 100 ms.
+  final int underruns;
+  /// Microphone data waiting for the encoder.
+  final int bufferedBytes;
+  /// CPU time spent reading the microphone, and feeding its data to the encoder.
+  final int captureCpuMs;
+  final int inputCpuMs;
+  /// Silence made up for gaps in the microphone data, and audio left out where it ran behind.
+  final int silenceMs;
+  final int cutMs;
+
+  RtmpAudioStats._({this.overruns, this.overrunBytes, this.underruns, this.bufferedBytes, this.captureCpuMs,
+    this.inputCpuMs, this.silenceMs, this.cutMs});
+
+  factory RtmpAudioStats._fromMap(Map data) => RtmpAudioStats._(
+    overruns: data['overruns'],
+    overrunBytes: data['overrunBytes'],
+    underruns: data['underruns'],
+    bufferedBytes: data['bufferedBytes'],
+    captureCpuMs: data['captureCpuMs'],
+    inputCpuMs: data['inputCpuMs'],
+    silenceMs: data['silenceMs'],
+    cutMs: data['cutMs']);
+}
+
+/// Snapshot of the counters of a stream.
+class RtmpStats {
+  /// Bitrates sent to the server (bps), averaged since the previous snapshot.
+  final int videoBitrate;
+  final int audioBitrate;
+  /// Frame rate coming out of the video encoder.
+  final double fps;
+  /// Frames and bytes dropped so far, by reason: nonReference, gop, audio.
+  final Map<String, int> droppedFrames;
+  final Map<String, int> droppedBytes;
+  /// Encoded data waiting to be sent.
+  final int queuedBytes;
+  final int queuedDurationMs;
+  /// Total bytes written to the socket.
+  final int bytesWritten;
+  /// Acknowledgement window requested by the server, or 0.
+  final int windowAckSize;
+  /// Bytes the server has acknowledged on the current connection (modulo 2^32).
+  final int bytesAcknowledged;
+  /// Number of reconnect attempts.
+  final int reconnects;
+  /// How long frames were held to send audio and video in timestamp order.
+  final RtmpStageLatency interleaveHold;
+  /// Frames that came out of an encoder too late to be interleaved.
+  final int lateFrames;
+  /// Whether an additional destination is connected; null for the main stream.
+  final bool connected;
+  /// Stats of the additional destinations by URL, see [RtmpLiveViewController.addDestination].
+  final Map<String, RtmpStats> destinations;
+  /// The running video renditions, the main one first, see [RtmpLiveViewController.addRendition].
+  final List<RtmpRenditionStats> renditions;
+  /// The local recording; null if not recording.
+  final RtmpRecordingStats recording;
+  /// The disk spill; null if none is set.
+  final RtmpSpillStats spill;
+  /// The microphone input; null for additional destinations.
+  final RtmpAudioStats audio;
+
+  RtmpStats._({this.videoBitrate, this.audioBitrate, this.fps, this.droppedFrames, this.droppedBytes, this.queuedBytes, this.queuedDurationMs,
+    this.bytesWritten, this.windowAckSize, this.bytesAcknowledged, this.reconnects, this.interleaveHold, this.lateFrames,
+    this.connected, this.destinations, this.renditions, this.recording, this.spill, this.audio});
+
+  factory RtmpStats._fromMap(Map data) => RtmpStats._(
+    videoBitrate: data['videoBitrate'],
+    audioBitrate: data['audioBitrate'],
+    fps: data['fps'],
+    droppedFrames: Map<String, int>.from(data['droppedFrames']),
+    droppedBytes: Map<String, int>.from(data['droppedBytes']),
+    queuedBytes: data['queuedBytes'],
+    queuedDurationMs: data['queuedDurationMs'],
+    bytesWritten: data['bytesWritten'],
+    windowAckSize: data['windowAckSize'],
+    bytesAcknowledged: data['bytesAcknowledged'],
+    reconnects: data['reconnects'],
+    interleaveHold: RtmpStageLatency._fromMap(data['interleaver']),
+    lateFrames: data['interleaver']['late'],
+    connected: data['connected'],
+    destinations: (data['destinations'] as Map ?? {}).map((url, values) => MapEntry(url as String, RtmpStats._fromMap(values))),
+    renditions: (data['renditions'] as List ?? []).map((values) => RtmpRenditionStats._fromMap(values)).toList(),
+    recording: data['recording'] != null ? RtmpRecordingStats._fromMap(data['recording']) : null,
+    spill: data['spill'] != null ? RtmpSpillStats._fromMap(data['spill']) : null,
+    audio: data['audio'] != null ? RtmpAudioStats._fromMap(data['audio']) : null);
+}
 
 class RtmpStatus {
   final int width;
@@ -19,12 +243,24 @@ class RtmpStatus {
   final String streamName;
   final int cameraWidth;
   final int cameraHeight;
+  /// Total number of encoded frames dropped because the uplink could not keep up.
+  final int droppedFrames;
+  /// Latency of the video frames of the last report interval, keyed by pipeline stage:
+  /// preview, render, encoded, queued, dequeued, sent.
+  final Map<String, RtmpStageLatency> latency;
+  /// Renditions (0 for the main one) whose video encoder stopped producing output and is
+  /// being replaced; the connection is kept meanwhile.
+  final Set<int> stalledRenditions;
+  /// Number of stalled video encoders replaced so far.
+  final int encoderRestarts;
 
   double get aspectRatio => height != 0 ? width / height : 1.0;
 
-  RtmpStatus._({this.width, this.height, this.fps, this.isStreaming, this.isStreamingPaused, this.cameraPosition, this.rtmpUrl, this.streamName, this.cameraWidth, this.cameraHeight});
+  RtmpStatus._({this.width, this.height, this.fps, this.isStreaming, this.isStreamingPaused, this.cameraPosition, this.rtmpUrl, this.streamName, this.cameraWidth, this.cameraHeight, this.droppedFrames, this.latency,
+    this.stalledRenditions, this.encoderRestarts});
 
-  RtmpStatus updateWith({int width, int height, int fps, bool isStreaming, bool isStreamingPaused, RtmpLiveViewCameraPosition cameraPosition, String rtmpUrl, String streamName, int cameraWidth, int cameraHeight}) {
+  RtmpStatus updateWith({int width, int height, int fps, bool isStreaming, bool isStreamingPaused, RtmpLiveViewCameraPosition cameraPosition, String rtmpUrl, String streamName, int cameraWidth, int cameraHeight, int droppedFrames, Map<String, RtmpStageLatency> latency,
+    Set<int> stalledRenditions, int encoderRestarts}) {
     return RtmpStatus._(
       width: width ?? this.width,
       height: height ?? this.height,
@@ -35,7 +271,11 @@ class RtmpStatus {
       rtmpUrl: rtmpUrl ?? this.rtmpUrl,
       streamName: streamName ?? this.streamName,
       cameraWidth: cameraWidth ?? this.cameraWidth,
-      cameraHeight: cameraHeight ?? this.cameraHeight);
+      cameraHeight: cameraHeight ?? this.cameraHeight,
+      droppedFrames: droppedFrames ?? this.droppedFrames,
+      latency: latency ?? this.latency,
+      stalledRenditions: stalledRenditions ?? this.stalledRenditions,
+      encoderRestarts: encoderRestarts ?? this.encoderRestarts);
   }
 }
 
@@ -49,9 +289,12 @@ class RtmpLiveViewController {
   int _tex;
 
   final status = ValueNotifier<RtmpStatus>(null);
+  /// Updated at the rate set by [setStatsInterval].
+  final stats = ValueNotifier<RtmpStats>(null);
 
   void dispose() {
     status?.dispose();
+    stats?.dispose();
     _sub?.cancel();
     _sub = null;
     close();
@@ -75,7 +318,15 @@ class RtmpLiveViewController {
     }
   }
 
-  Future initialize({@required int width, @required int height, @required int fps, @required RtmpLiveViewCameraPosition cameraPosition, bool restartPreview = true}) async {
+  /// [adaptiveBitrate] lets the video bitrate follow the uplink between [minVideoBitrate] and [maxVideoBitrate] (bps);
+  /// by default, the maximum is derived from the resolution and fps and the minimum is 1/8 of it.
+  /// [interleaveMaxHoldMs] limits how long audio and video frames are held to send them in timestamp order
+  /// (50 ms by default); 0 sends them as they come out of the encoders.
+  /// The audio is [audioBitrate] bps (64000 by default) of [audioProfile] AAC at [audioSampleRate] Hz (44100 by default)
+  /// with [audioChannels] channels (1 or 2); HE-AAC falls back to AAC-LC on devices whose encoder lacks it.
+  Future initialize({@required int width, @required int height, @required int fps, @required RtmpLiveViewCameraPosition cameraPosition, bool restartPreview = true,
+    bool adaptiveBitrate = true, int minVideoBitrate, int maxVideoBitrate, int interleaveMaxHoldMs,
+    int audioBitrate, int audioSampleRate, int audioChannels, RtmpAacProfile audioProfile = RtmpAacProfile.lc}) async {
 
     await _initTex();
 
@@ -118,6 +369,28 @@ class RtmpLiveViewController {
           case 'camera':
             status.value = status.value.updateWith(cameraPosition: data['camera'] == 'back' ? RtmpLiveViewCameraPosition.back : RtmpLiveViewCameraPosition.front);
             break;
+          case 'framesDropped':
+            print('framesDropped: ${data['frames']} frames (${data['bytes']} bytes), reason=${data['reason']}');
+            status.value = status.value.updateWith(droppedFrames: (status.value.droppedFrames ?? 0) + data['frames']);
+            break;
+          case 'latency':
+            final stages = data['stages'] as Map;
+            status.value = status.value.updateWith(latency: stages.map((stage, values) => MapEntry(stage as String, RtmpStageLatency._fromMap(values))));
+            break;
+          case 'stats':
+            stats.value = RtmpStats._fromMap(data['stats']);
+            break;
+          case 'encoderStalled':
+            print('encoderStalled: rendition ${data['rendition']}, no output for ${data['stalledMs']} ms');
+            status.value = status.value.updateWith(
+              stalledRenditions: Set<int>.from(status.value.stalledRenditions ?? Set<int>())..add(data['rendition']));
+            break;
+          case 'encoderRestarted':
+            print('encoderRestarted: rendition ${data['rendition']} in ${data['restartMs']} ms');
+            status.value = status.value.updateWith(
+              stalledRenditions: Set<int>.from(status.value.stalledRenditions ?? Set<int>())..remove(data['rendition']),
+              encoderRestarts: (status.value.encoderRestarts ?? 0) + 1);
+            break;
           default:
             print('Unknown data: ${data['name']}');
         }
@@ -129,20 +402,30 @@ class RtmpLiveViewController {
       'width': status.value.width,
       'height': status.value.height,
       'fps': status.value.fps,
-      'camera': status.value.cameraPosition == RtmpLiveViewCameraPosition.back ? 'back' : 'front'
+      'camera': status.value.cameraPosition == RtmpLiveViewCameraPosition.back ? 'back' : 'front',
+      'adaptiveBitrate': adaptiveBitrate,
+      'minVideoBitrate': minVideoBitrate,
+      'maxVideoBitrate': maxVideoBitrate,
+      'interleaveMaxHold': interleaveMaxHoldMs,
+      'audioBitrate': audioBitrate,
+      'audioSampleRate': audioSampleRate,
+      'audioChannels': audioChannels,
+      'audioProfile': audioProfile == RtmpAacProfile.he ? 'he' : audioProfile == RtmpAacProfile.heV2 ? 'heV2' : 'lc'
     });
 
     if (restartPreview)
       await _startPreview();
   }
 
-  // FIXME: What's the definition of pause??
-  Future pause() async {
+  /// Stops encoding and sending while keeping the connection; only the preview keeps running.
+  /// After [resume] the stream goes on from where it stopped, starting with a key frame.
+  /// With [slate], the stream keeps going meanwhile with the last picture and silence, for
+  /// servers that drop a publisher that goes quiet.
+  Future pause({bool slate = false}) async {
     _checkParams();
-    await _channel.invokeMethod('pause', { 'tex': _tex });
+    await _channel.invokeMethod('pause', { 'tex': _tex, 'slate': slate });
   }
 
-  // FIXME: What's the definition of resume??
   Future resume() async {
     _checkParams();
     await _channel.invokeMethod('resume', { 'tex': _tex });
@@ -181,11 +464,107 @@ class RtmpLiveViewController {
     });
   }
 
+  /// Also publishes the stream to another server, from the same encode. It connects and
+  /// reconnects on its own, and stops on [disconnect].
+  ///
+  /// [rendition] selects the video: 0 for the main one, or an index returned by [addRendition].
+  Future addDestination({@required String rtmpUrl, @required String streamName, int rendition = 0}) async {
+    _checkParams();
+    await _channel.invokeMethod('addDestination', {
+      'tex': _tex,
+      'url': rtmpUrl,
+      'name': streamName,
+      'rendition': rendition
+    });
+  }
+
+  /// Keeps a local copy of the broadcast in an FLV file at [path]. It never holds up the live
+  /// stream; if storage can't keep up, frames are dropped from the recording instead. The
+  /// recording ends with [stopRecording] or [disconnect].
+  Future startRecording(String path) async {
+    _checkParams();
+    await _channel.invokeMethod('startRecording', { 'tex': _tex, 'path': path });
+  }
+
+  Future stopRecording() async {
+    _checkParams();
+    await _channel.invokeMethod('stopRecording', { 'tex': _tex });
+  }
+
+  /// Keeps what the uplink can't take, e.g. through an outage, in up to [maxBytes] of files in
+  /// [directory] instead of dropping it; see [RtmpSpillMode] for what happens to it then.
+  /// [backfillUrl] is required for [RtmpSpillMode.backfill]. Call before [connect]; a null
+  /// [directory] turns it off.
+  Future setSpill({@required String directory, int maxBytes = 256 * 1024 * 1024, RtmpSpillMode mode = RtmpSpillMode.catchUp,
+    String backfillUrl}) async {
+    _checkParams();
+    await _channel.invokeMethod('setSpill', {
+      'tex': _tex,
+      'directory': directory,
+      'maxBytes': maxBytes,
+      'mode': mode == RtmpSpillMode.backfill ? 'backfill' : 'catchUp',
+      'backfillUrl': backfillUrl
+    });
+  }
+
+  /// Cleans up the microphone audio before it is encoded, from the next block captured. The stages run in this order,
+  /// each only if its parameter is given: a high-pass filter at [highPassHz] (80-120 Hz for voice), a noise gate
+  /// that opens at [noiseGateDb] dBFS, a gain of [gainDb], and a limiter that keeps peaks under [limiterDb] dBFS.
+  /// The limiter delays the audio by [limiterLookAheadMs] to bring the gain down smoothly before a peak; the audio
+  /// timestamps allow for that from the next start.
+  /// Calling it with no parameters turns the processing off.
+  Future setAudioProcessing({double gainDb, double highPassHz, double noiseGateDb, double limiterDb, int limiterLookAheadMs = 5}) async {
+    _checkParams();
+    await _channel.invokeMethod('setAudioProcessing', {
+      'tex': _tex,
+      'gainDb': gainDb,
+      'highPassHz': highPassHz,
+      'noiseGateDb': noiseGateDb,
+      'limiterDb': limiterDb,
+      'limiterLookAheadMs': limiterLookAheadMs
+    });
+  }
+
+  /// Also encodes the camera picture at another size, frame rate and bitrate, e.g. a 540p
+  /// fallback next to a 1080p stream. Takes effect when streaming starts next.
+  /// Returns the index to pass to [addDestination].
+  Future<int> addRendition({@required int width, @required int height, @required int fps, @required int bitrate}) async {
+    _checkParams();
+    return await _channel.invokeMethod('addRendition', {
+      'tex': _tex,
+      'width': width,
+      'height': height,
+      'fps': fps,
+      'bitrate': bitrate
+    });
+  }
+
+  Future removeDestination({@required String rtmpUrl, @required String streamName}) async {
+    _checkParams();
+    await _channel.invokeMethod('removeDestination', {
+      'tex': _tex,
+      'url': rtmpUrl,
+      'name': streamName
+    });
+  }
+
   Future disconnect() async {
     _checkParams();
     await _channel.invokeMethod('disconnect', { 'tex': _tex });
   }
 
+  /// Takes a snapshot of the stream counters.
+  Future<RtmpStats> getStats() async {
+    _checkParams();
+    return RtmpStats._fromMap(await _channel.invokeMethod('getStats', { 'tex': _tex }));
+  }
+
+  /// Updates [stats] every [interval]; null or zero stops the updates.
+  Future setStatsInterval(Duration interval) async {
+    _checkParams();
+    await _channel.invokeMethod('setStatsInterval', { 'tex': _tex, 'interval': interval?.inMilliseconds ?? 0 });
+  }
+
   void _checkParams() {
     final s = status.value;
     if (status.value == null || s.width == null || s.height == null || s.fps == null)